@@ -0,0 +1,354 @@
+package nexus.io.llm.proxy.accesslog;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import lombok.extern.slf4j.Slf4j;
+import nexus.io.tio.utils.environment.EnvUtils;
+
+/**
+ * 异步访问日志. 请求线程只把字段写入预分配的环形缓冲区的一个槽位, 不加锁, 不做格式化和 IO; 后台线程按 JSON 行写入文件,
+ * 超过大小后轮转.
+ *
+ * <pre>
+ * llm.proxy.access.log.enabled=true
+ * llm.proxy.access.log.file=logs/llm-access.log
+ * llm.proxy.access.log.buffer=8192
+ * llm.proxy.access.log.max.bytes=104857600
+ * llm.proxy.access.log.max.files=10
+ * llm.proxy.access.log.body.rate=0.01
+ * llm.proxy.access.log.body.max=4096
+ * </pre>
+ *
+ * 缓冲区满时丢弃记录并计数, 不阻塞请求线程. body.rate 是记录请求体和响应体的采样比例, app.debug=true 时默认全部记录
+ */
+@Slf4j
+public class AccessLog implements Runnable {
+
+  // 写线程空闲时等待请求线程唤醒, 这个时间只是兜底
+  private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final Entry[] ring;
+  private final int mask;
+  private final AtomicLong claimed = new AtomicLong();
+  private volatile long consumed;
+
+  private final File file;
+  private final long maxBytes;
+  private final int maxFiles;
+  private final double bodyRate;
+  private final int bodyMax;
+
+  private final LongAdder dropped = new LongAdder();
+  private volatile long written;
+  private volatile long rotations;
+  private OutputStream out;
+  private long fileBytes;
+  private final StringBuilder line = new StringBuilder(1024);
+  private volatile boolean running = true;
+  // 写线程准备 park, 请求线程写入后需要 unpark
+  private volatile boolean idle;
+  private final Thread thread;
+
+  public static AccessLog fromEnv() {
+    if (!EnvUtils.getBoolean("llm.proxy.access.log.enabled", true)) {
+      return null;
+    }
+    String path = EnvUtils.getStr("llm.proxy.access.log.file", "logs/llm-access.log");
+    int buffer = EnvUtils.getInt("llm.proxy.access.log.buffer", 8192);
+    long maxBytes = EnvUtils.getLong("llm.proxy.access.log.max.bytes", 100L * 1024 * 1024);
+    int maxFiles = EnvUtils.getInt("llm.proxy.access.log.max.files", 10);
+    double defaultRate = EnvUtils.getBoolean("app.debug", false) ? 1.0 : 0.0;
+    String rate = EnvUtils.getStr("llm.proxy.access.log.body.rate");
+    double bodyRate = rate != null ? Double.parseDouble(rate) : defaultRate;
+    int bodyMax = EnvUtils.getInt("llm.proxy.access.log.body.max", 4096);
+    AccessLog accessLog = new AccessLog(new File(path), buffer, maxBytes, maxFiles, bodyRate, bodyMax);
+    log.info("llm proxy access log:{}, buffer:{}, body rate:{}", path, accessLog.ring.length, bodyRate);
+    return accessLog;
+  }
+
+  public AccessLog(File file, int bufferSize, long maxBytes, int maxFiles, double bodyRate, int bodyMax) {
+    int size = Integer.highestOneBit(Math.max(2, bufferSize - 1)) << 1;
+    this.ring = new Entry[size];
+    for (int i = 0; i < size; i++) {
+      ring[i] = new Entry(i - size);
+    }
+    this.mask = size - 1;
+    this.file = file;
+    this.maxBytes = maxBytes;
+    this.maxFiles = maxFiles;
+    this.bodyRate = bodyRate;
+    this.bodyMax = bodyMax;
+    File dir = file.getAbsoluteFile().getParentFile();
+    if (dir != null) {
+      dir.mkdirs();
+    }
+    this.thread = new Thread(this, "llm-proxy-access-log");
+    thread.setDaemon(true);
+    thread.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(this::close, "llm-proxy-access-log-close"));
+  }
+
+  /**
+   * 本次请求是否记录请求体和响应体
+   */
+  public boolean sample() {
+    return bodyRate > 0 && (bodyRate >= 1 || ThreadLocalRandom.current().nextDouble() < bodyRate);
+  }
+
+  /**
+   * 在请求线程中调用, 缓冲区满时丢弃
+   *
+   * @param ttfb 首字节时间(ms), 没有时为 -1
+   */
+  public void append(Long id, String ip, String route, String model, int status, long requestBytes,
+      long responseBytes, long ttfb, long total, byte[] requestBody, byte[] responseBody) {
+    long seq;
+    do {
+      seq = claimed.get();
+      if (seq - consumed >= ring.length) {
+        dropped.increment();
+        return;
+      }
+    } while (!claimed.compareAndSet(seq, seq + 1));
+
+    Entry e = ring[(int) seq & mask];
+    e.time = System.currentTimeMillis();
+    e.id = id;
+    e.ip = ip;
+    e.route = route;
+    e.model = model;
+    e.status = status;
+    e.requestBytes = requestBytes;
+    e.responseBytes = responseBytes;
+    e.ttfb = ttfb;
+    e.total = total;
+    e.requestBody = requestBody;
+    e.responseBody = responseBody;
+    // 最后写序号, 写线程看到序号后字段都已可见
+    e.sequence = seq;
+    if (idle) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  @Override
+  public void run() {
+    while (running || consumed < claimed.get()) {
+      if (!drain()) {
+        flush();
+        idle = true;
+        // 先声明空闲再检查, 和 append 先写序号再检查 idle 配合, 不会漏掉唤醒
+        if (running && ring[(int) consumed & mask].sequence != consumed) {
+          LockSupport.parkNanos(this, IDLE_NANOS);
+        }
+        idle = false;
+      }
+    }
+    drain();
+    flush();
+  }
+
+  /**
+   * @return 是否写出了记录
+   */
+  private boolean drain() {
+    boolean any = false;
+    long next = consumed;
+    Entry e;
+    while ((e = ring[(int) next & mask]).sequence == next) {
+      write(e);
+      e.requestBody = null;
+      e.responseBody = null;
+      next++;
+      // 槽位释放给请求线程
+      consumed = next;
+      any = true;
+    }
+    return any;
+  }
+
+  private void write(Entry e) {
+    StringBuilder sb = line;
+    sb.setLength(0);
+    sb.append("{\"time\":").append(e.time);
+    sb.append(",\"id\":").append(e.id);
+    sb.append(",\"ip\":");
+    string(sb, e.ip);
+    sb.append(",\"route\":");
+    string(sb, e.route);
+    sb.append(",\"model\":");
+    string(sb, e.model);
+    sb.append(",\"status\":").append(e.status);
+    sb.append(",\"requestBytes\":").append(e.requestBytes);
+    sb.append(",\"responseBytes\":").append(e.responseBytes);
+    sb.append(",\"ttfb\":").append(e.ttfb);
+    sb.append(",\"total\":").append(e.total);
+    if (e.requestBody != null) {
+      sb.append(",\"requestBody\":");
+      body(sb, e.requestBody);
+    }
+    if (e.responseBody != null) {
+      sb.append(",\"responseBody\":");
+      body(sb, e.responseBody);
+    }
+    sb.append("}\n");
+    byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+    try {
+      if (out == null || fileBytes + bytes.length > maxBytes) {
+        rotate();
+      }
+      out.write(bytes);
+      fileBytes += bytes.length;
+      written++;
+    } catch (IOException ex) {
+      dropped.increment();
+      log.error("write access log {} failed:{}", file, ex.getMessage());
+      closeStream();
+    }
+  }
+
+  private void body(StringBuilder sb, byte[] body) {
+    int len = Math.min(body.length, bodyMax);
+    string(sb, new String(body, 0, len, StandardCharsets.UTF_8));
+  }
+
+  private static void string(StringBuilder sb, String value) {
+    if (value == null) {
+      sb.append("null");
+      return;
+    }
+    sb.append('"');
+    for (int i = 0, n = value.length(); i < n; i++) {
+      char c = value.charAt(i);
+      switch (c) {
+      case '"':
+        sb.append("\\\"");
+        break;
+      case '\\':
+        sb.append("\\\\");
+        break;
+      case '\n':
+        sb.append("\\n");
+        break;
+      case '\r':
+        sb.append("\\r");
+        break;
+      case '\t':
+        sb.append("\\t");
+        break;
+      default:
+        if (c < 0x20) {
+          sb.append(String.format("\\u%04x", (int) c));
+        } else {
+          sb.append(c);
+        }
+      }
+    }
+    sb.append('"');
+  }
+
+  /**
+   * 第一次打开时续写已有文件; 超过大小时 file -> file.1 -> file.2 ..., 最多保留 maxFiles 个
+   */
+  private void rotate() throws IOException {
+    if (out != null) {
+      closeStream();
+      for (int i = maxFiles - 1; i >= 1; i--) {
+        File from = new File(file.getPath() + "." + i);
+        if (from.exists()) {
+          File to = new File(file.getPath() + "." + (i + 1));
+          to.delete();
+          from.renameTo(to);
+        }
+      }
+      File first = new File(file.getPath() + ".1");
+      first.delete();
+      file.renameTo(first);
+      rotations++;
+    }
+    out = new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024);
+    fileBytes = file.length();
+  }
+
+  private void flush() {
+    if (out != null) {
+      try {
+        out.flush();
+      } catch (IOException e) {
+        log.error("flush access log {} failed:{}", file, e.getMessage());
+        closeStream();
+      }
+    }
+  }
+
+  private void closeStream() {
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        // ignore
+      }
+      out = null;
+    }
+  }
+
+  /**
+   * 写完缓冲区中的记录后退出
+   */
+  public void close() {
+    running = false;
+    LockSupport.unpark(thread);
+    try {
+      thread.join(5000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public Map<String, Object> snapshot() {
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("file", file.getPath());
+    map.put("buffer", ring.length);
+    map.put("pending", claimed.get() - consumed);
+    map.put("written", written);
+    map.put("dropped", dropped.sum());
+    map.put("rotations", rotations);
+    map.put("bodyRate", bodyRate);
+    return map;
+  }
+
+  /**
+   * 预分配的记录槽位, sequence 等于当前序号时表示已写入
+   */
+  private static class Entry {
+    private volatile long sequence;
+    private long time;
+    private Long id;
+    private String ip;
+    private String route;
+    private String model;
+    private int status;
+    private long requestBytes;
+    private long responseBytes;
+    private long ttfb;
+    private long total;
+    private byte[] requestBody;
+    private byte[] responseBody;
+
+    private Entry(long sequence) {
+      this.sequence = sequence;
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package nexus.io.llm.proxy.cache;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import nexus.io.llm.proxy.client.LLMProxyClient;
+import nexus.io.llm.proxy.utils.CompressionUtils;
+import nexus.io.tio.http.common.HeaderName;
+import nexus.io.tio.http.common.HeaderValue;
+import nexus.io.tio.http.common.HttpResponse;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * 缓存的上游响应: 状态码, Content-Type, Content-Encoding 和原始字节
+ */
+public class CachedResponse {
+
+  public static final String CACHE_HEADER = "x-llm-proxy-cache";
+
+  private final int status;
+  private final String contentType;
+  private final String contentEncoding;
+  private final byte[] body;
+  private final long createdAt;
+  // 第一次需要时生成, 之后的命中直接复用
+  private volatile byte[] gzipped;
+
+  public CachedResponse(int status, String contentType, String contentEncoding, byte[] body, long createdAt) {
+    this.status = status;
+    this.contentType = contentType;
+    this.contentEncoding = contentEncoding;
+    this.body = body;
+    this.createdAt = createdAt;
+  }
+
+  public static CachedResponse from(Response response) throws IOException {
+    ResponseBody responseBody = response.body();
+    byte[] bytes = responseBody != null ? responseBody.bytes() : new byte[0];
+    String contentType = response.header("Content-Type");
+    return new CachedResponse(response.code(), contentType != null ? contentType : LLMProxyClient.DEFAULT_CONTENT_TYPE,
+        response.header("Content-Encoding"), bytes, System.currentTimeMillis());
+  }
+
+  public void writeTo(HttpResponse httpResponse, String cacheStatus) {
+    writeTo(httpResponse, cacheStatus, null);
+  }
+
+  /**
+   * @param acceptEncoding 客户端的 Accept-Encoding, 上游没有压缩时按它压缩
+   */
+  public void writeTo(HttpResponse httpResponse, String cacheStatus, String acceptEncoding) {
+    httpResponse.setStatus(status);
+    httpResponse.addHeader(HeaderName.Content_Type, HeaderValue.from(contentType));
+    httpResponse.addHeader(HeaderName.from(CACHE_HEADER), HeaderValue.from(cacheStatus));
+    if (contentEncoding == null && CompressionUtils.shouldCompress(body, contentType)
+        && CompressionUtils.negotiate(acceptEncoding) != null) {
+      byte[] compressed = gzipped;
+      if (compressed == null) {
+        gzipped = compressed = CompressionUtils.gzip(body);
+      }
+      httpResponse.addHeader(HeaderName.Content_Encoding, HeaderValue.from(CompressionUtils.GZIP));
+      httpResponse.addHeader(HeaderName.Vary, HeaderValue.from("Accept-Encoding"));
+      httpResponse.setBody(compressed);
+      httpResponse.setSkipGzipped(true);
+      return;
+    }
+    CompressionUtils.setBody(httpResponse, body, contentType, contentEncoding, null);
+  }
+
+  public boolean isSuccess() {
+    return status >= 200 && status < 300;
+  }
+
+  /**
+   * 估算占用的内存
+   */
+  public int weight() {
+    return body.length + 128;
+  }
+
+  void write(DataOutputStream out) throws IOException {
+    out.writeInt(status);
+    out.writeUTF(contentType);
+    out.writeUTF(contentEncoding != null ? contentEncoding : "");
+    out.writeLong(createdAt);
+    out.writeInt(body.length);
+    out.write(body);
+  }
+
+  static CachedResponse read(DataInputStream in) throws IOException {
+    int status = in.readInt();
+    String contentType = in.readUTF();
+    String contentEncoding = in.readUTF();
+    long createdAt = in.readLong();
+    byte[] body = new byte[in.readInt()];
+    in.readFully(body);
+    return new CachedResponse(status, contentType, contentEncoding.isEmpty() ? null : contentEncoding, body, createdAt);
+  }
+
+  public int getStatus() {
+    return status;
+  }
+
+  public String getContentType() {
+    return contentType;
+  }
+
+  public String getContentEncoding() {
+    return contentEncoding;
+  }
+
+  public byte[] getBody() {
+    return body;
+  }
+
+  public long getCreatedAt() {
+    return createdAt;
+  }
+}
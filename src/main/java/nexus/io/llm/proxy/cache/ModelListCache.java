@@ -0,0 +1,154 @@
+package nexus.io.llm.proxy.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import lombok.extern.slf4j.Slf4j;
+import nexus.io.tio.utils.environment.EnvUtils;
+
+/**
+ * 模型列表缓存, 默认开启
+ *
+ * <pre>
+ * llm.proxy.models.cache.enabled=true
+ * llm.proxy.models.cache.ttl=60
+ * llm.proxy.models.cache.stale=600
+ * </pre>
+ *
+ * ttl 之内直接返回; 过期但在 stale 之内时先返回旧结果, 同时在后台刷新; 超过 stale 时等待上游. 相同 key(同一个密钥)的并发请求只访问上游一次.
+ * 只缓存 2xx 响应
+ */
+@Slf4j
+public class ModelListCache {
+
+  private static final int MAX_ENTRIES = 10000;
+
+  private final long ttlMillis;
+  private final long staleMillis;
+  private final Map<String, CachedResponse> entries = new LinkedHashMap<String, CachedResponse>(64, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest) {
+      return size() > MAX_ENTRIES;
+    }
+  };
+  private final Map<String, CompletableFuture<CachedResponse>> inflight = new ConcurrentHashMap<>();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder staleHits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder coalesced = new LongAdder();
+  private final LongAdder refreshes = new LongAdder();
+
+  public ModelListCache(long ttlMillis, long staleMillis) {
+    this.ttlMillis = ttlMillis;
+    this.staleMillis = staleMillis;
+  }
+
+  /**
+   * 未开启时返回 null
+   */
+  public static ModelListCache fromEnv() {
+    if (!EnvUtils.getBoolean("llm.proxy.models.cache.enabled", true)) {
+      return null;
+    }
+    long ttl = EnvUtils.getLong("llm.proxy.models.cache.ttl", 60L);
+    long stale = EnvUtils.getLong("llm.proxy.models.cache.stale", 600L);
+    return new ModelListCache(ttl * 1000, stale * 1000);
+  }
+
+  /**
+   * @param loader 访问上游, 只在需要刷新时调用
+   */
+  public Lookup get(String key, Supplier<CompletableFuture<CachedResponse>> loader) {
+    CachedResponse cached;
+    synchronized (entries) {
+      cached = entries.get(key);
+    }
+    long age = cached != null ? System.currentTimeMillis() - cached.getCreatedAt() : Long.MAX_VALUE;
+    if (age < ttlMillis) {
+      hits.increment();
+      return new Lookup("HIT", CompletableFuture.completedFuture(cached));
+    }
+    if (age < ttlMillis + staleMillis) {
+      staleHits.increment();
+      load(key, loader);
+      return new Lookup("STALE", CompletableFuture.completedFuture(cached));
+    }
+    misses.increment();
+    return new Lookup("MISS", load(key, loader));
+  }
+
+  private CompletableFuture<CachedResponse> load(String key, Supplier<CompletableFuture<CachedResponse>> loader) {
+    CompletableFuture<CachedResponse> created = new CompletableFuture<>();
+    CompletableFuture<CachedResponse> existing = inflight.putIfAbsent(key, created);
+    if (existing != null) {
+      coalesced.increment();
+      return existing;
+    }
+    refreshes.increment();
+    CompletableFuture<CachedResponse> future;
+    try {
+      future = loader.get();
+    } catch (RuntimeException e) {
+      future = new CompletableFuture<>();
+      future.completeExceptionally(e);
+    }
+    future.whenComplete((response, e) -> {
+      if (response != null && response.isSuccess()) {
+        synchronized (entries) {
+          entries.put(key, response);
+        }
+      } else {
+        log.warn("refresh model list failed:{}", e != null ? e.getMessage() : response.getStatus());
+      }
+      inflight.remove(key, created);
+      if (response != null) {
+        created.complete(response);
+      } else {
+        created.completeExceptionally(e);
+      }
+    });
+    return created;
+  }
+
+  public Map<String, Object> snapshot() {
+    Map<String, Object> map = new LinkedHashMap<>();
+    synchronized (entries) {
+      map.put("entries", entries.size());
+    }
+    map.put("inflight", inflight.size());
+    map.put("hits", hits.sum());
+    map.put("staleHits", staleHits.sum());
+    map.put("misses", misses.sum());
+    map.put("coalesced", coalesced.sum());
+    map.put("refreshes", refreshes.sum());
+    return map;
+  }
+
+  public static class Lookup {
+    private final String status;
+    private final CompletableFuture<CachedResponse> future;
+
+    private Lookup(String status, CompletableFuture<CachedResponse> future) {
+      this.status = status;
+      this.future = future;
+    }
+
+    /**
+     * HIT, STALE 或 MISS
+     */
+    public String getStatus() {
+      return status;
+    }
+
+    public CompletableFuture<CachedResponse> getFuture() {
+      return future;
+    }
+  }
+}
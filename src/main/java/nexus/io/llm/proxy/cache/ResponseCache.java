@@ -0,0 +1,539 @@
+package nexus.io.llm.proxy.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONWriter;
+
+import lombok.extern.slf4j.Slf4j;
+import nexus.io.llm.proxy.cluster.SharedState;
+import nexus.io.tio.http.common.HttpRequest;
+import nexus.io.tio.utils.environment.EnvUtils;
+
+/**
+ * 非流式请求的精确匹配缓存, 默认关闭
+ *
+ * <pre>
+ * llm.proxy.cache.enabled=true
+ * llm.proxy.cache.max.bytes=67108864
+ * llm.proxy.cache.ttl=3600
+ * llm.proxy.cache.disk.dir=/data/llm-cache
+ * llm.proxy.cache.disk.max.bytes=67108864
+ * llm.proxy.cache.wait.timeout=120
+ * </pre>
+ *
+ * key 为 路由, 模型, 上游地址, 转发的请求头和规范化后的请求体(key 排序) 的 SHA-256. 请求头包含密钥, 不同密钥之间不共享缓存.
+ * 内存按 LRU 淘汰, 配置了 disk.dir 时同时写入磁盘, 内存未命中时从磁盘读取. 磁盘同样按 LRU 淘汰, 默认预算与内存相同.
+ * 相同 key 的并发请求只有一个访问上游, 其余最多等待 wait.timeout 秒, 超时后自己访问上游. 超过 wait.timeout 还没有结束的 leader
+ * 不再接受新的等待者, 下一个相同请求成为新的 leader. 请求头 x-llm-proxy-cache: bypass 或 cache-control: no-cache 跳过缓存.
+ * <p>
+ * 配置了 {@link SharedState} 时, 不超过 {@link SharedState#maxEntryBytes()} 的响应同时发布给其他节点, 本节点内存和磁盘都未命中时查找
+ * 其他节点发布的条目. 同步是异步的, 刚写入的条目在其他节点上可能还没有
+ */
+@Slf4j
+public class ResponseCache {
+
+  private static final String SHARED_PREFIX = "cache:";
+  private static final String TMP_SUFFIX = ".tmp";
+
+  // 等待者的超时, 所有实例共用
+  private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "llm-cache-wait");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final long maxBytes;
+  private final long ttlMillis;
+  private final File diskDir;
+  private final long diskMaxBytes;
+  private final long waitMillis;
+  private final SharedState shared;
+
+  private final LinkedHashMap<String, CachedResponse> memory = new LinkedHashMap<>(256, 0.75f, true);
+  private long memoryBytes;
+  // 磁盘上的条目和文件大小, 按访问顺序
+  private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(256, 0.75f, true);
+  private long diskBytes;
+  private final Map<String, Flight> inflight = new ConcurrentHashMap<>();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder diskHits = new LongAdder();
+  private final LongAdder clusterHits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder coalesced = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder diskEvictions = new LongAdder();
+  private final LongAdder waitTimeouts = new LongAdder();
+  private final LongAdder abandoned = new LongAdder();
+  private final LongAdder bypasses = new LongAdder();
+
+  public ResponseCache(long maxBytes, long ttlMillis, File diskDir) {
+    this(maxBytes, ttlMillis, diskDir, null);
+  }
+
+  public ResponseCache(long maxBytes, long ttlMillis, File diskDir, SharedState shared) {
+    this(maxBytes, ttlMillis, diskDir, maxBytes, 120_000L, shared);
+  }
+
+  /**
+   * @param diskMaxBytes 磁盘缓存的总字节数上限
+   * @param waitMillis   等待相同请求的最长时间
+   */
+  public ResponseCache(long maxBytes, long ttlMillis, File diskDir, long diskMaxBytes, long waitMillis,
+      SharedState shared) {
+    this.maxBytes = maxBytes;
+    this.ttlMillis = ttlMillis;
+    this.diskDir = diskDir;
+    this.diskMaxBytes = diskMaxBytes;
+    this.waitMillis = waitMillis;
+    this.shared = shared;
+    if (diskDir != null) {
+      if (!diskDir.isDirectory() && !diskDir.mkdirs()) {
+        throw new IllegalArgumentException("can not create cache dir " + diskDir);
+      }
+      loadDisk();
+    }
+  }
+
+  /**
+   * 未开启时返回 null
+   */
+  public static ResponseCache fromEnv() {
+    return fromEnv(null);
+  }
+
+  public static ResponseCache fromEnv(SharedState shared) {
+    if (!EnvUtils.getBoolean("llm.proxy.cache.enabled", false)) {
+      return null;
+    }
+    long maxBytes = EnvUtils.getLong("llm.proxy.cache.max.bytes", 64L * 1024 * 1024);
+    long ttl = EnvUtils.getLong("llm.proxy.cache.ttl", 3600L);
+    String dir = EnvUtils.getStr("llm.proxy.cache.disk.dir");
+    long diskMaxBytes = EnvUtils.getLong("llm.proxy.cache.disk.max.bytes", maxBytes);
+    long wait = EnvUtils.getLong("llm.proxy.cache.wait.timeout", 120L);
+    ResponseCache cache = new ResponseCache(maxBytes, ttl * 1000, dir != null ? new File(dir) : null, diskMaxBytes,
+        wait * 1000, shared);
+    log.info("llm proxy response cache enabled, maxBytes:{}, ttl:{}s, disk:{}, diskMaxBytes:{}, wait:{}s", maxBytes,
+        ttl, dir, diskMaxBytes, wait);
+    return cache;
+  }
+
+  public boolean isBypass(HttpRequest httpRequest) {
+    boolean bypass = bypassRequested(httpRequest);
+    if (bypass) {
+      bypasses.increment();
+    }
+    return bypass;
+  }
+
+  static boolean bypassRequested(HttpRequest httpRequest) {
+    String value = httpRequest.getHeader(CachedResponse.CACHE_HEADER);
+    return "bypass".equalsIgnoreCase(value) || "no-cache".equalsIgnoreCase(httpRequest.getHeader("cache-control"));
+  }
+
+  public static String key(String route, String model, String url, Map<String, String> headers, byte[] body) {
+    MessageDigest digest = sha256();
+    update(digest, route);
+    update(digest, model);
+    update(digest, url);
+    for (Map.Entry<String, String> e : new TreeMap<>(headers).entrySet()) {
+      update(digest, e.getKey());
+      update(digest, e.getValue());
+    }
+    digest.update(normalize(body));
+    return hex(digest.digest());
+  }
+
+  /**
+   * 重新序列化并按 key 排序, 只有空白和 key 顺序不同的请求体得到相同的字节. 不是合法 JSON 时使用原始字节
+   */
+  static byte[] normalize(byte[] body) {
+    try {
+      Object value = JSON.parse(body);
+      if (value != null) {
+        return JSON.toJSONBytes(value, JSONWriter.Feature.MapSortField);
+      }
+    } catch (Exception e) {
+      // ignore
+    }
+    return body;
+  }
+
+  public CachedResponse get(String key) {
+    long now = System.currentTimeMillis();
+    synchronized (this) {
+      CachedResponse cached = memory.get(key);
+      if (cached != null) {
+        if (now - cached.getCreatedAt() < ttlMillis) {
+          hits.increment();
+          return cached;
+        }
+        memory.remove(key);
+        memoryBytes -= cached.weight();
+      }
+    }
+    if (diskDir != null) {
+      CachedResponse cached = readDisk(key, now);
+      if (cached != null) {
+        diskHits.increment();
+        putMemory(key, cached);
+        return cached;
+      }
+    }
+    if (shared != null) {
+      CachedResponse cached = readShared(key, now);
+      if (cached != null) {
+        clusterHits.increment();
+        putMemory(key, cached);
+        return cached;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * 第一个请求成为 leader 负责访问上游, 之后的请求得到同一个 Flight, 等待 leader 完成
+   */
+  public Flight join(String key) {
+    Flight created = new Flight(key);
+    while (true) {
+      Flight existing = inflight.putIfAbsent(key, created);
+      if (existing == null) {
+        misses.increment();
+        return created;
+      }
+      if (System.currentTimeMillis() - existing.startedAt < waitMillis) {
+        coalesced.increment();
+        return existing.follower();
+      }
+      // leader 超时未结束, 不再让新请求等待它
+      if (inflight.remove(key, existing)) {
+        abandoned.increment();
+        log.warn("cache flight {} still running after {}ms, replaced", key, waitMillis);
+      }
+    }
+  }
+
+  private void complete(Flight flight, CachedResponse response) {
+    try {
+      if (response.isSuccess()) {
+        putMemory(flight.key, response);
+        if (diskDir != null) {
+          writeDisk(flight.key, response);
+        }
+        if (shared != null && response.getBody().length <= shared.maxEntryBytes()) {
+          writeShared(flight.key, response);
+        }
+      }
+    } finally {
+      inflight.remove(flight.key, flight);
+      flight.future.complete(response);
+    }
+  }
+
+  private void fail(Flight flight, Throwable e) {
+    inflight.remove(flight.key, flight);
+    flight.future.completeExceptionally(e);
+  }
+
+  private void putMemory(String key, CachedResponse response) {
+    int weight = response.weight();
+    if (weight > maxBytes) {
+      return;
+    }
+    synchronized (this) {
+      CachedResponse old = memory.put(key, response);
+      if (old != null) {
+        memoryBytes -= old.weight();
+      }
+      memoryBytes += weight;
+      Iterator<CachedResponse> it = memory.values().iterator();
+      while (memoryBytes > maxBytes && it.hasNext()) {
+        memoryBytes -= it.next().weight();
+        it.remove();
+        evictions.increment();
+      }
+    }
+  }
+
+  /**
+   * 启动时按修改时间建立磁盘条目的 LRU 顺序, 删除上次没有写完的临时文件, 超出预算的部分立即淘汰
+   */
+  private void loadDisk() {
+    File[] files = diskDir.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+    synchronized (disk) {
+      for (File file : files) {
+        if (!file.isFile()) {
+          continue;
+        }
+        if (file.getName().endsWith(TMP_SUFFIX)) {
+          file.delete();
+          continue;
+        }
+        disk.put(file.getName(), file.length());
+        diskBytes += file.length();
+      }
+      evictDisk();
+    }
+  }
+
+  private CachedResponse readDisk(String key, long now) {
+    synchronized (disk) {
+      // 同时更新访问顺序
+      if (disk.get(key) == null) {
+        return null;
+      }
+    }
+    File file = new File(diskDir, key);
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      CachedResponse cached = CachedResponse.read(in);
+      if (now - cached.getCreatedAt() < ttlMillis) {
+        return cached;
+      }
+    } catch (IOException e) {
+      log.warn("read cache file {} failed:{}", file, e.getMessage());
+    }
+    synchronized (disk) {
+      Long size = disk.remove(key);
+      if (size != null) {
+        diskBytes -= size;
+      }
+      file.delete();
+    }
+    return null;
+  }
+
+  private void writeDisk(String key, CachedResponse response) {
+    File tmp = new File(diskDir, key + TMP_SUFFIX);
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+      response.write(out);
+    } catch (IOException e) {
+      log.warn("write cache file {} failed:{}", tmp, e.getMessage());
+      tmp.delete();
+      return;
+    }
+    long size = tmp.length();
+    if (size > diskMaxBytes) {
+      tmp.delete();
+      return;
+    }
+    File file = new File(diskDir, key);
+    synchronized (disk) {
+      if (!tmp.renameTo(file)) {
+        file.delete();
+        if (!tmp.renameTo(file)) {
+          tmp.delete();
+          return;
+        }
+      }
+      Long old = disk.put(key, size);
+      diskBytes += size - (old != null ? old : 0);
+      evictDisk();
+    }
+  }
+
+  /**
+   * 持有 disk 锁时调用
+   */
+  private void evictDisk() {
+    Iterator<Map.Entry<String, Long>> it = disk.entrySet().iterator();
+    while (diskBytes > diskMaxBytes && it.hasNext()) {
+      Map.Entry<String, Long> e = it.next();
+      new File(diskDir, e.getKey()).delete();
+      diskBytes -= e.getValue();
+      it.remove();
+      diskEvictions.increment();
+    }
+  }
+
+  private CachedResponse readShared(String key, long now) {
+    byte[] bytes = shared.get(SHARED_PREFIX + key);
+    if (bytes == null) {
+      return null;
+    }
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+      CachedResponse cached = CachedResponse.read(in);
+      if (now - cached.getCreatedAt() < ttlMillis) {
+        return cached;
+      }
+    } catch (IOException e) {
+      log.warn("read shared cache entry {} failed:{}", key, e.getMessage());
+    }
+    return null;
+  }
+
+  private void writeShared(String key, CachedResponse response) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(response.getBody().length + 256);
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      response.write(out);
+    } catch (IOException e) {
+      log.warn("write shared cache entry {} failed:{}", key, e.getMessage());
+      return;
+    }
+    shared.put(SHARED_PREFIX + key, bytes.toByteArray(), response.getCreatedAt() + ttlMillis);
+  }
+
+  public Map<String, Object> snapshot() {
+    Map<String, Object> map = new LinkedHashMap<>();
+    synchronized (this) {
+      map.put("entries", memory.size());
+      map.put("bytes", memoryBytes);
+    }
+    map.put("maxBytes", maxBytes);
+    if (diskDir != null) {
+      synchronized (disk) {
+        map.put("diskEntries", disk.size());
+        map.put("diskBytes", diskBytes);
+      }
+      map.put("diskMaxBytes", diskMaxBytes);
+      map.put("diskEvictions", diskEvictions.sum());
+    }
+    map.put("inflight", inflight.size());
+    map.put("hits", hits.sum());
+    map.put("diskHits", diskHits.sum());
+    map.put("clusterHits", clusterHits.sum());
+    map.put("misses", misses.sum());
+    map.put("coalesced", coalesced.sum());
+    map.put("evictions", evictions.sum());
+    map.put("bypasses", bypasses.sum());
+    map.put("waitTimeouts", waitTimeouts.sum());
+    map.put("abandoned", abandoned.sum());
+    return map;
+  }
+
+  private static void update(MessageDigest digest, String value) {
+    if (value != null) {
+      digest.update(value.getBytes(StandardCharsets.UTF_8));
+    }
+    digest.update((byte) 0);
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String hex(byte[] bytes) {
+    char[] digits = "0123456789abcdef".toCharArray();
+    char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      chars[i * 2] = digits[(bytes[i] >> 4) & 0xf];
+      chars[i * 2 + 1] = digits[bytes[i] & 0xf];
+    }
+    return new String(chars);
+  }
+
+  /**
+   * 一次进行中的上游请求
+   */
+  public class Flight {
+    private final String key;
+    private final CompletableFuture<CachedResponse> future;
+    private final boolean leader;
+    private final long startedAt;
+
+    private Flight(String key) {
+      this(key, new CompletableFuture<>(), true, System.currentTimeMillis());
+    }
+
+    private Flight(String key, CompletableFuture<CachedResponse> future, boolean leader, long startedAt) {
+      this.key = key;
+      this.future = future;
+      this.leader = leader;
+      this.startedAt = startedAt;
+    }
+
+    private Flight follower() {
+      return new Flight(key, future, false, startedAt);
+    }
+
+    public boolean isLeader() {
+      return leader;
+    }
+
+    public CompletableFuture<CachedResponse> getFuture() {
+      return future;
+    }
+
+    /**
+     * 等待 leader 的响应, 超时返回 null, 调用方自己访问上游. leader 失败时抛出它的异常
+     */
+    public CachedResponse await() throws InterruptedException, ExecutionException {
+      long remaining = startedAt + waitMillis - System.currentTimeMillis();
+      try {
+        return future.get(Math.max(remaining, 0), TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        waitTimeouts.increment();
+        return null;
+      }
+    }
+
+    /**
+     * 异步等待, 超时时以 null 完成
+     */
+    public CompletableFuture<CachedResponse> awaitAsync() {
+      CompletableFuture<CachedResponse> result = new CompletableFuture<>();
+      long remaining = startedAt + waitMillis - System.currentTimeMillis();
+      ScheduledFuture<?> timeout = timer.schedule(() -> {
+        if (result.complete(null)) {
+          waitTimeouts.increment();
+        }
+      }, Math.max(remaining, 0), TimeUnit.MILLISECONDS);
+      future.whenComplete((response, e) -> {
+        timeout.cancel(false);
+        if (e != null) {
+          result.completeExceptionally(e);
+        } else {
+          result.complete(response);
+        }
+      });
+      return result;
+    }
+
+    /**
+     * leader 拿到上游响应后调用, 2xx 写入缓存, 所有等待的请求得到同一个响应
+     */
+    public void complete(CachedResponse response) {
+      ResponseCache.this.complete(this, response);
+    }
+
+    public void fail(Throwable e) {
+      ResponseCache.this.fail(this, e);
+    }
+  }
+}
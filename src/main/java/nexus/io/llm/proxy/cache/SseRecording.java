@@ -0,0 +1,140 @@
+package nexus.io.llm.proxy.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一次流式响应的事件记录. 录制时其他请求可以同时按下标读取, 读到末尾时等待新事件.
+ * <p>
+ * 上游流属于录制而不属于 leader 的客户端: leader 和挂上的请求都是读者, 最后一个读者离开时才调用 onAbandoned 取消上游
+ */
+public class SseRecording {
+
+  private final long createdAt = System.currentTimeMillis();
+  private final List<SseEvent> events = new ArrayList<>();
+  private long bytes;
+  private boolean finished;
+  private boolean failed;
+  // leader 的客户端算一个读者
+  private int subscribers = 1;
+  private Runnable onAbandoned;
+
+  synchronized void append(String type, String data) {
+    if (finished) {
+      return;
+    }
+    events.add(new SseEvent(type, data, System.currentTimeMillis() - createdAt));
+    bytes += data.length() + (type != null ? type.length() : 0) + 32;
+    notifyAll();
+  }
+
+  synchronized void finish(boolean failed) {
+    if (!finished) {
+      this.finished = true;
+      this.failed = failed;
+      notifyAll();
+    }
+  }
+
+  /**
+   * leader 打开上游流后设置, 没有读者时取消上游
+   */
+  public void onAbandoned(Runnable onAbandoned) {
+    boolean abandoned;
+    synchronized (this) {
+      this.onAbandoned = onAbandoned;
+      abandoned = subscribers <= 0 && !finished;
+    }
+    if (abandoned) {
+      onAbandoned.run();
+    }
+  }
+
+  synchronized void subscribe() {
+    subscribers++;
+  }
+
+  /**
+   * 读者离开, 录制未结束且没有其他读者时取消上游
+   */
+  public void unsubscribe() {
+    Runnable cancel;
+    synchronized (this) {
+      if (--subscribers > 0 || finished) {
+        return;
+      }
+      cancel = onAbandoned;
+    }
+    if (cancel != null) {
+      cancel.run();
+    }
+  }
+
+  public synchronized int getSubscribers() {
+    return subscribers;
+  }
+
+  /**
+   * 读取第 index 个事件, 还没录到时最多等待 timeoutMillis
+   *
+   * @return 录制已结束且没有更多事件, 或等待超时时返回 null
+   */
+  public synchronized SseEvent get(int index, long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (index >= events.size() && !finished) {
+      long wait = deadline - System.currentTimeMillis();
+      if (wait <= 0) {
+        return null;
+      }
+      wait(wait);
+    }
+    return index < events.size() ? events.get(index) : null;
+  }
+
+  public synchronized boolean isFinished() {
+    return finished;
+  }
+
+  public synchronized boolean isFailed() {
+    return failed;
+  }
+
+  public synchronized int size() {
+    return events.size();
+  }
+
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  public long getCreatedAt() {
+    return createdAt;
+  }
+
+  public static class SseEvent {
+    private final String type;
+    private final String data;
+    private final long offsetMillis;
+
+    private SseEvent(String type, String data, long offsetMillis) {
+      this.type = type;
+      this.data = data;
+      this.offsetMillis = offsetMillis;
+    }
+
+    public String getType() {
+      return type;
+    }
+
+    public String getData() {
+      return data;
+    }
+
+    /**
+     * 相对于上游请求开始的时间
+     */
+    public long getOffsetMillis() {
+      return offsetMillis;
+    }
+  }
+}
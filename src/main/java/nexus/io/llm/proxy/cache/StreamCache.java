@@ -0,0 +1,186 @@
+package nexus.io.llm.proxy.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.extern.slf4j.Slf4j;
+import nexus.io.tio.http.common.HttpRequest;
+import nexus.io.tio.utils.environment.EnvUtils;
+
+/**
+ * 流式响应缓存, 默认关闭
+ *
+ * <pre>
+ * llm.proxy.cache.stream.enabled=true
+ * llm.proxy.cache.stream.max.bytes=67108864
+ * llm.proxy.cache.stream.pace=0
+ * llm.proxy.cache.ttl=3600
+ * </pre>
+ *
+ * 第一个请求正常访问上游, 同时逐个事件录制. 录制完成后相同的请求直接回放, 录制过程中到达的相同请求挂到这份录制上一起读取,
+ * 不再打开第二个上游流. leader 的客户端断开后只要还有挂上的请求就继续录制, 最后一个读者离开时才取消上游. 录制失败时挂上的请求
+ * 收到 error 事件后异常关闭连接. 只缓存正常结束的流. key 与 {@link ResponseCache#key} 相同.
+ * <p>
+ * pace 为 0 时尽快回放, 1 按录制时的间隔回放, 2 为两倍速
+ */
+@Slf4j
+public class StreamCache {
+
+  private final long maxBytes;
+  private final long ttlMillis;
+  private final double pace;
+
+  private final LinkedHashMap<String, SseRecording> recordings = new LinkedHashMap<>(256, 0.75f, true);
+  private long recordingBytes;
+  private final Map<String, SseRecording> inflight = new ConcurrentHashMap<>();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder attached = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder bypasses = new LongAdder();
+
+  public StreamCache(long maxBytes, long ttlMillis, double pace) {
+    this.maxBytes = maxBytes;
+    this.ttlMillis = ttlMillis;
+    this.pace = pace;
+  }
+
+  /**
+   * 未开启时返回 null
+   */
+  public static StreamCache fromEnv() {
+    if (!EnvUtils.getBoolean("llm.proxy.cache.stream.enabled", false)) {
+      return null;
+    }
+    long maxBytes = EnvUtils.getLong("llm.proxy.cache.stream.max.bytes", 64L * 1024 * 1024);
+    long ttl = EnvUtils.getLong("llm.proxy.cache.ttl", 3600L);
+    double pace = Double.parseDouble(EnvUtils.getStr("llm.proxy.cache.stream.pace", "0"));
+    log.info("llm proxy stream cache enabled, maxBytes:{}, ttl:{}s, pace:{}", maxBytes, ttl, pace);
+    return new StreamCache(maxBytes, ttl * 1000, pace);
+  }
+
+  public boolean isBypass(HttpRequest httpRequest) {
+    boolean bypass = ResponseCache.bypassRequested(httpRequest);
+    if (bypass) {
+      bypasses.increment();
+    }
+    return bypass;
+  }
+
+  /**
+   * 命中已完成的录制或挂到正在录制的流上时 isLeader 为 false, 否则调用方负责访问上游并录制
+   */
+  public Flight join(String key) {
+    synchronized (this) {
+      SseRecording recording = recordings.get(key);
+      if (recording != null) {
+        if (System.currentTimeMillis() - recording.getCreatedAt() < ttlMillis) {
+          hits.increment();
+          recording.subscribe();
+          return new Flight(key, recording, false);
+        }
+        recordings.remove(key);
+        recordingBytes -= recording.getBytes();
+      }
+    }
+    SseRecording created = new SseRecording();
+    SseRecording existing = inflight.putIfAbsent(key, created);
+    if (existing != null) {
+      attached.increment();
+      existing.subscribe();
+      return new Flight(key, existing, false);
+    }
+    misses.increment();
+    return new Flight(key, created, true);
+  }
+
+  private void finish(Flight flight, boolean failed) {
+    SseRecording recording = flight.recording;
+    recording.finish(failed);
+    if (!failed && recording.getBytes() <= maxBytes) {
+      synchronized (this) {
+        SseRecording old = recordings.put(flight.key, recording);
+        if (old != null) {
+          recordingBytes -= old.getBytes();
+        }
+        recordingBytes += recording.getBytes();
+        Iterator<SseRecording> it = recordings.values().iterator();
+        while (recordingBytes > maxBytes && it.hasNext()) {
+          recordingBytes -= it.next().getBytes();
+          it.remove();
+          evictions.increment();
+        }
+      }
+    }
+    // 先放入缓存再移除, 之间到达的请求不会重复访问上游
+    inflight.remove(flight.key, recording);
+  }
+
+  public double getPace() {
+    return pace;
+  }
+
+  public Map<String, Object> snapshot() {
+    Map<String, Object> map = new LinkedHashMap<>();
+    synchronized (this) {
+      map.put("entries", recordings.size());
+      map.put("bytes", recordingBytes);
+    }
+    map.put("maxBytes", maxBytes);
+    map.put("inflight", inflight.size());
+    map.put("hits", hits.sum());
+    map.put("misses", misses.sum());
+    map.put("attached", attached.sum());
+    map.put("evictions", evictions.sum());
+    map.put("bypasses", bypasses.sum());
+    return map;
+  }
+
+  /**
+   * 一次录制或回放
+   */
+  public class Flight {
+    private final String key;
+    private final SseRecording recording;
+    private final boolean leader;
+
+    private Flight(String key, SseRecording recording, boolean leader) {
+      this.key = key;
+      this.recording = recording;
+      this.leader = leader;
+    }
+
+    public boolean isLeader() {
+      return leader;
+    }
+
+    public SseRecording getRecording() {
+      return recording;
+    }
+
+    /**
+     * leader 收到上游事件时调用
+     */
+    public void append(String type, String data) {
+      recording.append(type, data);
+    }
+
+    /**
+     * leader 或挂上的请求的客户端离开
+     */
+    public void leave() {
+      recording.unsubscribe();
+    }
+
+    /**
+     * leader 的上游流结束时调用, 失败的录制不缓存, 已挂上的请求读完已有事件后收到 error 事件并异常关闭
+     */
+    public void finish(boolean failed) {
+      StreamCache.this.finish(this, failed);
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package nexus.io.llm.proxy.callback;
+
+import java.io.IOException;
+
+import lombok.extern.slf4j.Slf4j;
+import nexus.io.llm.proxy.cache.CachedResponse;
+import nexus.io.llm.proxy.cache.ResponseCache;
+import nexus.io.llm.proxy.metrics.RequestMetrics;
+import nexus.io.llm.proxy.utils.ProxyResponseUtils;
+import nexus.io.model.body.RespBodyVo;
+import nexus.io.tio.core.ChannelContext;
+import nexus.io.tio.core.Tio;
+import nexus.io.tio.http.common.HttpResponse;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+
+/**
+ * 非流式请求的异步回调, 上游返回后再把响应写回客户端, 不占用 tio 的处理线程
+ */
+@Slf4j
+public class ProxyResponseCallback implements Callback {
+
+  private ChannelContext channelContext;
+  private HttpResponse httpResponse;
+  private long start;
+  private Long id;
+  private ResponseCache.Flight flight;
+  private RequestMetrics metrics;
+
+  public ProxyResponseCallback(Long id, ChannelContext channelContext, HttpResponse httpResponse, long start) {
+    this(id, channelContext, httpResponse, start, null);
+  }
+
+  /**
+   * @param flight 开启缓存时由 leader 传入, 响应写入缓存并交给等待中的相同请求
+   */
+  public ProxyResponseCallback(Long id, ChannelContext channelContext, HttpResponse httpResponse, long start,
+      ResponseCache.Flight flight) {
+    this(id, channelContext, httpResponse, start, flight, null);
+  }
+
+  /**
+   * @param metrics 记录首字节时间, 耗时和状态码
+   */
+  public ProxyResponseCallback(Long id, ChannelContext channelContext, HttpResponse httpResponse, long start,
+      ResponseCache.Flight flight, RequestMetrics metrics) {
+    this.id = id;
+    this.channelContext = channelContext;
+    this.httpResponse = httpResponse;
+    this.start = start;
+    this.flight = flight;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public void onResponse(Call call, Response response) {
+    if (metrics != null) {
+      metrics.firstByte();
+    }
+    try (Response r = response) {
+      byte[] responseBody;
+      if (flight != null) {
+        CachedResponse cached = CachedResponse.from(r);
+        flight.complete(cached);
+        cached.writeTo(httpResponse, "MISS", r.request().header("accept-encoding"));
+        responseBody = cached.getBody();
+      } else {
+        responseBody = ProxyResponseUtils.copy(r, httpResponse);
+      }
+      if (metrics != null) {
+        metrics.finish(r.code(), responseBody);
+      }
+    } catch (IOException e) {
+      onFailure(call, e);
+      return;
+    } catch (RuntimeException e) {
+      // 没有这个分支时 flight 不会结束, 客户端也收不到响应
+      onFailure(call, new IOException(e));
+      return;
+    }
+    Tio.send(channelContext, httpResponse);
+    log.debug("id:{},elapse:{}", id, System.currentTimeMillis() - start);
+  }
+
+  @Override
+  public void onFailure(Call call, IOException e) {
+    log.error("id:{},{}", id, e.getMessage(), e);
+    if (flight != null) {
+      flight.fail(e);
+    }
+    if (metrics != null) {
+      metrics.finish(502);
+    }
+    httpResponse.setStatus(502);
+    httpResponse.setJson(RespBodyVo.fail(e.getMessage()));
+    Tio.send(channelContext, httpResponse);
+  }
+}
@@ -4,13 +4,15 @@ import java.io.IOException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import lombok.extern.slf4j.Slf4j;
+import nexus.io.llm.proxy.cache.StreamCache;
+import nexus.io.llm.proxy.metrics.RequestMetrics;
+import nexus.io.llm.proxy.utils.CompressionUtils;
 import nexus.io.http.common.sse.SsePacket;
 import nexus.io.tio.core.ChannelContext;
 import nexus.io.tio.core.Tio;
 import nexus.io.tio.http.common.HeaderName;
 import nexus.io.tio.http.common.HeaderValue;
 import nexus.io.tio.http.common.HttpResponse;
-import nexus.io.tio.http.server.util.SseEmitter;
 import nexus.io.tio.utils.SystemTimer;
 import nexus.io.tio.utils.hutool.StrUtil;
 import okhttp3.Response;
@@ -24,32 +26,108 @@ public class SSEProxyCallbackEventSourceListener extends EventSourceListener {
   private HttpResponse httpResponse;
   private long start;
   private Long id;
-  private boolean continueSend = true;
+  private volatile boolean continueSend = true;
+  private volatile SseChunkQueue chunkQueue;
   private AtomicBoolean hasFinished = new AtomicBoolean(false);
   private AtomicBoolean hasSentChunkHead = new AtomicBoolean(false);
+  private StreamCache.Flight recording;
+  private AtomicBoolean left = new AtomicBoolean(false);
+  // 所有读者都离开后取消了上游, 录制不完整
+  private volatile boolean abandoned;
+  private volatile boolean failed;
+  private RequestMetrics metrics;
+  private int status = 200;
+  private boolean gzip;
 
   public SSEProxyCallbackEventSourceListener(Long id, ChannelContext channelContext, HttpResponse httpResponse,
       long start) {
+    this(id, channelContext, httpResponse, start, null);
+  }
+
+  /**
+   * @param recording 开启流式缓存时传入, 转发的同时录制每个事件
+   */
+  public SSEProxyCallbackEventSourceListener(Long id, ChannelContext channelContext, HttpResponse httpResponse,
+      long start, StreamCache.Flight recording) {
+    this(id, channelContext, httpResponse, start, recording, null);
+  }
+
+  /**
+   * @param metrics 记录首个事件时间, 事件间隔和状态码
+   */
+  public SSEProxyCallbackEventSourceListener(Long id, ChannelContext channelContext, HttpResponse httpResponse,
+      long start, StreamCache.Flight recording, RequestMetrics metrics) {
+    this(id, channelContext, httpResponse, start, recording, metrics, false);
+  }
+
+  /**
+   * @param gzip 客户端接受 gzip 并开启了 llm.proxy.compress.sse
+   */
+  public SSEProxyCallbackEventSourceListener(Long id, ChannelContext channelContext, HttpResponse httpResponse,
+      long start, StreamCache.Flight recording, RequestMetrics metrics, boolean gzip) {
     this.id = id;
     this.channelContext = channelContext;
     this.httpResponse = httpResponse;
     this.start = start;
+    this.recording = recording;
+    this.metrics = metrics;
+    this.gzip = gzip;
   }
 
   @Override
   public void onOpen(EventSource eventSource, Response response) {
+    status = response.code();
     httpResponse.addServerSentEventsHeader();
     httpResponse.addHeader(HeaderName.Transfer_Encoding, HeaderValue.from("chunked"));
     httpResponse.addHeader(HeaderName.Keep_Alive, HeaderValue.from("timeout=60"));
+    if (gzip) {
+      httpResponse.addHeader(HeaderName.Content_Encoding, HeaderValue.from(CompressionUtils.GZIP));
+      httpResponse.addHeader(HeaderName.Vary, HeaderValue.from("Accept-Encoding"));
+    }
     Tio.bSend(channelContext, httpResponse);
+    if (recording != null) {
+      recording.getRecording().onAbandoned(() -> {
+        abandoned = true;
+        eventSource.cancel();
+      });
+    }
+    // 客户端断开或跟不上时取消上游, 不再为没人读的生成付费
+    chunkQueue = new SseChunkQueue(id, channelContext, () -> clientGone(eventSource), gzip);
     hasSentChunkHead.set(true);
   }
 
+  /**
+   * 录制时上游流还属于挂上的请求, 只有最后一个读者离开才取消
+   */
+  private void clientGone(EventSource eventSource) {
+    continueSend = false;
+    if (!left.compareAndSet(false, true)) {
+      return;
+    }
+    if (recording != null) {
+      recording.leave();
+    } else {
+      eventSource.cancel();
+    }
+  }
+
   @Override
   public void onEvent(EventSource eventSource, String id, String type, String data) {
 
     if (StrUtil.notBlank(data)) {
-      sendPacket(type, data);
+      if (metrics != null) {
+        metrics.event(data);
+      }
+      if (recording != null) {
+        recording.append(type, data);
+      }
+      if (!continueSend) {
+        return;
+      }
+      if (!chunkQueue.offer(type, data)) {
+        clientGone(eventSource);
+        return;
+      }
       // [DONE] 是openai的数据标识
       if ("[DONE]".equals(data)) {
         return;
@@ -65,19 +143,36 @@ public class SSEProxyCallbackEventSourceListener extends EventSourceListener {
 
   @Override
   public void onFailure(EventSource eventSource, Throwable t, Response response) {
+    failed = true;
+    if (!hasSentChunkHead.get()) {
+      status = response != null ? response.code() : 502;
+    }
     if (t != null) {
-      log.error(t.getMessage(), t);
+      if (continueSend && !abandoned) {
+        log.error(t.getMessage(), t);
+      } else {
+        // 客户端断开后主动取消上游
+        log.info("id:{},upstream cancelled:{}", id, t.getMessage());
+      }
+    }
+    if (!hasSentChunkHead.get()) {
+      try {
+        if (response != null) {
+          int code = response.code();
+          String string = response.body().string();
+          httpResponse.status(code);
+          httpResponse.body(string);
+        } else {
+          httpResponse.status(502);
+          httpResponse.body(t != null ? t.getMessage() : "upstream failure");
+        }
+        httpResponse.setSend(false);
+        Tio.bSend(channelContext, httpResponse);
+      } catch (IOException e) {
+        log.error(e.getMessage(), e);
+      }
     }
-    try {
-      int code = response.code();
-      String string = response.body().string();
-      httpResponse.status(code);
-      httpResponse.body(string);
-      httpResponse.setSend(false);
-      Tio.bSend(channelContext, httpResponse);
-    } catch (IOException e) {
-      log.error(e.getMessage(), e);
-    } finally {
+    if (response != null) {
       response.close();
     }
 
@@ -86,11 +181,28 @@ public class SSEProxyCallbackEventSourceListener extends EventSourceListener {
 
   private void finish(EventSource eventSource) {
     if (!hasFinished.get()) {
-      log.info("id:{},elapse:{}", id, SystemTimer.currTime - start);
+      log.debug("id:{},elapse:{}", id, SystemTimer.currTime - start);
       eventSource.cancel();
       // Tio.close(channelContext, "finish");
-      if(hasSentChunkHead.get()) {
-        SseEmitter.closeChunkConnection(channelContext);
+      // 响应头已经发出后上游中断, 不能正常结束 chunked 响应, 否则客户端会把截断的流当成完整的
+      boolean interrupted = failed && hasSentChunkHead.get();
+      if (chunkQueue != null) {
+        if (interrupted) {
+          if (continueSend) {
+            chunkQueue.offer(null, SseReplay.INTERRUPTED);
+          }
+          chunkQueue.abort();
+        } else {
+          // 发送完缓冲的数据后再关闭
+          chunkQueue.close();
+        }
+      }
+      if (recording != null) {
+        // 读者都离开导致的取消也算失败, 录制不完整
+        recording.finish(failed || abandoned);
+      }
+      if (metrics != null) {
+        metrics.finish(interrupted ? 502 : status);
       }
       hasFinished.set(true);
     }
@@ -110,18 +222,4 @@ public class SSEProxyCallbackEventSourceListener extends EventSourceListener {
       }
     }
   }
-
-  private void sendPacket(String type, String data) {
-    if (!continueSend) {
-      return;
-    }
-    if (!SseEmitter.pushSSEChunk(channelContext, type, data)) {
-      if (!SseEmitter.pushSSEChunk(channelContext, type, data)) {
-        if (!SseEmitter.pushSSEChunk(channelContext, type, data)) {
-          continueSend = false;
-        }
-      }
-    }
-
-  }
 }
@@ -0,0 +1,347 @@
+package nexus.io.llm.proxy.callback;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+import lombok.extern.slf4j.Slf4j;
+import nexus.io.llm.proxy.client.ProxyExecutors;
+import nexus.io.tio.core.ChannelContext;
+import nexus.io.tio.core.Tio;
+import nexus.io.tio.http.server.util.SseEmitter;
+import nexus.io.tio.utils.environment.EnvUtils;
+
+/**
+ * 每个 SSE 连接一个有界发送队列. 上游线程只负责入队, 由写线程向客户端发送.
+ * <ul>
+ * <li>缓冲超过高水位时阻塞上游读取线程(相当于暂停上游), 直到降到低水位</li>
+ * <li>阻塞超过 llm.proxy.sse.stall.timeout 或客户端写失败时, 判定客户端跟不上或已断开, 调用 onClientGone 取消上游</li>
+ * </ul>
+ * 缓冲大小按字符数估算.
+ * <p>
+ * llm.proxy.sse.coalesce.ms 大于 0 时开启合并: 写线程取到一个事件后最多再等这么久, 把期间到达的事件合并成一次写出,
+ * 累计超过 llm.proxy.sse.coalesce.bytes, 遇到 [DONE] 或流结束时立即写出. 每个事件仍然是独立的 event/data 块
+ * <p>
+ * gzip 模式下每次写出压缩并 flush 一次, 合并后的多个事件共用一次 flush, 压缩率更高
+ */
+@Slf4j
+public class SseChunkQueue implements Runnable {
+
+  private static final int HIGH_WATER = EnvUtils.getInt("llm.proxy.sse.high.water", 256 * 1024);
+  private static final int LOW_WATER = EnvUtils.getInt("llm.proxy.sse.low.water", HIGH_WATER / 2);
+  private static final long STALL_TIMEOUT = EnvUtils.getLong("llm.proxy.sse.stall.timeout", 30000L);
+  private static final long COALESCE_MS = EnvUtils.getLong("llm.proxy.sse.coalesce.ms", 0L);
+  private static final int COALESCE_BYTES = EnvUtils.getInt("llm.proxy.sse.coalesce.bytes", 8 * 1024);
+
+  private static final Map<Long, SseChunkQueue> live = new ConcurrentHashMap<>();
+  private static final ExecutorService writer = ProxyExecutors.newTaskExecutor("sse-writer");
+
+  private final Long id;
+  private final ChannelContext channelContext;
+  private final Runnable onClientGone;
+  private final SseGzip gzip;
+
+  private final ArrayDeque<SseChunk> queue = new ArrayDeque<>();
+  private long bufferedBytes;
+  private long maxBufferedBytes;
+  private long sentCount;
+  private long writeCount;
+  private long droppedCount;
+  private boolean running;
+  private boolean batching;
+  private boolean closing;
+  private boolean aborted;
+  private boolean finished;
+  private volatile boolean clientGone;
+
+  public SseChunkQueue(Long id, ChannelContext channelContext, Runnable onClientGone) {
+    this(id, channelContext, onClientGone, false);
+  }
+
+  /**
+   * @param gzip 响应头已经声明 Content-Encoding: gzip
+   */
+  public SseChunkQueue(Long id, ChannelContext channelContext, Runnable onClientGone, boolean gzip) {
+    this.id = id;
+    this.channelContext = channelContext;
+    this.onClientGone = onClientGone;
+    SseGzip sseGzip = null;
+    if (gzip) {
+      try {
+        sseGzip = new SseGzip(channelContext);
+      } catch (IOException e) {
+        // 写入内存流, 不会发生
+        throw new IllegalStateException(e);
+      }
+    }
+    this.gzip = sseGzip;
+    live.put(id, this);
+  }
+
+  /**
+   * 在上游读取线程中调用
+   *
+   * @return false 表示客户端已断开或跟不上, 应取消上游
+   */
+  public boolean offer(String type, String data) {
+    SseChunk chunk = new SseChunk(type, data);
+    synchronized (this) {
+      if (clientGone || closing) {
+        droppedCount++;
+        return false;
+      }
+      queue.add(chunk);
+      bufferedBytes += chunk.size;
+      if (bufferedBytes > maxBufferedBytes) {
+        maxBufferedBytes = bufferedBytes;
+      }
+      schedule();
+      if (batching) {
+        notifyAll();
+      }
+
+      if (bufferedBytes > HIGH_WATER) {
+        long deadline = System.currentTimeMillis() + STALL_TIMEOUT;
+        while (bufferedBytes > LOW_WATER && !clientGone) {
+          long wait = deadline - System.currentTimeMillis();
+          if (wait <= 0) {
+            log.warn("id:{},client too slow, buffered:{}, cancel upstream", id, bufferedBytes);
+            clientGone = true;
+            dropQueued();
+            break;
+          }
+          try {
+            wait(wait);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+          }
+        }
+      }
+      return !clientGone;
+    }
+  }
+
+  /**
+   * 发送完已缓冲的数据后关闭 chunk 连接
+   */
+  public void close() {
+    synchronized (this) {
+      closing = true;
+      schedule();
+      notifyAll();
+    }
+  }
+
+  /**
+   * 发送完已缓冲的数据后直接断开连接, 不发送结束块, 客户端能看出响应不完整
+   */
+  public void abort() {
+    synchronized (this) {
+      aborted = true;
+      closing = true;
+      schedule();
+      notifyAll();
+    }
+  }
+
+  private void schedule() {
+    if (!running) {
+      running = true;
+      writer.execute(this);
+    }
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      SseChunk chunk;
+      synchronized (this) {
+        chunk = queue.poll();
+        if (chunk == null) {
+          running = false;
+          if (!closing || finished) {
+            return;
+          }
+          finished = true;
+        } else if (COALESCE_MS > 0) {
+          chunk = coalesce(chunk);
+        }
+      }
+      if (chunk == null) {
+        finish();
+        return;
+      }
+
+      boolean sent = !clientGone && push(chunk);
+      boolean gone = false;
+      synchronized (this) {
+        // dropQueued 之后可能已经清零
+        bufferedBytes = Math.max(0, bufferedBytes - chunk.size);
+        if (sent) {
+          sentCount += chunk.count;
+          writeCount++;
+        } else {
+          droppedCount += chunk.count;
+          if (!clientGone) {
+            clientGone = true;
+            gone = true;
+            dropQueued();
+          }
+        }
+        if (bufferedBytes <= LOW_WATER || clientGone) {
+          notifyAll();
+        }
+      }
+      if (gone) {
+        log.warn("id:{},client write failed, cancel upstream", id);
+        onClientGone.run();
+      }
+    }
+  }
+
+  /**
+   * 在锁内调用, 等待并合并后续事件.
+   * <p>
+   * pushSSEChunk 按 event:type, data:data, 空行 的格式原样输出 data, 所以后续事件以完整的 SSE 块拼接在第一个事件的 data
+   * 之后, 客户端看到的仍然是一个个独立的事件
+   */
+  private SseChunk coalesce(SseChunk first) {
+    if (first.isDone()) {
+      return first;
+    }
+    StringBuilder merged = null;
+    int size = first.size;
+    int count = 1;
+    long deadline = System.currentTimeMillis() + COALESCE_MS;
+    batching = true;
+    try {
+      while (size < COALESCE_BYTES) {
+        SseChunk next = queue.poll();
+        if (next == null) {
+          long wait = deadline - System.currentTimeMillis();
+          if (closing || clientGone || wait <= 0) {
+            break;
+          }
+          try {
+            wait(wait);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+          }
+          continue;
+        }
+        if (merged == null) {
+          merged = new StringBuilder(COALESCE_BYTES + 256).append(first.data);
+        }
+        merged.append("\n\n");
+        if (next.type != null) {
+          merged.append("event:").append(next.type).append('\n');
+        }
+        merged.append("data:").append(next.data);
+        size += next.size;
+        count++;
+        if (next.isDone()) {
+          break;
+        }
+      }
+    } finally {
+      batching = false;
+    }
+    return merged == null ? first : new SseChunk(first.type, merged.toString(), size, count);
+  }
+
+  private boolean push(SseChunk chunk) {
+    if (gzip != null) {
+      return gzip.push(chunk.type, chunk.data);
+    }
+    if (!SseEmitter.pushSSEChunk(channelContext, chunk.type, chunk.data)) {
+      if (!SseEmitter.pushSSEChunk(channelContext, chunk.type, chunk.data)) {
+        return SseEmitter.pushSSEChunk(channelContext, chunk.type, chunk.data);
+      }
+    }
+    return true;
+  }
+
+  private void dropQueued() {
+    droppedCount += queue.size();
+    bufferedBytes = 0;
+    queue.clear();
+  }
+
+  private void finish() {
+    live.remove(id);
+    if (clientGone) {
+      Tio.remove(channelContext, "sse client gone");
+    } else if (aborted) {
+      Tio.remove(channelContext, "sse upstream failed");
+    } else {
+      if (gzip != null) {
+        gzip.finish();
+      }
+      SseEmitter.closeChunkConnection(channelContext);
+    }
+    log.debug("id:{},sse sent:{},writes:{},dropped:{},maxBuffered:{}", id, sentCount, writeCount, droppedCount,
+        maxBufferedBytes);
+  }
+
+  public synchronized long getBufferedBytes() {
+    return bufferedBytes;
+  }
+
+  public synchronized long getMaxBufferedBytes() {
+    return maxBufferedBytes;
+  }
+
+  public synchronized long getSentCount() {
+    return sentCount;
+  }
+
+  public synchronized long getWriteCount() {
+    return writeCount;
+  }
+
+  public synchronized long getDroppedCount() {
+    return droppedCount;
+  }
+
+  public boolean isClientGone() {
+    return clientGone;
+  }
+
+  public Long getId() {
+    return id;
+  }
+
+  /**
+   * 当前所有 SSE 连接, 按请求 id
+   */
+  public static Map<Long, SseChunkQueue> getLive() {
+    return Collections.unmodifiableMap(live);
+  }
+
+  private static class SseChunk {
+    private final String type;
+    private final String data;
+    private final int size;
+    private final int count;
+
+    private SseChunk(String type, String data) {
+      this(type, data, data.length() + (type != null ? type.length() : 0), 1);
+    }
+
+    private SseChunk(String type, String data, int size, int count) {
+      this.type = type;
+      this.data = data;
+      this.size = size;
+      this.count = count;
+    }
+
+    private boolean isDone() {
+      return "[DONE]".equals(data);
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package nexus.io.llm.proxy.callback;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import nexus.io.http.common.sse.SsePacket;
+import nexus.io.llm.proxy.utils.CompressionUtils;
+import nexus.io.tio.core.ChannelContext;
+import nexus.io.tio.core.Tio;
+
+/**
+ * 一个 SSE 连接的 gzip 流. 每次写出后 SYNC_FLUSH, 压缩数据自己按 HTTP chunk 编码发送, 客户端收到即可解压出完整的事件.
+ * 只在 SseChunkQueue 的写线程中使用
+ */
+class SseGzip {
+
+  private static final byte[] CRLF = { '\r', '\n' };
+
+  private final ChannelContext channelContext;
+  private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+  private final GZIPOutputStream gzip;
+  private final StringBuilder text = new StringBuilder(1024);
+
+  SseGzip(ChannelContext channelContext) throws IOException {
+    this.channelContext = channelContext;
+    this.gzip = CompressionUtils.newGzip(buffer, true);
+  }
+
+  /**
+   * 和 SseEmitter.pushSSEChunk 相同的事件格式
+   */
+  boolean push(String type, String data) {
+    text.setLength(0);
+    if (type != null) {
+      text.append("event:").append(type).append('\n');
+    }
+    text.append("data:").append(data).append("\n\n");
+    try {
+      gzip.write(text.toString().getBytes(StandardCharsets.UTF_8));
+      gzip.flush();
+    } catch (IOException e) {
+      return false;
+    }
+    return send();
+  }
+
+  /**
+   * 写出 gzip 尾部, 之后由 SseEmitter.closeChunkConnection 发送结束 chunk
+   */
+  boolean finish() {
+    try {
+      gzip.finish();
+    } catch (IOException e) {
+      return false;
+    }
+    return send();
+  }
+
+  private boolean send() {
+    int length = buffer.size();
+    if (length == 0) {
+      return true;
+    }
+    byte[] size = Integer.toHexString(length).getBytes(StandardCharsets.US_ASCII);
+    byte[] chunk = new byte[size.length + 2 + length + 2];
+    System.arraycopy(size, 0, chunk, 0, size.length);
+    System.arraycopy(CRLF, 0, chunk, size.length, 2);
+    System.arraycopy(buffer.toByteArray(), 0, chunk, size.length + 2, length);
+    System.arraycopy(CRLF, 0, chunk, size.length + 2 + length, 2);
+    buffer.reset();
+    // 压缩流有状态, 写失败后不能重发
+    return Tio.bSend(channelContext, new SsePacket(chunk));
+  }
+}
@@ -0,0 +1,146 @@
+package nexus.io.llm.proxy.callback;
+
+import java.util.concurrent.ExecutorService;
+
+import lombok.extern.slf4j.Slf4j;
+import nexus.io.llm.proxy.cache.SseRecording;
+import nexus.io.llm.proxy.cache.StreamCache;
+import nexus.io.llm.proxy.cache.SseRecording.SseEvent;
+import nexus.io.llm.proxy.client.ProxyExecutors;
+import nexus.io.llm.proxy.metrics.RequestMetrics;
+import nexus.io.llm.proxy.utils.CompressionUtils;
+import nexus.io.model.body.RespBodyVo;
+import nexus.io.tio.core.ChannelContext;
+import nexus.io.tio.core.Tio;
+import nexus.io.tio.http.common.HeaderName;
+import nexus.io.tio.http.common.HeaderValue;
+import nexus.io.tio.http.common.HttpResponse;
+
+/**
+ * 从录制中回放流式响应, 录制未结束时边录边读. 每个回放占用一个任务线程, 不阻塞录制的上游线程.
+ * <p>
+ * 录制失败时先发送一个 error 事件, 再不发送结束块直接断开, 客户端不会把截断的流当成完整响应
+ */
+@Slf4j
+public class SseReplay implements Runnable {
+
+  private static final ExecutorService executor = ProxyExecutors.newTaskExecutor("sse-replay");
+  private static final long POLL_MILLIS = 1000;
+  static final String INTERRUPTED = "{\"error\":{\"message\":\"upstream stream interrupted\","
+      + "\"type\":\"upstream_error\"}}";
+
+  private final Long id;
+  private final ChannelContext channelContext;
+  private final HttpResponse httpResponse;
+  private final double pace;
+  private final String cacheStatus;
+  private final long start;
+  private final RequestMetrics metrics;
+  private final boolean gzip;
+  private final StreamCache.Flight flight;
+  private final SseRecording recording;
+  private volatile boolean cancelled;
+
+  /**
+   * @param flight 非 leader 的 flight, 回放结束时离开录制
+   */
+  public SseReplay(Long id, ChannelContext channelContext, HttpResponse httpResponse, StreamCache.Flight flight,
+      double pace, String cacheStatus, long start, RequestMetrics metrics, boolean gzip) {
+    this.id = id;
+    this.channelContext = channelContext;
+    this.httpResponse = httpResponse;
+    this.flight = flight;
+    this.recording = flight.getRecording();
+    this.pace = pace;
+    this.cacheStatus = cacheStatus;
+    this.start = start;
+    this.metrics = metrics;
+    this.gzip = gzip;
+  }
+
+  public void start() {
+    executor.execute(this);
+  }
+
+  @Override
+  public void run() {
+    try {
+      replay();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      Tio.remove(channelContext, "sse replay interrupted");
+    } finally {
+      flight.leave();
+    }
+  }
+
+  private void replay() throws InterruptedException {
+    SseEvent first = next(0);
+    if (first == null) {
+      // 上游在第一个事件之前失败
+      httpResponse.setStatus(502);
+      httpResponse.setJson(RespBodyVo.fail("upstream failure"));
+      Tio.bSend(channelContext, httpResponse);
+      if (metrics != null) {
+        metrics.finish(502);
+      }
+      return;
+    }
+
+    httpResponse.addServerSentEventsHeader();
+    httpResponse.addHeader(HeaderName.Transfer_Encoding, HeaderValue.from("chunked"));
+    httpResponse.addHeader(HeaderName.Keep_Alive, HeaderValue.from("timeout=60"));
+    httpResponse.addHeader(HeaderName.from("x-llm-proxy-cache"), HeaderValue.from(cacheStatus));
+    if (gzip) {
+      httpResponse.addHeader(HeaderName.Content_Encoding, HeaderValue.from(CompressionUtils.GZIP));
+      httpResponse.addHeader(HeaderName.Vary, HeaderValue.from("Accept-Encoding"));
+    }
+    Tio.bSend(channelContext, httpResponse);
+    SseChunkQueue chunkQueue = new SseChunkQueue(id, channelContext, () -> cancelled = true, gzip);
+
+    long replayStart = System.currentTimeMillis();
+    int index = 0;
+    for (SseEvent event = first; event != null && !cancelled; event = next(++index)) {
+      if (pace > 0) {
+        long wait = replayStart + (long) (event.getOffsetMillis() / pace) - System.currentTimeMillis();
+        if (wait > 0) {
+          Thread.sleep(wait);
+        }
+      }
+      if (metrics != null) {
+        metrics.event(event.getData());
+      }
+      if (!chunkQueue.offer(event.getType(), event.getData())) {
+        break;
+      }
+    }
+    if (!cancelled && recording.isFailed()) {
+      log.warn("id:{},recording failed after {} events", id, index);
+      chunkQueue.offer(null, INTERRUPTED);
+      chunkQueue.abort();
+      if (metrics != null) {
+        metrics.finish(502);
+      }
+      return;
+    }
+    chunkQueue.close();
+    if (metrics != null) {
+      metrics.finish(200);
+    }
+    log.debug("id:{},replayed:{},elapse:{}", id, index, System.currentTimeMillis() - start);
+  }
+
+  private SseEvent next(int index) throws InterruptedException {
+    while (!cancelled) {
+      SseEvent event = recording.get(index, POLL_MILLIS);
+      if (event != null) {
+        return event;
+      }
+      if (recording.isFinished()) {
+        // 超时返回后录制可能刚好结束, 再读一次
+        return recording.get(index, 0);
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,42 @@
+package nexus.io.llm.proxy.client;
+
+import java.io.IOException;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/**
+ * 分块写出请求体. RequestBody.create 一次把整个数组复制进 okio 的缓冲区, 大请求体在发送期间多占一份内存;
+ * 分块写出时缓冲区最多一块, 写满后阻塞到上游读走
+ */
+class ChunkedRequestBody extends RequestBody {
+
+  static final int CHUNK = 64 * 1024;
+
+  private final MediaType contentType;
+  private final byte[] body;
+
+  ChunkedRequestBody(MediaType contentType, byte[] body) {
+    this.contentType = contentType;
+    this.body = body;
+  }
+
+  @Override
+  public MediaType contentType() {
+    return contentType;
+  }
+
+  @Override
+  public long contentLength() {
+    return body.length;
+  }
+
+  @Override
+  public void writeTo(BufferedSink sink) throws IOException {
+    for (int offset = 0; offset < body.length; offset += CHUNK) {
+      sink.write(body, offset, Math.min(CHUNK, body.length - offset));
+      sink.emit();
+    }
+  }
+}
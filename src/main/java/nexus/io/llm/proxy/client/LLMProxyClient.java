@@ -0,0 +1,136 @@
+package nexus.io.llm.proxy.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import nexus.io.tio.utils.environment.EnvUtils;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.sse.EventSource;
+import okhttp3.sse.EventSourceListener;
+
+/**
+ * 直接转发请求体字节, 不经过 String 编解码
+ */
+public class LLMProxyClient {
+
+  public static final String DEFAULT_CONTENT_TYPE = "application/json";
+
+  /**
+   * 配置了 http.proxyHost 但没有配置 http.proxyPort 时使用的端口, 与 JDK 的默认值相同
+   */
+  public static final int DEFAULT_PROXY_PORT = 80;
+
+  /**
+   * 开启虚拟线程时非流式请求也走异步, 阻塞等待发生在虚拟线程上
+   */
+  private static final boolean async = EnvUtils.getBoolean("llm.proxy.async", false) || ProxyExecutors.isVirtual();
+  private static final UpstreamClient defaultClient = build("default", ProxyExecutors.getUpstreamExecutor());
+
+  public static OkHttpClient buildHttpClient(ExecutorService executor) {
+    return build("default", executor).getHttpClient();
+  }
+
+  /**
+   * 按 llm.proxy.upstream.&lt;name&gt;.xxx 构建, 没有配置时使用全局的 llm.proxy.xxx
+   *
+   * <pre>
+   * max.requests, max.requests.per.host  dispatcher 并发上限
+   * max.idle, keep.alive                 连接池空闲连接数和空闲回收时间(秒)
+   * http2                                是否协商 HTTP/2, 默认 true
+   * connect.timeout, read.timeout, write.timeout  秒
+   * </pre>
+   *
+   * @param executor 为 null 时使用 OkHttp 默认线程池
+   */
+  public static UpstreamClient build(String name, ExecutorService executor) {
+    String key = "llm.proxy.upstream." + name + ".";
+    // 默认每个 host 只允许 5 个异步请求, 流式和异步请求都走 dispatcher
+    Dispatcher dispatcher = executor != null ? new Dispatcher(executor) : new Dispatcher();
+    dispatcher.setMaxRequests(getInt(key, "max.requests", 4096));
+    dispatcher.setMaxRequestsPerHost(getInt(key, "max.requests.per.host", 4096));
+
+    ConnectionPool connectionPool = new ConnectionPool(getInt(key, "max.idle", 32), getInt(key, "keep.alive", 300),
+        TimeUnit.SECONDS);
+
+    UpstreamStats stats = new UpstreamStats();
+    OkHttpClient.Builder builder = new OkHttpClient.Builder().dispatcher(dispatcher).connectionPool(connectionPool)
+        //
+        .eventListenerFactory(stats)
+        //
+        .connectTimeout(getInt(key, "connect.timeout", 30), TimeUnit.SECONDS)
+        .readTimeout(getInt(key, "read.timeout", 600), TimeUnit.SECONDS)
+        .writeTimeout(getInt(key, "write.timeout", 60), TimeUnit.SECONDS);
+
+    if (!EnvUtils.getBoolean(key + "http2", EnvUtils.getBoolean("llm.proxy.http2", true))) {
+      builder.protocols(Collections.singletonList(Protocol.HTTP_1_1));
+    }
+
+    String proxyHost = EnvUtils.getStr("http.proxyHost");
+    if (proxyHost != null) {
+      int proxyPort = EnvUtils.getInt("http.proxyPort", DEFAULT_PROXY_PORT);
+      builder.proxy(new Proxy(Proxy.Type.HTTP, new InetSocketAddress(proxyHost, proxyPort)));
+    }
+    return new UpstreamClient(name, builder.build(), stats);
+  }
+
+  private static int getInt(String key, String name, int defaultValue) {
+    return EnvUtils.getInt(key + name, EnvUtils.getInt("llm.proxy." + name, defaultValue));
+  }
+
+  public static Request buildRequest(String url, Map<String, String> headers, byte[] body, String contentType) {
+    Request.Builder builder = new Request.Builder().url(url);
+    for (Map.Entry<String, String> e : headers.entrySet()) {
+      if (e.getValue() != null) {
+        builder.header(e.getKey(), e.getValue());
+      }
+    }
+    if (body == null) {
+      return builder.get().build();
+    }
+    MediaType mediaType = MediaType.parse(contentType != null ? contentType : DEFAULT_CONTENT_TYPE);
+    RequestBody requestBody = body.length > ChunkedRequestBody.CHUNK ? new ChunkedRequestBody(mediaType, body)
+        : RequestBody.create(mediaType, body);
+    return builder.post(requestBody).build();
+  }
+
+  public static Response generate(String url, Map<String, String> headers, byte[] body, String contentType)
+      throws IOException {
+    return defaultClient.generate(url, headers, body, contentType);
+  }
+
+  public static Response get(String url, Map<String, String> headers) throws IOException {
+    return defaultClient.get(url, headers);
+  }
+
+  public static Call enqueue(String url, Map<String, String> headers, byte[] body, String contentType,
+      Callback callback) {
+    return defaultClient.enqueue(url, headers, body, contentType, callback);
+  }
+
+  public static EventSource stream(String url, Map<String, String> headers, byte[] body, String contentType,
+      EventSourceListener listener) {
+    return defaultClient.stream(url, headers, body, contentType, listener);
+  }
+
+  public static boolean isAsync() {
+    return async;
+  }
+
+  public static UpstreamClient getDefaultClient() {
+    return defaultClient;
+  }
+}
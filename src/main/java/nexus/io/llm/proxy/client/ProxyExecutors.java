@@ -0,0 +1,70 @@
+package nexus.io.llm.proxy.client;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.extern.slf4j.Slf4j;
+import nexus.io.tio.utils.environment.EnvUtils;
+
+/**
+ * 上游调用使用的线程. 运行在 JDK 21+ 且 llm.proxy.virtual.threads=true 时使用虚拟线程, 否则为 null, 由 OkHttp
+ * 使用默认线程池. 通过反射调用, 构建产物仍然兼容 Java 8
+ */
+@Slf4j
+public class ProxyExecutors {
+
+  private static final ExecutorService upstreamExecutor = init();
+
+  private static ExecutorService init() {
+    if (!EnvUtils.getBoolean("llm.proxy.virtual.threads", false)) {
+      return null;
+    }
+    ExecutorService executor = newVirtualThreadPerTaskExecutor();
+    if (executor == null) {
+      log.warn("llm.proxy.virtual.threads requires JDK 21+, current:{}", System.getProperty("java.version"));
+    } else {
+      log.info("llm proxy upstream calls run on virtual threads");
+    }
+    return executor;
+  }
+
+  /**
+   * @return JDK 21 以下返回 null
+   */
+  public static ExecutorService newVirtualThreadPerTaskExecutor() {
+    try {
+      Method method = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) method.invoke(null);
+    } catch (NoSuchMethodException e) {
+      return null;
+    } catch (Exception e) {
+      log.error("failed to create virtual thread executor", e);
+      return null;
+    }
+  }
+
+  /**
+   * 开启虚拟线程时共用虚拟线程, 否则创建名为 prefix-N 的守护线程池
+   */
+  public static ExecutorService newTaskExecutor(String prefix) {
+    if (upstreamExecutor != null) {
+      return upstreamExecutor;
+    }
+    AtomicInteger seq = new AtomicInteger();
+    return Executors.newCachedThreadPool(r -> {
+      Thread thread = new Thread(r, prefix + "-" + seq.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  public static ExecutorService getUpstreamExecutor() {
+    return upstreamExecutor;
+  }
+
+  public static boolean isVirtual() {
+    return upstreamExecutor != null;
+  }
+}
@@ -0,0 +1,105 @@
+package nexus.io.llm.proxy.client;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.sse.EventSource;
+import okhttp3.sse.EventSourceListener;
+import okhttp3.sse.EventSources;
+
+/**
+ * 一个上游服务独占的 OkHttpClient: 连接池, dispatcher, 超时和协议都可以单独配置
+ */
+@Slf4j
+public class UpstreamClient {
+
+  private final String name;
+  private final OkHttpClient httpClient;
+  private final EventSource.Factory eventSourceFactory;
+  private final UpstreamStats stats;
+
+  public UpstreamClient(String name, OkHttpClient httpClient, UpstreamStats stats) {
+    this.name = name;
+    this.httpClient = httpClient;
+    this.eventSourceFactory = EventSources.createFactory(httpClient);
+    this.stats = stats;
+  }
+
+  public Response generate(String url, Map<String, String> headers, byte[] body, String contentType)
+      throws IOException {
+    return httpClient.newCall(LLMProxyClient.buildRequest(url, headers, body, contentType)).execute();
+  }
+
+  public Response get(String url, Map<String, String> headers) throws IOException {
+    return httpClient.newCall(LLMProxyClient.buildRequest(url, headers, null, null)).execute();
+  }
+
+  public Call enqueue(String url, Map<String, String> headers, byte[] body, String contentType, Callback callback) {
+    Call call = httpClient.newCall(LLMProxyClient.buildRequest(url, headers, body, contentType));
+    call.enqueue(callback);
+    return call;
+  }
+
+  public EventSource stream(String url, Map<String, String> headers, byte[] body, String contentType,
+      EventSourceListener listener) {
+    return eventSourceFactory.newEventSource(LLMProxyClient.buildRequest(url, headers, body, contentType), listener);
+  }
+
+  /**
+   * 提前建立 connections 个连接(HTTP/2 下通常 1 个就够), 首个请求不用再等 TLS 握手. 响应内容不关心
+   */
+  public void prewarm(String url, int connections) {
+    for (int i = 0; i < connections; i++) {
+      Request request = new Request.Builder().url(url).head().build();
+      httpClient.newCall(request).enqueue(new Callback() {
+        @Override
+        public void onResponse(Call call, Response response) {
+          response.close();
+          log.info("prewarmed {} {} {}", name, response.protocol(), response.code());
+        }
+
+        @Override
+        public void onFailure(Call call, IOException e) {
+          log.warn("prewarm {} failed: {}", name, e.getMessage());
+        }
+      });
+    }
+  }
+
+  public Map<String, Object> snapshot() {
+    ConnectionPool pool = httpClient.connectionPool();
+    Dispatcher dispatcher = httpClient.dispatcher();
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("connections", pool.connectionCount());
+    map.put("idleConnections", pool.idleConnectionCount());
+    map.put("runningCalls", dispatcher.runningCallsCount());
+    map.put("queuedCalls", dispatcher.queuedCallsCount());
+    map.put("acquired", stats.getAcquired());
+    map.put("connects", stats.getConnects());
+    map.put("failed", stats.getFailed());
+    map.put("avgWaitMs", stats.getAvgWaitMs());
+    map.put("maxWaitMs", stats.getMaxWaitMs());
+    return map;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public OkHttpClient getHttpClient() {
+    return httpClient;
+  }
+
+  public UpstreamStats getStats() {
+    return stats;
+  }
+}
@@ -0,0 +1,52 @@
+package nexus.io.llm.proxy.client;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import lombok.extern.slf4j.Slf4j;
+import nexus.io.llm.proxy.route.ProviderRoute;
+import nexus.io.llm.proxy.route.ProviderRouteRegistry;
+import nexus.io.tio.utils.environment.EnvUtils;
+
+/**
+ * 每个上游路由一个 UpstreamClient, 启动时构建, 之后只读
+ */
+@Slf4j
+public class UpstreamClientRegistry {
+
+  private final Map<String, UpstreamClient> clients = new LinkedHashMap<>();
+  private final ProviderRouteRegistry routeRegistry;
+
+  public UpstreamClientRegistry(ProviderRouteRegistry routeRegistry) {
+    this.routeRegistry = routeRegistry;
+    for (ProviderRoute route : routeRegistry.getRoutes()) {
+      clients.put(route.getName(), LLMProxyClient.build(route.getName(), ProxyExecutors.getUpstreamExecutor()));
+    }
+  }
+
+  public UpstreamClient get(ProviderRoute route) {
+    UpstreamClient client = clients.get(route.getName());
+    return client != null ? client : LLMProxyClient.getDefaultClient();
+  }
+
+  /**
+   * llm.proxy.upstream.&lt;name&gt;.prewarm 或 llm.proxy.prewarm 指定预先建立的连接数, 默认 0
+   */
+  public void prewarm() {
+    for (ProviderRoute route : routeRegistry.getRoutes()) {
+      int connections = EnvUtils.getInt("llm.proxy.upstream." + route.getName() + ".prewarm",
+          EnvUtils.getInt("llm.proxy.prewarm", 0));
+      if (connections > 0) {
+        clients.get(route.getName()).prewarm(route.getBaseUrl(), connections);
+      }
+    }
+  }
+
+  public Map<String, Map<String, Object>> snapshot() {
+    Map<String, Map<String, Object>> map = new LinkedHashMap<>();
+    for (UpstreamClient client : clients.values()) {
+      map.put(client.getName(), client.snapshot());
+    }
+    return map;
+  }
+}
@@ -0,0 +1,81 @@
+package nexus.io.llm.proxy.client;
+
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+
+/**
+ * 单个上游的连接获取统计: 获取次数, 新建连接数, 等待连接的耗时(含 DNS/TCP/TLS)
+ */
+public class UpstreamStats implements EventListener.Factory {
+
+  private final LongAdder acquired = new LongAdder();
+  private final LongAdder connects = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private final LongAdder waitNanos = new LongAdder();
+  private final AtomicLong maxWaitNanos = new AtomicLong();
+
+  @Override
+  public EventListener create(Call call) {
+    return new CallListener();
+  }
+
+  public long getAcquired() {
+    return acquired.sum();
+  }
+
+  public long getConnects() {
+    return connects.sum();
+  }
+
+  public long getFailed() {
+    return failed.sum();
+  }
+
+  public double getAvgWaitMs() {
+    long count = acquired.sum();
+    return count == 0 ? 0 : waitNanos.sum() / 1e6 / count;
+  }
+
+  public double getMaxWaitMs() {
+    return maxWaitNanos.get() / 1e6;
+  }
+
+  private class CallListener extends EventListener {
+    private long start;
+    private boolean recorded;
+
+    @Override
+    public void callStart(Call call) {
+      start = System.nanoTime();
+    }
+
+    @Override
+    public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+      connects.increment();
+    }
+
+    @Override
+    public void connectionAcquired(Call call, Connection connection) {
+      // 重试或重定向会再次获取连接, 只记录第一次
+      if (recorded) {
+        return;
+      }
+      recorded = true;
+      long wait = System.nanoTime() - start;
+      acquired.increment();
+      waitNanos.add(wait);
+      maxWaitNanos.accumulateAndGet(wait, Math::max);
+    }
+
+    @Override
+    public void callFailed(Call call, java.io.IOException ioe) {
+      failed.increment();
+    }
+  }
+}
@@ -0,0 +1,544 @@
+package nexus.io.llm.proxy.cluster;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import lombok.extern.slf4j.Slf4j;
+import nexus.io.tio.utils.environment.EnvUtils;
+
+/**
+ * 节点之间用 UDP 定时交换计数器的增量状态.
+ *
+ * <pre>
+ * llm.proxy.cluster.mode=gossip
+ * llm.proxy.cluster.bind=0.0.0.0:7946
+ * llm.proxy.cluster.peers=10.0.0.2:7946,10.0.0.3:7946
+ * llm.proxy.cluster.secret=...
+ * llm.proxy.cluster.sync.ms=200
+ * llm.proxy.cluster.entries.enabled=false
+ * </pre>
+ *
+ * <ul>
+ * <li>每个节点只发送自己的累计值(节点, 名称, 版本, 累计值), 接收方按节点取最大值合并, 差值就是增量. 丢包, 重复和乱序都不会重复计数</li>
+ * <li>每个同步周期把最近变化的计数器直接发给所有节点, 之后 llm.proxy.cluster.resend.rounds 个周期内重发; 每
+ * llm.proxy.cluster.full.rounds 个周期发送全部计数器. 不丢包时集群合计最多落后一个周期, 丢包时最多落后一次全量同步的间隔</li>
+ * <li>响应缓存等条目只在发布后的下一个周期发送一次, 不重发, 超过 llm.proxy.cluster.entry.max.bytes 的条目不同步</li>
+ * <li>每个包带 llm.proxy.cluster.secret 的 HMAC-SHA256, 校验失败的包丢弃</li>
+ * </ul>
+ * 包只做认证, 不加密. 计数器的名称中只有密钥指纹和模型名, 但响应缓存条目是完整的响应体, 网络上可见. 所以条目同步默认关闭,
+ * 只在节点之间是可信的私有网络时设置 llm.proxy.cluster.entries.enabled=true; 关闭时不发送也不接收条目
+ * 同一个 JVM 中可以用不同端口创建多个实例, 用于在本机测试
+ */
+@Slf4j
+public class GossipSharedState implements SharedState {
+
+  private static final int MAGIC = 0x4C4C4D50;
+  private static final int MAX_PACKET = 60000;
+  private static final int MAC_LENGTH = 32;
+
+  private final String node;
+  private final DatagramSocket socket;
+  private final List<InetSocketAddress> peers;
+  private final SecretKeySpec secret;
+  private final int resendRounds;
+  private final int fullRounds;
+  private final long ttlMillis;
+  private final int maxEntryBytes;
+  private final long maxEntriesBytes;
+
+  private final Map<String, Tracked> counters = new ConcurrentHashMap<>();
+  private final ConcurrentLinkedQueue<Entry> outgoing = new ConcurrentLinkedQueue<>();
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+  private long entriesBytes;
+  private final Map<String, Long> lastSeen = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService scheduler;
+  private final Thread receiver;
+  private final Mac sendMac;
+  private final Mac receiveMac;
+  private long round;
+  private volatile boolean closed;
+
+  private final LongAdder packetsSent = new LongAdder();
+  private final LongAdder packetsReceived = new LongAdder();
+  private final LongAdder packetsRejected = new LongAdder();
+  private final LongAdder bytesSent = new LongAdder();
+  private final LongAdder entriesSent = new LongAdder();
+  private final LongAdder entriesReceived = new LongAdder();
+
+  /**
+   * @param node  节点名称, 集群内唯一
+   * @param bind  监听的 UDP 地址
+   * @param peers 其他节点, 包含自己时忽略
+   */
+  public GossipSharedState(String node, InetSocketAddress bind, List<InetSocketAddress> peers, byte[] secret,
+      long syncMillis, int resendRounds, int fullRounds, long ttlMillis, int maxEntryBytes, long maxEntriesBytes)
+      throws IOException {
+    this.node = node;
+    this.peers = peers;
+    this.secret = new SecretKeySpec(secret, "HmacSHA256");
+    this.resendRounds = resendRounds;
+    this.fullRounds = fullRounds;
+    this.ttlMillis = ttlMillis;
+    this.maxEntryBytes = Math.min(maxEntryBytes, MAX_PACKET - 1024);
+    this.maxEntriesBytes = maxEntriesBytes;
+    this.sendMac = newMac();
+    this.receiveMac = newMac();
+    this.socket = new DatagramSocket(bind);
+    this.socket.setReceiveBufferSize(4 * 1024 * 1024);
+
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "llm-proxy-cluster-sync");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(this::sync, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+    this.receiver = new Thread(this::receive, "llm-proxy-cluster-receive");
+    receiver.setDaemon(true);
+    receiver.start();
+  }
+
+  /**
+   * 必须配置 llm.proxy.cluster.secret 和 llm.proxy.cluster.peers
+   */
+  public static GossipSharedState fromEnv() {
+    String secret = EnvUtils.getStr("llm.proxy.cluster.secret");
+    String peers = EnvUtils.getStr("llm.proxy.cluster.peers");
+    if (secret == null || secret.isEmpty() || peers == null) {
+      throw new IllegalArgumentException("gossip mode requires llm.proxy.cluster.secret and llm.proxy.cluster.peers");
+    }
+    String bind = EnvUtils.getStr("llm.proxy.cluster.bind", "0.0.0.0:7946");
+    String node = EnvUtils.getStr("llm.proxy.cluster.node");
+    long syncMillis = EnvUtils.getLong("llm.proxy.cluster.sync.ms", 200L);
+    int resendRounds = EnvUtils.getInt("llm.proxy.cluster.resend.rounds", 5);
+    int fullRounds = EnvUtils.getInt("llm.proxy.cluster.full.rounds", 50);
+    long ttl = EnvUtils.getLong("llm.proxy.cluster.ttl", 600L);
+    // 0 表示不同步条目
+    int maxEntryBytes = EnvUtils.getBoolean("llm.proxy.cluster.entries.enabled", false)
+        ? EnvUtils.getInt("llm.proxy.cluster.entry.max.bytes", 32 * 1024)
+        : 0;
+    long maxEntriesBytes = EnvUtils.getLong("llm.proxy.cluster.entries.max.bytes", 64L * 1024 * 1024);
+    List<InetSocketAddress> peerList = new ArrayList<>();
+    for (String peer : peers.split(",")) {
+      peer = peer.trim();
+      if (!peer.isEmpty()) {
+        peerList.add(address(peer));
+      }
+    }
+    InetSocketAddress bindAddress = address(bind);
+    if (node == null) {
+      // 重启后使用新的名称, 其他节点不会把新进程的计数当作旧进程的重复
+      node = bind + "@" + System.currentTimeMillis();
+    }
+    try {
+      GossipSharedState state = new GossipSharedState(node, bindAddress, peerList,
+          secret.getBytes(StandardCharsets.UTF_8), syncMillis, resendRounds, fullRounds, ttl * 1000, maxEntryBytes,
+          maxEntriesBytes);
+      log.info("llm proxy cluster node:{}, bind:{}, peers:{}, sync:{}ms, entries:{}", node, bind, peerList, syncMillis,
+          maxEntryBytes > 0 ? "plaintext, max " + maxEntryBytes + " bytes" : "off");
+      return state;
+    } catch (IOException e) {
+      throw new IllegalStateException("can not bind cluster address " + bind, e);
+    }
+  }
+
+  static InetSocketAddress address(String hostPort) {
+    int i = hostPort.lastIndexOf(':');
+    if (i < 0) {
+      throw new IllegalArgumentException("expected host:port, got " + hostPort);
+    }
+    return new InetSocketAddress(hostPort.substring(0, i), Integer.parseInt(hostPort.substring(i + 1)));
+  }
+
+  @Override
+  public SharedCounter counter(String name, LongConsumer onRemote) {
+    while (true) {
+      Tracked tracked = counters.compute(name, (k, t) -> {
+        if (t == null) {
+          return new Tracked(new SharedCounter(name, onRemote, this::release));
+        }
+        t.counter.setOnRemote(onRemote);
+        return t;
+      });
+      synchronized (tracked) {
+        tracked.held = true;
+        tracked.holders++;
+        tracked.released = false;
+      }
+      // 同步线程可能刚好移除了已释放的计数器, 重新创建
+      if (counters.get(name) == tracked) {
+        return tracked.counter;
+      }
+    }
+  }
+
+  private void release(SharedCounter counter) {
+    Tracked tracked = counters.get(counter.getName());
+    if (tracked != null && tracked.counter == counter) {
+      synchronized (tracked) {
+        // 同一个名称可能有多个持有者, 都释放之后才停止同步
+        if (tracked.holders > 0) {
+          tracked.holders--;
+        }
+        tracked.released = tracked.holders == 0;
+      }
+    }
+  }
+
+  @Override
+  public void put(String key, byte[] value, long expiresAt) {
+    if (maxEntryBytes > 0 && value.length <= maxEntryBytes && !peers.isEmpty()) {
+      outgoing.add(new Entry(key, value, expiresAt));
+    }
+  }
+
+  @Override
+  public byte[] get(String key) {
+    synchronized (entries) {
+      Entry entry = entries.get(key);
+      if (entry == null) {
+        return null;
+      }
+      if (entry.expiresAt <= System.currentTimeMillis()) {
+        entries.remove(key);
+        entriesBytes -= entry.value.length;
+        return null;
+      }
+      return entry.value;
+    }
+  }
+
+  @Override
+  public int maxEntryBytes() {
+    return maxEntryBytes;
+  }
+
+  /**
+   * 同步线程: 发送本地变化, 清理过期的计数器
+   */
+  private void sync() {
+    try {
+      long now = System.currentTimeMillis();
+      round++;
+      boolean full = fullRounds > 0 && round % fullRounds == 0;
+      PacketWriter writer = new PacketWriter();
+      for (Iterator<Tracked> it = counters.values().iterator(); it.hasNext();) {
+        Tracked t = it.next();
+        long value = t.counter.local();
+        boolean send;
+        synchronized (t) {
+          if (value != t.sent) {
+            t.sent = value;
+            t.changedRound = round;
+            t.lastActive = now;
+          }
+          send = value > 0 && (full || round - t.changedRound < resendRounds);
+          boolean idle = t.released ? round - t.changedRound >= resendRounds : !t.held && now - t.lastActive > ttlMillis;
+          if (idle) {
+            it.remove();
+          }
+        }
+        if (send) {
+          writer.counter(t.counter.getName(), t.created, value);
+        }
+      }
+      Entry entry;
+      while ((entry = outgoing.poll()) != null) {
+        writer.entry(entry);
+        entriesSent.increment();
+      }
+      writer.flush();
+    } catch (Exception e) {
+      log.error("cluster sync failed", e);
+    }
+  }
+
+  private void send(byte[] payload, int length) throws IOException {
+    byte[] packet = Arrays.copyOf(payload, length + MAC_LENGTH);
+    sendMac.update(payload, 0, length);
+    try {
+      sendMac.doFinal(packet, length);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+    for (InetSocketAddress peer : peers) {
+      socket.send(new DatagramPacket(packet, packet.length, peer));
+      packetsSent.increment();
+      bytesSent.add(packet.length);
+    }
+  }
+
+  /**
+   * 接收线程: 校验并合并其他节点的状态
+   */
+  private void receive() {
+    byte[] buffer = new byte[65536];
+    byte[] expected = new byte[MAC_LENGTH];
+    while (!closed) {
+      DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+      try {
+        socket.receive(packet);
+      } catch (IOException e) {
+        if (!closed) {
+          log.warn("cluster receive failed:{}", e.getMessage());
+        }
+        continue;
+      }
+      int length = packet.getLength() - MAC_LENGTH;
+      if (length <= 0) {
+        packetsRejected.increment();
+        continue;
+      }
+      receiveMac.update(buffer, 0, length);
+      try {
+        receiveMac.doFinal(expected, 0);
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException(e);
+      }
+      if (!MessageDigest.isEqual(expected, Arrays.copyOfRange(buffer, length, length + MAC_LENGTH))) {
+        packetsRejected.increment();
+        continue;
+      }
+      try {
+        merge(new DataInputStream(new ByteArrayInputStream(buffer, 0, length)));
+        packetsReceived.increment();
+      } catch (IOException | RuntimeException e) {
+        packetsRejected.increment();
+        log.warn("cluster packet from {} rejected:{}", packet.getSocketAddress(), e.getMessage());
+      }
+    }
+  }
+
+  private void merge(DataInputStream in) throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException("bad magic");
+    }
+    String origin = in.readUTF();
+    if (origin.equals(node)) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    lastSeen.put(origin, now);
+    int counterCount = in.readInt();
+    for (int i = 0; i < counterCount; i++) {
+      String name = in.readUTF();
+      long created = in.readLong();
+      long value = in.readLong();
+      Tracked t = counters.computeIfAbsent(name, k -> new Tracked(new SharedCounter(name, null, this::release)));
+      long delta;
+      synchronized (t) {
+        delta = t.merge(origin, created, value, now, ttlMillis);
+      }
+      if (delta > 0) {
+        t.counter.addRemote(delta);
+      }
+    }
+    int entryCount = in.readInt();
+    for (int i = 0; i < entryCount; i++) {
+      String key = in.readUTF();
+      long expiresAt = in.readLong();
+      byte[] value = new byte[in.readInt()];
+      in.readFully(value);
+      if (maxEntryBytes > 0 && expiresAt > now) {
+        store(new Entry(key, value, expiresAt));
+        entriesReceived.increment();
+      }
+    }
+  }
+
+  private void store(Entry entry) {
+    synchronized (entries) {
+      Entry old = entries.put(entry.key, entry);
+      if (old != null) {
+        entriesBytes -= old.value.length;
+      }
+      entriesBytes += entry.value.length;
+      Iterator<Entry> it = entries.values().iterator();
+      while (entriesBytes > maxEntriesBytes && it.hasNext()) {
+        entriesBytes -= it.next().value.length;
+        it.remove();
+      }
+    }
+  }
+
+  @Override
+  public Map<String, Object> snapshot() {
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("mode", "gossip");
+    map.put("node", node);
+    map.put("counters", counters.size());
+    synchronized (entries) {
+      map.put("entries", entries.size());
+      map.put("entriesBytes", entriesBytes);
+    }
+    map.put("packetsSent", packetsSent.sum());
+    map.put("packetsReceived", packetsReceived.sum());
+    map.put("packetsRejected", packetsRejected.sum());
+    map.put("bytesSent", bytesSent.sum());
+    map.put("entriesSent", entriesSent.sum());
+    map.put("entriesReceived", entriesReceived.sum());
+    long now = System.currentTimeMillis();
+    Map<String, Object> nodes = new LinkedHashMap<>();
+    for (Map.Entry<String, Long> e : lastSeen.entrySet()) {
+      nodes.put(e.getKey(), now - e.getValue());
+    }
+    map.put("lastSeenMs", nodes);
+    return map;
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    scheduler.shutdown();
+    socket.close();
+  }
+
+  private Mac newMac() {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(secret);
+      return mac;
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * 按包大小分批写出, 每个包: magic, 节点, 计数器, 条目, HMAC
+   */
+  private class PacketWriter {
+    private final ByteArrayOutputStream counterBytes = new ByteArrayOutputStream();
+    private final DataOutputStream counterOut = new DataOutputStream(counterBytes);
+    private final ByteArrayOutputStream entryBytes = new ByteArrayOutputStream();
+    private final DataOutputStream entryOut = new DataOutputStream(entryBytes);
+    private int counterCount;
+    private int entryCount;
+
+    private void counter(String name, long created, long value) throws IOException {
+      if (size() + name.length() * 3 + 18 > MAX_PACKET) {
+        flush();
+      }
+      counterOut.writeUTF(name);
+      counterOut.writeLong(created);
+      counterOut.writeLong(value);
+      counterCount++;
+    }
+
+    private void entry(Entry entry) throws IOException {
+      if (size() + entry.key.length() * 3 + entry.value.length + 14 > MAX_PACKET) {
+        flush();
+      }
+      entryOut.writeUTF(entry.key);
+      entryOut.writeLong(entry.expiresAt);
+      entryOut.writeInt(entry.value.length);
+      entryOut.write(entry.value);
+      entryCount++;
+    }
+
+    private int size() {
+      return 64 + node.length() * 3 + counterBytes.size() + entryBytes.size();
+    }
+
+    private void flush() throws IOException {
+      if (counterCount == 0 && entryCount == 0) {
+        return;
+      }
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(size());
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(MAGIC);
+      out.writeUTF(node);
+      out.writeInt(counterCount);
+      counterBytes.writeTo(out);
+      out.writeInt(entryCount);
+      entryBytes.writeTo(out);
+      out.flush();
+      send(bytes.toByteArray(), bytes.size());
+      counterBytes.reset();
+      entryBytes.reset();
+      counterCount = 0;
+      entryCount = 0;
+    }
+  }
+
+  /**
+   * 一个计数器在本节点的同步状态, 以及其他节点的累计值
+   */
+  private static class Tracked {
+    private final SharedCounter counter;
+    // 本节点的版本, 计数器重新创建后其他节点按新版本重新计算
+    private final long created = System.currentTimeMillis();
+    private final Map<String, long[]> origins = new HashMap<>();
+    private long sent;
+    private long changedRound;
+    private long lastActive = System.currentTimeMillis();
+    private boolean held;
+    private int holders;
+    private boolean released;
+
+    private Tracked(SharedCounter counter) {
+      this.counter = counter;
+    }
+
+    /**
+     * 在锁内调用
+     *
+     * @return 新增的计数
+     */
+    private long merge(String origin, long created, long value, long now, long ttlMillis) {
+      lastActive = now;
+      long[] state = origins.get(origin);
+      long delta;
+      if (state == null || created > state[0]) {
+        delta = value;
+        state = new long[] { created, value, now };
+        origins.put(origin, state);
+      } else if (created == state[0]) {
+        delta = Math.max(0, value - state[1]);
+        state[1] = Math.max(state[1], value);
+        state[2] = now;
+      } else {
+        return 0;
+      }
+      // 对方停止发送超过 ttl 的版本不会再出现
+      origins.values().removeIf(s -> now - s[2] > ttlMillis);
+      return delta;
+    }
+  }
+
+  private static class Entry {
+    private final String key;
+    private final byte[] value;
+    private final long expiresAt;
+
+    private Entry(String key, byte[] value, long expiresAt) {
+      this.key = key;
+      this.value = value;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package nexus.io.llm.proxy.cluster;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+/**
+ * 只有本节点的实现: 计数器只有本地部分, 没有其他节点发布的条目. 用于单节点部署和测试
+ */
+public class LocalSharedState implements SharedState {
+
+  private final LongAdder counters = new LongAdder();
+
+  @Override
+  public SharedCounter counter(String name, LongConsumer onRemote) {
+    // 没有其他节点, 不需要按名称合并, 计数器由调用方持有
+    counters.increment();
+    return new SharedCounter(name, onRemote, null);
+  }
+
+  @Override
+  public void put(String key, byte[] value, long expiresAt) {
+  }
+
+  @Override
+  public byte[] get(String key) {
+    return null;
+  }
+
+  @Override
+  public int maxEntryBytes() {
+    return 0;
+  }
+
+  @Override
+  public Map<String, Object> snapshot() {
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("mode", "local");
+    map.put("countersCreated", counters.sum());
+    return map;
+  }
+
+  @Override
+  public void close() {
+  }
+}
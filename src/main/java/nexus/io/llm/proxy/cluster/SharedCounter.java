@@ -0,0 +1,70 @@
+package nexus.io.llm.proxy.cluster;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * 集群计数器. 本节点的增量累加到本地的 LongAdder, 其他节点的累计值由 {@link SharedState} 的实现合并到 remote, add 和 sum
+ * 都不加锁, 不访问网络. 计数只增不减
+ */
+public class SharedCounter {
+
+  private final String name;
+  private final LongAdder local = new LongAdder();
+  private final AtomicLong remote = new AtomicLong();
+  private final Consumer<SharedCounter> onRelease;
+  private volatile LongConsumer onRemote;
+
+  SharedCounter(String name, LongConsumer onRemote, Consumer<SharedCounter> onRelease) {
+    this.name = name;
+    this.onRemote = onRemote;
+    this.onRelease = onRelease;
+  }
+
+  public void add(long delta) {
+    local.add(delta);
+  }
+
+  /**
+   * 集群合计
+   */
+  public long sum() {
+    return local.sum() + remote.get();
+  }
+
+  public long local() {
+    return local.sum();
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * 不再使用, 本地的增量发送完之后停止同步
+   */
+  public void release() {
+    if (onRelease != null) {
+      onRelease.accept(this);
+    }
+  }
+
+  void setOnRemote(LongConsumer onRemote) {
+    if (onRemote != null) {
+      this.onRemote = onRemote;
+    }
+  }
+
+  /**
+   * 在同步线程中调用
+   */
+  void addRemote(long delta) {
+    remote.addAndGet(delta);
+    LongConsumer listener = onRemote;
+    if (listener != null) {
+      listener.accept(delta);
+    }
+  }
+}
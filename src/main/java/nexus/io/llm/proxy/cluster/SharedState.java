@@ -0,0 +1,63 @@
+package nexus.io.llm.proxy.cluster;
+
+import java.util.Map;
+import java.util.function.LongConsumer;
+
+import nexus.io.tio.utils.environment.EnvUtils;
+
+/**
+ * 多个代理节点之间共享的状态: 限流配额, 用量计数和响应缓存条目.
+ * <p>
+ * 请求路径上只读写本地内存, 不加锁, 不访问网络; 实现在后台和其他节点同步, 读到的集群合计最多落后一个同步周期.
+ *
+ * <pre>
+ * llm.proxy.cluster.mode=local|gossip
+ * </pre>
+ *
+ * local 只有本节点, gossip 见 {@link GossipSharedState}
+ */
+public interface SharedState {
+
+  /**
+   * 未配置 llm.proxy.cluster.mode 时返回 null, 各组件只使用本地状态
+   */
+  static SharedState fromEnv() {
+    String mode = EnvUtils.getStr("llm.proxy.cluster.mode");
+    if (mode == null || mode.trim().isEmpty()) {
+      return null;
+    }
+    if ("local".equalsIgnoreCase(mode.trim())) {
+      return new LocalSharedState();
+    }
+    if ("gossip".equalsIgnoreCase(mode.trim())) {
+      return GossipSharedState.fromEnv();
+    }
+    throw new IllegalArgumentException("unknown llm.proxy.cluster.mode " + mode);
+  }
+
+  /**
+   * 同名计数器在各节点之间合并. 调用方持有返回的计数器, 不再使用时调用 {@link SharedCounter#release()}, 每次获取对应一次释放
+   *
+   * @param onRemote 收到其他节点的增量时回调, 在同步线程中执行, 可以为 null
+   */
+  SharedCounter counter(String name, LongConsumer onRemote);
+
+  /**
+   * 发布一个条目给其他节点, 超过 {@link #maxEntryBytes()} 的条目不同步. 条目可能以明文在网络上传输
+   */
+  void put(String key, byte[] value, long expiresAt);
+
+  /**
+   * @return 其他节点发布的, 未过期的条目, 没有时返回 null
+   */
+  byte[] get(String key);
+
+  /**
+   * 调用方可以据此跳过不会同步的大条目的序列化, 0 表示不同步条目
+   */
+  int maxEntryBytes();
+
+  Map<String, Object> snapshot();
+
+  void close();
+}
@@ -1,12 +1,40 @@
 package nexus.io.llm.proxy.config;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import nexus.io.llm.proxy.accesslog.AccessLog;
+import nexus.io.llm.proxy.cache.ModelListCache;
+import nexus.io.llm.proxy.cache.ResponseCache;
+import nexus.io.llm.proxy.cache.StreamCache;
+import nexus.io.llm.proxy.client.UpstreamClientRegistry;
+import nexus.io.llm.proxy.cluster.SharedState;
+import nexus.io.llm.proxy.failover.FailoverPolicy;
+import nexus.io.llm.proxy.keys.ClientAllowList;
+import nexus.io.llm.proxy.keys.KeyPoolRegistry;
+import nexus.io.llm.proxy.limit.BodyLimits;
+import nexus.io.llm.proxy.limit.RateLimiter;
+import nexus.io.llm.proxy.metrics.ProxyMetrics;
+import nexus.io.llm.proxy.handler.AdminHandler;
+import nexus.io.llm.proxy.handler.BodyLimitHandler;
+import nexus.io.llm.proxy.handler.DownstreamPool;
 import nexus.io.llm.proxy.handler.GeminiLiveWsHandler;
 import nexus.io.llm.proxy.handler.LLMChatHandler;
 import nexus.io.llm.proxy.handler.LLMChatProxyHandler;
 import nexus.io.llm.proxy.handler.LLMTestChatHandler;
 import nexus.io.llm.proxy.handler.LLModelProxyHandler;
+import nexus.io.llm.proxy.handler.MetricsHandler;
+import nexus.io.llm.proxy.handler.ProxyStatsHandler;
+import nexus.io.llm.proxy.handler.RateLimitedHandler;
+import nexus.io.llm.proxy.handler.TranslatingChatHandler;
+import nexus.io.llm.proxy.route.ProviderRoute;
+import nexus.io.llm.proxy.route.ProviderRouteRegistry;
+import nexus.io.llm.proxy.translate.ChatTranslators;
+import nexus.io.llm.proxy.usage.UsageRecorder;
 import nexus.io.tio.boot.server.TioBootServer;
 import nexus.io.tio.boot.websocket.WebSocketRouter;
+import nexus.io.tio.http.common.HttpConfig;
+import nexus.io.tio.http.server.handler.HttpRequestHandler;
 import nexus.io.tio.http.server.router.HttpRequestRouter;
 
 public class LLMProxyAppConfig {
@@ -14,14 +42,47 @@ public class LLMProxyAppConfig {
   public void config() {
     TioBootServer server = TioBootServer.me();
     HttpRequestRouter requestRouter = server.getRequestRouter();
+    // 多节点部署时共享限流, 用量和响应缓存; Gemini Live 的连接固定在一个节点上, 会话状态不共享
+    SharedState shared = SharedState.fromEnv();
+    RateLimiter rateLimiter = RateLimiter.fromEnv(shared);
+    AccessLog accessLog = AccessLog.fromEnv();
+    ProxyMetrics.setAccessLog(accessLog);
+    // 运行状态和 /metrics 默认不注册
+    ClientAllowList admin = ClientAllowList.adminFromEnv();
     if (requestRouter != null) {
-      LLMChatHandler llmChatHandler = new LLMChatHandler();
-      requestRouter.add("/v1/chat/completions", llmChatHandler);
-      
+      BodyLimits bodyLimits = BodyLimits.fromEnv();
       requestRouter.add("/test/v1/chat/completions", new LLMTestChatHandler());
       
       
-      LLMChatProxyHandler openAIV1ChatHandler = new LLMChatProxyHandler();
+      ProviderRouteRegistry routeRegistry = ProviderRouteRegistry.fromEnv();
+      UpstreamClientRegistry upstreamClients = new UpstreamClientRegistry(routeRegistry);
+      upstreamClients.prewarm();
+      ResponseCache responseCache = ResponseCache.fromEnv(shared);
+      StreamCache streamCache = StreamCache.fromEnv();
+      KeyPoolRegistry keyPools = KeyPoolRegistry.fromEnv(routeRegistry);
+      FailoverPolicy failover = new FailoverPolicy(routeRegistry, upstreamClients, keyPools);
+      UsageRecorder usage = UsageRecorder.fromEnv(shared);
+
+      HttpRequestHandler llmChatHandler = new LLMChatHandler();
+      // OpenAI 格式的请求按模型翻译到 Anthropic 和 Gemini
+      ChatTranslators translators = ChatTranslators.fromEnv(routeRegistry);
+      if (translators != null) {
+        llmChatHandler = new TranslatingChatHandler(translators, upstreamClients, usage, llmChatHandler);
+      }
+      if (rateLimiter != null) {
+        llmChatHandler = new RateLimitedHandler(rateLimiter, "chat", llmChatHandler);
+      }
+      // 超过大小的请求不占用限流配额
+      llmChatHandler = new BodyLimitHandler(bodyLimits, "chat", llmChatHandler);
+      requestRouter.add("/v1/chat/completions", llmChatHandler);
+
+      HttpRequestHandler openAIV1ChatHandler = new LLMChatProxyHandler(routeRegistry, upstreamClients, responseCache,
+          streamCache, keyPools, failover, usage, bodyLimits);
+      if (rateLimiter != null) {
+        openAIV1ChatHandler = new RateLimitedHandler(rateLimiter, routeRegistry, openAIV1ChatHandler);
+      }
+      openAIV1ChatHandler = new BodyLimitHandler(bodyLimits, routeRegistry, openAIV1ChatHandler);
+      limitPostBody(server, bodyLimits, routeRegistry);
       
       requestRouter.add("/openai/v1/chat/completions", openAIV1ChatHandler);
       requestRouter.add("/openrouter/v1/chat/completions", openAIV1ChatHandler);
@@ -32,20 +93,92 @@ public class LLMProxyAppConfig {
       requestRouter.add("/google/v1beta/models/*", openAIV1ChatHandler);
       requestRouter.add("/vertexai/v1beta/models/*", openAIV1ChatHandler);
       
-      LLModelProxyHandler llModelProxyHandler = new LLModelProxyHandler();
-      requestRouter.add("/openai/v1/models", llModelProxyHandler);
-      
-      
-      
+      ModelListCache modelCache = ModelListCache.fromEnv();
+      LLModelProxyHandler llModelProxyHandler = new LLModelProxyHandler(routeRegistry, upstreamClients, keyPools,
+          modelCache);
+      // 每个上游的模型列表, google 和 vertexai 的前缀本身就是 models
+      for (ProviderRoute route : routeRegistry.getRoutes()) {
+        String prefix = route.getPrefix();
+        if (prefix.endsWith("/messages")) {
+          continue;
+        }
+        requestRouter.add(prefix.endsWith("/models") ? prefix : prefix + "/models", llModelProxyHandler);
+      }
+      if (modelCache != null) {
+        admin(requestRouter, admin, "/llm/proxy/cache/models", new ProxyStatsHandler(modelCache::snapshot));
+      }
+
+      admin(requestRouter, admin, "/llm/proxy/upstreams", new ProxyStatsHandler(upstreamClients::snapshot));
+      if (responseCache != null) {
+        admin(requestRouter, admin, "/llm/proxy/cache", new ProxyStatsHandler(responseCache::snapshot));
+      }
+      if (streamCache != null) {
+        admin(requestRouter, admin, "/llm/proxy/cache/stream", new ProxyStatsHandler(streamCache::snapshot));
+      }
+      admin(requestRouter, admin, "/llm/proxy/failover", new ProxyStatsHandler(failover::snapshot));
+      admin(requestRouter, admin, "/llm/proxy/body", new ProxyStatsHandler(bodyLimits::snapshot));
+      if (!keyPools.isEmpty()) {
+        admin(requestRouter, admin, "/llm/proxy/keys", new ProxyStatsHandler(keyPools::snapshot));
+      }
+      if (rateLimiter != null) {
+        admin(requestRouter, admin, "/llm/proxy/limits", new ProxyStatsHandler(rateLimiter::snapshot));
+      }
+      if (usage != null) {
+        admin(requestRouter, admin, "/llm/proxy/usage", new ProxyStatsHandler(usage::snapshot));
+      }
+      if (accessLog != null) {
+        admin(requestRouter, admin, "/llm/proxy/access-log", new ProxyStatsHandler(accessLog::snapshot));
+      }
+      if (shared != null) {
+        admin(requestRouter, admin, "/llm/proxy/cluster", new ProxyStatsHandler(shared::snapshot));
+      }
+      admin(requestRouter, admin, "/metrics", new MetricsHandler());
+
+      // 配置文件中新增的上游, 不需要改代码
+      for (ProviderRoute route : routeRegistry.getConfiguredRoutes()) {
+        requestRouter.add(route.getPrefix() + "/*", openAIV1ChatHandler);
+      }
     }
     WebSocketRouter webSocketRouter = server.getWebSocketRouter();
     if (webSocketRouter != null) {
       String uri = "/ws/google.ai.generativelanguage.v1beta.GenerativeService.BidiGenerateContent";
       String url = "wss://generativelanguage.googleapis.com" + uri;
-      GeminiLiveWsHandler geminiLiveWsHandler = new GeminiLiveWsHandler(url);
+      DownstreamPool livePool = DownstreamPool.fromEnv(url);
+      GeminiLiveWsHandler geminiLiveWsHandler = new GeminiLiveWsHandler(url, rateLimiter, livePool);
       // GOOGLE_GEMINI_BASE_URL=http://localhost:8080/google/gemini
       String path = "/google/gemini" + uri;
       webSocketRouter.add(path, geminiLiveWsHandler);
+      if (requestRouter != null) {
+        admin(requestRouter, admin, "/llm/proxy/live", new ProxyStatsHandler(geminiLiveWsHandler::snapshot));
+        if (livePool != null) {
+          admin(requestRouter, admin, "/llm/proxy/live/pool", new ProxyStatsHandler(livePool::snapshot));
+        }
+      }
+    }
+  }
+
+  /**
+   * 开启了 llm.proxy.admin.enabled 时才注册, 并检查管理令牌或 IP
+   */
+  private void admin(HttpRequestRouter requestRouter, ClientAllowList admin, String path, HttpRequestHandler handler) {
+    if (admin != null) {
+      requestRouter.add(path, new AdminHandler(admin, handler));
+    }
+  }
+
+  /**
+   * 超过所有路由上限的请求由 tio 在解码时按 Content-Length 拒绝, 不读取请求体
+   */
+  private void limitPostBody(TioBootServer server, BodyLimits bodyLimits, ProviderRouteRegistry routeRegistry) {
+    List<String> routeNames = new ArrayList<>();
+    routeNames.add("chat");
+    for (ProviderRoute route : routeRegistry.getRoutes()) {
+      routeNames.add(route.getName());
+    }
+    long max = bodyLimits.serverMaxBytes(routeNames);
+    HttpConfig httpConfig = server.getHttpConfig();
+    if (max > 0 && httpConfig != null) {
+      httpConfig.setMaxLengthOfPostBody((int) Math.min(max, Integer.MAX_VALUE));
     }
   }
 }
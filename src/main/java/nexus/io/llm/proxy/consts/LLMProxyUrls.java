@@ -2,6 +2,13 @@ package nexus.io.llm.proxy.consts;
 
 public interface LLMProxyUrls {
 
+  String OPENAI = "/openai";
+  String OPENROUTER = "/openrouter";
+  String CEREBRAS = "/cerebras";
+  String ANTHROPIC = "/anthropic";
+  String GOOGLE = "/google";
+  String VERTEXAI = "/vertexai";
+
   String[] URL = { "/openai/**", "/openrouter/**", "/cerebras/**",
       //
       "/anthropic/**",
@@ -0,0 +1,116 @@
+package nexus.io.llm.proxy.failover;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 每个上游一个熔断器. 连续失败 failureThreshold 次后打开 openMillis, 期间请求跳过这个上游.
+ * 打开时间结束后进入半开, 只有一个请求通过 CAS 拿到试探资格, 其余请求继续跳过; 试探成功则关闭, 失败立即重新打开.
+ * 构建故障转移链时只用 isAvailable 检查, 真正访问时才用 allow 占用试探资格. 试探请求没有上报结果(例如被取消)时,
+ * openMillis 后允许下一个请求试探
+ */
+public class CircuitBreaker {
+
+  private final int failureThreshold;
+  private final long openMillis;
+  private final AtomicInteger failures = new AtomicInteger();
+  private final LongAdder opened = new LongAdder();
+  private final LongAdder probes = new LongAdder();
+  private volatile long openUntil;
+  private volatile boolean halfOpen;
+  // 当前试探请求的开始时间, 0 表示没有
+  private final AtomicLong probeStartedAt = new AtomicLong();
+
+  public CircuitBreaker(int failureThreshold, long openMillis) {
+    this.failureThreshold = failureThreshold;
+    this.openMillis = openMillis;
+  }
+
+  /**
+   * 是否可以放入故障转移链, 不占用半开时的试探资格. 真正访问上游之前再调用 {@link #allow()}
+   */
+  public boolean isAvailable() {
+    if (!halfOpen) {
+      return true;
+    }
+    long now = System.currentTimeMillis();
+    if (now < openUntil) {
+      return false;
+    }
+    long started = probeStartedAt.get();
+    return started == 0 || now - started >= openMillis;
+  }
+
+  /**
+   * 半开时通过 CAS 占用试探资格, 只在确实要访问这个上游时调用
+   */
+  public boolean allow() {
+    if (!halfOpen) {
+      return true;
+    }
+    long now = System.currentTimeMillis();
+    if (now < openUntil) {
+      return false;
+    }
+    long started = probeStartedAt.get();
+    if (started != 0 && now - started < openMillis) {
+      return false;
+    }
+    if (probeStartedAt.compareAndSet(started, now)) {
+      probes.increment();
+      return true;
+    }
+    return false;
+  }
+
+  public void onSuccess() {
+    if (halfOpen) {
+      halfOpen = false;
+      probeStartedAt.set(0);
+    }
+    if (failures.get() != 0) {
+      failures.set(0);
+    }
+  }
+
+  public void onFailure() {
+    long now = System.currentTimeMillis();
+    if (halfOpen) {
+      if (now >= openUntil) {
+        // 试探失败
+        open(now);
+      }
+      return;
+    }
+    if (failures.incrementAndGet() >= failureThreshold) {
+      open(now);
+    }
+  }
+
+  private void open(long now) {
+    failures.set(0);
+    openUntil = now + openMillis;
+    halfOpen = true;
+    probeStartedAt.set(0);
+    opened.increment();
+  }
+
+  public String getState() {
+    if (!halfOpen) {
+      return "closed";
+    }
+    return System.currentTimeMillis() < openUntil ? "open" : "half_open";
+  }
+
+  public Map<String, Object> snapshot() {
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("state", getState());
+    map.put("failures", failures.get());
+    map.put("opened", opened.sum());
+    map.put("probes", probes.sum());
+    return map;
+  }
+}
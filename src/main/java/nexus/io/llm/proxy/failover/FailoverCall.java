@@ -0,0 +1,214 @@
+package nexus.io.llm.proxy.failover;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.extern.slf4j.Slf4j;
+import nexus.io.llm.proxy.keys.KeyPool;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+
+/**
+ * 一次非流式请求的故障转移和对冲. 所有尝试都是异步的, 第一个不需要重试的响应作为结果, 其余请求被取消.
+ * 所有上游都失败时, 结果为最后一个上游的响应或异常. 超过 {@link FailoverPolicy#getTimeoutMillis()} 仍没有结果时取消所有请求,
+ * 以 {@link InterruptedIOException} 结束
+ */
+@Slf4j
+public class FailoverCall {
+
+  private final Long id;
+  private final FailoverPolicy policy;
+  private final List<UpstreamTarget> targets;
+  private final byte[] body;
+  private final String contentType;
+
+  private final CompletableFuture<Response> result = new CompletableFuture<>();
+  private final AtomicInteger next = new AtomicInteger();
+  private final AtomicInteger pending = new AtomicInteger();
+  private final List<Call> calls = new ArrayList<>(2);
+  private volatile ScheduledFuture<?> hedge;
+  private volatile ScheduledFuture<?> timeout;
+
+  public FailoverCall(Long id, FailoverPolicy policy, List<UpstreamTarget> targets, byte[] body, String contentType) {
+    this.id = id;
+    this.policy = policy;
+    this.targets = targets;
+    this.body = body;
+    this.contentType = contentType;
+  }
+
+  public CompletableFuture<Response> execute() {
+    long timeoutMillis = policy.getTimeoutMillis();
+    timeout = policy.getScheduler().schedule(() -> cancel(timeoutMillis), timeoutMillis, TimeUnit.MILLISECONDS);
+    launch(targets.get(next.getAndIncrement()), false);
+    UpstreamTarget primary = targets.get(0);
+    if (policy.isHedge(primary.getRoute())) {
+      long delay = policy.hedgeDelayMillis(primary.getRoute());
+      if (delay > 0) {
+        hedge = policy.getScheduler().schedule(this::hedge, delay, TimeUnit.MILLISECONDS);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * 上游返回后交给 callback, call 参数为 null
+   */
+  public void execute(Callback callback) {
+    execute().whenComplete((response, e) -> {
+      if (response == null) {
+        callback.onFailure(null, e instanceof IOException ? (IOException) e : new IOException(e));
+        return;
+      }
+      try {
+        callback.onResponse(null, response);
+      } catch (IOException ex) {
+        callback.onFailure(null, ex);
+      }
+    });
+  }
+
+  /**
+   * 超时或调用方不再等待时取消所有请求
+   */
+  public void cancel(long elapsedMillis) {
+    InterruptedIOException e = new InterruptedIOException("failover timed out after " + elapsedMillis + "ms");
+    if (!result.completeExceptionally(e)) {
+      return;
+    }
+    log.warn("id:{},failover timed out after {}ms", id, elapsedMillis);
+    cancelOthers(null);
+  }
+
+  private void hedge() {
+    if (result.isDone()) {
+      return;
+    }
+    int index = next.getAndIncrement();
+    UpstreamTarget target = index < targets.size() ? targets.get(index) : targets.get(0);
+    policy.hedged.increment();
+    log.info("id:{},hedge to {}", id, target.getRoute().getName());
+    launch(target, true);
+  }
+
+  private void launch(UpstreamTarget target, boolean hedged) {
+    pending.incrementAndGet();
+    if (!policy.claim(target, targets.size() == 1)) {
+      // 半开的试探资格已被其他请求占用, 不计入熔断
+      onDone(null, target, null, new IOException(target.getRoute().getName() + " circuit is open"), false);
+      return;
+    }
+    KeyPool.Lease lease = target.acquire();
+    if (target.hasKeyPool() && lease == null) {
+      onDone(null, target, null, new IOException("all keys of " + target.getRoute().getName() + " are throttled"),
+          false);
+      return;
+    }
+    long start = System.currentTimeMillis();
+    Callback callback = new Callback() {
+      @Override
+      public void onResponse(Call call, Response response) {
+        if (!FailoverPolicy.isRetryable(response.code())) {
+          policy.recordLatency(target.getRoute(), System.currentTimeMillis() - start);
+          if (hedged && !result.isDone()) {
+            policy.hedgeWins.increment();
+          }
+        }
+        onDone(call, target, response, null, true);
+      }
+
+      @Override
+      public void onFailure(Call call, IOException e) {
+        onDone(call, target, null, e, !call.isCanceled());
+      }
+    };
+    if (lease != null) {
+      callback = lease.wrap(callback);
+    }
+    Call call = target.getClient().enqueue(target.getUrl(), target.headers(lease), target.body(body), contentType,
+        callback);
+    synchronized (calls) {
+      calls.add(call);
+    }
+  }
+
+  private void onDone(Call call, UpstreamTarget target, Response response, IOException e, boolean countFailure) {
+    int remaining = pending.decrementAndGet();
+    CircuitBreaker breaker = policy.breaker(target.getRoute());
+    boolean retryable = response == null || FailoverPolicy.isRetryable(response.code());
+    if (breaker != null && countFailure) {
+      if (retryable) {
+        breaker.onFailure();
+      } else {
+        breaker.onSuccess();
+      }
+    }
+
+    if (result.isDone()) {
+      close(response);
+      return;
+    }
+    if (!retryable) {
+      complete(call, response);
+      return;
+    }
+    int index = next.getAndIncrement();
+    if (index < targets.size()) {
+      policy.failovers.increment();
+      log.warn("id:{},{} failed with {}, fail over to {}", id, target.getRoute().getName(),
+          response != null ? response.code() : e.getMessage(), targets.get(index).getRoute().getName());
+      close(response);
+      launch(targets.get(index), false);
+      return;
+    }
+    if (remaining > 0) {
+      // 对冲的另一个请求还没有返回
+      close(response);
+      return;
+    }
+    if (response != null) {
+      complete(call, response);
+    } else if (result.completeExceptionally(e)) {
+      cancelOthers(null);
+    }
+  }
+
+  private void complete(Call winner, Response response) {
+    if (!result.complete(response)) {
+      close(response);
+      return;
+    }
+    cancelOthers(winner);
+  }
+
+  private void cancelOthers(Call winner) {
+    ScheduledFuture<?> scheduled = hedge;
+    if (scheduled != null) {
+      scheduled.cancel(false);
+    }
+    scheduled = timeout;
+    if (scheduled != null) {
+      scheduled.cancel(false);
+    }
+    synchronized (calls) {
+      for (Call call : calls) {
+        if (call != winner) {
+          call.cancel();
+        }
+      }
+    }
+  }
+
+  private static void close(Response response) {
+    if (response != null) {
+      response.close();
+    }
+  }
+}
@@ -0,0 +1,132 @@
+package nexus.io.llm.proxy.failover;
+
+import java.io.IOException;
+import java.util.List;
+
+import lombok.extern.slf4j.Slf4j;
+import nexus.io.llm.proxy.keys.KeyPool;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.sse.EventSource;
+import okhttp3.sse.EventSourceListener;
+
+/**
+ * 流式请求的故障转移. 上游在 onOpen 之前失败(还没有向客户端发送任何字节)时改用下一个上游, 之后的失败交给 listener 处理
+ */
+@Slf4j
+public class FailoverEventSourceListener extends EventSourceListener {
+
+  private final Long id;
+  private final FailoverPolicy policy;
+  private final List<UpstreamTarget> targets;
+  private final int index;
+  private final byte[] body;
+  private final String contentType;
+  private final EventSourceListener listener;
+  private volatile boolean opened;
+
+  private FailoverEventSourceListener(Long id, FailoverPolicy policy, List<UpstreamTarget> targets, int index,
+      byte[] body, String contentType, EventSourceListener listener) {
+    this.id = id;
+    this.policy = policy;
+    this.targets = targets;
+    this.index = index;
+    this.body = body;
+    this.contentType = contentType;
+    this.listener = listener;
+  }
+
+  public static void stream(Long id, FailoverPolicy policy, List<UpstreamTarget> targets, byte[] body,
+      String contentType, EventSourceListener listener) {
+    new FailoverEventSourceListener(id, policy, targets, 0, body, contentType, listener).start();
+  }
+
+  private void start() {
+    UpstreamTarget target = targets.get(index);
+    if (!policy.claim(target, targets.size() == 1)) {
+      // 半开的试探资格已被其他请求占用, 不计入熔断
+      Request request = new Request.Builder().url(target.getUrl()).build();
+      if (index + 1 < targets.size()) {
+        log.warn("id:{},{} circuit is open, fail over to {}", id, target.getRoute().getName(),
+            targets.get(index + 1).getRoute().getName());
+        new FailoverEventSourceListener(id, policy, targets, index + 1, body, contentType, listener).start();
+      } else {
+        listener.onFailure(new NoopEventSource(request),
+            new IOException(target.getRoute().getName() + " circuit is open"), null);
+      }
+      return;
+    }
+    KeyPool.Lease lease = target.acquire();
+    if (target.hasKeyPool() && lease == null) {
+      Request request = new Request.Builder().url(target.getUrl()).build();
+      onFailure(new NoopEventSource(request), null, null);
+      return;
+    }
+    EventSourceListener attempt = lease != null ? lease.wrap(this) : this;
+    target.getClient().stream(target.getUrl(), target.headers(lease), target.body(body), contentType, attempt);
+  }
+
+  @Override
+  public void onOpen(EventSource eventSource, Response response) {
+    opened = true;
+    CircuitBreaker breaker = policy.breaker(targets.get(index).getRoute());
+    if (breaker != null) {
+      breaker.onSuccess();
+    }
+    listener.onOpen(eventSource, response);
+  }
+
+  @Override
+  public void onEvent(EventSource eventSource, String id, String type, String data) {
+    listener.onEvent(eventSource, id, type, data);
+  }
+
+  @Override
+  public void onClosed(EventSource eventSource) {
+    listener.onClosed(eventSource);
+  }
+
+  @Override
+  public void onFailure(EventSource eventSource, Throwable t, Response response) {
+    UpstreamTarget target = targets.get(index);
+    boolean retryable = response == null || FailoverPolicy.isRetryable(response.code());
+    if (!opened && retryable) {
+      CircuitBreaker breaker = policy.breaker(target.getRoute());
+      if (breaker != null) {
+        breaker.onFailure();
+      }
+      if (index + 1 < targets.size()) {
+        policy.failovers.increment();
+        log.warn("id:{},{} stream failed with {}, fail over to {}", id, target.getRoute().getName(),
+            response != null ? response.code() : (t != null ? t.getMessage() : "throttled"),
+            targets.get(index + 1).getRoute().getName());
+        if (response != null) {
+          response.close();
+        }
+        new FailoverEventSourceListener(id, policy, targets, index + 1, body, contentType, listener).start();
+        return;
+      }
+    }
+    listener.onFailure(eventSource, t, response);
+  }
+
+  /**
+   * 没有可用密钥时没有真正的 EventSource
+   */
+  private static class NoopEventSource implements EventSource {
+    private final Request request;
+
+    private NoopEventSource(Request request) {
+      this.request = request;
+    }
+
+    @Override
+    public Request request() {
+      return request;
+    }
+
+    @Override
+    public void cancel() {
+    }
+  }
+}
@@ -0,0 +1,231 @@
+package nexus.io.llm.proxy.failover;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.extern.slf4j.Slf4j;
+import nexus.io.llm.proxy.client.UpstreamClientRegistry;
+import nexus.io.llm.proxy.keys.KeyPool;
+import nexus.io.llm.proxy.keys.KeyPoolRegistry;
+import nexus.io.llm.proxy.route.ProviderRoute;
+import nexus.io.llm.proxy.route.ProviderRouteRegistry;
+import nexus.io.llm.proxy.route.StreamMode;
+import nexus.io.tio.http.common.HttpRequest;
+import nexus.io.tio.utils.environment.EnvUtils;
+
+/**
+ * 故障转移和对冲请求
+ *
+ * <pre>
+ * llm.proxy.route.openai.fallback=openrouter
+ * llm.proxy.route.google.fallback=vertexai
+ * llm.proxy.route.openai.fallback.openrouter.model.prefix=openai/
+ * llm.proxy.failover.timeout=600
+ * llm.proxy.breaker.failures=5
+ * llm.proxy.breaker.open.ms=30000
+ * llm.proxy.hedge.enabled=false
+ * llm.proxy.route.openai.hedge=true
+ * llm.proxy.hedge.percentile=95
+ * llm.proxy.hedge.min.samples=20
+ * </pre>
+ *
+ * 上游返回 5xx, 429 或网络错误时按顺序尝试 fallback 中的路由, 请求路径中 prefix 之后的部分和请求体保持不变. 备用路由使用自己的密钥池,
+ * 没有密钥池时转发客户端的请求头, 所以通常需要为备用路由配置 keys. 客户端不能使用备用路由的密钥池时跳过该路由.
+ * 备用路由的模型名不同时用 {@link ModelRewrite} 改写. 非流式请求的整个故障转移链最多等待 failover.timeout 秒.
+ * <p>
+ * 开启对冲时, 非流式请求超过该路由最近耗时的 percentile 分位数仍未返回, 就向下一个上游(没有时向同一个上游)再发一次, 取先返回的结果.
+ * 流式请求只在向客户端发送响应头之前转移
+ */
+@Slf4j
+public class FailoverPolicy {
+
+  private final UpstreamClientRegistry upstreamClients;
+  private final KeyPoolRegistry keyPools;
+  private final Map<String, List<ProviderRoute>> fallbacks = new HashMap<>();
+  // key 为 主路由>备用路由
+  private final Map<String, ModelRewrite> rewrites = new HashMap<>();
+  private final long timeoutMillis;
+  private final Map<String, Boolean> hedges = new HashMap<>();
+  private final Map<String, CircuitBreaker> breakers = new LinkedHashMap<>();
+  private final Map<String, LatencyTracker> latencies = new HashMap<>();
+  private final ScheduledExecutorService scheduler;
+
+  final LongAdder failovers = new LongAdder();
+  final LongAdder hedged = new LongAdder();
+  final LongAdder hedgeWins = new LongAdder();
+
+  public FailoverPolicy(ProviderRouteRegistry routeRegistry, UpstreamClientRegistry upstreamClients,
+      KeyPoolRegistry keyPools) {
+    this.upstreamClients = upstreamClients;
+    this.keyPools = keyPools;
+    int failureThreshold = EnvUtils.getInt("llm.proxy.breaker.failures", 5);
+    long openMillis = EnvUtils.getLong("llm.proxy.breaker.open.ms", 30000L);
+    boolean hedge = EnvUtils.getBoolean("llm.proxy.hedge.enabled", false);
+    double percentile = Double.parseDouble(EnvUtils.getStr("llm.proxy.hedge.percentile", "95"));
+    int minSamples = EnvUtils.getInt("llm.proxy.hedge.min.samples", 20);
+    this.timeoutMillis = Math.max(1L, EnvUtils.getLong("llm.proxy.failover.timeout", 600L)) * 1000;
+
+    Map<String, ProviderRoute> byName = new HashMap<>();
+    for (ProviderRoute route : routeRegistry.getRoutes()) {
+      byName.put(route.getName(), route);
+    }
+    for (ProviderRoute route : routeRegistry.getRoutes()) {
+      String name = route.getName();
+      breakers.put(name, new CircuitBreaker(failureThreshold, openMillis));
+      latencies.put(name, new LatencyTracker(percentile, minSamples));
+      hedges.put(name, EnvUtils.getBoolean("llm.proxy.route." + name + ".hedge", hedge));
+      String value = EnvUtils.getStr("llm.proxy.route." + name + ".fallback");
+      if (value == null) {
+        continue;
+      }
+      List<ProviderRoute> chain = new ArrayList<>();
+      for (String fallback : value.split(",")) {
+        fallback = fallback.trim();
+        if (fallback.isEmpty()) {
+          continue;
+        }
+        ProviderRoute target = byName.get(fallback);
+        if (target == null) {
+          throw new IllegalArgumentException("unknown fallback route " + fallback + " for " + name);
+        }
+        chain.add(target);
+        ModelRewrite rewrite = ModelRewrite.fromEnv(name, fallback);
+        if (rewrite != null) {
+          rewrites.put(name + ">" + fallback, rewrite);
+        }
+      }
+      if (!chain.isEmpty()) {
+        fallbacks.put(name, chain);
+        log.info("route {} falls back to {}", name, chain);
+      }
+    }
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "llm-proxy-hedge");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * 该路由既没有备用上游也不对冲时返回 null, 调用方直接访问主上游
+   *
+   * @param primary 已经按主路由构建好的上游
+   */
+  public List<UpstreamTarget> targets(UpstreamTarget primary, String requestURI, boolean stream,
+      HttpRequest httpRequest) {
+    ProviderRoute route = primary.getRoute();
+    List<ProviderRoute> chain = fallbacks.get(route.getName());
+    if (chain == null && (stream || !isHedge(route))) {
+      return null;
+    }
+    if (chain == null) {
+      return Collections.singletonList(primary);
+    }
+
+    List<UpstreamTarget> targets = new ArrayList<>(chain.size() + 1);
+    // 只检查状态, 备用上游只在主上游失败时才用到, 到时再占用试探资格
+    if (breaker(route).isAvailable()) {
+      targets.add(primary);
+    }
+    String path = requestURI.substring(route.getPrefix().length());
+    // 和主上游相同, 可能已经去掉了用量统计无法解压的方式
+    String acceptEncoding = stream ? null : primary.getHeaders().get("accept-encoding");
+    for (ProviderRoute fallback : chain) {
+      if (!breaker(fallback).isAvailable()) {
+        continue;
+      }
+      KeyPool keyPool = keyPools != null ? keyPools.get(fallback) : null;
+      if (keyPool != null && !keyPools.authorize(fallback, httpRequest)) {
+        // 不能借备用路由绕过密钥池的客户端鉴权
+        continue;
+      }
+      ModelRewrite rewrite = rewrites.get(route.getName() + ">" + fallback.getName());
+      String fallbackPath = rewrite != null && fallback.getStreamMode() == StreamMode.PATH ? rewrite.path(path) : path;
+      String url = fallback.upstreamUrlForPath(fallbackPath, stream, httpRequest, keyPool == null);
+      Map<String, String> headers = fallback.forwardHeaders(httpRequest);
+      if (acceptEncoding != null) {
+        headers.put("accept-encoding", acceptEncoding);
+      }
+      targets.add(new UpstreamTarget(fallback, url, headers, upstreamClients.get(fallback), keyPool, rewrite));
+    }
+    if (targets.isEmpty()) {
+      // 全部熔断时仍然尝试主上游
+      targets.add(primary);
+    }
+    return targets;
+  }
+
+  public boolean isHedge(ProviderRoute route) {
+    Boolean hedge = hedges.get(route.getName());
+    return hedge != null && hedge;
+  }
+
+  /**
+   * @return 样本不足时返回 -1
+   */
+  public long hedgeDelayMillis(ProviderRoute route) {
+    LatencyTracker tracker = latencies.get(route.getName());
+    return tracker != null ? tracker.getPercentile() : -1;
+  }
+
+  /**
+   * 访问上游之前调用, 半开时占用试探资格
+   *
+   * @param only 没有其他可选的上游, 总是允许
+   */
+  boolean claim(UpstreamTarget target, boolean only) {
+    CircuitBreaker breaker = breaker(target.getRoute());
+    return breaker == null || breaker.allow() || only;
+  }
+
+  public CircuitBreaker breaker(ProviderRoute route) {
+    return breakers.get(route.getName());
+  }
+
+  void recordLatency(ProviderRoute route, long millis) {
+    LatencyTracker tracker = latencies.get(route.getName());
+    if (tracker != null) {
+      tracker.record(millis);
+    }
+  }
+
+  /**
+   * 非流式请求等待整个故障转移链的最长时间
+   */
+  public long getTimeoutMillis() {
+    return timeoutMillis;
+  }
+
+  ScheduledExecutorService getScheduler() {
+    return scheduler;
+  }
+
+  /**
+   * 5xx 和 429 可以换一个上游重试
+   */
+  public static boolean isRetryable(int code) {
+    return code == 429 || code >= 500;
+  }
+
+  public Map<String, Object> snapshot() {
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("failovers", failovers.sum());
+    map.put("hedged", hedged.sum());
+    map.put("hedgeWins", hedgeWins.sum());
+    Map<String, Object> routes = new LinkedHashMap<>();
+    for (Map.Entry<String, CircuitBreaker> e : breakers.entrySet()) {
+      Map<String, Object> route = e.getValue().snapshot();
+      route.put("hedgeDelayMs", latencies.get(e.getKey()).getPercentile());
+      routes.put(e.getKey(), route);
+    }
+    map.put("routes", routes);
+    return map;
+  }
+}
@@ -0,0 +1,54 @@
+package nexus.io.llm.proxy.failover;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 保存最近 SIZE 次成功请求的耗时, 每记录 REFRESH 次重新计算一次分位数, 读取分位数不需要排序
+ */
+public class LatencyTracker {
+
+  private static final int SIZE = 1024;
+  private static final int REFRESH = 64;
+
+  private final AtomicLongArray samples = new AtomicLongArray(SIZE);
+  private final AtomicInteger count = new AtomicInteger();
+  private final double percentile;
+  private final int minSamples;
+  private volatile long cached = -1;
+
+  /**
+   * @param percentile 0 - 100
+   */
+  public LatencyTracker(double percentile, int minSamples) {
+    this.percentile = percentile;
+    this.minSamples = minSamples;
+  }
+
+  public void record(long millis) {
+    int n = count.getAndIncrement();
+    samples.set(n & (SIZE - 1), millis);
+    int recorded = n + 1;
+    if (recorded == minSamples || (recorded > minSamples && recorded % REFRESH == 0)) {
+      refresh(Math.min(recorded, SIZE));
+    }
+  }
+
+  private void refresh(int size) {
+    long[] copy = new long[size];
+    for (int i = 0; i < size; i++) {
+      copy[i] = samples.get(i);
+    }
+    Arrays.sort(copy);
+    int index = (int) Math.min(size - 1, Math.ceil(percentile / 100 * size) - 1);
+    cached = copy[Math.max(0, index)];
+  }
+
+  /**
+   * @return 样本不足时返回 -1
+   */
+  public long getPercentile() {
+    return cached;
+  }
+}
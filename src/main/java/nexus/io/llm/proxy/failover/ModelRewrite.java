@@ -0,0 +1,107 @@
+package nexus.io.llm.proxy.failover;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONObject;
+
+import lombok.extern.slf4j.Slf4j;
+import nexus.io.tio.utils.environment.EnvUtils;
+
+/**
+ * 转移到备用路由时改写模型名, 按 主路由 -> 备用路由 配置
+ *
+ * <pre>
+ * llm.proxy.route.openai.fallback.openrouter.model.prefix=openai/
+ * llm.proxy.route.openai.fallback.openrouter.model.map=gpt-4o=openai/gpt-4o,o3=openai/o3-2025-04-16
+ * </pre>
+ *
+ * map 中的模型优先, 没有时加上 prefix. 请求体中的 model 字段和路径中 /模型:动作 形式的模型名(Gemini)都会改写
+ */
+@Slf4j
+public class ModelRewrite {
+
+  private final String prefix;
+  private final Map<String, String> models;
+
+  public ModelRewrite(String prefix, Map<String, String> models) {
+    this.prefix = prefix;
+    this.models = models;
+  }
+
+  /**
+   * 没有配置时返回 null
+   */
+  public static ModelRewrite fromEnv(String route, String fallback) {
+    String key = "llm.proxy.route." + route + ".fallback." + fallback + ".model.";
+    String prefix = EnvUtils.getStr(key + "prefix");
+    String map = EnvUtils.getStr(key + "map");
+    if (prefix == null && map == null) {
+      return null;
+    }
+    Map<String, String> models = new HashMap<>();
+    if (map != null) {
+      for (String item : map.split(",")) {
+        int eq = item.indexOf('=');
+        if (eq > 0) {
+          models.put(item.substring(0, eq).trim(), item.substring(eq + 1).trim());
+        }
+      }
+    }
+    log.info("route {} falls back to {} with model prefix:{}, map:{}", route, fallback, prefix, models);
+    return new ModelRewrite(prefix, models);
+  }
+
+  public String apply(String model) {
+    if (model == null) {
+      return null;
+    }
+    String mapped = models.get(model);
+    if (mapped != null) {
+      return mapped;
+    }
+    if (prefix != null && !model.startsWith(prefix)) {
+      return prefix + model;
+    }
+    return model;
+  }
+
+  /**
+   * 没有 model 字段或不是 JSON 时返回原请求体
+   */
+  public byte[] body(byte[] body) {
+    if (body == null || body.length == 0) {
+      return body;
+    }
+    JSONObject request;
+    try {
+      request = JSON.parseObject(body);
+    } catch (Exception e) {
+      return body;
+    }
+    String model = request != null ? request.getString("model") : null;
+    if (model == null) {
+      return body;
+    }
+    String rewritten = apply(model);
+    if (rewritten.equals(model)) {
+      return body;
+    }
+    request.put("model", rewritten);
+    return JSON.toJSONBytes(request);
+  }
+
+  /**
+   * 改写 /gemini-2.5-flash:generateContent 形式的路径
+   */
+  public String path(String path) {
+    int colon = path.lastIndexOf(':');
+    int slash = path.lastIndexOf('/', colon);
+    if (colon < 0 || slash < 0) {
+      return path;
+    }
+    String model = path.substring(slash + 1, colon);
+    return path.substring(0, slash + 1) + apply(model) + path.substring(colon);
+  }
+}
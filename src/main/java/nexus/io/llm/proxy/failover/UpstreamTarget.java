@@ -0,0 +1,92 @@
+package nexus.io.llm.proxy.failover;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import nexus.io.llm.proxy.client.UpstreamClient;
+import nexus.io.llm.proxy.keys.KeyPool;
+import nexus.io.llm.proxy.route.ProviderRoute;
+
+/**
+ * 故障转移链中的一个上游: 路由, 完整的上游地址, 请求头, 客户端, 可选的密钥池和模型名改写
+ */
+public class UpstreamTarget {
+
+  private final ProviderRoute route;
+  private final String url;
+  private final Map<String, String> headers;
+  private final UpstreamClient client;
+  private final KeyPool keyPool;
+  private final ModelRewrite rewrite;
+  private volatile byte[] rewrittenBody;
+
+  public UpstreamTarget(ProviderRoute route, String url, Map<String, String> headers, UpstreamClient client,
+      KeyPool keyPool) {
+    this(route, url, headers, client, keyPool, null);
+  }
+
+  /**
+   * @param rewrite 备用路由的模型名改写, null 表示原样发送请求体
+   */
+  public UpstreamTarget(ProviderRoute route, String url, Map<String, String> headers, UpstreamClient client,
+      KeyPool keyPool, ModelRewrite rewrite) {
+    this.route = route;
+    this.url = url;
+    this.headers = headers;
+    this.client = client;
+    this.keyPool = keyPool;
+    this.rewrite = rewrite;
+  }
+
+  /**
+   * 发给这个上游的请求体, 改写只做一次, 重试和对冲复用
+   */
+  public byte[] body(byte[] body) {
+    if (rewrite == null) {
+      return body;
+    }
+    byte[] rewritten = rewrittenBody;
+    if (rewritten == null) {
+      rewrittenBody = rewritten = rewrite.body(body);
+    }
+    return rewritten;
+  }
+
+  public boolean hasKeyPool() {
+    return keyPool != null;
+  }
+
+  /**
+   * @return 没有密钥池或所有密钥都在冷却中时返回 null
+   */
+  public KeyPool.Lease acquire() {
+    return keyPool != null ? keyPool.acquire() : null;
+  }
+
+  /**
+   * 每次请求一份, 对冲请求可能同时使用同一个上游
+   */
+  public Map<String, String> headers(KeyPool.Lease lease) {
+    Map<String, String> copy = new HashMap<>(headers);
+    if (lease != null) {
+      lease.apply(copy);
+    }
+    return copy;
+  }
+
+  Map<String, String> getHeaders() {
+    return headers;
+  }
+
+  public ProviderRoute getRoute() {
+    return route;
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  public UpstreamClient getClient() {
+    return client;
+  }
+}
@@ -0,0 +1,38 @@
+package nexus.io.llm.proxy.handler;
+
+import lombok.extern.slf4j.Slf4j;
+import nexus.io.llm.proxy.keys.ClientAllowList;
+import nexus.io.llm.proxy.limit.RateLimiter;
+import nexus.io.model.body.RespBodyVo;
+import nexus.io.tio.boot.http.TioRequestContext;
+import nexus.io.tio.http.common.HttpRequest;
+import nexus.io.tio.http.common.HttpResponse;
+import nexus.io.tio.http.common.utils.HttpIpUtils;
+import nexus.io.tio.http.server.handler.HttpRequestHandler;
+
+/**
+ * 运行状态和 /metrics 与代理共用端口, 只允许携带管理令牌或来自允许 IP 的请求, 否则返回 401
+ */
+@Slf4j
+public class AdminHandler implements HttpRequestHandler {
+
+  private final ClientAllowList allowList;
+  private final HttpRequestHandler handler;
+
+  public AdminHandler(ClientAllowList allowList, HttpRequestHandler handler) {
+    this.allowList = allowList;
+    this.handler = handler;
+  }
+
+  @Override
+  public HttpResponse handle(HttpRequest httpRequest) throws Exception {
+    String realIp = HttpIpUtils.getRealIp(httpRequest);
+    if (allowList.allows(RateLimiter.apiKey(httpRequest), realIp)) {
+      return handler.handle(httpRequest);
+    }
+    log.warn("id:{},from:{},admin request rejected:{}", httpRequest.getId(), realIp, httpRequest.getRequestURI());
+    HttpResponse httpResponse = TioRequestContext.getResponse();
+    httpResponse.setStatus(401);
+    return httpResponse.setJson(RespBodyVo.fail("unauthorized"));
+  }
+}
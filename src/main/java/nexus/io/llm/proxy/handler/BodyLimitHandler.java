@@ -0,0 +1,67 @@
+package nexus.io.llm.proxy.handler;
+
+import lombok.extern.slf4j.Slf4j;
+import nexus.io.llm.proxy.limit.BodyLimits;
+import nexus.io.llm.proxy.route.ProviderRoute;
+import nexus.io.llm.proxy.route.ProviderRouteRegistry;
+import nexus.io.model.body.RespBodyVo;
+import nexus.io.tio.boot.http.TioRequestContext;
+import nexus.io.tio.http.common.HttpRequest;
+import nexus.io.tio.http.common.HttpResponse;
+import nexus.io.tio.http.common.utils.HttpIpUtils;
+import nexus.io.tio.http.server.handler.HttpRequestHandler;
+import nexus.io.tio.http.server.util.CORSUtils;
+
+/**
+ * 在限流和转发之前检查请求体大小, 超过上限时直接返回 413
+ */
+@Slf4j
+public class BodyLimitHandler implements HttpRequestHandler {
+
+  private final BodyLimits bodyLimits;
+  private final ProviderRouteRegistry routeRegistry;
+  private final String routeName;
+  private final HttpRequestHandler handler;
+
+  /**
+   * 路由名称按请求路径从 routeRegistry 中查找
+   */
+  public BodyLimitHandler(BodyLimits bodyLimits, ProviderRouteRegistry routeRegistry, HttpRequestHandler handler) {
+    this(bodyLimits, routeRegistry, null, handler);
+  }
+
+  /**
+   * 使用固定的路由名称
+   */
+  public BodyLimitHandler(BodyLimits bodyLimits, String routeName, HttpRequestHandler handler) {
+    this(bodyLimits, null, routeName, handler);
+  }
+
+  private BodyLimitHandler(BodyLimits bodyLimits, ProviderRouteRegistry routeRegistry, String routeName,
+      HttpRequestHandler handler) {
+    this.bodyLimits = bodyLimits;
+    this.routeRegistry = routeRegistry;
+    this.routeName = routeName;
+    this.handler = handler;
+  }
+
+  @Override
+  public HttpResponse handle(HttpRequest httpRequest) throws Exception {
+    String route = routeName;
+    if (route == null) {
+      ProviderRoute matched = routeRegistry.match(httpRequest.getRequestURI());
+      route = matched != null ? matched.getName() : null;
+    }
+    long max = bodyLimits.exceeded(route, httpRequest);
+    if (max == 0) {
+      return handler.handle(httpRequest);
+    }
+
+    log.warn("id:{},from:{},route:{},body larger than {}", httpRequest.getId(), HttpIpUtils.getRealIp(httpRequest),
+        route, max);
+    HttpResponse httpResponse = TioRequestContext.getResponse();
+    CORSUtils.enableCORS(httpResponse);
+    httpResponse.setStatus(413);
+    return httpResponse.setJson(RespBodyVo.fail("request body too large, max " + max + " bytes"));
+  }
+}
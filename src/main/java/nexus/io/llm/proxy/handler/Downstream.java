@@ -1,11 +1,17 @@
 package nexus.io.llm.proxy.handler;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import lombok.extern.slf4j.Slf4j;
+import nexus.io.llm.proxy.client.LLMProxyClient;
+import nexus.io.llm.proxy.client.ProxyExecutors;
 import nexus.io.llm.proxy.mode.GoogleWsConnectParam;
 import nexus.io.tio.consts.TioConst;
 import nexus.io.tio.core.ChannelContext;
@@ -21,80 +27,97 @@ import nexus.io.tio.websocket.client.event.MessageEvent;
 import nexus.io.tio.websocket.client.event.OpenEvent;
 import nexus.io.tio.websocket.common.WebSocketResponse;
 
+/**
+ * 到 Gemini Live 的下游连接. connect 立即返回, 在任务线程中建立连接, 打开后通过回调切换状态, 不阻塞 tio 的处理线程.
+ * <p>
+ * 打开之前收到的客户端帧按顺序缓存, 最多 llm.proxy.live.pending.frames 帧, llm.proxy.live.pending.bytes 字节,
+ * 超出时关闭会话; 打开后先按顺序发出缓存的帧. 超过 llm.proxy.live.connect.timeout 毫秒没有打开时关闭会话
+ * <p>
+ * 两个方向各有一个 {@link LiveFrameQueue}, 对端持续跟不上时关闭会话; 发往下游的音频帧可以合并
+ * <p>
+ * {@link DownstreamPool} 预先建立的连接还没有上游, 取出后 bind 到客户端连接
+ * <p>
+ * 不论哪一端先关闭, 都经过 close 或 closed, 会话结束的回调只调用一次
+ */
 @Slf4j
 public class Downstream {
-  private final String uri;
-  private final ChannelContext upstreamCtx;
 
-  private WebsocketClient client;
-  private WebSocket ws;
+  private static final long CONNECT_TIMEOUT = EnvUtils.getLong("llm.proxy.live.connect.timeout", 60000L);
+  private static final int PENDING_FRAMES = EnvUtils.getInt("llm.proxy.live.pending.frames", 256);
+  private static final long PENDING_BYTES = EnvUtils.getLong("llm.proxy.live.pending.bytes", 1024L * 1024);
+
+  private static final ExecutorService connector = ProxyExecutors.newTaskExecutor("live-connect");
+  static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "llm-proxy-live-timer");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private static final int CONNECTING = 0;
+  private static final int OPEN = 1;
+  private static final int CLOSED = 2;
+
+  private final String uri;
+  private volatile ChannelContext upstreamCtx;
   private final GoogleWsConnectParam googleWsConnectParam;
+  private final LiveFrameQueue toDownstream;
+  private final LiveFrameQueue toUpstream;
 
-  private final CountDownLatch openLatch = new CountDownLatch(1);
-  private volatile Throwable connectError;
+  private WebsocketClient client;
+  private volatile WebSocket ws;
+  private volatile int state = CONNECTING;
+  // onOpen 可能早于 connect() 返回, 两者都完成后才切换到 OPEN
+  private boolean openEvent;
+  // 只在上游的处理线程中访问, 用于日志采样
+  private long frames;
+  // 收到下游第一条消息时调用一次
+  private volatile Runnable onFirstMessage;
+  // 会话结束时调用一次
+  private volatile Runnable onClosed;
+  private final AtomicBoolean ended = new AtomicBoolean();
 
   public Downstream(String uri, GoogleWsConnectParam googleWsConnectParam, ChannelContext upstreamCtx) {
+    this(uri, googleWsConnectParam);
+    bind(upstreamCtx);
+  }
+
+  /**
+   * 还没有上游的连接, 用于预热
+   */
+  Downstream(String uri, GoogleWsConnectParam googleWsConnectParam) {
     this.uri = uri;
     this.googleWsConnectParam = googleWsConnectParam;
-    this.upstreamCtx = upstreamCtx;
+    String name = "live:" + System.identityHashCode(this);
+    this.toDownstream = new LiveFrameQueue(name + ">gemini", this::writeDownstream, true,
+        () -> fail("下游跟不上或发送失败: " + uri, null));
+    this.toUpstream = new LiveFrameQueue(name + ">client", this::writeUpstream, false,
+        () -> fail("客户端跟不上或已断开", null));
   }
 
-  void connect(long timeout, TimeUnit unit) throws Exception {
-    java.util.function.Consumer<OpenEvent> onOpen = e -> {
-      log.info("下游连接已建立: {}", uri);
-      openLatch.countDown();
-    };
+  /**
+   * 绑定上游连接, 开始向客户端发送. 绑定之前下游发来的消息先缓存
+   *
+   * @return false 表示下游已关闭
+   */
+  synchronized boolean bind(ChannelContext upstreamCtx) {
+    if (state == CLOSED) {
+      return false;
+    }
+    this.upstreamCtx = upstreamCtx;
+    toUpstream.start();
+    return true;
+  }
 
-    java.util.function.Consumer<MessageEvent> onMessage = e -> {
-      try {
-        if (e == null || e.data == null) {
-          return;
-        }
-        String text = e.data.getWsBodyText();
-        if (text != null) {
-          WebSocketResponse resp = WebSocketResponse.fromText(text, TioConst.UTF_8);
-          Tio.send(upstreamCtx, resp);
-        } else {
-          byte[] bs = e.data.getBody();
-          if (bs != null) {
-            WebSocketResponse resp = WebSocketResponse.fromBytes(bs);
-            Tio.send(upstreamCtx, resp);
-          }
-        }
-      } catch (Exception ex) {
-        log.error("下游消息转发到上游失败", ex);
-        Tio.remove(upstreamCtx, "下游消息转发失败: " + ex.getMessage());
-      }
-    };
-
-    java.util.function.Consumer<CloseEvent> onClose = e -> {
-      log.info("下游连接关闭: code={}, reason={}, clean={}", e.code, e.reason, e.wasClean);
-      connectError = new RuntimeException("closed before open: code=" + e.code + ", reason=" + e.reason);
-      openLatch.countDown();
-      Tio.remove(upstreamCtx, "下游连接关闭: " + e.reason);
-    };
-
-    java.util.function.Consumer<ErrorEvent> onError = e -> {
-      String msg = (e != null ? e.msg : "unknown");
-      log.error("下游错误: {}", msg);
-      connectError = new RuntimeException("error before open: " + msg);
-      openLatch.countDown();
-      Tio.remove(upstreamCtx, "下游错误: " + msg);
-    };
-
-    java.util.function.Consumer<Throwable> onThrows = t -> {
-      log.error("下游异常", t);
-      connectError = t;
-      openLatch.countDown();
-      Tio.remove(upstreamCtx, "下游异常: " + t.getMessage());
-    };
-
-    WebsocketClientConfig config = new WebsocketClientConfig(onOpen, onMessage, onClose, onError, onThrows);
+  /**
+   * 异步连接, 失败或超时时关闭上游连接
+   */
+  void connect() {
+    WebsocketClientConfig config = new WebsocketClientConfig(this::onOpen, this::onMessage, this::onClose,
+        this::onError, this::onThrows);
 
     String proxyHost = EnvUtils.getStr("http.proxyHost");
-    int proxyPort = EnvUtils.getInt("http.proxyPort");
     if (proxyHost != null) {
-      config.setProxyInfo(new ProxyInfo(proxyHost, proxyPort));
+      config.setProxyInfo(new ProxyInfo(proxyHost, EnvUtils.getInt("http.proxyPort", LLMProxyClient.DEFAULT_PROXY_PORT)));
     }
 
     Map<String, String> headers = new HashMap<>();
@@ -109,45 +132,243 @@ public class Downstream {
     }
 
     client = WebsocketClient.create(uri, headers, config);
-    ws = client.connect();
+    timer.schedule(() -> {
+      if (state == CONNECTING) {
+        fail("连接下游超时: " + uri, null);
+      }
+    }, CONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+    connector.execute(() -> {
+      try {
+        connected(client.connect());
+      } catch (Exception e) {
+        fail("连接下游失败: " + uri, e);
+      }
+    });
+  }
 
-    boolean finished = openLatch.await(timeout, unit);
-    if (!finished) {
-      throw new RuntimeException("连接下游超时: " + uri);
+  void connected(WebSocket socket) {
+    synchronized (this) {
+      ws = socket;
+      if (state != CLOSED) {
+        tryOpen();
+        return;
+      }
     }
-    if (connectError != null) {
-      throw new RuntimeException("连接下游失败: " + uri, connectError);
+    socket.close();
+  }
+
+  void onOpen(OpenEvent e) {
+    log.info("下游连接已建立: {}", uri);
+    synchronized (this) {
+      openEvent = true;
+      tryOpen();
     }
   }
 
-  boolean isOpen() {
-    return ws != null;
+  /**
+   * 在锁内调用, 缓存的帧已经在发送队列中, 开始发送后切换到 OPEN
+   */
+  private void tryOpen() {
+    if (!openEvent || ws == null || state != CONNECTING) {
+      return;
+    }
+    toDownstream.start();
+    state = OPEN;
+  }
+
+  /**
+   * 在下游的读取线程中调用, 只入队不阻塞. 客户端持续跟不上或积压超过上限时关闭会话
+   */
+  private void onMessage(MessageEvent e) {
+    if (e == null || e.data == null) {
+      return;
+    }
+    Runnable first = onFirstMessage;
+    if (first != null) {
+      onFirstMessage = null;
+      first.run();
+    }
+    String text = e.data.getWsBodyText();
+    if (text != null) {
+      toUpstream.offer(WebSocketResponse.fromText(text, TioConst.UTF_8), text.length());
+    } else {
+      byte[] bs = e.data.getBody();
+      if (bs != null) {
+        toUpstream.offer(WebSocketResponse.fromBytes(bs), bs.length);
+      }
+    }
+  }
+
+  private boolean writeUpstream(Object frame) {
+    // 在队列的发送线程中阻塞到写出, 队列的长度反映客户端的实际速度
+    return Tio.bSend(upstreamCtx, (WebSocketResponse) frame);
+  }
+
+  private boolean writeDownstream(Object frame) {
+    WebSocket socket = ws;
+    if (socket == null) {
+      return false;
+    }
+    if (frame instanceof String) {
+      socket.send((String) frame);
+    } else {
+      socket.send((byte[]) frame);
+    }
+    return true;
+  }
+
+  private void onClose(CloseEvent e) {
+    log.info("下游连接关闭: code={}, reason={}, clean={}", e.code, e.reason, e.wasClean);
+    closed();
+    removeUpstream("下游连接关闭: " + e.reason);
+  }
+
+  private void onError(ErrorEvent e) {
+    String msg = (e != null ? e.msg : "unknown");
+    log.error("下游错误: {}", msg);
+    closed();
+    removeUpstream("下游错误: " + msg);
+  }
+
+  private void onThrows(Throwable t) {
+    log.error("下游异常", t);
+    closed();
+    removeUpstream("下游异常: " + t.getMessage());
+  }
+
+  private void fail(String message, Throwable t) {
+    if (t != null) {
+      log.error("{}", message, t);
+    } else {
+      log.error("{}", message);
+    }
+    close();
+    removeUpstream(message);
+  }
+
+  private void removeUpstream(String reason) {
+    ChannelContext ctx = upstreamCtx;
+    if (ctx != null) {
+      Tio.remove(ctx, reason);
+    }
+  }
+
+  boolean isClosed() {
+    return state == CLOSED;
   }
 
-  void sendText(String text) {
-    WebSocket w = this.ws;
-    if (w != null) {
-      w.send(text);
+  private void closed() {
+    synchronized (this) {
+      state = CLOSED;
     }
+    toDownstream.close();
+    toUpstream.close();
+    ended();
+  }
+
+  /**
+   * 设置回调前已经关闭时立即调用
+   */
+  void onClosed(Runnable callback) {
+    this.onClosed = callback;
+    if (state == CLOSED) {
+      ended();
+    }
+  }
+
+  private void ended() {
+    Runnable callback = onClosed;
+    if (callback != null && ended.compareAndSet(false, true)) {
+      callback.run();
+    }
+  }
+
+  boolean isOpen() {
+    return state == OPEN;
+  }
+
+  /**
+   * Gemini 在密钥和 setup 有效时才会回复消息, 用来判断会话已成功建立
+   */
+  void onFirstMessage(Runnable callback) {
+    this.onFirstMessage = callback;
+  }
+
+  long nextFrame() {
+    return ++frames;
   }
 
-  void sendBytes(byte[] bytes) {
-    WebSocket w = this.ws;
-    if (w != null) {
-      w.send(bytes);
+  long getFrames() {
+    return frames;
+  }
+
+  /**
+   * @return false 表示会话已关闭
+   */
+  boolean sendText(String text) {
+    return send(text, text.length());
+  }
+
+  boolean sendBytes(byte[] bytes) {
+    return send(bytes, bytes.length);
+  }
+
+  /**
+   * 在上游的读取线程中调用, 只入队不阻塞. 下游持续跟不上或积压超过上限时关闭会话
+   */
+  private boolean send(Object frame, int size) {
+    boolean overflow = false;
+    if (state != OPEN) {
+      synchronized (this) {
+        if (state == CLOSED) {
+          return false;
+        }
+        // 切换到 OPEN 之前缓存的帧已经在队列中, 之后入队的帧排在它们后面
+        if (state == CONNECTING) {
+          if (toDownstream.buffer(frame, size, PENDING_FRAMES, PENDING_BYTES)) {
+            return true;
+          }
+          overflow = true;
+        }
+      }
+      if (overflow) {
+        fail("下游未就绪, 缓存已满: frames=" + PENDING_FRAMES + ", bytes=" + PENDING_BYTES, null);
+        return false;
+      }
     }
+    return toDownstream.offer(frame, size);
   }
 
   void close() {
+    WebSocket socket;
+    synchronized (this) {
+      state = CLOSED;
+      socket = ws;
+      ws = null;
+      client = null;
+    }
+    toDownstream.close();
+    toUpstream.close();
     try {
-      if (ws != null) {
-        ws.close();
+      if (socket != null) {
+        socket.close();
       }
     } catch (Exception e) {
       log.warn("关闭下游 ws 失败", e);
-    } finally {
-      ws = null;
-      client = null;
     }
+    ended();
+  }
+
+  /**
+   * 会话状态和两个方向的队列深度, 丢弃数
+   */
+  Map<String, Object> snapshot() {
+    Map<String, Object> map = new LinkedHashMap<>();
+    int s = state;
+    map.put("state", s == CONNECTING ? "connecting" : s == OPEN ? "open" : "closed");
+    map.put("bound", upstreamCtx != null);
+    map.put("toGemini", toDownstream.snapshot());
+    map.put("toClient", toUpstream.snapshot());
+    return map;
   }
-}
\ No newline at end of file
+}
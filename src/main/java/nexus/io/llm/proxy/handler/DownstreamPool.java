@@ -0,0 +1,290 @@
+package nexus.io.llm.proxy.handler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.extern.slf4j.Slf4j;
+import nexus.io.llm.proxy.mode.GoogleWsConnectParam;
+import nexus.io.llm.proxy.utils.KeyFingerprint;
+import nexus.io.tio.core.ChannelContext;
+import nexus.io.tio.utils.environment.EnvUtils;
+
+/**
+ * 预先建立到 Gemini Live 的连接, 新会话直接取用, 省去 TCP, TLS 和 WebSocket 握手的时间.
+ * <p>
+ * 密钥在握手时就发给了上游, 所以按 密钥, x-goog-api-client, User-Agent 分组, 只为 llm.proxy.live.pool.keys 中的密钥预热
+ * (SHA-256 指纹的前 16 位, 和用量日志相同, * 表示全部). 某个分组第一次有会话收到 Gemini 的消息(密钥有效)后才开始预热,
+ * 之后保持 llm.proxy.live.pool.size 个空闲连接, 超过 llm.proxy.live.pool.idle 秒没有新会话时关闭并不再补充. 空闲连接超过
+ * llm.proxy.live.pool.ttl 秒后关闭重建, 避免被上游当作空闲连接断开. 分组最多 llm.proxy.live.pool.max.groups 个,
+ * 满了之后新的密钥不预热
+ *
+ * <pre>
+ * llm.proxy.live.pool.size=2
+ * llm.proxy.live.pool.keys=*
+ * llm.proxy.live.pool.max.groups=64
+ * </pre>
+ */
+@Slf4j
+public class DownstreamPool {
+
+  private final String uri;
+  private final int size;
+  private final Set<String> keys;
+  private final long ttlMillis;
+  private final long idleMillis;
+  private final int maxGroups;
+
+  private final Map<String, Group> groups = new ConcurrentHashMap<>();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder warmed = new LongAdder();
+  private final LongAdder expired = new LongAdder();
+  private final LongAdder full = new LongAdder();
+  private final ScheduledFuture<?> maintainer;
+
+  /**
+   * @param keys 允许预热的密钥指纹, null 表示全部
+   */
+  public DownstreamPool(String uri, int size, Set<String> keys, long ttlMillis, long idleMillis, int maxGroups) {
+    this.uri = uri;
+    this.size = size;
+    this.keys = keys;
+    this.ttlMillis = ttlMillis;
+    this.idleMillis = idleMillis;
+    this.maxGroups = maxGroups;
+    this.maintainer = Downstream.timer.scheduleWithFixedDelay(this::maintain, 1, 1, TimeUnit.SECONDS);
+  }
+
+  /**
+   * @return 没有配置 llm.proxy.live.pool.size 和 llm.proxy.live.pool.keys 时返回 null
+   */
+  public static DownstreamPool fromEnv(String uri) {
+    int size = EnvUtils.getInt("llm.proxy.live.pool.size", 0);
+    String value = EnvUtils.getStr("llm.proxy.live.pool.keys");
+    if (size <= 0 || value == null || value.trim().isEmpty()) {
+      return null;
+    }
+    Set<String> keys = null;
+    if (!"*".equals(value.trim())) {
+      keys = new HashSet<>();
+      for (String key : value.split(",")) {
+        key = key.trim().toLowerCase();
+        if (!key.isEmpty()) {
+          keys.add(key);
+        }
+      }
+    }
+    long ttl = EnvUtils.getLong("llm.proxy.live.pool.ttl", 60L);
+    long idle = EnvUtils.getLong("llm.proxy.live.pool.idle", 300L);
+    int maxGroups = EnvUtils.getInt("llm.proxy.live.pool.max.groups", 64);
+    log.info("gemini live pool size:{}, keys:{}, ttl:{}s, idle:{}s, max groups:{}", size, keys == null ? "*" : keys,
+        ttl, idle, maxGroups);
+    return new DownstreamPool(uri, size, keys, ttl * 1000, idle * 1000, maxGroups);
+  }
+
+  private static String key(GoogleWsConnectParam param) {
+    return param.getApiKey() + '\n' + param.getApiClient() + '\n' + param.getUserAgent();
+  }
+
+  /**
+   * 取出一个空闲连接并绑定到 upstreamCtx, 可能还在连接中, 之前发送的帧会先缓存
+   *
+   * @return 没有可用的连接或分组还没有开始预热时返回 null, 由调用方新建连接并调用 {@link #watch}
+   */
+  Downstream take(GoogleWsConnectParam param, ChannelContext upstreamCtx) {
+    if (param == null || param.getApiKey() == null) {
+      return null;
+    }
+    Group group = groups.get(key(param));
+    if (group == null) {
+      return null;
+    }
+    long now = System.currentTimeMillis();
+    group.lastUsed = now;
+    Downstream ds;
+    while ((ds = group.poll(now)) != null) {
+      if (ds.bind(upstreamCtx)) {
+        break;
+      }
+    }
+    if (ds != null) {
+      hits.increment();
+    } else {
+      misses.increment();
+    }
+    // 补充连接不占用握手线程
+    Group g = group;
+    Downstream.timer.execute(() -> refill(g));
+    return ds;
+  }
+
+  /**
+   * 调用方新建的连接收到 Gemini 的第一条消息后, 为这个密钥创建分组并开始预热. 握手失败或密钥无效的会话不会创建分组
+   */
+  void watch(GoogleWsConnectParam param, Downstream ds) {
+    if (param == null || param.getApiKey() == null) {
+      return;
+    }
+    String fingerprint = KeyFingerprint.of(param.getApiKey());
+    if (keys != null && !keys.contains(fingerprint)) {
+      return;
+    }
+    ds.onFirstMessage(() -> Downstream.timer.execute(() -> activate(param, fingerprint)));
+  }
+
+  private void activate(GoogleWsConnectParam param, String fingerprint) {
+    String key = key(param);
+    Group group = groups.get(key);
+    if (group == null) {
+      if (groups.size() >= maxGroups) {
+        full.increment();
+        log.debug("gemini live pool full, not warming key:{}", fingerprint);
+        return;
+      }
+      group = groups.computeIfAbsent(key, k -> new Group(param, fingerprint));
+    }
+    group.lastUsed = System.currentTimeMillis();
+    refill(group);
+  }
+
+  private void refill(Group group) {
+    long now = System.currentTimeMillis();
+    if (now - group.lastUsed > idleMillis) {
+      return;
+    }
+    synchronized (group) {
+      while (!group.retired && group.idle.size() < size) {
+        Downstream ds = new Downstream(uri, group.param);
+        ds.connect();
+        group.idle.add(new Idle(ds, now));
+        warmed.increment();
+      }
+    }
+  }
+
+  private void maintain() {
+    try {
+      long now = System.currentTimeMillis();
+      for (Iterator<Group> it = groups.values().iterator(); it.hasNext();) {
+        Group group = it.next();
+        boolean inactive = now - group.lastUsed > idleMillis;
+        synchronized (group) {
+          // 移除之后 take 可能还拿着这个分组, 不再补充, 下一个会话会新建分组
+          group.retired = inactive;
+          for (Iterator<Idle> idle = group.idle.iterator(); idle.hasNext();) {
+            Idle entry = idle.next();
+            if (inactive || entry.ds.isClosed() || now - entry.createdAt > ttlMillis) {
+              idle.remove();
+              if (!entry.ds.isClosed()) {
+                entry.ds.close();
+                expired.increment();
+              }
+            }
+          }
+        }
+        if (inactive) {
+          it.remove();
+        } else {
+          refill(group);
+        }
+      }
+    } catch (Exception e) {
+      log.error("gemini live pool maintain failed", e);
+    }
+  }
+
+  public void close() {
+    maintainer.cancel(false);
+    for (Group group : groups.values()) {
+      synchronized (group) {
+        for (Idle entry : group.idle) {
+          entry.ds.close();
+        }
+        group.idle.clear();
+      }
+    }
+    groups.clear();
+  }
+
+  public Map<String, Object> snapshot() {
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("size", size);
+    map.put("maxGroups", maxGroups);
+    map.put("full", full.sum());
+    map.put("hits", hits.sum());
+    map.put("misses", misses.sum());
+    map.put("warmed", warmed.sum());
+    map.put("expired", expired.sum());
+    List<Map<String, Object>> list = new ArrayList<>();
+    for (Group group : groups.values()) {
+      Map<String, Object> item = new LinkedHashMap<>();
+      item.put("key", group.fingerprint);
+      int open = 0;
+      synchronized (group) {
+        item.put("idle", group.idle.size());
+        for (Idle entry : group.idle) {
+          if (entry.ds.isOpen()) {
+            open++;
+          }
+        }
+      }
+      item.put("open", open);
+      item.put("lastUsed", group.lastUsed);
+      list.add(item);
+    }
+    map.put("groups", list);
+    return map;
+  }
+
+  private class Group {
+    private final GoogleWsConnectParam param;
+    private final String fingerprint;
+    private final ArrayDeque<Idle> idle = new ArrayDeque<>();
+    private volatile long lastUsed;
+    private boolean retired;
+
+    private Group(GoogleWsConnectParam param, String fingerprint) {
+      this.param = param;
+      this.fingerprint = fingerprint;
+    }
+
+    /**
+     * 先取最早建立的, 跳过已关闭和过期的连接
+     */
+    private synchronized Downstream poll(long now) {
+      Idle entry;
+      while ((entry = idle.poll()) != null) {
+        if (entry.ds.isClosed()) {
+          continue;
+        }
+        if (now - entry.createdAt > ttlMillis) {
+          entry.ds.close();
+          expired.increment();
+          continue;
+        }
+        return entry.ds;
+      }
+      return null;
+    }
+  }
+
+  private static class Idle {
+    private final Downstream ds;
+    private final long createdAt;
+
+    private Idle(Downstream ds, long createdAt) {
+      this.ds = ds;
+      this.createdAt = createdAt;
+    }
+  }
+}
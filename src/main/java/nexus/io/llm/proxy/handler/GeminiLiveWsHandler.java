@@ -1,16 +1,20 @@
 package nexus.io.llm.proxy.handler;
 
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
 
 import lombok.extern.slf4j.Slf4j;
+import nexus.io.llm.proxy.limit.RateLimiter;
+import nexus.io.llm.proxy.metrics.ProxyMetrics;
 import nexus.io.llm.proxy.mode.GoogleWsConnectParam;
 import nexus.io.tio.core.ChannelContext;
 import nexus.io.tio.core.Tio;
 import nexus.io.tio.http.common.HttpRequest;
 import nexus.io.tio.http.common.HttpResponse;
+import nexus.io.tio.http.common.utils.HttpIpUtils;
+import nexus.io.tio.utils.environment.EnvUtils;
 import nexus.io.tio.websocket.common.WebSocketRequest;
 import nexus.io.tio.websocket.common.WebSocketSessionContext;
 import nexus.io.tio.websocket.server.handler.IWebSocketHandler;
@@ -18,15 +22,43 @@ import nexus.io.tio.websocket.server.handler.IWebSocketHandler;
 @Slf4j
 public class GeminiLiveWsHandler implements IWebSocketHandler {
 
+  /**
+   * 下游连接绑定在上游 ChannelContext 的属性上, 收到帧时直接取出, 不需要拼接 key 查表
+   */
+  static final String DOWNSTREAM = "llm.proxy.live.downstream";
+  /**
+   * 每个会话每收到这么多帧记录一条日志, 0 表示不记录
+   */
+  private static final long LOG_EVERY = EnvUtils.getLong("llm.proxy.live.log.every", 1000L);
+  private static final int LOG_TEXT_MAX = 200;
+
   private final String forwardWsUri;
+  private final RateLimiter rateLimiter;
+  private final DownstreamPool pool;
 
   /**
-   * 上游连接 -> 下游连接 的映射 key 用 channelKey（尽量稳定唯一）
+   * 上游连接 -> 下游连接, 只在建立, 关闭会话和查看状态时使用. key 用 channelKey（尽量稳定唯一）
    */
   private final Map<String, Downstream> downstreamMap = new ConcurrentHashMap<>();
 
   public GeminiLiveWsHandler(String forwardWsUri) {
+    this(forwardWsUri, null);
+  }
+
+  /**
+   * @param rateLimiter 建立会话时按 key 和 IP 限流, null 表示不限流
+   */
+  public GeminiLiveWsHandler(String forwardWsUri, RateLimiter rateLimiter) {
+    this(forwardWsUri, rateLimiter, null);
+  }
+
+  /**
+   * @param pool 预先建立的下游连接, null 表示每个会话新建连接
+   */
+  public GeminiLiveWsHandler(String forwardWsUri, RateLimiter rateLimiter, DownstreamPool pool) {
     this.forwardWsUri = Objects.requireNonNull(forwardWsUri, "forwardWsUri must not be null");
+    this.rateLimiter = rateLimiter;
+    this.pool = pool;
   }
 
   /**
@@ -36,6 +68,15 @@ public class GeminiLiveWsHandler implements IWebSocketHandler {
   public HttpResponse handshake(HttpRequest httpRequest, HttpResponse response, ChannelContext channelContext)
       throws Exception {
     log.info("request: {}", httpRequest);
+    if (rateLimiter != null) {
+      String realIp = HttpIpUtils.getRealIp(httpRequest);
+      RateLimiter.Rejection rejection = rateLimiter.acquire(RateLimiter.apiKey(httpRequest), realIp, "gemini-live", 0);
+      if (rejection != null) {
+        log.warn("from:{},live session rate limited by {}", realIp, rejection.getScope());
+        // 返回 null 拒绝握手, 不连接下游
+        return null;
+      }
+    }
     return response;
   }
 
@@ -52,19 +93,30 @@ public class GeminiLiveWsHandler implements IWebSocketHandler {
     String userAgent = httpRequest.getHeader("user-agent");
     GoogleWsConnectParam googleWsConnectParam = new GoogleWsConnectParam(apiKey, apiClient, userAgent);
 
-    // 避免重复创建
-    downstreamMap.computeIfAbsent(key, k -> {
-      Downstream ds = new Downstream(forwardWsUri, googleWsConnectParam, channelContext);
-      try {
-        ds.connect(60, TimeUnit.SECONDS);
-        log.info("上游{}握手完成，已连接下游: {}", k, forwardWsUri);
-      } catch (Exception e) {
-        log.error("上游{}握手完成，但连接下游失败: {}", k, forwardWsUri, e);
-        // 下游连不上时，你可以选择直接踢掉上游
-        Tio.remove(channelContext, "无法连接下游转发端: " + e.getMessage());
+    // 避免重复创建. 连接是异步的, 不在 map 的锁内等待
+    if (channelContext.getAttribute(DOWNSTREAM) == null) {
+      Downstream ds = pool != null ? pool.take(googleWsConnectParam, channelContext) : null;
+      boolean pooled = ds != null;
+      if (!pooled) {
+        ds = new Downstream(forwardWsUri, googleWsConnectParam, channelContext);
+        if (pool != null) {
+          pool.watch(googleWsConnectParam, ds);
+        }
+      }
+      downstreamMap.put(key, ds);
+      channelContext.setAttribute(DOWNSTREAM, ds);
+      // 和 map 中的会话一一对应, 会话结束时 (不论哪一端先关闭) 移除并减一
+      ProxyMetrics.liveSessionOpened();
+      Downstream session = ds;
+      ds.onClosed(() -> {
+        downstreamMap.remove(key, session);
+        ProxyMetrics.liveSessionClosed();
+      });
+      if (!pooled) {
+        ds.connect();
       }
-      return ds;
-    });
+      log.info("上游{}握手完成，{}下游: {}", key, pooled ? "使用预热的" : "正在连接", forwardWsUri);
+    }
 
     WebSocketSessionContext wsSessionContext = (WebSocketSessionContext) channelContext.get();
     String path = wsSessionContext != null && wsSessionContext.getHandshakeRequest() != null
@@ -79,8 +131,10 @@ public class GeminiLiveWsHandler implements IWebSocketHandler {
   @Override
   public Object onClose(WebSocketRequest wsRequest, byte[] bytes, ChannelContext channelContext) throws Exception {
     String key = channelKey(channelContext);
-    Downstream ds = downstreamMap.remove(key);
+    Downstream ds = (Downstream) channelContext.getAttribute(DOWNSTREAM);
+    channelContext.removeAttribute(DOWNSTREAM);
     if (ds != null) {
+      // 回调移除 map 中的会话并减少计数
       ds.close();
     }
     Tio.remove(channelContext, "客户端主动关闭连接");
@@ -93,17 +147,20 @@ public class GeminiLiveWsHandler implements IWebSocketHandler {
    */
   @Override
   public Object onBytes(WebSocketRequest wsRequest, byte[] bytes, ChannelContext channelContext) throws Exception {
-    String key = channelKey(channelContext);
-    Downstream ds = downstreamMap.get(key);
-
-    if (ds == null || !ds.isOpen()) {
-      log.warn("收到二进制消息但下游未就绪，上游={}", key);
+    Downstream ds = (Downstream) channelContext.getAttribute(DOWNSTREAM);
+    if (ds == null) {
+      log.warn("收到二进制消息但没有下游，上游={}", channelKey(channelContext));
       return null;
     }
+    if (LOG_EVERY > 0 && ds.nextFrame() % LOG_EVERY == 0) {
+      log.info("上游帧采样: upstream={}, frames={}, binary size={}", channelKey(channelContext), ds.getFrames(),
+          bytes.length);
+    }
 
-    // 转发到下游
-    ds.sendBytes(bytes);
-    log.debug("转发二进制消息到下游: upstream={}, size={}", key, bytes.length);
+    // 转发到下游, 下游打开之前先缓存
+    if (!ds.sendBytes(bytes)) {
+      log.warn("下游已关闭，丢弃二进制消息，上游={}", channelKey(channelContext));
+    }
     return null;
   }
 
@@ -112,26 +169,38 @@ public class GeminiLiveWsHandler implements IWebSocketHandler {
    */
   @Override
   public Object onText(WebSocketRequest wsRequest, String text, ChannelContext channelContext) throws Exception {
-    String key = channelKey(channelContext);
-    Downstream ds = downstreamMap.get(key);
-
-    WebSocketSessionContext wsSessionContext = (WebSocketSessionContext) channelContext.get();
-    String path = wsSessionContext != null && wsSessionContext.getHandshakeRequest() != null
-        ? wsSessionContext.getHandshakeRequest().getRequestLine().path
-        : "";
-
-    log.info("上游收到文本: upstream={}, path={}, text={}", key, path, text);
-
-    if (ds == null || !ds.isOpen()) {
-      log.warn("下游未就绪，无法转发文本，上游={}", key);
+    Downstream ds = (Downstream) channelContext.getAttribute(DOWNSTREAM);
+    if (ds == null) {
+      log.warn("没有下游，无法转发文本，上游={}", channelKey(channelContext));
       return null;
     }
+    if (LOG_EVERY > 0 && ds.nextFrame() % LOG_EVERY == 0) {
+      // 音频帧是很长的 base64, 只记录开头
+      log.info("上游帧采样: upstream={}, frames={}, text={}", channelKey(channelContext), ds.getFrames(),
+          text.length() > LOG_TEXT_MAX ? text.substring(0, LOG_TEXT_MAX) + "...(" + text.length() + ")" : text);
+    }
 
-    // 原样转发到下游
-    ds.sendText(text);
+    // 原样转发到下游, 下游打开之前先缓存
+    if (!ds.sendText(text)) {
+      log.warn("下游已关闭，无法转发文本，上游={}", channelKey(channelContext));
+    }
     return null;
   }
 
+  /**
+   * 每个会话两个方向的队列深度和丢弃数
+   */
+  public Map<String, Object> snapshot() {
+    Map<String, Object> sessions = new LinkedHashMap<>();
+    for (Map.Entry<String, Downstream> e : downstreamMap.entrySet()) {
+      sessions.put(e.getKey(), e.getValue().snapshot());
+    }
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("sessions", sessions.size());
+    map.put("live", sessions);
+    return map;
+  }
+
   /**
    * 生成上游连接 key 如果你的 ChannelContext 有 getId()，建议用 getId()； 这里用更兼容的方式：clientNode +
    * hash
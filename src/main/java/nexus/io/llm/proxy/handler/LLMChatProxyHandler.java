@@ -1,37 +1,104 @@
 package nexus.io.llm.proxy.handler;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-import com.alibaba.fastjson2.JSONObject;
+import com.alibaba.fastjson2.JSON;
 
 import lombok.extern.slf4j.Slf4j;
-import nexus.io.cerebras.CerebrasConst;
-import nexus.io.claude.ClaudeClient;
-import nexus.io.gemini.GeminiClient;
+import nexus.io.llm.proxy.cache.CachedResponse;
+import nexus.io.llm.proxy.cache.ResponseCache;
+import nexus.io.llm.proxy.cache.StreamCache;
+import nexus.io.llm.proxy.callback.ProxyResponseCallback;
 import nexus.io.llm.proxy.callback.SSEProxyCallbackEventSourceListener;
+import nexus.io.llm.proxy.callback.SseReplay;
+import nexus.io.llm.proxy.client.LLMProxyClient;
+import nexus.io.llm.proxy.client.UpstreamClient;
+import nexus.io.llm.proxy.client.UpstreamClientRegistry;
+import nexus.io.llm.proxy.failover.FailoverCall;
+import nexus.io.llm.proxy.failover.FailoverEventSourceListener;
+import nexus.io.llm.proxy.failover.FailoverPolicy;
+import nexus.io.llm.proxy.failover.UpstreamTarget;
+import nexus.io.llm.proxy.keys.KeyPool;
+import nexus.io.llm.proxy.keys.KeyPoolRegistry;
+import nexus.io.llm.proxy.limit.BodyLimits;
+import nexus.io.llm.proxy.limit.RateLimiter;
+import nexus.io.llm.proxy.metrics.RequestMetrics;
+import nexus.io.llm.proxy.mode.LLMRequestFields;
+import nexus.io.llm.proxy.route.ProviderRoute;
+import nexus.io.llm.proxy.route.ProviderRouteRegistry;
+import nexus.io.llm.proxy.usage.UsageMeter;
+import nexus.io.llm.proxy.usage.UsageRecorder;
+import nexus.io.llm.proxy.utils.CompressionUtils;
+import nexus.io.llm.proxy.utils.LLMRequestScanner;
+import nexus.io.llm.proxy.utils.ProxyResponseUtils;
 import nexus.io.model.body.RespBodyVo;
-import nexus.io.openai.client.OpenAiClient;
-import nexus.io.openrouter.OpenRouterConst;
-import nexus.io.proxy.AiChatProxyClient;
 import nexus.io.tio.boot.http.TioRequestContext;
 import nexus.io.tio.core.ChannelContext;
+import nexus.io.tio.core.Tio;
+import nexus.io.tio.http.common.HeaderName;
+import nexus.io.tio.http.common.HeaderValue;
 import nexus.io.tio.http.common.HttpRequest;
 import nexus.io.tio.http.common.HttpResponse;
 import nexus.io.tio.http.common.utils.HttpIpUtils;
 import nexus.io.tio.http.server.handler.HttpRequestHandler;
 import nexus.io.tio.http.server.util.CORSUtils;
-import nexus.io.tio.utils.environment.EnvUtils;
-import nexus.io.tio.utils.hutool.StrUtil;
-import nexus.io.tio.utils.json.FastJson2Utils;
-import nexus.io.vertexai.VertexAiConsts;
+import okhttp3.Callback;
 import okhttp3.Response;
 import okhttp3.sse.EventSourceListener;
 
 @Slf4j
 public class LLMChatProxyHandler implements HttpRequestHandler {
 
+  private static final String THROTTLED = "all upstream keys are throttled";
+  private static final String UNAUTHORIZED = "missing or invalid proxy client token";
+
+  private final ProviderRouteRegistry routeRegistry;
+  private final UpstreamClientRegistry upstreamClients;
+  private final ResponseCache responseCache;
+  private final StreamCache streamCache;
+  private final KeyPoolRegistry keyPools;
+  private final FailoverPolicy failover;
+  private final UsageRecorder usage;
+  private final BodyLimits bodyLimits;
+
+  public LLMChatProxyHandler(ProviderRouteRegistry routeRegistry, UpstreamClientRegistry upstreamClients) {
+    this(routeRegistry, upstreamClients, null, null, null, null, null);
+  }
+
+  /**
+   * @param responseCache 非流式响应缓存, null 表示不缓存
+   * @param streamCache   流式响应缓存, null 表示不缓存
+   * @param keyPools      服务端密钥池, null 表示转发客户端的密钥
+   * @param failover      故障转移和对冲, null 表示只访问主上游
+   * @param usage         token 用量统计, null 表示不统计
+   */
+  public LLMChatProxyHandler(ProviderRouteRegistry routeRegistry, UpstreamClientRegistry upstreamClients,
+      ResponseCache responseCache, StreamCache streamCache, KeyPoolRegistry keyPools, FailoverPolicy failover,
+      UsageRecorder usage) {
+    this(routeRegistry, upstreamClients, responseCache, streamCache, keyPools, failover, usage, null);
+  }
+
+  /**
+   * @param bodyLimits 大请求体只扫描前缀, 不缓存, null 表示都按普通请求处理
+   */
+  public LLMChatProxyHandler(ProviderRouteRegistry routeRegistry, UpstreamClientRegistry upstreamClients,
+      ResponseCache responseCache, StreamCache streamCache, KeyPoolRegistry keyPools, FailoverPolicy failover,
+      UsageRecorder usage, BodyLimits bodyLimits) {
+    this.routeRegistry = routeRegistry;
+    this.upstreamClients = upstreamClients;
+    this.responseCache = responseCache;
+    this.streamCache = streamCache;
+    this.keyPools = keyPools;
+    this.failover = failover;
+    this.usage = usage;
+    this.bodyLimits = bodyLimits;
+  }
+
   @Override
   public HttpResponse handle(HttpRequest httpRequest) throws Exception {
     long start = System.currentTimeMillis();
@@ -41,160 +108,382 @@ public class LLMChatProxyHandler implements HttpRequestHandler {
     Long id = httpRequest.getId();
     String requestURI = httpRequest.getRequestURI();
 
-    String bodyString = httpRequest.getBodyString();
+    byte[] body = httpRequest.getBody();
 
-    if (StrUtil.isBlank(bodyString)) {
+    if (body == null || body.length == 0) {
       return httpResponse.setJson(RespBodyVo.fail("empty body"));
     }
 
-    String realIp = HttpIpUtils.getRealIp(httpRequest);
-    log.info("id:{},from:{},requestURI:{}", id, realIp, requestURI);
-    Boolean stream = false;
-    String url = null;
-    Map<String, String> headers = new HashMap<>();
-    String authorization = httpRequest.getAuthorization();
-    if (requestURI.startsWith("/openai")) {
-      url = OpenAiClient.OPENAI_API_URL + "/chat/completions";
-      headers.put("authorization", authorization);
-
-      JSONObject openAiRequestVo = null;
-
-      if (bodyString != null) {
-        openAiRequestVo = FastJson2Utils.parseObject(bodyString);
-        stream = openAiRequestVo.getBoolean("stream");
-      }
-
-    } else if (requestURI.startsWith("/openrouter")) {
-      url = OpenRouterConst.API_PREFIX_URL + "/chat/completions";
-
-      headers.put("authorization", authorization);
+    ProviderRoute route = routeRegistry.match(requestURI);
+    if (route == null) {
+      httpResponse.setStatus(404);
+      return httpResponse.setJson(RespBodyVo.fail("no route for " + requestURI));
+    }
 
-      JSONObject openAiRequestVo = null;
+    String realIp = HttpIpUtils.getRealIp(httpRequest);
 
-      if (bodyString != null) {
-        openAiRequestVo = FastJson2Utils.parseObject(bodyString);
-        stream = openAiRequestVo.getBoolean("stream");
+    LLMRequestFields fields = bodyLimits != null ? bodyLimits.scan(route, body) : LLMRequestScanner.scan(body);
+    // 大请求体计算缓存 key 要解析整个 JSON, 不缓存
+    boolean cacheable = bodyLimits == null || !bodyLimits.isLarge(body);
+    boolean stream = route.isStream(requestURI, fields);
+    // 结束时写入访问日志
+    RequestMetrics metrics = RequestMetrics.start(id, realIp, route.getName(), fields.getModel(), body);
+
+    try {
+      KeyPool keyPool = keyPools != null ? keyPools.get(route) : null;
+      if (keyPool != null && !keyPools.authorize(route, httpRequest)) {
+        metrics.finish(401);
+        return unauthorized(id, route, httpResponse);
       }
+      String url = route.upstreamUrl(requestURI, stream, httpRequest, keyPool == null);
+      Map<String, String> headers = route.forwardHeaders(httpRequest);
+      UpstreamClient upstream = upstreamClients.get(route);
+      String contentType = httpRequest.getHeader("content-type");
+      // 缓存命中不访问上游, 不计用量
+      UsageMeter usageMeter = null;
+
+      if (stream) {
+        // 告诉默认的处理器不要将消息体发送给客户端,因为后面会手动发送
+        httpResponse.setSend(false);
+        ChannelContext channelContext = httpRequest.getChannelContext();
+        boolean gzip = CompressionUtils.negotiateSse(httpRequest.getHeader("accept-encoding"));
+        StreamCache.Flight recording = null;
+        if (streamCache != null && cacheable && !streamCache.isBypass(httpRequest)) {
+          String key = ResponseCache.key(route.getName(), fields.getModel(), url, headers, body);
+          recording = streamCache.join(key);
+          if (!recording.isLeader()) {
+            // 已录制完成或正在录制, 从录制中读取
+            String status = recording.getRecording().isFinished() ? "HIT" : "ATTACHED";
+            log.debug("id:{},stream cache {}", id, status);
+            new SseReplay(id, channelContext, httpResponse, recording, streamCache.getPace(), status, start, metrics,
+                gzip).start();
+            return httpResponse;
+          }
+        }
+        KeyPool.Lease lease = null;
+        try {
+          if (usage != null) {
+            usageMeter = usage.meter(route.getName(), RateLimiter.apiKey(httpRequest), fields.getModel());
+          }
+          List<UpstreamTarget> targets = failoverTargets(route, url, headers, upstream, keyPool, requestURI, true,
+              httpRequest);
+          if (targets != null) {
+            EventSourceListener listener = new SSEProxyCallbackEventSourceListener(id, channelContext, httpResponse,
+                start, recording, metrics, gzip);
+            if (usageMeter != null) {
+              listener = usageMeter.wrap(listener);
+            }
+            FailoverEventSourceListener.stream(id, failover, targets, body, contentType, listener);
+            return httpResponse;
+          }
+          if (keyPool != null) {
+            lease = keyPool.acquire();
+            if (lease == null) {
+              if (recording != null) {
+                recording.finish(true);
+              }
+              metrics.finish(429);
+              httpResponse.setSend(true);
+              return throttled(id, keyPool, httpResponse);
+            }
+            lease.apply(headers);
+          }
+          EventSourceListener openAIProxyCallback = new SSEProxyCallbackEventSourceListener(id, channelContext,
+              httpResponse, start, recording, metrics, gzip);
+          if (usageMeter != null) {
+            openAIProxyCallback = usageMeter.wrap(openAIProxyCallback);
+          }
+          if (lease != null) {
+            openAIProxyCallback = lease.wrap(openAIProxyCallback);
+          }
+          upstream.stream(url, headers, body, contentType, openAIProxyCallback);
+        } catch (Throwable e) {
+          // 监听器接管之前失败, 结束录制, 否则相同的请求会一直等待它. 租约也只能在这里归还
+          if (recording != null) {
+            recording.finish(true);
+          }
+          if (lease != null) {
+            lease.release();
+          }
+          throw e;
+        }
+      } else {
+        // 客户端支持的压缩方式交给上游, 压缩后的响应体原样返回. 也是缓存 key 的一部分
+        String acceptEncoding = httpRequest.getHeader("accept-encoding");
+        if (acceptEncoding != null) {
+          // 统计用量时上游只能用可以解压的方式, 否则读不到用量
+          headers.put("accept-encoding", usage != null ? CompressionUtils.decodable(acceptEncoding) : acceptEncoding);
+        }
 
-    } else if (requestURI.startsWith("/cerebras")) {
-      url = CerebrasConst.API_PREFIX_URL + "/chat/completions";
-
-      headers.put("authorization", authorization);
-
-      JSONObject openAiRequestVo = null;
-
-      if (bodyString != null) {
-        openAiRequestVo = FastJson2Utils.parseObject(bodyString);
-        stream = openAiRequestVo.getBoolean("stream");
+        ResponseCache.Flight flight = null;
+        if (responseCache != null && cacheable && !responseCache.isBypass(httpRequest)) {
+          String key = ResponseCache.key(route.getName(), fields.getModel(), url, headers, body);
+          CachedResponse cached = responseCache.get(key);
+          if (cached != null) {
+            cached.writeTo(httpResponse, "HIT", acceptEncoding);
+            metrics.finish(cached.getStatus(), cached.getBody());
+            log.debug("id:{},cache hit", id);
+            return httpResponse;
+          }
+          flight = responseCache.join(key);
+          if (!flight.isLeader()) {
+            return follow(start, flight, httpRequest, httpResponse, route, fields.getModel(), url, headers, upstream,
+                keyPool, body, metrics);
+          }
+        }
+        try {
+          generate(start, httpRequest, httpResponse, route, fields.getModel(), url, headers, upstream, keyPool, body,
+              metrics, flight);
+        } catch (Throwable e) {
+          // 任何异常都要结束 flight, 否则相同的请求会一直等待它
+          if (flight != null) {
+            flight.fail(e);
+          }
+          throw e;
+        }
       }
-    } else if (requestURI.startsWith("/anthropic") && requestURI.endsWith("completions")) {
-      url = ClaudeClient.CLAUDE_API_URL + "/chat/completions";
-
-      headers.put("authorization", authorization);
 
-      JSONObject openAiRequestVo = null;
+      return httpResponse;
+    } catch (Throwable e) {
+      // 异常时没有回调会结束 metrics, 在这里结束, 否则进行中的请求数一直不减
+      metrics.finish(500);
+      throw e;
+    }
+  }
 
-      if (bodyString != null) {
-        openAiRequestVo = FastJson2Utils.parseObject(bodyString);
-        stream = openAiRequestVo.getBoolean("stream");
+  /**
+   * 非流式请求访问上游. 异步模式下由回调发送响应, 返回 null
+   *
+   * @param flight 开启缓存时的 leader, 响应写入缓存并交给等待中的相同请求
+   */
+  private HttpResponse generate(long start, HttpRequest httpRequest, HttpResponse httpResponse, ProviderRoute route,
+      String model, String url, Map<String, String> headers, UpstreamClient upstream, KeyPool keyPool, byte[] body,
+      RequestMetrics metrics, ResponseCache.Flight flight) throws Exception {
+    Long id = httpRequest.getId();
+    String contentType = httpRequest.getHeader("content-type");
+    String acceptEncoding = httpRequest.getHeader("accept-encoding");
+    UsageMeter usageMeter = null;
+    if (usage != null) {
+      usageMeter = usage.meter(route.getName(), RateLimiter.apiKey(httpRequest), model);
+    }
+    Response upstreamResponse;
+    List<UpstreamTarget> targets = failoverTargets(route, url, headers, upstream, keyPool, httpRequest.getRequestURI(),
+        false, httpRequest);
+    if (targets != null) {
+      FailoverCall failoverCall = new FailoverCall(id, failover, targets, body, contentType);
+      if (LLMProxyClient.isAsync()) {
+        httpResponse.setSend(false);
+        ChannelContext channelContext = httpRequest.getChannelContext();
+        Callback callback = new ProxyResponseCallback(id, channelContext, httpResponse, start, flight, metrics);
+        failoverCall.execute(usageMeter != null ? usageMeter.wrap(callback) : callback);
+        return null;
       }
-
-    } else if (requestURI.startsWith("/anthropic") && requestURI.endsWith("messages")) {
-      url = ClaudeClient.CLAUDE_API_URL + "/messages";
-      headers.put("x-api-key", httpRequest.getHeader("x-api-key"));
-      headers.put("anthropic-version", httpRequest.getHeader("anthropic-version"));
-
-      JSONObject openAiRequestVo = null;
-
-      if (bodyString != null) {
-        openAiRequestVo = FastJson2Utils.parseObject(bodyString);
-        stream = openAiRequestVo.getBoolean("stream");
+      try {
+        // FailoverCall 自己会在超时后结束, 这里再多等一秒作为兜底
+        upstreamResponse = failoverCall.execute().get(failover.getTimeoutMillis() + 1000, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        failoverCall.cancel(failover.getTimeoutMillis() + 1000);
+        if (flight != null) {
+          flight.fail(e);
+        }
+        metrics.finish(504);
+        if (usageMeter != null) {
+          usageMeter.finish();
+        }
+        httpResponse.setStatus(504);
+        return httpResponse.setJson(RespBodyVo.fail("failover timed out"));
+      } catch (ExecutionException e) {
+        if (flight != null) {
+          flight.fail(e.getCause());
+        }
+        metrics.finish(502);
+        if (usageMeter != null) {
+          usageMeter.finish();
+        }
+        throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+      }
+    } else {
+      KeyPool.Lease lease = null;
+      if (keyPool != null) {
+        lease = keyPool.acquire();
+        if (lease == null) {
+          throttled(id, keyPool, httpResponse);
+          metrics.finish(429);
+          if (flight != null) {
+            // 等待中的相同请求也返回 429, 不写入缓存
+            flight.complete(new CachedResponse(429, LLMProxyClient.DEFAULT_CONTENT_TYPE, null,
+                JSON.toJSONBytes(RespBodyVo.fail(THROTTLED)), System.currentTimeMillis()));
+          }
+          return httpResponse;
+        }
+        lease.apply(headers);
       }
 
-    } else if (requestURI.startsWith("/google")) {
-      String key = httpRequest.getParam("key");
-      String modelName1 = requestURI.substring(requestURI.lastIndexOf('/') + 1, requestURI.indexOf(':'));
-      if (key != null) {
-        if (requestURI.endsWith("streamGenerateContent")) {
-          url = GeminiClient.GEMINI_API_URL + "/" + modelName1 + ":streamGenerateContent?alt=sse&key=" + key;
-          stream = true;
-        } else {
-          url = GeminiClient.GEMINI_API_URL + "/" + modelName1 + ":generateContent?key=" + key;
+      if (LLMProxyClient.isAsync()) {
+        // 上游返回后在回调中发送响应
+        httpResponse.setSend(false);
+        ChannelContext channelContext = httpRequest.getChannelContext();
+        Callback callback = new ProxyResponseCallback(id, channelContext, httpResponse, start, flight, metrics);
+        if (usageMeter != null) {
+          callback = usageMeter.wrap(callback);
         }
-      } else {
-        if (requestURI.endsWith("streamGenerateContent")) {
-          url = GeminiClient.GEMINI_API_URL + "/" + modelName1 + ":streamGenerateContent?alt=sse";
-          stream = true;
-        } else {
-          url = GeminiClient.GEMINI_API_URL + "/" + modelName1 + ":generateContent";
+        if (lease != null) {
+          callback = lease.wrap(callback);
+        }
+        try {
+          upstream.enqueue(url, headers, body, contentType, callback);
+        } catch (Throwable e) {
+          // 回调接管之前失败, 租约只能在这里归还
+          if (lease != null) {
+            lease.release();
+          }
+          throw e;
         }
-        if (authorization != null) {
-          headers.put("authorization", authorization);
+        return null;
+      }
+      try {
+        upstreamResponse = upstream.generate(url, headers, body, contentType);
+      } catch (IOException | RuntimeException e) {
+        if (lease != null) {
+          lease.release();
+        }
+        if (flight != null) {
+          flight.fail(e);
         }
-        String googleApiKey = httpRequest.getHeader("x-goog-api-key");
-        if (googleApiKey != null) {
-          headers.put("x-goog-api-key", googleApiKey);
+        metrics.finish(502);
+        if (usageMeter != null) {
+          usageMeter.finish();
         }
+        throw e;
       }
-
-    } else if (requestURI.startsWith("/vertexai")) {
-      String key = httpRequest.getParam("key");
-      String modelName1 = requestURI.substring(requestURI.lastIndexOf('/') + 1, requestURI.indexOf(':'));
-      if (key != null) {
-        if (requestURI.endsWith("streamGenerateContent")) {
-          url = VertexAiConsts.API_MODEL_BASE + "/" + modelName1 + ":streamGenerateContent?alt=sse&key=" + key;
-          stream = true;
+      if (lease != null) {
+        lease.update(upstreamResponse);
+        lease.release();
+      }
+    }
+    metrics.firstByte();
+    if (usageMeter != null) {
+      usageMeter.status(upstreamResponse.code());
+    }
+    try (Response response = upstreamResponse) {
+      try {
+        byte[] responseBody;
+        if (flight != null) {
+          CachedResponse cached = CachedResponse.from(response);
+          flight.complete(cached);
+          cached.writeTo(httpResponse, "MISS", acceptEncoding);
+          responseBody = cached.getBody();
         } else {
-          url = VertexAiConsts.API_MODEL_BASE + "/" + modelName1 + ":generateContent?key=" + key;
+          responseBody = ProxyResponseUtils.copy(response, httpResponse);
         }
-      } else {
-        if (requestURI.endsWith("streamGenerateContent")) {
-          url = VertexAiConsts.API_MODEL_BASE + "/" + modelName1 + ":streamGenerateContent?alt=sse";
-          stream = true;
-        } else {
-          url = VertexAiConsts.API_MODEL_BASE + "/" + modelName1 + ":generateContent";
+        metrics.finish(response.code(), responseBody);
+        if (usageMeter != null) {
+          usageMeter.scan(responseBody, response.header("Content-Encoding"));
         }
-        if (authorization != null) {
-          headers.put("authorization", authorization);
+      } catch (IOException e) {
+        if (flight != null) {
+          flight.fail(e);
         }
-        String googleApiKey = httpRequest.getHeader("x-goog-api-key");
-        if (googleApiKey != null) {
-          headers.put("x-goog-api-key", googleApiKey);
+        metrics.finish(502);
+        log.error("id:{},{}", id, e.getMessage(), e);
+        // 读取上游响应体失败时返回 502, 客户端不会收到空的或不完整的响应
+        httpResponse.setStatus(502);
+        httpResponse.setJson(RespBodyVo.fail(e.getMessage()));
+      } finally {
+        if (usageMeter != null) {
+          usageMeter.finish();
         }
       }
     }
+    return httpResponse;
+  }
 
-    // String authorization = httpRequest.getHeader("authorization");
+  /**
+   * 没有配置故障转移或对冲时返回 null
+   */
+  private List<UpstreamTarget> failoverTargets(ProviderRoute route, String url, Map<String, String> headers,
+      UpstreamClient upstream, KeyPool keyPool, String requestURI, boolean stream, HttpRequest httpRequest) {
+    if (failover == null) {
+      return null;
+    }
+    UpstreamTarget primary = new UpstreamTarget(route, url, headers, upstream, keyPool);
+    return failover.targets(primary, requestURI, stream, httpRequest);
+  }
+
+  /**
+   * 路由配置了密钥池, 但客户端没有携带代理的令牌
+   */
+  static HttpResponse unauthorized(Long id, ProviderRoute route, HttpResponse httpResponse) {
+    log.warn("id:{},client is not allowed to use the key pool of {}", id, route.getName());
+    httpResponse.setStatus(401);
+    return httpResponse.setJson(RespBodyVo.fail(UNAUTHORIZED));
+  }
+
+  /**
+   * 密钥池中所有密钥都在冷却中
+   */
+  private HttpResponse throttled(Long id, KeyPool keyPool, HttpResponse httpResponse) {
+    long retryAfter = Math.max(1, (keyPool.retryAfterMillis() + 999) / 1000);
+    log.warn("id:{},all keys of {} are throttled, retry after {}s", id, keyPool.getName(), retryAfter);
+    httpResponse.setStatus(429);
+    httpResponse.addHeader(HeaderName.from("Retry-After"), HeaderValue.from(String.valueOf(retryAfter)));
+    return httpResponse.setJson(RespBodyVo.fail(THROTTLED));
+  }
 
-    if (stream != null && stream) {
-      // 告诉默认的处理器不要将消息体发送给客户端,因为后面会手动发送
+  /**
+   * 相同的请求正在访问上游, 等待它的响应. 超过 {@link ResponseCache} 的等待时间时自己访问上游, 不写入缓存
+   */
+  private HttpResponse follow(long start, ResponseCache.Flight flight, HttpRequest httpRequest,
+      HttpResponse httpResponse, ProviderRoute route, String model, String url, Map<String, String> headers,
+      UpstreamClient upstream, KeyPool keyPool, byte[] body, RequestMetrics metrics) throws Exception {
+    Long id = httpRequest.getId();
+    log.debug("id:{},cache wait for inflight request", id);
+    String acceptEncoding = httpRequest.getHeader("accept-encoding");
+    if (LLMProxyClient.isAsync()) {
       httpResponse.setSend(false);
       ChannelContext channelContext = httpRequest.getChannelContext();
-      EventSourceListener openAIProxyCallback = new SSEProxyCallbackEventSourceListener(id, channelContext,
-          httpResponse, start);
-      AiChatProxyClient.stream(url, headers, bodyString, openAIProxyCallback);
-    } else {
-      try (Response response = AiChatProxyClient.generate(url, headers, bodyString)) {
-        // OkHttpResponseUtils.toTioHttpResponse(response, httpResponse);
-        int code = response.code();
-        httpResponse.setStatus(code);
-
-        try {
-          String resposneBody = response.body().string();
-          httpResponse.setString(resposneBody, "utf-8", "application/json");
-          httpResponse.setSkipGzipped(true);
-          if (EnvUtils.getBoolean("app.debug", false)) {
-            log.info("chat:{},{}", bodyString, resposneBody);
+      flight.awaitAsync().whenComplete((cached, e) -> {
+        if (cached == null && e == null) {
+          log.warn("id:{},cache wait timed out, call upstream directly", id);
+          try {
+            if (generate(start, httpRequest, httpResponse, route, model, url, headers, upstream, keyPool, body,
+                metrics, null) == null) {
+              return;
+            }
+          } catch (Throwable t) {
+            log.error("id:{},{}", id, t.getMessage(), t);
+            httpResponse.setStatus(502);
+            httpResponse.setJson(RespBodyVo.fail(t.getMessage()));
+            metrics.finish(502);
           }
-
-        } catch (IOException e) {
-          e.printStackTrace();
+        } else if (cached != null) {
+          cached.writeTo(httpResponse, "COALESCED", acceptEncoding);
+          metrics.finish(cached.getStatus(), cached.getBody());
+        } else {
+          httpResponse.setStatus(502);
+          httpResponse.setJson(RespBodyVo.fail(e.getMessage()));
+          metrics.finish(502);
         }
-        long end = System.currentTimeMillis();
-        log.info("finish llm in {} (ms):", (end - start));
-      }
+        Tio.send(channelContext, httpResponse);
+      });
+      return httpResponse;
     }
-
+    CachedResponse cached;
+    try {
+      cached = flight.await();
+    } catch (Exception e) {
+      metrics.finish(502);
+      httpResponse.setStatus(502);
+      httpResponse.setJson(RespBodyVo.fail(e.getMessage()));
+      return httpResponse;
+    }
+    if (cached == null) {
+      log.warn("id:{},cache wait timed out, call upstream directly", id);
+      return generate(start, httpRequest, httpResponse, route, model, url, headers, upstream, keyPool, body, metrics,
+          null);
+    }
+    cached.writeTo(httpResponse, "COALESCED", acceptEncoding);
+    metrics.finish(cached.getStatus(), cached.getBody());
     return httpResponse;
   }
 }
@@ -4,13 +4,15 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
-import com.alibaba.fastjson2.JSONObject;
-
 import lombok.extern.slf4j.Slf4j;
 import nexus.io.chat.UniChatClient;
 import nexus.io.llm.proxy.callback.SSEProxyCallbackEventSourceListener;
+import nexus.io.llm.proxy.client.LLMProxyClient;
+import nexus.io.llm.proxy.metrics.RequestMetrics;
+import nexus.io.llm.proxy.mode.LLMRequestFields;
+import nexus.io.llm.proxy.utils.LLMRequestScanner;
+import nexus.io.llm.proxy.utils.ProxyResponseUtils;
 import nexus.io.model.body.RespBodyVo;
-import nexus.io.proxy.AiChatProxyClient;
 import nexus.io.tio.boot.http.TioRequestContext;
 import nexus.io.tio.core.ChannelContext;
 import nexus.io.tio.http.common.HttpRequest;
@@ -18,9 +20,6 @@ import nexus.io.tio.http.common.HttpResponse;
 import nexus.io.tio.http.common.utils.HttpIpUtils;
 import nexus.io.tio.http.server.handler.HttpRequestHandler;
 import nexus.io.tio.http.server.util.CORSUtils;
-import nexus.io.tio.utils.environment.EnvUtils;
-import nexus.io.tio.utils.hutool.StrUtil;
-import nexus.io.tio.utils.json.FastJson2Utils;
 import okhttp3.Response;
 import okhttp3.sse.EventSourceListener;
 
@@ -34,16 +33,14 @@ public class LLMTestChatHandler implements HttpRequestHandler {
     CORSUtils.enableCORS(httpResponse);
 
     Long id = httpRequest.getId();
-    String requestURI = httpRequest.getRequestURI();
-
-    String bodyString = httpRequest.getBodyString();
 
-    if (StrUtil.isBlank(bodyString)) {
+    // 不转成 String, 大请求体只保留一份字节
+    byte[] body = httpRequest.getBody();
+    if (body == null || body.length == 0) {
       return httpResponse.setJson(RespBodyVo.fail("empty body"));
     }
 
     String realIp = HttpIpUtils.getRealIp(httpRequest);
-    log.info("id:{},from:{},requestURI:{},body:\n{}", id, realIp, requestURI, bodyString);
     Boolean stream = false;
     Map<String, String> headers = new HashMap<>();
     String authorization = httpRequest.getAuthorization();
@@ -52,44 +49,53 @@ public class LLMTestChatHandler implements HttpRequestHandler {
     url = UniChatClient.GITEE_API_URL + "/chat/completions";
     headers.put("authorization", authorization);
 
-    JSONObject openAiRequestVo = null;
-
-    if (bodyString != null) {
-      openAiRequestVo = FastJson2Utils.parseObject(bodyString);
-      stream = openAiRequestVo.getBoolean("stream");
-    }
-
-    // String authorization = httpRequest.getHeader("authorization");
-
-    if (stream != null && stream) {
-      // 告诉默认的处理器不要将消息体发送给客户端,因为后面会手动发送
-      httpResponse.setSend(false);
-      ChannelContext channelContext = httpRequest.getChannelContext();
-      EventSourceListener openAIProxyCallback = new SSEProxyCallbackEventSourceListener(id, channelContext,
-          httpResponse, start);
-      AiChatProxyClient.stream(url, headers, bodyString, openAIProxyCallback);
-    } else {
-      try (Response response = AiChatProxyClient.generate(url, headers, bodyString)) {
-        // OkHttpResponseUtils.toTioHttpResponse(response, httpResponse);
-        int code = response.code();
-        httpResponse.setStatus(code);
-
+    String contentType = httpRequest.getHeader("content-type");
+    LLMRequestFields fields = LLMRequestScanner.scan(body);
+    stream = fields.getStream();
+    // 请求体按 llm.proxy.access.log.body.rate 采样写入访问日志
+    RequestMetrics metrics = RequestMetrics.start(id, realIp, "test", fields.getModel(), body);
+
+    try {
+      // String authorization = httpRequest.getHeader("authorization");
+
+      if (stream != null && stream) {
+        // 告诉默认的处理器不要将消息体发送给客户端,因为后面会手动发送
+        httpResponse.setSend(false);
+        ChannelContext channelContext = httpRequest.getChannelContext();
+        EventSourceListener openAIProxyCallback = new SSEProxyCallbackEventSourceListener(id, channelContext,
+            httpResponse, start, null, metrics);
+        LLMProxyClient.stream(url, headers, body, contentType, openAIProxyCallback);
+      } else {
+        String acceptEncoding = httpRequest.getHeader("accept-encoding");
+        if (acceptEncoding != null) {
+          headers.put("accept-encoding", acceptEncoding);
+        }
+        Response upstreamResponse;
         try {
-          String resposneBody = response.body().string();
-          httpResponse.setString(resposneBody, "utf-8", "application/json");
-          httpResponse.setSkipGzipped(true);
-          if (EnvUtils.getBoolean("app.debug", false)) {
-            log.info("chat:{},{}", bodyString, resposneBody);
-          }
-
+          upstreamResponse = LLMProxyClient.generate(url, headers, body, contentType);
         } catch (IOException e) {
-          e.printStackTrace();
+          metrics.finish(502);
+          throw e;
+        }
+        metrics.firstByte();
+        try (Response response = upstreamResponse) {
+          try {
+            byte[] responseBody = ProxyResponseUtils.copy(response, httpResponse);
+            metrics.finish(response.code(), responseBody);
+          } catch (IOException e) {
+            metrics.finish(502);
+            log.error("id:{},{}", id, e.getMessage(), e);
+            httpResponse.setStatus(502);
+            httpResponse.setJson(RespBodyVo.fail(e.getMessage()));
+          }
         }
-        long end = System.currentTimeMillis();
-        log.info("finish llm in {} (ms):", (end - start));
       }
-    }
 
-    return httpResponse;
+      return httpResponse;
+    } catch (Throwable e) {
+      // 异常时没有回调会结束 metrics, 在这里结束, 否则进行中的请求数一直不减
+      metrics.finish(500);
+      throw e;
+    }
   }
 }
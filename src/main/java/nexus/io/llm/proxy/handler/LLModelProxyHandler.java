@@ -3,26 +3,64 @@ package nexus.io.llm.proxy.handler;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import com.alibaba.fastjson2.JSON;
 
 import lombok.extern.slf4j.Slf4j;
-import nexus.io.cerebras.CerebrasConst;
-import nexus.io.claude.ClaudeClient;
-import nexus.io.gemini.GeminiClient;
-import nexus.io.openai.client.OpenAiClient;
-import nexus.io.openrouter.OpenRouterConst;
-import nexus.io.proxy.AiChatProxyClient;
+import nexus.io.llm.proxy.cache.CachedResponse;
+import nexus.io.llm.proxy.cache.ModelListCache;
+import nexus.io.llm.proxy.cache.ResponseCache;
+import nexus.io.llm.proxy.callback.ProxyResponseCallback;
+import nexus.io.llm.proxy.client.LLMProxyClient;
+import nexus.io.llm.proxy.client.UpstreamClient;
+import nexus.io.llm.proxy.client.UpstreamClientRegistry;
+import nexus.io.llm.proxy.keys.KeyPool;
+import nexus.io.llm.proxy.keys.KeyPoolRegistry;
+import nexus.io.llm.proxy.metrics.RequestMetrics;
+import nexus.io.llm.proxy.route.ProviderRoute;
+import nexus.io.llm.proxy.route.ProviderRouteRegistry;
+import nexus.io.llm.proxy.utils.ProxyResponseUtils;
+import nexus.io.model.body.RespBodyVo;
 import nexus.io.tio.boot.http.TioRequestContext;
+import nexus.io.tio.core.ChannelContext;
+import nexus.io.tio.core.Tio;
 import nexus.io.tio.http.common.HttpRequest;
 import nexus.io.tio.http.common.HttpResponse;
 import nexus.io.tio.http.common.utils.HttpIpUtils;
 import nexus.io.tio.http.server.handler.HttpRequestHandler;
 import nexus.io.tio.http.server.util.CORSUtils;
-import nexus.io.tio.utils.environment.EnvUtils;
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.Response;
 
 @Slf4j
 public class LLModelProxyHandler implements HttpRequestHandler {
 
+  private static final String THROTTLED = "all upstream keys are throttled";
+
+  private final ProviderRouteRegistry routeRegistry;
+  private final UpstreamClientRegistry upstreamClients;
+  private final KeyPoolRegistry keyPools;
+  private final ModelListCache modelCache;
+
+  public LLModelProxyHandler(ProviderRouteRegistry routeRegistry, UpstreamClientRegistry upstreamClients) {
+    this(routeRegistry, upstreamClients, null, null);
+  }
+
+  /**
+   * @param keyPools   服务端密钥池, null 表示转发客户端的密钥
+   * @param modelCache 模型列表缓存, null 表示每次访问上游
+   */
+  public LLModelProxyHandler(ProviderRouteRegistry routeRegistry, UpstreamClientRegistry upstreamClients,
+      KeyPoolRegistry keyPools, ModelListCache modelCache) {
+    this.routeRegistry = routeRegistry;
+    this.upstreamClients = upstreamClients;
+    this.keyPools = keyPools;
+    this.modelCache = modelCache;
+  }
+
   @Override
   public HttpResponse handle(HttpRequest httpRequest) throws Exception {
     long start = System.currentTimeMillis();
@@ -32,78 +70,178 @@ public class LLModelProxyHandler implements HttpRequestHandler {
     Long id = httpRequest.getId();
     String requestURI = httpRequest.getRequestURI();
 
+    ProviderRoute route = routeRegistry.match(requestURI);
+    if (route == null) {
+      httpResponse.setStatus(404);
+      return httpResponse.setJson(RespBodyVo.fail("no route for " + requestURI));
+    }
+
     String realIp = HttpIpUtils.getRealIp(httpRequest);
-    log.info("id:{},from:{},requestURI:{}", id, realIp, requestURI);
-    String url = null;
-    Map<String, String> headers = new HashMap<>();
-    String authorization = httpRequest.getAuthorization();
-    if (requestURI.startsWith("/openai")) {
-      url = OpenAiClient.OPENAI_API_URL + "/models";
-      headers.put("authorization", authorization);
-    } else if (requestURI.startsWith("/openrouter")) {
-      url = OpenRouterConst.API_PREFIX_URL + "/models";
-
-      headers.put("authorization", authorization);
-
-    } else if (requestURI.startsWith("/cerebras")) {
-      url = CerebrasConst.API_PREFIX_URL + "/models";
-
-    } else if (requestURI.startsWith("/anthropic") && requestURI.endsWith("completions")) {
-      url = ClaudeClient.CLAUDE_API_URL + "/models";
-
-    } else if (requestURI.startsWith("/anthropic") && requestURI.endsWith("messages")) {
-      url = ClaudeClient.CLAUDE_API_URL + "/modles";
-      headers.put("x-api-key", httpRequest.getHeader("x-api-key"));
-      headers.put("anthropic-version", httpRequest.getHeader("anthropic-version"));
-
-    } else if (requestURI.startsWith("/google")) {
-      String key = httpRequest.getParam("key");
-      String modelName1 = requestURI.substring(requestURI.lastIndexOf('/') + 1, requestURI.indexOf(':'));
-      if (key != null) {
-        if (requestURI.endsWith("streamGenerateContent")) {
-          url = GeminiClient.GEMINI_API_URL + modelName1 + ":streamGenerateContent?alt=sse&key=" + key;
-        } else {
-          url = GeminiClient.GEMINI_API_URL + modelName1 + ":generateContent?key=" + key;
+    KeyPool keyPool = keyPools != null ? keyPools.get(route) : null;
+    String url = route.upstreamUrl(requestURI, false, httpRequest, keyPool == null);
+    Map<String, String> headers = route.forwardHeaders(httpRequest);
+    UpstreamClient upstream = upstreamClients.get(route);
+    // 和对话请求分开统计, 避免拉低对话的耗时分布
+    RequestMetrics metrics = RequestMetrics.start(id, realIp, route.getName() + "/models", null, null);
+
+    try {
+      if (keyPool != null && !keyPools.authorize(route, httpRequest)) {
+        metrics.finish(401);
+        return LLMChatProxyHandler.unauthorized(id, route, httpResponse);
+      }
+
+      String acceptEncoding = httpRequest.getHeader("accept-encoding");
+      if (acceptEncoding != null) {
+        headers.put("accept-encoding", acceptEncoding);
+      }
+
+      if (modelCache != null) {
+        // key 包含客户端的密钥, 不同密钥看到的模型列表可能不同
+        String key = ResponseCache.key(route.getName(), null, url, headers, new byte[0]);
+        ModelListCache.Lookup lookup = modelCache.get(key, () -> fetch(upstream, url, headers, keyPool));
+        return respond(id, lookup, httpRequest, httpResponse, start, metrics);
+      }
+
+      KeyPool.Lease lease = null;
+      if (keyPool != null) {
+        lease = keyPool.acquire();
+        if (lease == null) {
+          metrics.finish(429);
+          httpResponse.setStatus(429);
+          return httpResponse.setJson(RespBodyVo.fail(THROTTLED));
         }
-      } else {
-        if (requestURI.endsWith("streamGenerateContent")) {
-          url = GeminiClient.GEMINI_API_URL + modelName1 + ":streamGenerateContent?alt=sse";
-        } else {
-          url = GeminiClient.GEMINI_API_URL + modelName1 + ":generateContent";
+        lease.apply(headers);
+      }
+
+      if (LLMProxyClient.isAsync()) {
+        httpResponse.setSend(false);
+        ChannelContext channelContext = httpRequest.getChannelContext();
+        Callback callback = new ProxyResponseCallback(id, channelContext, httpResponse, start, null, metrics);
+        if (lease != null) {
+          callback = lease.wrap(callback);
+        }
+        try {
+          upstream.enqueue(url, headers, null, null, callback);
+        } catch (Throwable e) {
+          // 回调接管之前失败, 租约只能在这里归还
+          if (lease != null) {
+            lease.release();
+          }
+          throw e;
         }
-        if (authorization != null) {
-          headers.put("authorization", authorization);
+        return httpResponse;
+      }
+
+      Response upstreamResponse;
+      try {
+        upstreamResponse = upstream.get(url, headers);
+      } catch (IOException e) {
+        metrics.finish(502);
+        throw e;
+      } finally {
+        if (lease != null) {
+          lease.release();
         }
-        String googleApiKey = httpRequest.getHeader("x-goog-api-key");
-        if (googleApiKey != null) {
-          headers.put("x-goog-api-key", googleApiKey);
+      }
+      if (lease != null) {
+        lease.update(upstreamResponse);
+      }
+      metrics.firstByte();
+      try (Response response = upstreamResponse) {
+        try {
+          byte[] responseBody = ProxyResponseUtils.copy(response, httpResponse);
+          metrics.finish(response.code(), responseBody);
+        } catch (IOException e) {
+          metrics.finish(502);
+          log.error("id:{},{}", id, e.getMessage(), e);
+          httpResponse.setStatus(502);
+          httpResponse.setJson(RespBodyVo.fail(e.getMessage()));
         }
       }
 
+      return httpResponse;
+    } catch (Throwable e) {
+      // 异常时没有回调会结束 metrics, 在这里结束, 否则进行中的请求数一直不减
+      metrics.finish(500);
+      throw e;
     }
+  }
 
-    // String authorization = httpRequest.getHeader("authorization");
-
-    try (Response response = AiChatProxyClient.generate(url, headers)) {
-      // OkHttpResponseUtils.toTioHttpResponse(response, httpResponse);
-      int code = response.code();
-      httpResponse.setStatus(code);
-
-      try {
-        String resposneBody = response.body().string();
-        httpResponse.setString(resposneBody, "utf-8", "application/json");
-        httpResponse.setSkipGzipped(true);
-        if (EnvUtils.getBoolean("app.debug", false)) {
-          log.info("chat:{},{}", requestURI, resposneBody);
+  private CompletableFuture<CachedResponse> fetch(UpstreamClient upstream, String url, Map<String, String> headers,
+      KeyPool keyPool) {
+    CompletableFuture<CachedResponse> future = new CompletableFuture<>();
+    Map<String, String> requestHeaders = new HashMap<>(headers);
+    KeyPool.Lease lease = null;
+    if (keyPool != null) {
+      lease = keyPool.acquire();
+      if (lease == null) {
+        future.complete(new CachedResponse(429, LLMProxyClient.DEFAULT_CONTENT_TYPE, null,
+            JSON.toJSONBytes(RespBodyVo.fail(THROTTLED)), System.currentTimeMillis()));
+        return future;
+      }
+      lease.apply(requestHeaders);
+    }
+    Callback callback = new Callback() {
+      @Override
+      public void onResponse(Call call, Response response) {
+        try (Response r = response) {
+          future.complete(CachedResponse.from(r));
+        } catch (IOException e) {
+          future.completeExceptionally(e);
         }
+      }
 
-      } catch (IOException e) {
-        e.printStackTrace();
+      @Override
+      public void onFailure(Call call, IOException e) {
+        future.completeExceptionally(e);
       }
-      long end = System.currentTimeMillis();
-      log.info("finish llm in {} (ms):", (end - start));
+    };
+    if (lease != null) {
+      callback = lease.wrap(callback);
     }
+    try {
+      upstream.enqueue(url, requestHeaders, null, null, callback);
+    } catch (RuntimeException e) {
+      // 回调接管之前失败, 租约只能在这里归还
+      if (lease != null) {
+        lease.release();
+      }
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
 
+  private HttpResponse respond(Long id, ModelListCache.Lookup lookup, HttpRequest httpRequest,
+      HttpResponse httpResponse, long start, RequestMetrics metrics) throws Exception {
+    CompletableFuture<CachedResponse> future = lookup.getFuture();
+    if (!future.isDone() && LLMProxyClient.isAsync()) {
+      httpResponse.setSend(false);
+      ChannelContext channelContext = httpRequest.getChannelContext();
+      future.whenComplete((cached, e) -> {
+        write(lookup.getStatus(), cached, e, httpRequest, httpResponse, metrics);
+        Tio.send(channelContext, httpResponse);
+        log.debug("id:{},elapse:{}", id, System.currentTimeMillis() - start);
+      });
+      return httpResponse;
+    }
+    try {
+      write(lookup.getStatus(), future.get(), null, httpRequest, httpResponse, metrics);
+    } catch (ExecutionException e) {
+      write(lookup.getStatus(), null, e.getCause(), httpRequest, httpResponse, metrics);
+    }
+    log.debug("id:{},models {} in {} (ms)", id, lookup.getStatus(), System.currentTimeMillis() - start);
     return httpResponse;
   }
+
+  private static void write(String status, CachedResponse cached, Throwable e, HttpRequest httpRequest,
+      HttpResponse httpResponse, RequestMetrics metrics) {
+    if (cached != null) {
+      cached.writeTo(httpResponse, status, httpRequest.getHeader("accept-encoding"));
+      metrics.finish(cached.getStatus(), cached.getBody());
+    } else {
+      metrics.finish(502);
+      httpResponse.setStatus(502);
+      httpResponse.setJson(RespBodyVo.fail(e.getMessage()));
+    }
+  }
 }
@@ -0,0 +1,152 @@
+package nexus.io.llm.proxy.handler;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Set;
+
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONArray;
+import com.alibaba.fastjson2.JSONObject;
+
+/**
+ * 客户端发给 Gemini Live 的一段音频, 用于把连续的小帧合并成一帧. 支持三种形式:
+ *
+ * <pre>
+ * {"realtimeInput":{"audio":{"mimeType":"audio/pcm;rate=16000","data":"..."}}}
+ * {"realtimeInput":{"mediaChunks":[{"mimeType":"audio/pcm;rate=16000","data":"..."}]}}
+ * 非 JSON 的二进制帧, 视为裸 PCM
+ * </pre>
+ *
+ * 只有形式, 帧类型(文本/二进制)和 mimeType 都相同的帧才能合并, PCM 按顺序拼接后重新编码
+ */
+final class LiveAudioFrame {
+
+  private static final int RAW = 0;
+  private static final int AUDIO = 1;
+  private static final int MEDIA_CHUNKS = 2;
+
+  private final int kind;
+  private final boolean text;
+  private final String mimeType;
+  private final byte[] pcm;
+  private ByteArrayOutputStream merged;
+
+  private LiveAudioFrame(int kind, boolean text, String mimeType, byte[] pcm) {
+    this.kind = kind;
+    this.text = text;
+    this.mimeType = mimeType;
+    this.pcm = pcm;
+  }
+
+  /**
+   * @return 不是单独一段音频时返回 null, 原样转发
+   */
+  static LiveAudioFrame parse(Object frame) {
+    if (frame instanceof byte[]) {
+      byte[] bytes = (byte[]) frame;
+      if (bytes.length == 0) {
+        return null;
+      }
+      if (bytes[0] != '{') {
+        return new LiveAudioFrame(RAW, false, null, bytes);
+      }
+      return parseJson(new String(bytes, StandardCharsets.UTF_8), false);
+    }
+    return parseJson((String) frame, true);
+  }
+
+  private static LiveAudioFrame parseJson(String json, boolean text) {
+    // 大部分非音频消息在这里就排除, 不需要解析
+    if (json.indexOf("\"realtimeInput\"") < 0) {
+      return null;
+    }
+    try {
+      JSONObject root = JSON.parseObject(json);
+      if (root == null || root.size() != 1) {
+        return null;
+      }
+      JSONObject input = root.getJSONObject("realtimeInput");
+      if (input == null || input.size() != 1) {
+        return null;
+      }
+      JSONObject blob;
+      int kind;
+      if (input.containsKey("audio")) {
+        blob = input.getJSONObject("audio");
+        kind = AUDIO;
+      } else {
+        JSONArray chunks = input.getJSONArray("mediaChunks");
+        if (chunks == null || chunks.size() != 1) {
+          return null;
+        }
+        blob = chunks.getJSONObject(0);
+        kind = MEDIA_CHUNKS;
+      }
+      if (blob == null || !isBlob(blob.keySet())) {
+        return null;
+      }
+      String mimeType = blob.getString("mimeType");
+      String data = blob.getString("data");
+      if (mimeType == null || data == null || !mimeType.startsWith("audio/pcm")) {
+        return null;
+      }
+      return new LiveAudioFrame(kind, text, mimeType, Base64.getDecoder().decode(data));
+    } catch (RuntimeException e) {
+      // 不是合法的 JSON 或 base64, 交给上游处理
+      return null;
+    }
+  }
+
+  private static boolean isBlob(Set<String> keys) {
+    return keys.size() == 2 && keys.contains("mimeType") && keys.contains("data");
+  }
+
+  int size() {
+    return merged != null ? merged.size() : pcm.length;
+  }
+
+  /**
+   * @return false 表示不能合并, next 保持不变
+   */
+  boolean append(LiveAudioFrame next) {
+    if (next.kind != kind || next.text != text
+        || (mimeType == null ? next.mimeType != null : !mimeType.equals(next.mimeType))) {
+      return false;
+    }
+    if (merged == null) {
+      merged = new ByteArrayOutputStream(pcm.length * 4);
+      merged.write(pcm, 0, pcm.length);
+    }
+    merged.write(next.pcm, 0, next.pcm.length);
+    return true;
+  }
+
+  /**
+   * 生成合并后的帧, 没有合并过时返回 null, 调用方直接发送原始帧
+   */
+  Object toFrame() {
+    if (merged == null) {
+      return null;
+    }
+    byte[] bytes = merged.toByteArray();
+    if (kind == RAW) {
+      return bytes;
+    }
+    JSONObject blob = new JSONObject();
+    blob.put("mimeType", mimeType);
+    blob.put("data", Base64.getEncoder().encodeToString(bytes));
+    JSONObject input = new JSONObject();
+    if (kind == AUDIO) {
+      input.put("audio", blob);
+    } else {
+      JSONArray chunks = new JSONArray();
+      chunks.add(blob);
+      input.put("mediaChunks", chunks);
+    }
+    JSONObject root = new JSONObject();
+    root.put("realtimeInput", input);
+    String json = root.toJSONString();
+    return text ? json : json.getBytes(StandardCharsets.UTF_8);
+  }
+}
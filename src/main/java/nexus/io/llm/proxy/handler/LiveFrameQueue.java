@@ -0,0 +1,293 @@
+package nexus.io.llm.proxy.handler;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+import lombok.extern.slf4j.Slf4j;
+import nexus.io.llm.proxy.client.ProxyExecutors;
+import nexus.io.tio.utils.environment.EnvUtils;
+
+/**
+ * Gemini Live 会话一个方向上的有界发送队列. 读取线程只负责入队, 由写线程发给对端.
+ * <ul>
+ * <li>入队从不阻塞读取线程(tio 的处理线程, 阻塞会拖住同一线程上的其他连接)</li>
+ * <li>缓冲超过 llm.proxy.live.high.water 字节后开始计时, llm.proxy.live.stall.timeout 内没有降到 llm.proxy.live.low.water,
+ * 或超过 llm.proxy.live.max.buffered 字节, 或写失败时, 判定对端跟不上或已断开, 调用 onPeerGone 关闭会话</li>
+ * </ul>
+ * 开启合并时(llm.proxy.live.coalesce.ms 大于 0), 写线程取到一段音频后最多再等这么久, 把期间到达的连续音频合并成一帧,
+ * 累计超过 llm.proxy.live.coalesce.bytes 字节 PCM 或遇到其他消息时立即发出, 不改变消息顺序
+ */
+@Slf4j
+final class LiveFrameQueue implements Runnable {
+
+  private static final int HIGH_WATER = EnvUtils.getInt("llm.proxy.live.high.water", 1024 * 1024);
+  private static final int LOW_WATER = EnvUtils.getInt("llm.proxy.live.low.water", HIGH_WATER / 2);
+  private static final long STALL_TIMEOUT = EnvUtils.getLong("llm.proxy.live.stall.timeout", 10000L);
+  private static final long MAX_BUFFERED = EnvUtils.getLong("llm.proxy.live.max.buffered", 4L * HIGH_WATER);
+  static final long COALESCE_MS = EnvUtils.getLong("llm.proxy.live.coalesce.ms", 0L);
+  private static final int COALESCE_BYTES = EnvUtils.getInt("llm.proxy.live.coalesce.bytes", 16 * 1024);
+
+  private static final ExecutorService writer = ProxyExecutors.newTaskExecutor("live-writer");
+
+  /**
+   * 在写线程中调用
+   */
+  interface Sink {
+    /**
+     * @return false 表示对端已断开
+     */
+    boolean write(Object frame) throws Exception;
+  }
+
+  private final String name;
+  private final Sink sink;
+  private final boolean coalesce;
+  private final Runnable onPeerGone;
+
+  private final ArrayDeque<Frame> queue = new ArrayDeque<>();
+  private long bufferedBytes;
+  private long maxBufferedBytes;
+  private long sentCount;
+  private long writeCount;
+  private long droppedCount;
+  private long highWaterCount;
+  private long highWaterMs;
+  // 超过高水位的开始时间, 0 表示没有超过
+  private long highWaterSince;
+  private boolean started;
+  private boolean running;
+  private boolean batching;
+  private volatile boolean closed;
+
+  /**
+   * @param name     日志中的名称
+   * @param coalesce 是否合并连续的音频帧
+   */
+  LiveFrameQueue(String name, Sink sink, boolean coalesce, Runnable onPeerGone) {
+    this.name = name;
+    this.sink = sink;
+    this.coalesce = coalesce && COALESCE_MS > 0;
+    this.onPeerGone = onPeerGone;
+  }
+
+  /**
+   * 开始发送, 之前 buffer 的帧按顺序先发出
+   */
+  synchronized void start() {
+    started = true;
+    schedule();
+  }
+
+  /**
+   * 开始发送之前缓存, 不阻塞
+   *
+   * @return false 表示已关闭或超过 maxFrames, maxBytes
+   */
+  boolean buffer(Object frame, int size, int maxFrames, long maxBytes) {
+    Frame f = new Frame(frame, size, coalesce ? LiveAudioFrame.parse(frame) : null);
+    synchronized (this) {
+      if (closed || queue.size() >= maxFrames || bufferedBytes + size > maxBytes) {
+        droppedCount++;
+        return false;
+      }
+      enqueue(f);
+      return true;
+    }
+  }
+
+  /**
+   * 在读取线程中调用, 不阻塞
+   *
+   * @return false 表示会话已关闭或对端跟不上
+   */
+  boolean offer(Object frame, int size) {
+    Frame f = new Frame(frame, size, coalesce ? LiveAudioFrame.parse(frame) : null);
+    boolean stalled = false;
+    synchronized (this) {
+      if (closed) {
+        droppedCount++;
+        return false;
+      }
+      enqueue(f);
+      if (batching) {
+        notifyAll();
+      }
+
+      if (started && bufferedBytes > HIGH_WATER) {
+        long now = System.currentTimeMillis();
+        if (highWaterSince == 0) {
+          highWaterSince = now;
+          highWaterCount++;
+        } else if (now - highWaterSince >= STALL_TIMEOUT || bufferedBytes > MAX_BUFFERED) {
+          log.warn("{} peer too slow, buffered:{}, close session", name, bufferedBytes);
+          highWaterMs += now - highWaterSince;
+          highWaterSince = 0;
+          closed = true;
+          stalled = true;
+          dropQueued();
+        }
+      }
+    }
+    if (stalled) {
+      onPeerGone.run();
+      return false;
+    }
+    return !closed;
+  }
+
+  /**
+   * 丢弃未发送的帧, 唤醒等待合并的写线程
+   */
+  synchronized void close() {
+    if (!closed) {
+      closed = true;
+      dropQueued();
+    }
+    notifyAll();
+  }
+
+  private void enqueue(Frame frame) {
+    queue.add(frame);
+    bufferedBytes += frame.size;
+    if (bufferedBytes > maxBufferedBytes) {
+      maxBufferedBytes = bufferedBytes;
+    }
+    schedule();
+  }
+
+  private void schedule() {
+    if (started && !running && !queue.isEmpty()) {
+      running = true;
+      writer.execute(this);
+    }
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      Frame frame;
+      synchronized (this) {
+        frame = queue.poll();
+        if (frame == null) {
+          running = false;
+          return;
+        }
+        if (frame.audio != null) {
+          frame = coalesce(frame);
+        }
+      }
+
+      boolean sent = !closed && push(frame);
+      boolean gone = false;
+      synchronized (this) {
+        // dropQueued 之后可能已经清零
+        bufferedBytes = Math.max(0, bufferedBytes - frame.size);
+        if (sent) {
+          sentCount += frame.count;
+          writeCount++;
+        } else {
+          droppedCount += frame.count;
+          if (!closed) {
+            closed = true;
+            gone = true;
+            dropQueued();
+          }
+        }
+        if (highWaterSince != 0 && bufferedBytes <= LOW_WATER) {
+          highWaterMs += System.currentTimeMillis() - highWaterSince;
+          highWaterSince = 0;
+        }
+      }
+      if (gone) {
+        log.warn("{} write failed, close session", name);
+        onPeerGone.run();
+      }
+    }
+  }
+
+  /**
+   * 在锁内调用, 等待并合并后续的音频帧, 编码留到锁外
+   */
+  private Frame coalesce(Frame first) {
+    LiveAudioFrame audio = first.audio;
+    int size = first.size;
+    int count = 1;
+    long deadline = System.currentTimeMillis() + COALESCE_MS;
+    batching = true;
+    try {
+      while (audio.size() < COALESCE_BYTES) {
+        Frame next = queue.peek();
+        if (next == null) {
+          long wait = deadline - System.currentTimeMillis();
+          if (closed || wait <= 0) {
+            break;
+          }
+          try {
+            wait(wait);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+          }
+          continue;
+        }
+        if (next.audio == null || !audio.append(next.audio)) {
+          break;
+        }
+        queue.poll();
+        size += next.size;
+        count++;
+      }
+    } finally {
+      batching = false;
+    }
+    return count == 1 ? first : new Frame(null, size, audio, count);
+  }
+
+  private boolean push(Frame frame) {
+    try {
+      return sink.write(frame.data != null ? frame.data : frame.audio.toFrame());
+    } catch (Exception e) {
+      log.warn("{} write error", name, e);
+      return false;
+    }
+  }
+
+  private void dropQueued() {
+    droppedCount += queue.size();
+    bufferedBytes = 0;
+    queue.clear();
+  }
+
+  synchronized Map<String, Object> snapshot() {
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("bufferedFrames", queue.size());
+    map.put("bufferedBytes", bufferedBytes);
+    map.put("maxBufferedBytes", maxBufferedBytes);
+    map.put("sent", sentCount);
+    map.put("writes", writeCount);
+    map.put("dropped", droppedCount);
+    map.put("highWater", highWaterCount);
+    map.put("highWaterMs", highWaterMs);
+    return map;
+  }
+
+  private static class Frame {
+    private final Object data;
+    private final int size;
+    private final LiveAudioFrame audio;
+    private final int count;
+
+    private Frame(Object data, int size, LiveAudioFrame audio) {
+      this(data, size, audio, 1);
+    }
+
+    private Frame(Object data, int size, LiveAudioFrame audio, int count) {
+      this.data = data;
+      this.size = size;
+      this.audio = audio;
+      this.count = count;
+    }
+  }
+}
@@ -0,0 +1,25 @@
+package nexus.io.llm.proxy.handler;
+
+import java.nio.charset.StandardCharsets;
+
+import nexus.io.llm.proxy.metrics.ProxyMetrics;
+import nexus.io.tio.boot.http.TioRequestContext;
+import nexus.io.tio.http.common.HeaderName;
+import nexus.io.tio.http.common.HeaderValue;
+import nexus.io.tio.http.common.HttpRequest;
+import nexus.io.tio.http.common.HttpResponse;
+import nexus.io.tio.http.server.handler.HttpRequestHandler;
+
+/**
+ * Prometheus 抓取接口
+ */
+public class MetricsHandler implements HttpRequestHandler {
+
+  @Override
+  public HttpResponse handle(HttpRequest httpRequest) throws Exception {
+    HttpResponse httpResponse = TioRequestContext.getResponse();
+    httpResponse.addHeader(HeaderName.Content_Type, HeaderValue.from("text/plain; version=0.0.4; charset=utf-8"));
+    httpResponse.setBody(ProxyMetrics.scrape().getBytes(StandardCharsets.UTF_8));
+    return httpResponse;
+  }
+}
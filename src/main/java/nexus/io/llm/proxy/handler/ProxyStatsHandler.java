@@ -0,0 +1,26 @@
+package nexus.io.llm.proxy.handler;
+
+import java.util.function.Supplier;
+
+import nexus.io.tio.boot.http.TioRequestContext;
+import nexus.io.tio.http.common.HttpRequest;
+import nexus.io.tio.http.common.HttpResponse;
+import nexus.io.tio.http.server.handler.HttpRequestHandler;
+
+/**
+ * 以 JSON 返回运行状态, 如各上游的连接池使用情况, 缓存命中率
+ */
+public class ProxyStatsHandler implements HttpRequestHandler {
+
+  private final Supplier<Object> stats;
+
+  public ProxyStatsHandler(Supplier<Object> stats) {
+    this.stats = stats;
+  }
+
+  @Override
+  public HttpResponse handle(HttpRequest httpRequest) throws Exception {
+    HttpResponse httpResponse = TioRequestContext.getResponse();
+    return httpResponse.setJson(stats.get());
+  }
+}
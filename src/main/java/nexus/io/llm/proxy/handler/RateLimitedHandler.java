@@ -0,0 +1,74 @@
+package nexus.io.llm.proxy.handler;
+
+import lombok.extern.slf4j.Slf4j;
+import nexus.io.llm.proxy.limit.RateLimiter;
+import nexus.io.llm.proxy.route.ProviderRoute;
+import nexus.io.llm.proxy.route.ProviderRouteRegistry;
+import nexus.io.model.body.RespBodyVo;
+import nexus.io.tio.boot.http.TioRequestContext;
+import nexus.io.tio.http.common.HeaderName;
+import nexus.io.tio.http.common.HeaderValue;
+import nexus.io.tio.http.common.HttpRequest;
+import nexus.io.tio.http.common.HttpResponse;
+import nexus.io.tio.http.common.utils.HttpIpUtils;
+import nexus.io.tio.http.server.handler.HttpRequestHandler;
+import nexus.io.tio.http.server.util.CORSUtils;
+
+/**
+ * 在转发之前限流, 超限时直接返回 429
+ */
+@Slf4j
+public class RateLimitedHandler implements HttpRequestHandler {
+
+  private final RateLimiter rateLimiter;
+  private final ProviderRouteRegistry routeRegistry;
+  private final String routeName;
+  private final HttpRequestHandler handler;
+
+  /**
+   * 路由名称按请求路径从 routeRegistry 中查找
+   */
+  public RateLimitedHandler(RateLimiter rateLimiter, ProviderRouteRegistry routeRegistry, HttpRequestHandler handler) {
+    this(rateLimiter, routeRegistry, null, handler);
+  }
+
+  /**
+   * 使用固定的路由名称
+   */
+  public RateLimitedHandler(RateLimiter rateLimiter, String routeName, HttpRequestHandler handler) {
+    this(rateLimiter, null, routeName, handler);
+  }
+
+  private RateLimitedHandler(RateLimiter rateLimiter, ProviderRouteRegistry routeRegistry, String routeName,
+      HttpRequestHandler handler) {
+    this.rateLimiter = rateLimiter;
+    this.routeRegistry = routeRegistry;
+    this.routeName = routeName;
+    this.handler = handler;
+  }
+
+  @Override
+  public HttpResponse handle(HttpRequest httpRequest) throws Exception {
+    String route = routeName;
+    if (route == null) {
+      ProviderRoute matched = routeRegistry.match(httpRequest.getRequestURI());
+      route = matched != null ? matched.getName() : null;
+    }
+    byte[] body = httpRequest.getBody();
+    long tokens = RateLimiter.estimateTokens(body != null ? body.length : 0);
+    String realIp = HttpIpUtils.getRealIp(httpRequest);
+
+    RateLimiter.Rejection rejection = rateLimiter.acquire(RateLimiter.apiKey(httpRequest), realIp, route, tokens);
+    if (rejection == null) {
+      return handler.handle(httpRequest);
+    }
+
+    log.warn("id:{},from:{},route:{},rate limited by {}", httpRequest.getId(), realIp, route, rejection.getScope());
+    HttpResponse httpResponse = TioRequestContext.getResponse();
+    CORSUtils.enableCORS(httpResponse);
+    httpResponse.setStatus(429);
+    httpResponse.addHeader(HeaderName.from("Retry-After"),
+        HeaderValue.from(String.valueOf(rejection.getRetryAfterSeconds())));
+    return httpResponse.setJson(RespBodyVo.fail("rate limited: " + rejection.getScope()));
+  }
+}
@@ -0,0 +1,210 @@
+package nexus.io.llm.proxy.handler;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONObject;
+
+import lombok.extern.slf4j.Slf4j;
+import nexus.io.llm.proxy.callback.SSEProxyCallbackEventSourceListener;
+import nexus.io.llm.proxy.client.LLMProxyClient;
+import nexus.io.llm.proxy.client.UpstreamClient;
+import nexus.io.llm.proxy.client.UpstreamClientRegistry;
+import nexus.io.llm.proxy.limit.RateLimiter;
+import nexus.io.llm.proxy.metrics.RequestMetrics;
+import nexus.io.llm.proxy.route.ProviderRoute;
+import nexus.io.llm.proxy.translate.ChatTranslator;
+import nexus.io.llm.proxy.translate.ChatTranslators;
+import nexus.io.llm.proxy.translate.TranslatingEventSourceListener;
+import nexus.io.llm.proxy.usage.UsageMeter;
+import nexus.io.llm.proxy.usage.UsageRecorder;
+import nexus.io.llm.proxy.utils.CompressionUtils;
+import nexus.io.llm.proxy.utils.LLMRequestScanner;
+import nexus.io.llm.proxy.utils.ProxyResponseUtils;
+import nexus.io.model.body.RespBodyVo;
+import nexus.io.tio.boot.http.TioRequestContext;
+import nexus.io.tio.core.ChannelContext;
+import nexus.io.tio.core.Tio;
+import nexus.io.tio.http.common.HeaderName;
+import nexus.io.tio.http.common.HeaderValue;
+import nexus.io.tio.http.common.HttpRequest;
+import nexus.io.tio.http.common.HttpResponse;
+import nexus.io.tio.http.common.utils.HttpIpUtils;
+import nexus.io.tio.http.server.handler.HttpRequestHandler;
+import nexus.io.tio.http.server.util.CORSUtils;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okhttp3.sse.EventSourceListener;
+
+/**
+ * OpenAI 格式的请求按模型翻译成 Anthropic 或 Gemini 的原生请求, 流式响应逐个事件翻译回 chat.completion.chunk,
+ * 非流式响应翻译回 chat.completion. 模型不需要翻译时交给 handler. 上游的错误响应原样返回
+ */
+@Slf4j
+public class TranslatingChatHandler implements HttpRequestHandler {
+
+  private final ChatTranslators translators;
+  private final UpstreamClientRegistry upstreamClients;
+  private final UsageRecorder usage;
+  private final HttpRequestHandler handler;
+
+  /**
+   * @param usage token 用量统计, null 表示不统计
+   */
+  public TranslatingChatHandler(ChatTranslators translators, UpstreamClientRegistry upstreamClients,
+      UsageRecorder usage, HttpRequestHandler handler) {
+    this.translators = translators;
+    this.upstreamClients = upstreamClients;
+    this.usage = usage;
+    this.handler = handler;
+  }
+
+  @Override
+  public HttpResponse handle(HttpRequest httpRequest) throws Exception {
+    byte[] body = httpRequest.getBody();
+    if (body == null || body.length == 0) {
+      return handler.handle(httpRequest);
+    }
+    // 先按扫描出的模型判断, 不需要翻译的请求不解析整个请求体
+    ChatTranslators.Target target = translators.resolve(LLMRequestScanner.scan(body).getModel());
+    if (target == null) {
+      return handler.handle(httpRequest);
+    }
+    JSONObject request;
+    try {
+      request = JSON.parseObject(body);
+    } catch (Exception e) {
+      return handler.handle(httpRequest);
+    }
+    if (request == null) {
+      return handler.handle(httpRequest);
+    }
+
+    long start = System.currentTimeMillis();
+    HttpResponse httpResponse = TioRequestContext.getResponse();
+    CORSUtils.enableCORS(httpResponse);
+    Long id = httpRequest.getId();
+    String realIp = HttpIpUtils.getRealIp(httpRequest);
+
+    ProviderRoute route = target.getRoute();
+    ChatTranslator translator = target.getTranslator();
+    String model = target.getModel();
+    boolean stream = request.getBooleanValue("stream");
+    byte[] upstreamBody = JSON.toJSONBytes(translator.request(request, model, stream));
+    String url = translator.url(route.getBaseUrl(), model, stream);
+    Map<String, String> headers = new HashMap<>();
+    translator.credentials(httpRequest, headers);
+    UpstreamClient upstream = upstreamClients.get(route);
+    RequestMetrics metrics = RequestMetrics.start(id, realIp, route.getName(), model, body);
+
+    try {
+      UsageMeter usageMeter = usage != null ? usage.meter(route.getName(), RateLimiter.apiKey(httpRequest), model)
+          : null;
+      log.debug("id:{},translate {} to {}", id, request.getString("model"), url);
+
+      if (stream) {
+        httpResponse.setSend(false);
+        ChannelContext channelContext = httpRequest.getChannelContext();
+        boolean gzip = CompressionUtils.negotiateSse(httpRequest.getHeader("accept-encoding"));
+        EventSourceListener listener = new TranslatingEventSourceListener(
+            translator.stream(request, request.getString("model")),
+            new SSEProxyCallbackEventSourceListener(id, channelContext, httpResponse, start, null, metrics, gzip));
+        if (usageMeter != null) {
+          // 用量按上游的原生事件统计
+          listener = usageMeter.wrap(listener);
+        }
+        upstream.stream(url, headers, upstreamBody, LLMProxyClient.DEFAULT_CONTENT_TYPE, listener);
+        return httpResponse;
+      }
+
+      String acceptEncoding = httpRequest.getHeader("accept-encoding");
+      String clientModel = request.getString("model");
+      if (LLMProxyClient.isAsync()) {
+        httpResponse.setSend(false);
+        ChannelContext channelContext = httpRequest.getChannelContext();
+        Callback callback = new Callback() {
+          @Override
+          public void onResponse(Call call, Response response) {
+            metrics.firstByte();
+            try (Response r = response) {
+              write(r, translator, clientModel, acceptEncoding, httpResponse, metrics);
+            } catch (IOException e) {
+              onFailure(call, e);
+              return;
+            } catch (RuntimeException e) {
+              // 上游响应不是预期的格式, 翻译失败
+              onFailure(call, new IOException(e));
+              return;
+            }
+            Tio.send(channelContext, httpResponse);
+          }
+
+          @Override
+          public void onFailure(Call call, IOException e) {
+            log.error("id:{},{}", id, e.getMessage(), e);
+            metrics.finish(502);
+            httpResponse.setStatus(502);
+            httpResponse.setJson(RespBodyVo.fail(e.getMessage()));
+            Tio.send(channelContext, httpResponse);
+          }
+        };
+        if (usageMeter != null) {
+          callback = usageMeter.wrap(callback);
+        }
+        upstream.enqueue(url, headers, upstreamBody, LLMProxyClient.DEFAULT_CONTENT_TYPE, callback);
+        return httpResponse;
+      }
+      Response upstreamResponse;
+      try {
+        upstreamResponse = upstream.generate(url, headers, upstreamBody, LLMProxyClient.DEFAULT_CONTENT_TYPE);
+      } catch (IOException e) {
+        metrics.finish(502);
+        throw e;
+      }
+      metrics.firstByte();
+      try (Response response = upstreamResponse) {
+        if (usageMeter != null) {
+          usageMeter.status(response.code());
+          usageMeter.scan(response.peekBody(usage.getPeekBytes()).bytes(), null);
+          usageMeter.finish();
+        }
+        write(response, translator, clientModel, acceptEncoding, httpResponse, metrics);
+      } catch (IOException | RuntimeException e) {
+        metrics.finish(502);
+        log.error("id:{},{}", id, e.getMessage(), e);
+        httpResponse.setStatus(502);
+        httpResponse.setJson(RespBodyVo.fail(e.getMessage()));
+      }
+      return httpResponse;
+    } catch (Throwable e) {
+      // 异常时没有回调会结束 metrics, 在这里结束, 否则进行中的请求数一直不减
+      metrics.finish(500);
+      throw e;
+    }
+  }
+
+  /**
+   * 没有转发客户端的 Accept-Encoding, 上游响应已由 OkHttp 解压
+   */
+  private static void write(Response response, ChatTranslator translator, String model, String acceptEncoding,
+      HttpResponse httpResponse, RequestMetrics metrics) throws IOException {
+    if (!response.isSuccessful()) {
+      byte[] bytes = ProxyResponseUtils.copy(response, httpResponse);
+      metrics.finish(response.code(), bytes);
+      return;
+    }
+    ResponseBody responseBody = response.body();
+    byte[] bytes = responseBody != null ? responseBody.bytes() : new byte[0];
+    JSONObject translated = translator.response(JSON.parseObject(new String(bytes, StandardCharsets.UTF_8)), model);
+    byte[] out = JSON.toJSONBytes(translated);
+    httpResponse.setStatus(200);
+    httpResponse.addHeader(HeaderName.Content_Type, HeaderValue.from(LLMProxyClient.DEFAULT_CONTENT_TYPE));
+    CompressionUtils.setBody(httpResponse, out, LLMProxyClient.DEFAULT_CONTENT_TYPE, null, acceptEncoding);
+    metrics.finish(200, out);
+  }
+}
@@ -0,0 +1,77 @@
+package nexus.io.llm.proxy.keys;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 池中的一个上游密钥和它的实时状态
+ */
+public class ApiKey {
+
+  /** 上游没有返回剩余额度时的取值 */
+  static final long UNKNOWN = Long.MAX_VALUE;
+
+  private final String value;
+  private final int weight;
+  final AtomicInteger inFlight = new AtomicInteger();
+  final LongAdder requests = new LongAdder();
+  final LongAdder throttled = new LongAdder();
+  volatile long cooldownUntil;
+  volatile long remainingRequests = UNKNOWN;
+  volatile long remainingTokens = UNKNOWN;
+
+  public ApiKey(String value, int weight) {
+    this.value = value;
+    this.weight = Math.max(1, weight);
+  }
+
+  boolean isAvailable(long now) {
+    return cooldownUntil <= now;
+  }
+
+  /**
+   * 加权后的负载, 越小越优先
+   */
+  double load() {
+    return (inFlight.get() + 1) / (double) weight;
+  }
+
+  void cooldown(long until) {
+    if (until > cooldownUntil) {
+      cooldownUntil = until;
+    }
+  }
+
+  public String getValue() {
+    return value;
+  }
+
+  public int getWeight() {
+    return weight;
+  }
+
+  /**
+   * 只显示首尾几位
+   */
+  public String masked() {
+    if (value.length() <= 12) {
+      return "***";
+    }
+    return value.substring(0, 6) + "..." + value.substring(value.length() - 4);
+  }
+
+  Map<String, Object> snapshot(long now) {
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("key", masked());
+    map.put("weight", weight);
+    map.put("inFlight", inFlight.get());
+    map.put("requests", requests.sum());
+    map.put("throttled", throttled.sum());
+    map.put("cooldownMs", Math.max(0, cooldownUntil - now));
+    map.put("remainingRequests", remainingRequests == UNKNOWN ? null : remainingRequests);
+    map.put("remainingTokens", remainingTokens == UNKNOWN ? null : remainingTokens);
+    return map;
+  }
+}
@@ -0,0 +1,100 @@
+package nexus.io.llm.proxy.keys;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import nexus.io.tio.utils.environment.EnvUtils;
+
+/**
+ * 允许使用服务端密钥池的客户端. 客户端在 authorization: Bearer, x-api-key, x-goog-api-key 或 ?key= 中携带代理自己的令牌,
+ * 或者来自允许的 IP. IP 取 {@link nexus.io.tio.http.common.utils.HttpIpUtils#getRealIp}, 经过反向代理时由它决定是否信任转发头
+ */
+public class ClientAllowList {
+
+  private final List<byte[]> tokens;
+  private final Set<String> ips;
+
+  public ClientAllowList(List<String> tokens, Set<String> ips) {
+    this.tokens = new ArrayList<>(tokens.size());
+    for (String token : tokens) {
+      this.tokens.add(token.getBytes(StandardCharsets.UTF_8));
+    }
+    this.ips = ips;
+  }
+
+  /**
+   * 路由自己的配置优先, 没有时使用全局的 llm.proxy.keys.client.tokens 和 llm.proxy.keys.client.ips
+   */
+  public static ClientAllowList fromEnv(String route) {
+    String prefix = "llm.proxy.route." + route + ".";
+    List<String> tokens = split(EnvUtils.getStr(prefix + "client.tokens",
+        EnvUtils.getStr("llm.proxy.keys.client.tokens")));
+    Set<String> ips = new HashSet<>(split(EnvUtils.getStr(prefix + "client.ips",
+        EnvUtils.getStr("llm.proxy.keys.client.ips"))));
+    return new ClientAllowList(tokens, ips);
+  }
+
+  /**
+   * 运行状态接口和 /metrics 的访问控制, llm.proxy.admin.enabled 默认关闭, 关闭时返回 null, 不注册这些接口. 开启后只允许
+   * llm.proxy.admin.tokens 中的令牌或 llm.proxy.admin.ips 中的 IP, 两者都没有配置时拒绝所有请求
+   */
+  public static ClientAllowList adminFromEnv() {
+    if (!EnvUtils.getBoolean("llm.proxy.admin.enabled", false)) {
+      return null;
+    }
+    List<String> tokens = split(EnvUtils.getStr("llm.proxy.admin.tokens"));
+    Set<String> ips = new HashSet<>(split(EnvUtils.getStr("llm.proxy.admin.ips")));
+    return new ClientAllowList(tokens, ips);
+  }
+
+  private static List<String> split(String value) {
+    List<String> list = new ArrayList<>();
+    if (value != null) {
+      for (String item : value.split(",")) {
+        item = item.trim();
+        if (!item.isEmpty()) {
+          list.add(item);
+        }
+      }
+    }
+    return list;
+  }
+
+  public boolean isEmpty() {
+    return tokens.isEmpty() && ips.isEmpty();
+  }
+
+  /**
+   * @param credential 客户端携带的凭证, 可以带 Bearer 前缀
+   */
+  public boolean allows(String credential, String ip) {
+    if (ip != null && ips.contains(ip)) {
+      return true;
+    }
+    if (credential == null) {
+      return false;
+    }
+    if (credential.regionMatches(true, 0, "Bearer ", 0, 7)) {
+      credential = credential.substring(7).trim();
+    }
+    byte[] bytes = credential.getBytes(StandardCharsets.UTF_8);
+    boolean matched = false;
+    for (byte[] token : tokens) {
+      // 逐个比较完, 不因提前返回暴露匹配位置
+      matched |= MessageDigest.isEqual(token, bytes);
+    }
+    return matched;
+  }
+
+  public int getTokenCount() {
+    return tokens.size();
+  }
+
+  public int getIpCount() {
+    return ips.size();
+  }
+}
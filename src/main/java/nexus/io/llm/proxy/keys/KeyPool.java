@@ -0,0 +1,215 @@
+package nexus.io.llm.proxy.keys;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+import okhttp3.sse.EventSource;
+import okhttp3.sse.EventSourceListener;
+
+/**
+ * 一个上游的服务端密钥池. 每个请求选择未处于冷却中且 (进行中请求数 + 1) / 权重 最小的密钥, 相同时选剩余额度多的.
+ * <p>
+ * 根据上游返回的 x-ratelimit-*, anthropic-ratelimit-* 和 retry-after 更新剩余额度, 额度用完或返回 429 时冷却到重置时间
+ */
+@Slf4j
+public class KeyPool {
+
+  /** 请求中可能携带的客户端密钥, 使用池中密钥时全部去掉 */
+  private static final String[] CREDENTIAL_HEADERS = { "authorization", "x-api-key", "x-goog-api-key" };
+
+  private final String name;
+  private final ApiKey[] keys;
+  private final String header;
+  private final String scheme;
+  private final long defaultCooldownMillis;
+  private final AtomicInteger cursor = new AtomicInteger();
+
+  /**
+   * @param header 写入密钥的请求头
+   * @param scheme 密钥前缀, 如 "Bearer ", 没有时为空字符串
+   */
+  public KeyPool(String name, List<ApiKey> keys, String header, String scheme, long defaultCooldownMillis) {
+    this.name = name;
+    this.keys = keys.toArray(new ApiKey[0]);
+    this.header = header;
+    this.scheme = scheme;
+    this.defaultCooldownMillis = defaultCooldownMillis;
+  }
+
+  /**
+   * @return 所有密钥都在冷却中时返回 null
+   */
+  public Lease acquire() {
+    long now = System.currentTimeMillis();
+    int n = keys.length;
+    int start = (cursor.getAndIncrement() & Integer.MAX_VALUE) % n;
+    ApiKey best = null;
+    double bestLoad = 0;
+    for (int i = 0; i < n; i++) {
+      ApiKey key = keys[(start + i) % n];
+      if (!key.isAvailable(now)) {
+        continue;
+      }
+      double load = key.load();
+      if (best == null || load < bestLoad || (load == bestLoad && key.remainingRequests > best.remainingRequests)) {
+        best = key;
+        bestLoad = load;
+      }
+    }
+    if (best == null) {
+      return null;
+    }
+    best.inFlight.incrementAndGet();
+    best.requests.increment();
+    return new Lease(best);
+  }
+
+  /**
+   * 最早结束冷却的剩余毫秒数
+   */
+  public long retryAfterMillis() {
+    long now = System.currentTimeMillis();
+    long min = Long.MAX_VALUE;
+    for (ApiKey key : keys) {
+      min = Math.min(min, key.cooldownUntil - now);
+    }
+    return Math.max(0, min);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public List<Map<String, Object>> snapshot() {
+    long now = System.currentTimeMillis();
+    List<Map<String, Object>> list = new ArrayList<>(keys.length);
+    for (ApiKey key : keys) {
+      list.add(key.snapshot(now));
+    }
+    return list;
+  }
+
+  /**
+   * 一次请求占用的密钥. 收到响应头后调用 update, 请求结束后调用 release
+   */
+  public class Lease {
+    private final ApiKey key;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private Lease(ApiKey key) {
+      this.key = key;
+    }
+
+    /**
+     * 去掉客户端的密钥, 写入池中的密钥
+     */
+    public void apply(Map<String, String> headers) {
+      for (String credential : CREDENTIAL_HEADERS) {
+        headers.remove(credential);
+      }
+      headers.put(header, scheme + key.getValue());
+    }
+
+    public void update(Response response) {
+      if (response == null) {
+        return;
+      }
+      long now = System.currentTimeMillis();
+      Long remainingRequests = RateLimitHeaders.firstLong(response, "x-ratelimit-remaining-requests",
+          "anthropic-ratelimit-requests-remaining");
+      Long remainingTokens = RateLimitHeaders.firstLong(response, "x-ratelimit-remaining-tokens",
+          "anthropic-ratelimit-tokens-remaining");
+      if (remainingRequests != null) {
+        key.remainingRequests = remainingRequests;
+        if (remainingRequests <= 0) {
+          key.cooldown(RateLimitHeaders.resetAt(response, now, defaultCooldownMillis, "x-ratelimit-reset-requests",
+              "anthropic-ratelimit-requests-reset"));
+        }
+      }
+      if (remainingTokens != null) {
+        key.remainingTokens = remainingTokens;
+        if (remainingTokens <= 0) {
+          key.cooldown(RateLimitHeaders.resetAt(response, now, defaultCooldownMillis, "x-ratelimit-reset-tokens",
+              "anthropic-ratelimit-tokens-reset"));
+        }
+      }
+      int code = response.code();
+      if (code == 429 || code == 503 || response.header("retry-after") != null) {
+        key.throttled.increment();
+        long until = RateLimitHeaders.resetAt(response, now, defaultCooldownMillis, "retry-after",
+            "x-ratelimit-reset-requests", "anthropic-ratelimit-requests-reset");
+        key.cooldown(until);
+        log.warn("{} key {} throttled with {}, cool down {} ms", name, key.masked(), code, until - now);
+      }
+    }
+
+    public void release() {
+      if (released.compareAndSet(false, true)) {
+        key.inFlight.decrementAndGet();
+      }
+    }
+
+    public ApiKey getKey() {
+      return key;
+    }
+
+    /**
+     * 异步请求: 收到响应后更新并释放
+     */
+    public Callback wrap(Callback callback) {
+      return new Callback() {
+        @Override
+        public void onResponse(Call call, Response response) throws IOException {
+          update(response);
+          release();
+          callback.onResponse(call, response);
+        }
+
+        @Override
+        public void onFailure(Call call, IOException e) {
+          release();
+          callback.onFailure(call, e);
+        }
+      };
+    }
+
+    /**
+     * 流式请求: 流结束后才释放
+     */
+    public EventSourceListener wrap(EventSourceListener listener) {
+      return new EventSourceListener() {
+        @Override
+        public void onOpen(EventSource eventSource, Response response) {
+          update(response);
+          listener.onOpen(eventSource, response);
+        }
+
+        @Override
+        public void onEvent(EventSource eventSource, String id, String type, String data) {
+          listener.onEvent(eventSource, id, type, data);
+        }
+
+        @Override
+        public void onClosed(EventSource eventSource) {
+          release();
+          listener.onClosed(eventSource);
+        }
+
+        @Override
+        public void onFailure(EventSource eventSource, Throwable t, Response response) {
+          update(response);
+          release();
+          listener.onFailure(eventSource, t, response);
+        }
+      };
+    }
+  }
+}
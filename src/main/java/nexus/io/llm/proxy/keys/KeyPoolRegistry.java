@@ -0,0 +1,126 @@
+package nexus.io.llm.proxy.keys;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.extern.slf4j.Slf4j;
+import nexus.io.llm.proxy.limit.RateLimiter;
+import nexus.io.llm.proxy.route.ProviderRoute;
+import nexus.io.llm.proxy.route.ProviderRouteRegistry;
+import nexus.io.tio.http.common.HttpRequest;
+import nexus.io.tio.http.common.utils.HttpIpUtils;
+import nexus.io.tio.utils.environment.EnvUtils;
+
+/**
+ * 按路由配置的服务端密钥池, 没有配置 keys 的路由继续转发客户端的密钥
+ *
+ * <pre>
+ * llm.proxy.route.openai.keys=sk-a,sk-b,sk-c
+ * llm.proxy.route.openai.key.weights=2,1,1
+ * llm.proxy.route.openai.key.header=authorization
+ * llm.proxy.keys.cooldown.ms=10000
+ * llm.proxy.keys.client.tokens=proxy-token-a,proxy-token-b
+ * llm.proxy.keys.client.ips=10.0.0.5
+ * llm.proxy.route.openai.client.tokens=proxy-token-c
+ * llm.proxy.keys.allow.anonymous=false
+ * </pre>
+ *
+ * key.header 默认按路由转发的请求头推断: x-api-key, x-goog-api-key 原样写入, 否则写入 authorization: Bearer
+ * <p>
+ * 只有携带 client.tokens 中的令牌或来自 client.ips 的请求可以使用密钥池, 否则任何能访问代理的人都在花池中密钥的额度.
+ * 两者都没有配置的路由拒绝所有请求, 除非 allow.anonymous=true (代理前面已经有自己的鉴权时使用)
+ */
+@Slf4j
+public class KeyPoolRegistry {
+
+  private final Map<String, KeyPool> pools = new LinkedHashMap<>();
+  private final Map<String, ClientAllowList> clients = new HashMap<>();
+  private final LongAdder unauthorized = new LongAdder();
+  private boolean anonymous;
+
+  public static KeyPoolRegistry fromEnv(ProviderRouteRegistry routeRegistry) {
+    KeyPoolRegistry registry = new KeyPoolRegistry();
+    long cooldown = EnvUtils.getLong("llm.proxy.keys.cooldown.ms", 10000L);
+    registry.anonymous = EnvUtils.getBoolean("llm.proxy.keys.allow.anonymous", false);
+    for (ProviderRoute route : routeRegistry.getRoutes()) {
+      String prefix = "llm.proxy.route." + route.getName() + ".";
+      String values = EnvUtils.getStr(prefix + "keys");
+      if (values == null || values.trim().isEmpty()) {
+        continue;
+      }
+      String[] weights = EnvUtils.getStr(prefix + "key.weights", "").split(",");
+      List<ApiKey> keys = new ArrayList<>();
+      for (String value : values.split(",")) {
+        value = value.trim();
+        if (!value.isEmpty()) {
+          int index = keys.size();
+          String weight = index < weights.length ? weights[index].trim() : "";
+          keys.add(new ApiKey(value, weight.isEmpty() ? 1 : Integer.parseInt(weight)));
+        }
+      }
+      String header = EnvUtils.getStr(prefix + "key.header", defaultHeader(route));
+      String scheme = "authorization".equals(header) ? "Bearer " : "";
+      registry.pools.put(route.getName(), new KeyPool(route.getName(), keys, header, scheme, cooldown));
+      ClientAllowList allowList = ClientAllowList.fromEnv(route.getName());
+      registry.clients.put(route.getName(), allowList);
+      log.info("route {} uses {} server side keys in header {}, client tokens:{}, client ips:{}", route.getName(),
+          keys.size(), header, allowList.getTokenCount(), allowList.getIpCount());
+      if (allowList.isEmpty() && !registry.anonymous) {
+        log.warn("route {} has server side keys but no llm.proxy.keys.client.tokens or client.ips, all requests "
+            + "will be rejected", route.getName());
+      }
+    }
+    return registry;
+  }
+
+  private static String defaultHeader(ProviderRoute route) {
+    List<String> headers = Arrays.asList(route.getForwardHeaders());
+    if (headers.contains("x-api-key")) {
+      return "x-api-key";
+    }
+    if (headers.contains("x-goog-api-key")) {
+      return "x-goog-api-key";
+    }
+    return "authorization";
+  }
+
+  /**
+   * @return 没有配置密钥池时返回 null
+   */
+  public KeyPool get(ProviderRoute route) {
+    return pools.get(route.getName());
+  }
+
+  /**
+   * 客户端是否可以使用该路由的密钥池, 没有密钥池的路由总是返回 true
+   */
+  public boolean authorize(ProviderRoute route, HttpRequest httpRequest) {
+    ClientAllowList allowList = clients.get(route.getName());
+    if (allowList == null || (anonymous && allowList.isEmpty())) {
+      return true;
+    }
+    if (allowList.allows(RateLimiter.apiKey(httpRequest), HttpIpUtils.getRealIp(httpRequest))) {
+      return true;
+    }
+    unauthorized.increment();
+    return false;
+  }
+
+  public boolean isEmpty() {
+    return pools.isEmpty();
+  }
+
+  public Map<String, Object> snapshot() {
+    Map<String, Object> map = new LinkedHashMap<>();
+    for (KeyPool pool : pools.values()) {
+      map.put(pool.getName(), pool.snapshot());
+    }
+    map.put("unauthorized", unauthorized.sum());
+    return map;
+  }
+}
@@ -0,0 +1,103 @@
+package nexus.io.llm.proxy.keys;
+
+import java.time.Instant;
+
+import okhttp3.Response;
+
+/**
+ * 解析上游的限流响应头
+ * <ul>
+ * <li>x-ratelimit-reset-*: OpenAI 格式的时长, 如 1s, 6m0s, 20ms</li>
+ * <li>anthropic-ratelimit-*-reset: RFC 3339 时间</li>
+ * <li>retry-after: 秒数</li>
+ * </ul>
+ */
+public class RateLimitHeaders {
+
+  static Long firstLong(Response response, String... names) {
+    for (String name : names) {
+      String value = response.header(name);
+      if (value != null) {
+        try {
+          return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+          // ignore
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * 第一个能解析的重置时间, 都没有时为 now + defaultMillis
+   */
+  static long resetAt(Response response, long now, long defaultMillis, String... names) {
+    for (String name : names) {
+      String value = response.header(name);
+      if (value == null || value.isEmpty()) {
+        continue;
+      }
+      long millis = parseReset(value.trim(), now);
+      if (millis >= 0) {
+        return now + millis;
+      }
+    }
+    return now + defaultMillis;
+  }
+
+  /**
+   * @return 距离重置的毫秒数, 无法解析时返回 -1
+   */
+  public static long parseReset(String value, long now) {
+    try {
+      if (value.indexOf('T') > 0) {
+        return Math.max(0, Instant.parse(value).toEpochMilli() - now);
+      }
+      boolean digits = true;
+      for (int i = 0; i < value.length() && digits; i++) {
+        digits = Character.isDigit(value.charAt(i)) || value.charAt(i) == '.';
+      }
+      if (digits) {
+        return (long) (Double.parseDouble(value) * 1000);
+      }
+      return parseDuration(value);
+    } catch (RuntimeException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * 1h2m3.5s, 20ms
+   */
+  static long parseDuration(String value) {
+    double total = 0;
+    int i = 0;
+    int len = value.length();
+    while (i < len) {
+      int start = i;
+      while (i < len && (Character.isDigit(value.charAt(i)) || value.charAt(i) == '.')) {
+        i++;
+      }
+      if (start == i) {
+        return -1;
+      }
+      double number = Double.parseDouble(value.substring(start, i));
+      if (value.startsWith("ms", i)) {
+        total += number;
+        i += 2;
+      } else if (i < len && value.charAt(i) == 's') {
+        total += number * 1000;
+        i++;
+      } else if (i < len && value.charAt(i) == 'm') {
+        total += number * 60_000;
+        i++;
+      } else if (i < len && value.charAt(i) == 'h') {
+        total += number * 3_600_000;
+        i++;
+      } else {
+        return -1;
+      }
+    }
+    return (long) total;
+  }
+}
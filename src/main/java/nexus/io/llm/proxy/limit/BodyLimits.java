@@ -0,0 +1,156 @@
+package nexus.io.llm.proxy.limit;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.extern.slf4j.Slf4j;
+import nexus.io.llm.proxy.mode.LLMRequestFields;
+import nexus.io.llm.proxy.route.ProviderRoute;
+import nexus.io.llm.proxy.route.StreamMode;
+import nexus.io.llm.proxy.utils.LLMRequestScanner;
+import nexus.io.tio.http.common.HttpRequest;
+import nexus.io.tio.utils.environment.EnvUtils;
+
+/**
+ * 请求体大小上限和大请求体的处理方式.
+ *
+ * <pre>
+ * llm.proxy.body.max.bytes=33554432               所有路由的上限, 0 表示不限制
+ * llm.proxy.body.route.google.max.bytes=104857600 按路由覆盖
+ * llm.proxy.body.large.bytes=1048576              超过时按大请求体处理
+ * llm.proxy.body.scan.bytes=65536                 大请求体只在前 scan.bytes 字节中查找 stream 和 model
+ * </pre>
+ *
+ * 限制分两层:
+ * <ul>
+ * <li>所有路由上限中的最大值配置为 tio 的 POST 请求体上限({@link #serverMaxBytes}), tio 解码时按 Content-Length 拒绝并断开连接,
+ * 不读取, 不缓冲请求体. 有路由不限制(0)时不设置</li>
+ * <li>没有超过最大值但超过所在路由上限的请求, 在 tio 读完请求体之后, 限流, 解析和访问上游之前返回 413</li>
+ * </ul>
+ * 大请求体(内联图片, 视频的 base64)不计算缓存 key, 计算 key 需要把整个请求体解析成 JSON 树再序列化一遍; 转发时分块写给上游.
+ * 流式标志在请求体中, 前缀里又没有 stream 字段时仍然扫描整个请求体, 扫描不分配内存
+ */
+@Slf4j
+public class BodyLimits {
+
+  private final long maxBytes;
+  private final int largeBytes;
+  private final int scanBytes;
+  private final Map<String, Long> routes = new ConcurrentHashMap<>();
+
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder large = new LongAdder();
+  private final LongAdder fullScans = new LongAdder();
+
+  public BodyLimits(long maxBytes, int largeBytes, int scanBytes) {
+    this.maxBytes = maxBytes;
+    this.largeBytes = largeBytes;
+    this.scanBytes = scanBytes;
+  }
+
+  public static BodyLimits fromEnv() {
+    long maxBytes = EnvUtils.getLong("llm.proxy.body.max.bytes", 32L * 1024 * 1024);
+    int largeBytes = EnvUtils.getInt("llm.proxy.body.large.bytes", 1024 * 1024);
+    int scanBytes = EnvUtils.getInt("llm.proxy.body.scan.bytes", 64 * 1024);
+    log.info("llm proxy body max:{}, large:{}, scan:{}", maxBytes, largeBytes, scanBytes);
+    return new BodyLimits(maxBytes, largeBytes, scanBytes);
+  }
+
+  /**
+   * @return 超过上限时返回上限, 否则返回 0
+   */
+  public long exceeded(String route, HttpRequest httpRequest) {
+    long max = route != null ? maxBytes(route) : maxBytes;
+    if (max <= 0) {
+      return 0;
+    }
+    long length = contentLength(httpRequest);
+    if (length < 0) {
+      byte[] body = httpRequest.getBody();
+      length = body != null ? body.length : 0;
+    }
+    if (length > max) {
+      rejected.increment();
+      return max;
+    }
+    return 0;
+  }
+
+  /**
+   * 交给 tio 在读取请求体之前检查的上限
+   *
+   * @return 全局和各路由上限中的最大值, 有任何一个不限制时返回 0
+   */
+  public long serverMaxBytes(Collection<String> routeNames) {
+    if (maxBytes <= 0) {
+      return 0;
+    }
+    long max = maxBytes;
+    for (String route : routeNames) {
+      long routeMax = maxBytes(route);
+      if (routeMax <= 0) {
+        return 0;
+      }
+      max = Math.max(max, routeMax);
+    }
+    return max;
+  }
+
+  private long maxBytes(String route) {
+    // 路由数量很少, 读取一次配置后保存
+    Long max = routes.get(route);
+    if (max == null) {
+      max = routes.computeIfAbsent(route,
+          k -> EnvUtils.getLong("llm.proxy.body.route." + k + ".max.bytes", maxBytes));
+    }
+    return max;
+  }
+
+  private static long contentLength(HttpRequest httpRequest) {
+    String value = httpRequest.getHeader("content-length");
+    if (value == null) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  public boolean isLarge(byte[] body) {
+    return body.length > largeBytes;
+  }
+
+  /**
+   * 读取 stream 和 model, 大请求体只扫描前缀
+   */
+  public LLMRequestFields scan(ProviderRoute route, byte[] body) {
+    if (!isLarge(body)) {
+      return LLMRequestScanner.scan(body);
+    }
+    large.increment();
+    LLMRequestFields fields = LLMRequestScanner.scan(body, scanBytes);
+    if (fields.getStream() == null && route.getStreamMode() != StreamMode.PATH) {
+      // stream 在请求体的后面, 判断错会按错误的方式返回响应
+      fullScans.increment();
+      return LLMRequestScanner.scan(body);
+    }
+    return fields;
+  }
+
+  public Map<String, Object> snapshot() {
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("maxBytes", maxBytes);
+    map.put("largeBytes", largeBytes);
+    map.put("scanBytes", scanBytes);
+    map.put("routes", new LinkedHashMap<>(routes));
+    map.put("rejected", rejected.sum());
+    map.put("large", large.sum());
+    map.put("fullScans", fullScans.sum());
+    return map;
+  }
+}
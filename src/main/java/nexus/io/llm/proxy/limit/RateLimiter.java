@@ -0,0 +1,345 @@
+package nexus.io.llm.proxy.limit;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.extern.slf4j.Slf4j;
+import nexus.io.llm.proxy.cluster.SharedCounter;
+import nexus.io.llm.proxy.cluster.SharedState;
+import nexus.io.llm.proxy.utils.KeyFingerprint;
+import nexus.io.tio.http.common.HttpRequest;
+import nexus.io.tio.utils.environment.EnvUtils;
+
+/**
+ * 准入限流, 默认关闭. 按 API key, 客户端 IP, 路由分别限制每秒请求数(rps)和每秒估算 token 数(tps), 0 表示不限制
+ *
+ * <pre>
+ * llm.proxy.limit.enabled=true
+ * llm.proxy.limit.key.rps=10
+ * llm.proxy.limit.key.tps=50000
+ * llm.proxy.limit.ip.rps=20
+ * llm.proxy.limit.ip.tps=0
+ * llm.proxy.limit.route.rps=1000
+ * llm.proxy.limit.route.openai.rps=500
+ * llm.proxy.limit.burst.seconds=1
+ * </pre>
+ *
+ * token 数按请求体字节数 / 4 估算. 任意一项超限时返回 429, 不访问上游.
+ * <p>
+ * 配置了 {@link SharedState} 时限制的是整个集群的速率: 放行的请求计入共享计数器, 其他节点的消耗同步过来后从本地的桶中扣除.
+ * 判断仍然只读本地的桶, 集群的总速率最多超出一个同步周期内其他节点放行的量
+ */
+@Slf4j
+public class RateLimiter {
+
+  public static final String SCOPE_KEY = "key";
+  public static final String SCOPE_IP = "ip";
+  public static final String SCOPE_ROUTE = "route";
+
+  private static final int MAX_ENTRIES = EnvUtils.getInt("llm.proxy.limit.max.entries", 100000);
+  private static final int STRIPES = Runtime.getRuntime().availableProcessors();
+
+  private final double burstSeconds;
+  private final Limit keyLimit;
+  private final Limit ipLimit;
+  private final Limit routeLimit;
+  private final SharedState shared;
+
+  private final Map<String, Buckets> keys = new ConcurrentHashMap<>();
+  private final Map<String, Buckets> ips = new ConcurrentHashMap<>();
+  private final Map<String, Buckets> routes = new ConcurrentHashMap<>();
+
+  private final LongAdder allowed = new LongAdder();
+  private final LongAdder keyRejected = new LongAdder();
+  private final LongAdder ipRejected = new LongAdder();
+  private final LongAdder routeRejected = new LongAdder();
+
+  public RateLimiter(Limit keyLimit, Limit ipLimit, Limit routeLimit, double burstSeconds) {
+    this(keyLimit, ipLimit, routeLimit, burstSeconds, null);
+  }
+
+  /**
+   * @param shared 集群共享的计数, null 表示只限制本节点
+   */
+  public RateLimiter(Limit keyLimit, Limit ipLimit, Limit routeLimit, double burstSeconds, SharedState shared) {
+    this.keyLimit = keyLimit;
+    this.ipLimit = ipLimit;
+    this.routeLimit = routeLimit;
+    this.burstSeconds = burstSeconds;
+    this.shared = shared;
+  }
+
+  /**
+   * 未开启时返回 null
+   */
+  public static RateLimiter fromEnv() {
+    return fromEnv(null);
+  }
+
+  public static RateLimiter fromEnv(SharedState shared) {
+    if (!EnvUtils.getBoolean("llm.proxy.limit.enabled", false)) {
+      return null;
+    }
+    Limit key = Limit.fromEnv("llm.proxy.limit.key.", Limit.NONE);
+    Limit ip = Limit.fromEnv("llm.proxy.limit.ip.", Limit.NONE);
+    Limit route = Limit.fromEnv("llm.proxy.limit.route.", Limit.NONE);
+    double burstSeconds = Double.parseDouble(EnvUtils.getStr("llm.proxy.limit.burst.seconds", "1"));
+    log.info("llm proxy rate limit key:{}, ip:{}, route:{}, burst:{}s, shared:{}", key, ip, route, burstSeconds,
+        shared != null);
+    return new RateLimiter(key, ip, route, burstSeconds, shared);
+  }
+
+  /**
+   * 客户端携带的密钥, 依次取 authorization, x-api-key, x-goog-api-key 请求头和 key 参数
+   */
+  public static String apiKey(HttpRequest httpRequest) {
+    String key = httpRequest.getHeader("authorization");
+    if (key == null) {
+      key = httpRequest.getHeader("x-api-key");
+    }
+    if (key == null) {
+      key = httpRequest.getHeader("x-goog-api-key");
+    }
+    if (key == null) {
+      key = httpRequest.getParam("key");
+    }
+    return key;
+  }
+
+  public static long estimateTokens(int bodyLength) {
+    return bodyLength / 4;
+  }
+
+  /**
+   * @return null 表示放行, 否则为被拒绝的原因
+   */
+  public Rejection acquire(String apiKey, String ip, String route, long tokens) {
+    Buckets keyBuckets = apiKey != null && !keyLimit.isUnlimited() ? buckets(keys, SCOPE_KEY, apiKey, keyLimit, 1)
+        : null;
+    Buckets ipBuckets = ip != null && !ipLimit.isUnlimited() ? buckets(ips, SCOPE_IP, ip, ipLimit, 1) : null;
+    Buckets routeBuckets = null;
+    if (route != null) {
+      // 路由数量很少, 不限制的路由也保存一个空桶, 之后不再读取配置
+      routeBuckets = routes.get(route);
+      if (routeBuckets == null) {
+        routeBuckets = buckets(routes, SCOPE_ROUTE, route, routeLimit(route), STRIPES);
+      }
+    }
+
+    long wait = keyBuckets != null ? keyBuckets.acquire(tokens) : 0;
+    if (wait > 0) {
+      keyRejected.increment();
+      return new Rejection(SCOPE_KEY, wait);
+    }
+    wait = ipBuckets != null ? ipBuckets.acquire(tokens) : 0;
+    if (wait > 0) {
+      if (keyBuckets != null) {
+        keyBuckets.refund(tokens);
+      }
+      ipRejected.increment();
+      return new Rejection(SCOPE_IP, wait);
+    }
+    wait = routeBuckets != null ? routeBuckets.acquire(tokens) : 0;
+    if (wait > 0) {
+      if (keyBuckets != null) {
+        keyBuckets.refund(tokens);
+      }
+      if (ipBuckets != null) {
+        ipBuckets.refund(tokens);
+      }
+      routeRejected.increment();
+      return new Rejection(SCOPE_ROUTE, wait);
+    }
+    if (shared != null) {
+      if (keyBuckets != null) {
+        keyBuckets.record(tokens);
+      }
+      if (ipBuckets != null) {
+        ipBuckets.record(tokens);
+      }
+      if (routeBuckets != null) {
+        routeBuckets.record(tokens);
+      }
+    }
+    allowed.increment();
+    return null;
+  }
+
+  private Limit routeLimit(String route) {
+    return Limit.fromEnv("llm.proxy.limit.route." + route + ".", routeLimit);
+  }
+
+  private Buckets buckets(Map<String, Buckets> map, String scope, String id, Limit limit, int stripes) {
+    Buckets buckets = map.get(id);
+    if (buckets == null) {
+      if (map.size() >= MAX_ENTRIES) {
+        sweep(map);
+      }
+      buckets = map.computeIfAbsent(id, k -> {
+        Buckets created = new Buckets(limit, burstSeconds, stripes);
+        if (shared != null) {
+          // 密钥和 IP 只同步指纹
+          created.share(shared, "limit:" + scope + ":" + (SCOPE_ROUTE.equals(scope) ? id : KeyFingerprint.of(id)));
+        }
+        return created;
+      });
+    }
+    return buckets;
+  }
+
+  /**
+   * 回收已经恢复满的桶, 它们和新建的桶等价
+   */
+  private static void sweep(Map<String, Buckets> map) {
+    Iterator<Buckets> it = map.values().iterator();
+    while (it.hasNext()) {
+      Buckets buckets = it.next();
+      if (buckets.isIdle()) {
+        it.remove();
+        buckets.release();
+      }
+    }
+  }
+
+  public Map<String, Object> snapshot() {
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("allowed", allowed.sum());
+    map.put("keyRejected", keyRejected.sum());
+    map.put("ipRejected", ipRejected.sum());
+    map.put("routeRejected", routeRejected.sum());
+    map.put("keys", keys.size());
+    map.put("ips", ips.size());
+    map.put("routes", routes.size());
+    map.put("shared", shared != null);
+    return map;
+  }
+
+  /**
+   * 每秒请求数和每秒 token 数, 0 表示不限制
+   */
+  public static class Limit {
+    static final Limit NONE = new Limit(0, 0);
+
+    private final double rps;
+    private final double tps;
+
+    public Limit(double rps, double tps) {
+      this.rps = rps;
+      this.tps = tps;
+    }
+
+    static Limit fromEnv(String prefix, Limit defaults) {
+      double rps = Double.parseDouble(EnvUtils.getStr(prefix + "rps", String.valueOf(defaults.rps)));
+      double tps = Double.parseDouble(EnvUtils.getStr(prefix + "tps", String.valueOf(defaults.tps)));
+      return new Limit(rps, tps);
+    }
+
+    boolean isUnlimited() {
+      return rps <= 0 && tps <= 0;
+    }
+
+    @Override
+    public String toString() {
+      return "rps=" + rps + ",tps=" + tps;
+    }
+  }
+
+  private static class Buckets {
+    private final TokenBucket requests;
+    private final TokenBucket tokens;
+    private SharedCounter sharedRequests;
+    private SharedCounter sharedTokens;
+
+    private Buckets(Limit limit, double burstSeconds, int stripes) {
+      this.requests = limit.rps > 0 ? new TokenBucket(limit.rps, Math.max(1, limit.rps * burstSeconds), stripes)
+          : null;
+      this.tokens = limit.tps > 0 ? new TokenBucket(limit.tps, Math.max(1, limit.tps * burstSeconds)) : null;
+    }
+
+    private long acquire(long permits) {
+      long wait = requests != null ? requests.tryAcquire(1) : 0;
+      if (wait > 0) {
+        return wait;
+      }
+      wait = tokens != null && permits > 0 ? tokens.tryAcquire(permits) : 0;
+      if (wait > 0 && requests != null) {
+        requests.refund(1);
+      }
+      return wait;
+    }
+
+    /**
+     * 创建后, 发布之前调用
+     */
+    private void share(SharedState shared, String name) {
+      if (requests != null) {
+        sharedRequests = shared.counter(name + ":requests", requests::charge);
+      }
+      if (tokens != null) {
+        sharedTokens = shared.counter(name + ":tokens", tokens::charge);
+      }
+    }
+
+    /**
+     * 所有限制都放行后计入集群
+     */
+    private void record(long permits) {
+      if (sharedRequests != null) {
+        sharedRequests.add(1);
+      }
+      if (sharedTokens != null && permits > 0) {
+        sharedTokens.add(permits);
+      }
+    }
+
+    private void release() {
+      if (sharedRequests != null) {
+        sharedRequests.release();
+      }
+      if (sharedTokens != null) {
+        sharedTokens.release();
+      }
+    }
+
+    private void refund(long permits) {
+      if (requests != null) {
+        requests.refund(1);
+      }
+      if (tokens != null && permits > 0) {
+        tokens.refund(permits);
+      }
+    }
+
+    private boolean isIdle() {
+      return (requests == null || requests.isIdle()) && (tokens == null || tokens.isIdle());
+    }
+  }
+
+  /**
+   * 被拒绝的范围和建议的重试等待时间
+   */
+  public static class Rejection {
+    private final String scope;
+    private final long waitNanos;
+
+    Rejection(String scope, long waitNanos) {
+      this.scope = scope;
+      this.waitNanos = waitNanos;
+    }
+
+    public String getScope() {
+      return scope;
+    }
+
+    /**
+     * Retry-After 使用的秒数, 至少 1 秒
+     */
+    public long getRetryAfterSeconds() {
+      return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + 999_999_999L));
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package nexus.io.llm.proxy.limit;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 无锁令牌桶, 按 GCRA 实现: 每个分段只保存一个理论到达时间(纳秒), 获取令牌是一次 CAS.
+ * <p>
+ * stripes 大于 1 时速率和突发量平均分到各分段, 线程按 id 选择分段, 当前分段不足时再尝试其他分段, 热点桶不会在一个缓存行上争用.
+ * 分段只适合每次获取 1 个令牌的请求数限制
+ */
+public class TokenBucket {
+
+  /** 分段之间间隔 16 个 long, 避免伪共享 */
+  private static final int PAD = 16;
+
+  private final AtomicLongArray state;
+  private final int stripes;
+  private final long interval;
+  private final long tolerance;
+
+  /**
+   * @param rate  每秒令牌数
+   * @param burst 突发容量
+   */
+  public TokenBucket(double rate, double burst, int stripes) {
+    this.stripes = Math.max(1, stripes);
+    this.interval = Math.max(1, (long) (1_000_000_000d * this.stripes / rate));
+    this.tolerance = (long) (Math.max(1, burst / this.stripes) * interval);
+    this.state = new AtomicLongArray(this.stripes * PAD);
+    long now = System.nanoTime();
+    for (int i = 0; i < this.stripes; i++) {
+      state.set(i * PAD, now - tolerance);
+    }
+  }
+
+  public TokenBucket(double rate, double burst) {
+    this(rate, burst, 1);
+  }
+
+  /**
+   * 超过突发容量的请求按突发容量计算, 桶满时放行
+   *
+   * @return 0 表示获取成功, 否则为需要等待的纳秒数
+   */
+  public long tryAcquire(long permits) {
+    long now = System.nanoTime();
+    long increment = Math.min(permits * interval, tolerance);
+    int first = stripes == 1 ? 0 : (int) (Thread.currentThread().getId() % stripes);
+    long minWait = Long.MAX_VALUE;
+    for (int s = 0; s < stripes; s++) {
+      int index = ((first + s) % stripes) * PAD;
+      while (true) {
+        long tat = state.get(index);
+        long newTat = Math.max(tat, now) + increment;
+        long wait = newTat - now - tolerance;
+        if (wait > 0) {
+          minWait = Math.min(minWait, wait);
+          break;
+        }
+        if (state.compareAndSet(index, tat, newTat)) {
+          return 0;
+        }
+      }
+    }
+    return minWait;
+  }
+
+  /**
+   * 归还 tryAcquire 成功获取的令牌, 其他限制拒绝了这个请求时使用
+   */
+  public void refund(long permits) {
+    long decrement = Math.min(permits * interval, tolerance);
+    int index = stripes == 1 ? 0 : (int) (Thread.currentThread().getId() % stripes) * PAD;
+    state.addAndGet(index, -decrement);
+  }
+
+  /**
+   * 扣除在其他节点消耗的令牌, 不检查是否足够, 分摊到各分段. 桶空之后继续记为欠量, 还清之前本地不放行,
+   * 否则各节点都用完自己的桶时, 其他节点的消耗不起作用. 欠量最多一个突发容量, 避免长时间拒绝
+   */
+  public void charge(long permits) {
+    long now = System.nanoTime();
+    for (int s = 0; s < stripes; s++) {
+      long share = permits / stripes + (s < permits % stripes ? 1 : 0);
+      if (share == 0) {
+        break;
+      }
+      int index = s * PAD;
+      while (true) {
+        long tat = state.get(index);
+        long base = Math.max(tat, now);
+        long newTat = Math.max(tat, Math.min(base + share * interval, now + 2 * tolerance));
+        if (newTat == tat || state.compareAndSet(index, tat, newTat)) {
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * 桶已经恢复满, 可以回收
+   */
+  public boolean isIdle() {
+    long now = System.nanoTime();
+    for (int i = 0; i < stripes; i++) {
+      if (state.get(i * PAD) > now) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
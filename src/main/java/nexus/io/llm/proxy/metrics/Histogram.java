@@ -0,0 +1,51 @@
+package nexus.io.llm.proxy.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 固定桶的对数线性直方图(1, 2, 5 x 10^n 毫秒). 记录时只做一次二分查找和 LongAdder 累加, 不加锁也不分配对象
+ */
+public class Histogram {
+
+  static final long[] BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 50000, 100000,
+      200000, 500000 };
+
+  private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+  private final LongAdder sum = new LongAdder();
+
+  public Histogram() {
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  public void record(long millis) {
+    int low = 0;
+    int high = BOUNDS.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (BOUNDS[mid] < millis) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    buckets[low].increment();
+    sum.add(millis);
+  }
+
+  /**
+   * 按 Prometheus 文本格式输出, 桶是累计值
+   */
+  void write(StringBuilder out, String name, String labels) {
+    long cumulative = 0;
+    for (int i = 0; i < buckets.length; i++) {
+      cumulative += buckets[i].sum();
+      String le = i < BOUNDS.length ? String.valueOf(BOUNDS[i]) : "+Inf";
+      out.append(name).append("_bucket{").append(labels).append(",le=\"").append(le).append("\"} ").append(cumulative)
+          .append('\n');
+    }
+    out.append(name).append("_sum{").append(labels).append("} ").append(sum.sum()).append('\n');
+    out.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+  }
+}
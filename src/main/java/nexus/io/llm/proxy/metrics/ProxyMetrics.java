@@ -0,0 +1,126 @@
+package nexus.io.llm.proxy.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import nexus.io.llm.proxy.accesslog.AccessLog;
+import nexus.io.tio.utils.environment.EnvUtils;
+
+/**
+ * 进程内的指标, 由 /metrics 按 Prometheus 文本格式输出.
+ * <p>
+ * 路由和模型的指标在第一次出现时创建, 之后记录只有 map 查找和 LongAdder 累加. 模型数量超过 llm.proxy.metrics.max.models 后归入
+ * other
+ */
+public class ProxyMetrics {
+
+  private static final int MAX_MODELS = EnvUtils.getInt("llm.proxy.metrics.max.models", 200);
+  private static final String OTHER = "other";
+
+  private static final Map<String, RouteMetrics> routes = new ConcurrentHashMap<>();
+  private static final Map<String, LongAdder> models = new ConcurrentHashMap<>();
+  private static final LongAdder liveSessions = new LongAdder();
+  private static final LongAdder liveSessionsTotal = new LongAdder();
+  private static volatile AccessLog accessLog;
+
+  static RequestMetrics start(Long id, String ip, String route, String model, byte[] body) {
+    return new RequestMetrics(id, ip, model, route(route), model != null ? model(model) : null, accessLog, body);
+  }
+
+  /**
+   * 请求结束时同时写入访问日志, null 表示不写
+   */
+  public static void setAccessLog(AccessLog log) {
+    accessLog = log;
+  }
+
+  private static RouteMetrics route(String name) {
+    RouteMetrics metrics = routes.get(name);
+    if (metrics == null) {
+      metrics = routes.computeIfAbsent(name, RouteMetrics::new);
+    }
+    return metrics;
+  }
+
+  private static LongAdder model(String name) {
+    LongAdder adder = models.get(name);
+    if (adder == null) {
+      if (models.size() >= MAX_MODELS) {
+        name = OTHER;
+      }
+      adder = models.computeIfAbsent(name, k -> new LongAdder());
+    }
+    return adder;
+  }
+
+  public static void liveSessionOpened() {
+    liveSessions.increment();
+    liveSessionsTotal.increment();
+  }
+
+  public static void liveSessionClosed() {
+    liveSessions.decrement();
+  }
+
+  public static String scrape() {
+    StringBuilder out = new StringBuilder(8192);
+    type(out, "llm_proxy_responses_total", "counter");
+    for (RouteMetrics m : routes.values()) {
+      for (int code = 0; code < m.statuses.length(); code++) {
+        LongAdder adder = m.statuses.get(code);
+        if (adder != null) {
+          out.append("llm_proxy_responses_total{").append(label(m)).append(",code=\"").append(code).append("\"} ")
+              .append(adder.sum()).append('\n');
+        }
+      }
+    }
+    histogram(out, "llm_proxy_request_duration_ms", 0);
+    histogram(out, "llm_proxy_ttfb_ms", 1);
+    histogram(out, "llm_proxy_inter_token_ms", 2);
+    type(out, "llm_proxy_request_bytes_total", "counter");
+    for (RouteMetrics m : routes.values()) {
+      out.append("llm_proxy_request_bytes_total{").append(label(m)).append("} ").append(m.requestBytes.sum())
+          .append('\n');
+    }
+    type(out, "llm_proxy_response_bytes_total", "counter");
+    for (RouteMetrics m : routes.values()) {
+      out.append("llm_proxy_response_bytes_total{").append(label(m)).append("} ").append(m.responseBytes.sum())
+          .append('\n');
+    }
+    type(out, "llm_proxy_in_flight", "gauge");
+    for (RouteMetrics m : routes.values()) {
+      out.append("llm_proxy_in_flight{").append(label(m)).append("} ").append(m.inFlight.sum()).append('\n');
+    }
+    type(out, "llm_proxy_model_in_flight", "gauge");
+    for (Map.Entry<String, LongAdder> e : models.entrySet()) {
+      out.append("llm_proxy_model_in_flight{model=\"").append(escape(e.getKey())).append("\"} ")
+          .append(e.getValue().sum()).append('\n');
+    }
+    type(out, "llm_proxy_gemini_live_sessions", "gauge");
+    out.append("llm_proxy_gemini_live_sessions ").append(liveSessions.sum()).append('\n');
+    type(out, "llm_proxy_gemini_live_sessions_total", "counter");
+    out.append("llm_proxy_gemini_live_sessions_total ").append(liveSessionsTotal.sum()).append('\n');
+    return out.toString();
+  }
+
+  private static void histogram(StringBuilder out, String name, int which) {
+    type(out, name, "histogram");
+    for (RouteMetrics m : routes.values()) {
+      Histogram histogram = which == 0 ? m.duration : which == 1 ? m.ttfb : m.interToken;
+      histogram.write(out, name, label(m));
+    }
+  }
+
+  private static void type(StringBuilder out, String name, String type) {
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static String label(RouteMetrics m) {
+    return "route=\"" + escape(m.name) + "\"";
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
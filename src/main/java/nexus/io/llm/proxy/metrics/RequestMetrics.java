@@ -0,0 +1,136 @@
+package nexus.io.llm.proxy.metrics;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+import nexus.io.llm.proxy.accesslog.AccessLog;
+
+/**
+ * 一次请求的计时. 第一个事件(非流式为响应头)记为首字节时间, 之后相邻事件的间隔记为 token 间隔. finish 只生效一次,
+ * 同时写入访问日志
+ */
+public class RequestMetrics {
+
+  private static final AtomicIntegerFieldUpdater<RequestMetrics> FINISHED = AtomicIntegerFieldUpdater
+      .newUpdater(RequestMetrics.class, "finished");
+
+  private final Long id;
+  private final String ip;
+  private final String model;
+  private final RouteMetrics route;
+  private final LongAdder modelInFlight;
+  private final AccessLog accessLog;
+  private final long requestBytes;
+  // 采样时保留请求体, 由访问日志的写线程格式化
+  private final byte[] requestBody;
+  private final long start = System.nanoTime();
+  private long firstEvent;
+  private long lastEvent;
+  private long responseBytes;
+  private volatile int finished;
+
+  RequestMetrics(Long id, String ip, String model, RouteMetrics route, LongAdder modelInFlight, AccessLog accessLog,
+      byte[] body) {
+    this.id = id;
+    this.ip = ip;
+    this.model = model;
+    this.route = route;
+    this.modelInFlight = modelInFlight;
+    this.accessLog = accessLog;
+    this.requestBytes = body != null ? body.length : 0;
+    this.requestBody = body != null && accessLog != null && accessLog.sample() ? body : null;
+    route.inFlight.increment();
+    route.requestBytes.add(requestBytes);
+    if (modelInFlight != null) {
+      modelInFlight.increment();
+    }
+  }
+
+  /**
+   * @param body 请求体, 没有时为 null
+   */
+  public static RequestMetrics start(Long id, String ip, String route, String model, byte[] body) {
+    return ProxyMetrics.start(id, ip, route, model, body);
+  }
+
+  /**
+   * 流式响应的每个事件, 在上游读取线程中调用
+   */
+  public void event(int bytes) {
+    long now = System.nanoTime();
+    if (lastEvent == 0) {
+      firstEvent = now;
+      route.ttfb.record((now - start) / 1_000_000);
+    } else {
+      route.interToken.record((now - lastEvent) / 1_000_000);
+    }
+    lastEvent = now;
+    responseBytes += bytes;
+  }
+
+  /**
+   * 按 UTF-8 字节数统计事件, 不分配字节数组
+   */
+  public void event(String data) {
+    event(utf8Length(data));
+  }
+
+  static int utf8Length(String s) {
+    int length = s.length();
+    int bytes = length;
+    for (int i = 0; i < length; i++) {
+      char c = s.charAt(i);
+      if (c >= 0x800) {
+        bytes += 2;
+        if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+          // 代理对两个 char 共 4 字节
+          i++;
+        }
+      } else if (c >= 0x80) {
+        bytes += 1;
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * 非流式响应收到响应头
+   */
+  public void firstByte() {
+    if (lastEvent == 0) {
+      lastEvent = firstEvent = System.nanoTime();
+      route.ttfb.record((lastEvent - start) / 1_000_000);
+    }
+  }
+
+  public void finish(int status) {
+    finish(status, 0, null);
+  }
+
+  /**
+   * 非流式响应, 采样时把响应体写入访问日志
+   */
+  public void finish(int status, byte[] body) {
+    finish(status, body.length, body);
+  }
+
+  private void finish(int status, long bytes, byte[] body) {
+    if (!FINISHED.compareAndSet(this, 0, 1)) {
+      return;
+    }
+    long now = System.nanoTime();
+    long total = (now - start) / 1_000_000;
+    route.duration.record(total);
+    route.responseBytes.add(responseBytes + bytes);
+    route.status(status);
+    route.inFlight.decrement();
+    if (modelInFlight != null) {
+      modelInFlight.decrement();
+    }
+    if (accessLog != null) {
+      long ttfb = firstEvent != 0 ? (firstEvent - start) / 1_000_000 : -1;
+      accessLog.append(id, ip, route.name, model, status, requestBytes, responseBytes + bytes, ttfb, total,
+          requestBody, requestBody != null ? body : null);
+    }
+  }
+}
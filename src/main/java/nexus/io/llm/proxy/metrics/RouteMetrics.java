@@ -0,0 +1,36 @@
+package nexus.io.llm.proxy.metrics;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 一个路由的指标
+ */
+public class RouteMetrics {
+
+  private static final int MAX_STATUS = 600;
+
+  final String name;
+  final Histogram duration = new Histogram();
+  final Histogram ttfb = new Histogram();
+  final Histogram interToken = new Histogram();
+  final LongAdder requestBytes = new LongAdder();
+  final LongAdder responseBytes = new LongAdder();
+  final LongAdder inFlight = new LongAdder();
+  final AtomicReferenceArray<LongAdder> statuses = new AtomicReferenceArray<>(MAX_STATUS);
+
+  RouteMetrics(String name) {
+    this.name = name;
+  }
+
+  void status(int code) {
+    int index = code > 0 && code < MAX_STATUS ? code : 0;
+    LongAdder adder = statuses.get(index);
+    if (adder == null) {
+      // 每个状态码只在第一次出现时创建
+      statuses.compareAndSet(index, null, new LongAdder());
+      adder = statuses.get(index);
+    }
+    adder.increment();
+  }
+}
@@ -0,0 +1,38 @@
+package nexus.io.llm.proxy.mode;
+
+/**
+ * 代理需要从请求体中读取的顶层字段
+ */
+public class LLMRequestFields {
+
+  private Boolean stream;
+  private String model;
+
+  public LLMRequestFields() {
+  }
+
+  public LLMRequestFields(Boolean stream, String model) {
+    this.stream = stream;
+    this.model = model;
+  }
+
+  public boolean isStream() {
+    return stream != null && stream;
+  }
+
+  public Boolean getStream() {
+    return stream;
+  }
+
+  public void setStream(Boolean stream) {
+    this.stream = stream;
+  }
+
+  public String getModel() {
+    return model;
+  }
+
+  public void setModel(String model) {
+    this.model = model;
+  }
+}
@@ -0,0 +1,118 @@
+package nexus.io.llm.proxy.route;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import nexus.io.llm.proxy.mode.LLMRequestFields;
+import nexus.io.tio.http.common.HttpRequest;
+
+/**
+ * 上游服务描述: 本地路径前缀, 上游地址, 需要转发的请求头和参数, 以及流式判断方式
+ */
+public class ProviderRoute {
+
+  private static final String STREAM_ACTION = "streamGenerateContent";
+  private static final String CREDENTIAL_PARAM = "key";
+
+  private final String name;
+  private final String prefix;
+  private final String baseUrl;
+  private final String[] forwardHeaders;
+  private final String[] forwardParams;
+  private final StreamMode streamMode;
+
+  public ProviderRoute(String name, String prefix, String baseUrl, String[] forwardHeaders, String[] forwardParams,
+      StreamMode streamMode) {
+    this.name = name;
+    this.prefix = prefix;
+    this.baseUrl = baseUrl;
+    this.forwardHeaders = forwardHeaders;
+    this.forwardParams = forwardParams;
+    this.streamMode = streamMode;
+  }
+
+  public boolean isStream(String requestURI, LLMRequestFields fields) {
+    if (streamMode == StreamMode.PATH) {
+      return requestURI.endsWith(STREAM_ACTION);
+    }
+    return fields.isStream();
+  }
+
+  /**
+   * 上游地址 = baseUrl + 请求路径去掉 prefix 之后的部分
+   */
+  public String upstreamUrl(String requestURI, boolean stream, HttpRequest httpRequest) {
+    return upstreamUrl(requestURI, stream, httpRequest, true);
+  }
+
+  /**
+   * @param withCredentials false 时不转发 key 参数, 使用服务端密钥池时客户端的密钥不发给上游
+   */
+  public String upstreamUrl(String requestURI, boolean stream, HttpRequest httpRequest, boolean withCredentials) {
+    return upstreamUrlForPath(requestURI.substring(prefix.length()), stream, httpRequest, withCredentials);
+  }
+
+  /**
+   * @param path 去掉本地 prefix 之后的路径, 故障转移时由其他路由的请求路径得到
+   */
+  public String upstreamUrlForPath(String path, boolean stream, HttpRequest httpRequest, boolean withCredentials) {
+    StringBuilder url = new StringBuilder(baseUrl.length() + path.length() + 16);
+    url.append(baseUrl).append(path);
+    char sep = '?';
+    if (stream && streamMode == StreamMode.PATH) {
+      url.append("?alt=sse");
+      sep = '&';
+    }
+    for (String param : forwardParams) {
+      if (!withCredentials && CREDENTIAL_PARAM.equals(param)) {
+        continue;
+      }
+      String value = httpRequest.getParam(param);
+      if (value != null) {
+        url.append(sep).append(param).append('=').append(value);
+        sep = '&';
+      }
+    }
+    return url.toString();
+  }
+
+  public Map<String, String> forwardHeaders(HttpRequest httpRequest) {
+    Map<String, String> headers = new HashMap<>();
+    for (String header : forwardHeaders) {
+      String value = httpRequest.getHeader(header);
+      if (value != null) {
+        headers.put(header, value);
+      }
+    }
+    return headers;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getPrefix() {
+    return prefix;
+  }
+
+  public String getBaseUrl() {
+    return baseUrl;
+  }
+
+  public String[] getForwardHeaders() {
+    return forwardHeaders;
+  }
+
+  public String[] getForwardParams() {
+    return forwardParams;
+  }
+
+  public StreamMode getStreamMode() {
+    return streamMode;
+  }
+
+  @Override
+  public String toString() {
+    return name + "[" + prefix + " -> " + baseUrl + "]";
+  }
+}
@@ -0,0 +1,189 @@
+package nexus.io.llm.proxy.route;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import lombok.extern.slf4j.Slf4j;
+import nexus.io.cerebras.CerebrasConst;
+import nexus.io.claude.ClaudeClient;
+import nexus.io.gemini.GeminiClient;
+import nexus.io.llm.proxy.consts.LLMProxyUrls;
+import nexus.io.openai.client.OpenAiClient;
+import nexus.io.openrouter.OpenRouterConst;
+import nexus.io.tio.utils.environment.EnvUtils;
+import nexus.io.vertexai.VertexAiConsts;
+
+/**
+ * 按路径前缀查找上游服务, 前缀树在启动时构建, 之后只读
+ *
+ * <pre>
+ * llm.proxy.routes=deepseek
+ * llm.proxy.route.deepseek.prefix=/deepseek/v1
+ * llm.proxy.route.deepseek.base.url=https://api.deepseek.com/v1
+ * llm.proxy.route.deepseek.headers=authorization
+ * llm.proxy.route.deepseek.params=
+ * llm.proxy.route.deepseek.stream=body
+ * </pre>
+ *
+ * 内置的 openai, openrouter, cerebras, anthropic, anthropic-messages, google, vertexai 可以用同样的 key 覆盖
+ */
+@Slf4j
+public class ProviderRouteRegistry {
+
+  private static final String[] NONE = {};
+  private static final String[] AUTHORIZATION = { "authorization" };
+  private static final String[] ANTHROPIC_HEADERS = { "authorization", "x-api-key", "anthropic-version" };
+  private static final String[] GOOGLE_HEADERS = { "authorization", "x-goog-api-key" };
+  private static final String[] GOOGLE_PARAMS = { "key" };
+
+  private final Node root = new Node();
+  private final List<ProviderRoute> routes = new ArrayList<>();
+  private final List<ProviderRoute> configuredRoutes = new ArrayList<>();
+
+  public static ProviderRouteRegistry fromEnv() {
+    ProviderRouteRegistry registry = new ProviderRouteRegistry();
+    for (ProviderRoute route : builtin()) {
+      registry.add(load(route.getName(), route));
+    }
+    String names = EnvUtils.getStr("llm.proxy.routes");
+    if (names != null) {
+      for (String name : names.split(",")) {
+        name = name.trim();
+        if (!name.isEmpty()) {
+          ProviderRoute route = load(name, null);
+          registry.add(route);
+          registry.configuredRoutes.add(route);
+        }
+      }
+    }
+    log.info("llm proxy routes:{}", registry.routes);
+    return registry;
+  }
+
+  private static List<ProviderRoute> builtin() {
+    String v1 = "/v1";
+    String models = "/v1beta/models";
+    return Arrays.asList(
+        //
+        new ProviderRoute("openai", LLMProxyUrls.OPENAI + v1, OpenAiClient.OPENAI_API_URL, AUTHORIZATION, NONE,
+            StreamMode.BODY),
+        new ProviderRoute("openrouter", LLMProxyUrls.OPENROUTER + v1, OpenRouterConst.API_PREFIX_URL, AUTHORIZATION,
+            NONE, StreamMode.BODY),
+        new ProviderRoute("cerebras", LLMProxyUrls.CEREBRAS + v1, CerebrasConst.API_PREFIX_URL, AUTHORIZATION, NONE,
+            StreamMode.BODY),
+        new ProviderRoute("anthropic", LLMProxyUrls.ANTHROPIC + v1, ClaudeClient.CLAUDE_API_URL, ANTHROPIC_HEADERS,
+            NONE, StreamMode.BODY),
+        new ProviderRoute("anthropic-messages", LLMProxyUrls.ANTHROPIC + v1 + "/messages",
+            ClaudeClient.CLAUDE_API_URL + "/messages", new String[] { "x-api-key", "anthropic-version" }, NONE,
+            StreamMode.BODY),
+        new ProviderRoute("google", LLMProxyUrls.GOOGLE + models, GeminiClient.GEMINI_API_URL, GOOGLE_HEADERS,
+            GOOGLE_PARAMS, StreamMode.PATH),
+        new ProviderRoute("vertexai", LLMProxyUrls.VERTEXAI + models, VertexAiConsts.API_MODEL_BASE, GOOGLE_HEADERS,
+            GOOGLE_PARAMS, StreamMode.PATH));
+  }
+
+  private static ProviderRoute load(String name, ProviderRoute defaults) {
+    String key = "llm.proxy.route." + name + ".";
+    String prefix = EnvUtils.getStr(key + "prefix", defaults != null ? defaults.getPrefix() : null);
+    String baseUrl = EnvUtils.getStr(key + "base.url", defaults != null ? defaults.getBaseUrl() : null);
+    if (prefix == null || baseUrl == null) {
+      throw new IllegalArgumentException("route " + name + " requires " + key + "prefix and " + key + "base.url");
+    }
+    String[] headers = split(EnvUtils.getStr(key + "headers"),
+        defaults != null ? defaults.getForwardHeaders() : AUTHORIZATION);
+    String[] params = split(EnvUtils.getStr(key + "params"), defaults != null ? defaults.getForwardParams() : NONE);
+    StreamMode streamMode = StreamMode.from(EnvUtils.getStr(key + "stream"),
+        defaults != null ? defaults.getStreamMode() : StreamMode.BODY);
+    return new ProviderRoute(name, trimSlash(prefix), trimSlash(baseUrl), headers, params, streamMode);
+  }
+
+  private static String[] split(String value, String[] defaultValue) {
+    if (value == null) {
+      return defaultValue;
+    }
+    List<String> list = new ArrayList<>();
+    for (String item : value.split(",")) {
+      item = item.trim().toLowerCase();
+      if (!item.isEmpty()) {
+        list.add(item);
+      }
+    }
+    return list.toArray(new String[0]);
+  }
+
+  private static String trimSlash(String value) {
+    return value.endsWith("/") ? value.substring(0, value.length() - 1) : value;
+  }
+
+  public void add(ProviderRoute route) {
+    String prefix = route.getPrefix();
+    Node node = root;
+    for (int i = 0; i < prefix.length(); i++) {
+      node = node.put(prefix.charAt(i));
+    }
+    if (node.route != null) {
+      routes.remove(node.route);
+    }
+    node.route = route;
+    routes.add(route);
+  }
+
+  /**
+   * 最长前缀匹配, 前缀只在 '/' 边界或路径结尾处生效
+   */
+  public ProviderRoute match(String requestURI) {
+    ProviderRoute matched = null;
+    Node node = root;
+    for (int i = 0, len = requestURI.length(); i < len; i++) {
+      char c = requestURI.charAt(i);
+      if (c == '/' && node.route != null) {
+        matched = node.route;
+      }
+      node = node.get(c);
+      if (node == null) {
+        return matched;
+      }
+    }
+    return node.route != null ? node.route : matched;
+  }
+
+  public List<ProviderRoute> getRoutes() {
+    return routes;
+  }
+
+  /**
+   * llm.proxy.routes 中新增的上游, 需要额外注册到 tio 的路由
+   */
+  public List<ProviderRoute> getConfiguredRoutes() {
+    return configuredRoutes;
+  }
+
+  private static class Node {
+    private char[] keys = {};
+    private Node[] children = {};
+    private ProviderRoute route;
+
+    private Node get(char c) {
+      char[] keys = this.keys;
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] == c) {
+          return children[i];
+        }
+      }
+      return null;
+    }
+
+    private Node put(char c) {
+      Node child = get(c);
+      if (child == null) {
+        int n = keys.length;
+        keys = Arrays.copyOf(keys, n + 1);
+        children = Arrays.copyOf(children, n + 1);
+        keys[n] = c;
+        child = children[n] = new Node();
+      }
+      return child;
+    }
+  }
+}
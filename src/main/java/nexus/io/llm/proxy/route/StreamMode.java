@@ -0,0 +1,22 @@
+package nexus.io.llm.proxy.route;
+
+/**
+ * 判断一个请求是否为流式请求的方式
+ */
+public enum StreamMode {
+  /**
+   * 读取请求体中的 stream 字段, OpenAI/Anthropic 风格
+   */
+  BODY,
+  /**
+   * 根据路径是否以 streamGenerateContent 结尾判断, 流式时追加 alt=sse, Gemini 风格
+   */
+  PATH;
+
+  public static StreamMode from(String value, StreamMode defaultValue) {
+    if (value == null) {
+      return defaultValue;
+    }
+    return StreamMode.valueOf(value.trim().toUpperCase());
+  }
+}
@@ -0,0 +1,361 @@
+package nexus.io.llm.proxy.translate;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONArray;
+import com.alibaba.fastjson2.JSONObject;
+
+import nexus.io.tio.http.common.HttpRequest;
+
+/**
+ * OpenAI chat/completions 和 Anthropic /messages 之间的翻译.
+ * <p>
+ * system 消息合并为 system 字段, tool 消息转成 tool_result, 相邻的同角色消息合并(Anthropic 要求 user 和 assistant 交替).
+ * 没有 max_tokens 时使用 {@link #DEFAULT_MAX_TOKENS}
+ */
+public class AnthropicTranslator implements ChatTranslator {
+
+  public static final int DEFAULT_MAX_TOKENS = 4096;
+  private static final String VERSION = "2023-06-01";
+
+  @Override
+  public String url(String baseUrl, String model, boolean stream) {
+    return baseUrl.endsWith("/messages") ? baseUrl : baseUrl + "/messages";
+  }
+
+  @Override
+  public void credentials(HttpRequest httpRequest, Map<String, String> headers) {
+    String key = httpRequest.getHeader("x-api-key");
+    if (key == null) {
+      key = bearer(httpRequest.getHeader("authorization"));
+    }
+    if (key != null) {
+      headers.put("x-api-key", key);
+    }
+    String version = httpRequest.getHeader("anthropic-version");
+    headers.put("anthropic-version", version != null ? version : VERSION);
+  }
+
+  static String bearer(String authorization) {
+    if (authorization == null) {
+      return null;
+    }
+    return authorization.regionMatches(true, 0, "Bearer ", 0, 7) ? authorization.substring(7).trim() : authorization;
+  }
+
+  @Override
+  public JSONObject request(JSONObject request, String model, boolean stream) {
+    JSONObject out = new JSONObject();
+    out.put("model", model);
+    Integer maxTokens = OpenAiFormat.maxTokens(request);
+    out.put("max_tokens", maxTokens != null ? maxTokens : DEFAULT_MAX_TOKENS);
+
+    StringBuilder system = new StringBuilder();
+    JSONArray messages = new JSONArray();
+    JSONArray input = request.getJSONArray("messages");
+    if (input != null) {
+      for (int i = 0; i < input.size(); i++) {
+        JSONObject message = input.getJSONObject(i);
+        String role = message.getString("role");
+        if ("system".equals(role) || "developer".equals(role)) {
+          if (system.length() > 0) {
+            system.append("\n\n");
+          }
+          system.append(OpenAiFormat.text(message.get("content")));
+        } else if ("assistant".equals(role)) {
+          append(messages, "assistant", assistant(message));
+        } else if ("tool".equals(role)) {
+          JSONObject result = new JSONObject();
+          result.put("type", "tool_result");
+          result.put("tool_use_id", message.getString("tool_call_id"));
+          result.put("content", OpenAiFormat.text(message.get("content")));
+          JSONArray blocks = new JSONArray();
+          blocks.add(result);
+          append(messages, "user", blocks);
+        } else {
+          append(messages, "user", blocks(message.get("content")));
+        }
+      }
+    }
+    if (system.length() > 0) {
+      out.put("system", system.toString());
+    }
+    out.put("messages", messages);
+
+    copy(request, "temperature", out, "temperature");
+    copy(request, "top_p", out, "top_p");
+    JSONArray stop = OpenAiFormat.stop(request);
+    if (stop != null) {
+      out.put("stop_sequences", stop);
+    }
+    tools(request, out);
+    if (stream) {
+      out.put("stream", true);
+    }
+    return out;
+  }
+
+  private static void copy(JSONObject from, String key, JSONObject to, String target) {
+    Object value = from.get(key);
+    if (value != null) {
+      to.put(target, value);
+    }
+  }
+
+  private static void append(JSONArray messages, String role, JSONArray blocks) {
+    if (blocks.isEmpty()) {
+      return;
+    }
+    if (!messages.isEmpty()) {
+      JSONObject last = messages.getJSONObject(messages.size() - 1);
+      if (role.equals(last.getString("role"))) {
+        last.getJSONArray("content").addAll(blocks);
+        return;
+      }
+    }
+    JSONObject message = new JSONObject();
+    message.put("role", role);
+    message.put("content", blocks);
+    messages.add(message);
+  }
+
+  private static JSONArray blocks(Object content) {
+    JSONArray blocks = new JSONArray();
+    if (content instanceof JSONArray) {
+      for (Object item : (JSONArray) content) {
+        if (!(item instanceof JSONObject)) {
+          continue;
+        }
+        JSONObject part = (JSONObject) item;
+        String type = part.getString("type");
+        if ("text".equals(type)) {
+          text(blocks, part.getString("text"));
+        } else if ("image_url".equals(type)) {
+          String url = OpenAiFormat.imageUrl(part);
+          String[] data = OpenAiFormat.dataUrl(url);
+          JSONObject source = new JSONObject();
+          if (data != null) {
+            source.put("type", "base64");
+            source.put("media_type", data[0]);
+            source.put("data", data[1]);
+          } else {
+            source.put("type", "url");
+            source.put("url", url);
+          }
+          JSONObject image = new JSONObject();
+          image.put("type", "image");
+          image.put("source", source);
+          blocks.add(image);
+        }
+      }
+    } else {
+      text(blocks, OpenAiFormat.text(content));
+    }
+    return blocks;
+  }
+
+  /**
+   * Anthropic 不接受空的 text 块
+   */
+  private static void text(JSONArray blocks, String text) {
+    if (text != null && !text.isEmpty()) {
+      JSONObject block = new JSONObject();
+      block.put("type", "text");
+      block.put("text", text);
+      blocks.add(block);
+    }
+  }
+
+  private static JSONArray assistant(JSONObject message) {
+    JSONArray blocks = blocks(message.get("content"));
+    JSONArray calls = message.getJSONArray("tool_calls");
+    if (calls != null) {
+      for (int i = 0; i < calls.size(); i++) {
+        JSONObject call = calls.getJSONObject(i);
+        JSONObject function = call.getJSONObject("function");
+        JSONObject use = new JSONObject();
+        use.put("type", "tool_use");
+        use.put("id", call.getString("id"));
+        use.put("name", function.getString("name"));
+        use.put("input", OpenAiFormat.arguments(function.getString("arguments")));
+        blocks.add(use);
+      }
+    }
+    return blocks;
+  }
+
+  private static void tools(JSONObject request, JSONObject out) {
+    JSONArray tools = request.getJSONArray("tools");
+    if (tools != null && !tools.isEmpty()) {
+      JSONArray list = new JSONArray();
+      for (int i = 0; i < tools.size(); i++) {
+        JSONObject function = tools.getJSONObject(i).getJSONObject("function");
+        if (function == null) {
+          continue;
+        }
+        JSONObject tool = new JSONObject();
+        tool.put("name", function.getString("name"));
+        if (function.containsKey("description")) {
+          tool.put("description", function.getString("description"));
+        }
+        Object parameters = function.get("parameters");
+        tool.put("input_schema", parameters != null ? parameters : JSON.parseObject("{\"type\":\"object\"}"));
+        list.add(tool);
+      }
+      out.put("tools", list);
+    }
+    Object choice = request.get("tool_choice");
+    JSONObject toolChoice = new JSONObject();
+    if ("auto".equals(choice)) {
+      toolChoice.put("type", "auto");
+    } else if ("required".equals(choice)) {
+      toolChoice.put("type", "any");
+    } else if ("none".equals(choice)) {
+      toolChoice.put("type", "none");
+    } else if (choice instanceof JSONObject) {
+      JSONObject function = ((JSONObject) choice).getJSONObject("function");
+      if (function == null) {
+        return;
+      }
+      toolChoice.put("type", "tool");
+      toolChoice.put("name", function.getString("name"));
+    } else {
+      return;
+    }
+    out.put("tool_choice", toolChoice);
+  }
+
+  @Override
+  public JSONObject response(JSONObject response, String model) {
+    StringBuilder text = null;
+    JSONArray toolCalls = new JSONArray();
+    JSONArray content = response.getJSONArray("content");
+    if (content != null) {
+      for (int i = 0; i < content.size(); i++) {
+        JSONObject block = content.getJSONObject(i);
+        String type = block.getString("type");
+        if ("text".equals(type)) {
+          if (text == null) {
+            text = new StringBuilder();
+          }
+          text.append(block.getString("text"));
+        } else if ("tool_use".equals(type)) {
+          toolCalls.add(OpenAiFormat.toolCall(block.getString("id"), block.getString("name"), block.get("input")));
+        }
+      }
+    }
+    JSONObject usage = response.getJSONObject("usage");
+    return OpenAiFormat.completion(response.getString("id"), model, text != null ? text.toString() : null, toolCalls,
+        finishReason(response.getString("stop_reason")),
+        usage != null ? OpenAiFormat.usage(usage.getLongValue("input_tokens"), usage.getLongValue("output_tokens"))
+            : null);
+  }
+
+  static String finishReason(String stopReason) {
+    if (stopReason == null) {
+      return null;
+    }
+    switch (stopReason) {
+    case "max_tokens":
+      return "length";
+    case "tool_use":
+      return "tool_calls";
+    case "refusal":
+      return "content_filter";
+    default:
+      return "stop";
+    }
+  }
+
+  @Override
+  public StreamTranslator stream(JSONObject request, String model) {
+    return new Stream(model, OpenAiFormat.includeUsage(request));
+  }
+
+  /**
+   * message_start, content_block_start/delta/stop, message_delta, message_stop. ping 忽略, error 原样转发
+   */
+  static class Stream extends StreamTranslator {
+
+    // content block 的 index 到 tool_calls 的 index
+    private Map<Integer, Integer> tools;
+
+    Stream(String model, boolean includeUsage) {
+      super(OpenAiFormat.newId(), model, includeUsage);
+    }
+
+    @Override
+    public void event(String type, String data, Consumer<String> out) {
+      JSONObject event = JSON.parseObject(data);
+      if (event == null) {
+        return;
+      }
+      if (type == null) {
+        type = event.getString("type");
+      }
+      if (type == null) {
+        return;
+      }
+      switch (type) {
+      case "content_block_delta": {
+        JSONObject delta = event.getJSONObject("delta");
+        String deltaType = delta.getString("type");
+        if ("text_delta".equals(deltaType)) {
+          content(delta.getString("text"), out);
+        } else if ("input_json_delta".equals(deltaType) && tools != null) {
+          Integer index = tools.get(event.getInteger("index"));
+          if (index != null) {
+            toolCall(index, null, null, delta.getString("partial_json"), out);
+          }
+        }
+        break;
+      }
+      case "content_block_start": {
+        JSONObject block = event.getJSONObject("content_block");
+        if (block != null && "tool_use".equals(block.getString("type"))) {
+          if (tools == null) {
+            tools = new HashMap<>();
+          }
+          int index = tools.size();
+          tools.put(event.getInteger("index"), index);
+          toolCall(index, block.getString("id"), block.getString("name"), "", out);
+        }
+        break;
+      }
+      case "message_start": {
+        JSONObject message = event.getJSONObject("message");
+        JSONObject usage = message != null ? message.getJSONObject("usage") : null;
+        if (usage != null) {
+          this.usage = true;
+          promptTokens = usage.getLongValue("input_tokens");
+          completionTokens = usage.getLongValue("output_tokens");
+        }
+        break;
+      }
+      case "message_delta": {
+        JSONObject usage = event.getJSONObject("usage");
+        if (usage != null) {
+          this.usage = true;
+          completionTokens = usage.getLongValue("output_tokens");
+        }
+        JSONObject delta = event.getJSONObject("delta");
+        if (delta != null) {
+          finishReason(AnthropicTranslator.finishReason(delta.getString("stop_reason")), out);
+        }
+        break;
+      }
+      case "message_stop":
+        finish(out);
+        break;
+      case "error":
+        out.accept(data);
+        break;
+      default:
+        break;
+      }
+    }
+  }
+}
@@ -0,0 +1,38 @@
+package nexus.io.llm.proxy.translate;
+
+import java.util.Map;
+
+import com.alibaba.fastjson2.JSONObject;
+
+import nexus.io.tio.http.common.HttpRequest;
+
+/**
+ * OpenAI chat/completions 和某个上游原生协议之间的翻译
+ */
+public interface ChatTranslator {
+
+  /**
+   * @param baseUrl 上游路由的地址
+   */
+  String url(String baseUrl, String model, boolean stream);
+
+  /**
+   * 把客户端的密钥放到上游需要的请求头中
+   */
+  void credentials(HttpRequest httpRequest, Map<String, String> headers);
+
+  /**
+   * OpenAI 请求体翻译成上游请求体
+   */
+  JSONObject request(JSONObject request, String model, boolean stream);
+
+  /**
+   * 上游的非流式响应翻译成 chat.completion
+   */
+  JSONObject response(JSONObject response, String model);
+
+  /**
+   * @param model 客户端请求中的模型名, 写入每个 chunk
+   */
+  StreamTranslator stream(JSONObject request, String model);
+}
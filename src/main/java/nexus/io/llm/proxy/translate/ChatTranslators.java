@@ -0,0 +1,140 @@
+package nexus.io.llm.proxy.translate;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import lombok.extern.slf4j.Slf4j;
+import nexus.io.llm.proxy.route.ProviderRoute;
+import nexus.io.llm.proxy.route.ProviderRouteRegistry;
+import nexus.io.tio.utils.environment.EnvUtils;
+
+/**
+ * 按模型名选择翻译后的上游. /v1/chat/completions 收到的 OpenAI 请求, 模型匹配时翻译成上游的原生协议, 响应再翻译回 OpenAI 格式.
+ *
+ * <pre>
+ * llm.proxy.translate.enabled=true
+ * llm.proxy.translate.models=claude-=anthropic,gemini-=google
+ * </pre>
+ *
+ * models 是 模型前缀=路由 的列表, 按顺序匹配. 模型也可以写成 路由/模型, 如 vertexai/gemini-2.5-pro, 转发时去掉路由部分.
+ * 支持的路由: anthropic, anthropic-messages, google, vertexai 以及 llm.proxy.route.&lt;name&gt;.translate 配置为
+ * anthropic 或 gemini 的自定义路由
+ */
+@Slf4j
+public class ChatTranslators {
+
+  private final Map<String, Target> routes = new LinkedHashMap<>();
+  private final List<String[]> prefixes = new ArrayList<>();
+
+  /**
+   * 未开启时返回 null
+   */
+  public static ChatTranslators fromEnv(ProviderRouteRegistry routeRegistry) {
+    if (!EnvUtils.getBoolean("llm.proxy.translate.enabled", false)) {
+      return null;
+    }
+    ChatTranslators translators = new ChatTranslators();
+    for (ProviderRoute route : routeRegistry.getRoutes()) {
+      ChatTranslator translator = translator(route.getName(),
+          EnvUtils.getStr("llm.proxy.route." + route.getName() + ".translate"));
+      if (translator != null) {
+        translators.routes.put(route.getName(), new Target(route, translator, null));
+      }
+    }
+    String models = EnvUtils.getStr("llm.proxy.translate.models", "claude-=anthropic,gemini-=google");
+    for (String item : models.split(",")) {
+      int eq = item.indexOf('=');
+      if (eq <= 0) {
+        continue;
+      }
+      String route = item.substring(eq + 1).trim();
+      if (!translators.routes.containsKey(route)) {
+        throw new IllegalArgumentException("llm.proxy.translate.models: no translatable route " + route);
+      }
+      translators.prefixes.add(new String[] { item.substring(0, eq).trim(), route });
+    }
+    log.info("llm proxy translate routes:{}, models:{}", translators.routes.keySet(), models);
+    return translators;
+  }
+
+  private static ChatTranslator translator(String route, String protocol) {
+    if (protocol == null) {
+      switch (route) {
+      case "anthropic":
+      case "anthropic-messages":
+        protocol = "anthropic";
+        break;
+      case "google":
+        protocol = "gemini";
+        break;
+      case "vertexai":
+        protocol = "vertexai";
+        break;
+      default:
+        return null;
+      }
+    }
+    switch (protocol) {
+    case "anthropic":
+      return new AnthropicTranslator();
+    case "gemini":
+      return new GeminiTranslator(false);
+    case "vertexai":
+      return new GeminiTranslator(true);
+    default:
+      throw new IllegalArgumentException("unknown translate protocol " + protocol + " for route " + route);
+    }
+  }
+
+  /**
+   * @return 不需要翻译时返回 null
+   */
+  public Target resolve(String model) {
+    if (model == null) {
+      return null;
+    }
+    int slash = model.indexOf('/');
+    if (slash > 0) {
+      Target target = routes.get(model.substring(0, slash));
+      if (target != null) {
+        return new Target(target.route, target.translator, model.substring(slash + 1));
+      }
+    }
+    for (String[] prefix : prefixes) {
+      if (model.startsWith(prefix[0])) {
+        Target target = routes.get(prefix[1]);
+        return new Target(target.route, target.translator, model);
+      }
+    }
+    return null;
+  }
+
+  public static class Target {
+    private final ProviderRoute route;
+    private final ChatTranslator translator;
+    private final String model;
+
+    private Target(ProviderRoute route, ChatTranslator translator, String model) {
+      this.route = route;
+      this.translator = translator;
+      this.model = model;
+    }
+
+    public ProviderRoute getRoute() {
+      return route;
+    }
+
+    public ChatTranslator getTranslator() {
+      return translator;
+    }
+
+    /**
+     * 发给上游的模型名
+     */
+    public String getModel() {
+      return model;
+    }
+  }
+}
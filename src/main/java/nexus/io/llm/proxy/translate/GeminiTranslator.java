@@ -0,0 +1,402 @@
+package nexus.io.llm.proxy.translate;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONArray;
+import com.alibaba.fastjson2.JSONObject;
+
+import nexus.io.tio.http.common.HttpRequest;
+
+/**
+ * OpenAI chat/completions 和 Gemini generateContent / streamGenerateContent 之间的翻译.
+ * <p>
+ * system 消息合并为 systemInstruction, assistant 对应 model, tool 消息按 tool_call_id 找到函数名后转成 functionResponse.
+ * Google AI Studio 使用 x-goog-api-key, Vertex AI 使用客户端的 authorization
+ */
+public class GeminiTranslator implements ChatTranslator {
+
+  private final boolean bearer;
+
+  /**
+   * @param bearer true 时转发 authorization(Vertex AI), 否则转成 x-goog-api-key
+   */
+  public GeminiTranslator(boolean bearer) {
+    this.bearer = bearer;
+  }
+
+  @Override
+  public String url(String baseUrl, String model, boolean stream) {
+    return baseUrl + "/" + model + (stream ? ":streamGenerateContent?alt=sse" : ":generateContent");
+  }
+
+  @Override
+  public void credentials(HttpRequest httpRequest, Map<String, String> headers) {
+    String authorization = httpRequest.getHeader("authorization");
+    if (bearer) {
+      if (authorization != null) {
+        headers.put("authorization", authorization);
+      }
+      return;
+    }
+    String key = httpRequest.getHeader("x-goog-api-key");
+    if (key == null) {
+      key = AnthropicTranslator.bearer(authorization);
+    }
+    if (key != null) {
+      headers.put("x-goog-api-key", key);
+    }
+  }
+
+  @Override
+  public JSONObject request(JSONObject request, String model, boolean stream) {
+    JSONObject out = new JSONObject();
+    StringBuilder system = new StringBuilder();
+    JSONArray contents = new JSONArray();
+    Map<String, String> toolNames = new HashMap<>();
+    JSONArray messages = request.getJSONArray("messages");
+    if (messages != null) {
+      for (int i = 0; i < messages.size(); i++) {
+        JSONObject message = messages.getJSONObject(i);
+        String role = message.getString("role");
+        if ("system".equals(role) || "developer".equals(role)) {
+          if (system.length() > 0) {
+            system.append("\n\n");
+          }
+          system.append(OpenAiFormat.text(message.get("content")));
+        } else if ("assistant".equals(role)) {
+          append(contents, "model", assistant(message, toolNames));
+        } else if ("tool".equals(role)) {
+          append(contents, "user", toolResponse(message, toolNames));
+        } else {
+          append(contents, "user", parts(message.get("content")));
+        }
+      }
+    }
+    if (system.length() > 0) {
+      JSONArray parts = new JSONArray();
+      parts.add(textPart(system.toString()));
+      JSONObject instruction = new JSONObject();
+      instruction.put("parts", parts);
+      out.put("systemInstruction", instruction);
+    }
+    out.put("contents", contents);
+
+    JSONObject config = new JSONObject();
+    copy(request, "temperature", config, "temperature");
+    copy(request, "top_p", config, "topP");
+    copy(request, "n", config, "candidateCount");
+    Integer maxTokens = OpenAiFormat.maxTokens(request);
+    if (maxTokens != null) {
+      config.put("maxOutputTokens", maxTokens);
+    }
+    JSONArray stop = OpenAiFormat.stop(request);
+    if (stop != null) {
+      config.put("stopSequences", stop);
+    }
+    JSONObject format = request.getJSONObject("response_format");
+    if (format != null && !"text".equals(format.getString("type"))) {
+      config.put("responseMimeType", "application/json");
+    }
+    if (!config.isEmpty()) {
+      out.put("generationConfig", config);
+    }
+    tools(request, out);
+    return out;
+  }
+
+  private static void copy(JSONObject from, String key, JSONObject to, String target) {
+    Object value = from.get(key);
+    if (value != null) {
+      to.put(target, value);
+    }
+  }
+
+  private static void append(JSONArray contents, String role, JSONArray parts) {
+    if (parts.isEmpty()) {
+      return;
+    }
+    if (!contents.isEmpty()) {
+      JSONObject last = contents.getJSONObject(contents.size() - 1);
+      if (role.equals(last.getString("role"))) {
+        last.getJSONArray("parts").addAll(parts);
+        return;
+      }
+    }
+    JSONObject content = new JSONObject();
+    content.put("role", role);
+    content.put("parts", parts);
+    contents.add(content);
+  }
+
+  private static JSONObject textPart(String text) {
+    JSONObject part = new JSONObject();
+    part.put("text", text);
+    return part;
+  }
+
+  private static JSONArray parts(Object content) {
+    JSONArray parts = new JSONArray();
+    if (content instanceof JSONArray) {
+      for (Object item : (JSONArray) content) {
+        if (!(item instanceof JSONObject)) {
+          continue;
+        }
+        JSONObject part = (JSONObject) item;
+        String type = part.getString("type");
+        if ("text".equals(type)) {
+          String text = part.getString("text");
+          if (text != null && !text.isEmpty()) {
+            parts.add(textPart(text));
+          }
+        } else if ("image_url".equals(type)) {
+          String url = OpenAiFormat.imageUrl(part);
+          String[] data = OpenAiFormat.dataUrl(url);
+          JSONObject file = new JSONObject();
+          JSONObject converted = new JSONObject();
+          if (data != null) {
+            file.put("mimeType", data[0]);
+            file.put("data", data[1]);
+            converted.put("inlineData", file);
+          } else {
+            file.put("fileUri", url);
+            converted.put("fileData", file);
+          }
+          parts.add(converted);
+        }
+      }
+    } else {
+      String text = OpenAiFormat.text(content);
+      if (text != null && !text.isEmpty()) {
+        parts.add(textPart(text));
+      }
+    }
+    return parts;
+  }
+
+  private static JSONArray assistant(JSONObject message, Map<String, String> toolNames) {
+    JSONArray parts = parts(message.get("content"));
+    JSONArray calls = message.getJSONArray("tool_calls");
+    if (calls != null) {
+      for (int i = 0; i < calls.size(); i++) {
+        JSONObject call = calls.getJSONObject(i);
+        JSONObject function = call.getJSONObject("function");
+        String name = function.getString("name");
+        toolNames.put(call.getString("id"), name);
+        JSONObject functionCall = new JSONObject();
+        functionCall.put("name", name);
+        functionCall.put("args", OpenAiFormat.arguments(function.getString("arguments")));
+        JSONObject part = new JSONObject();
+        part.put("functionCall", functionCall);
+        parts.add(part);
+      }
+    }
+    return parts;
+  }
+
+  private static JSONArray toolResponse(JSONObject message, Map<String, String> toolNames) {
+    String text = OpenAiFormat.text(message.get("content"));
+    // 工具返回 JSON 对象时原样传给模型, 否则包在 content 中
+    Object value = null;
+    if (text != null && text.trim().startsWith("{")) {
+      try {
+        value = JSON.parseObject(text);
+      } catch (Exception e) {
+        value = null;
+      }
+    }
+    if (value == null) {
+      JSONObject wrapped = new JSONObject();
+      wrapped.put("content", text);
+      value = wrapped;
+    }
+    String id = message.getString("tool_call_id");
+    String name = toolNames.get(id);
+    JSONObject functionResponse = new JSONObject();
+    functionResponse.put("name", name != null ? name : message.getString("name"));
+    functionResponse.put("response", value);
+    JSONObject part = new JSONObject();
+    part.put("functionResponse", functionResponse);
+    JSONArray parts = new JSONArray();
+    parts.add(part);
+    return parts;
+  }
+
+  private static void tools(JSONObject request, JSONObject out) {
+    JSONArray tools = request.getJSONArray("tools");
+    if (tools != null && !tools.isEmpty()) {
+      JSONArray declarations = new JSONArray();
+      for (int i = 0; i < tools.size(); i++) {
+        JSONObject function = tools.getJSONObject(i).getJSONObject("function");
+        if (function == null) {
+          continue;
+        }
+        JSONObject declaration = new JSONObject();
+        declaration.put("name", function.getString("name"));
+        copy(function, "description", declaration, "description");
+        copy(function, "parameters", declaration, "parameters");
+        declarations.add(declaration);
+      }
+      JSONObject tool = new JSONObject();
+      tool.put("functionDeclarations", declarations);
+      JSONArray list = new JSONArray();
+      list.add(tool);
+      out.put("tools", list);
+    }
+    Object choice = request.get("tool_choice");
+    JSONObject config = new JSONObject();
+    if ("auto".equals(choice)) {
+      config.put("mode", "AUTO");
+    } else if ("required".equals(choice)) {
+      config.put("mode", "ANY");
+    } else if ("none".equals(choice)) {
+      config.put("mode", "NONE");
+    } else if (choice instanceof JSONObject) {
+      JSONObject function = ((JSONObject) choice).getJSONObject("function");
+      if (function == null) {
+        return;
+      }
+      config.put("mode", "ANY");
+      JSONArray names = new JSONArray();
+      names.add(function.getString("name"));
+      config.put("allowedFunctionNames", names);
+    } else {
+      return;
+    }
+    JSONObject toolConfig = new JSONObject();
+    toolConfig.put("functionCallingConfig", config);
+    out.put("toolConfig", toolConfig);
+  }
+
+  @Override
+  public JSONObject response(JSONObject response, String model) {
+    StringBuilder text = null;
+    JSONArray toolCalls = new JSONArray();
+    String finishReason = null;
+    JSONArray candidates = response.getJSONArray("candidates");
+    JSONObject candidate = candidates != null && !candidates.isEmpty() ? candidates.getJSONObject(0) : null;
+    if (candidate != null) {
+      JSONObject content = candidate.getJSONObject("content");
+      JSONArray parts = content != null ? content.getJSONArray("parts") : null;
+      if (parts != null) {
+        for (int i = 0; i < parts.size(); i++) {
+          JSONObject part = parts.getJSONObject(i);
+          if (part.getBooleanValue("thought")) {
+            continue;
+          }
+          String partText = part.getString("text");
+          JSONObject call = part.getJSONObject("functionCall");
+          if (partText != null) {
+            if (text == null) {
+              text = new StringBuilder();
+            }
+            text.append(partText);
+          } else if (call != null) {
+            toolCalls.add(OpenAiFormat.toolCall(toolId(call, toolCalls.size()), call.getString("name"),
+                call.get("args") != null ? call.get("args") : new JSONObject()));
+          }
+        }
+      }
+      finishReason = finishReason(candidate.getString("finishReason"), !toolCalls.isEmpty());
+    }
+    JSONObject usage = response.getJSONObject("usageMetadata");
+    return OpenAiFormat.completion(response.getString("responseId"), model, text != null ? text.toString() : null,
+        toolCalls, finishReason,
+        usage != null
+            ? OpenAiFormat.usage(usage.getLongValue("promptTokenCount"), completionTokens(usage))
+            : null);
+  }
+
+  private static String toolId(JSONObject call, int index) {
+    String id = call.getString("id");
+    return id != null ? id : "call_" + index;
+  }
+
+  /**
+   * 思考的 token 也按输出计费
+   */
+  private static long completionTokens(JSONObject usage) {
+    return usage.getLongValue("candidatesTokenCount") + usage.getLongValue("thoughtsTokenCount");
+  }
+
+  static String finishReason(String reason, boolean toolCalls) {
+    if (reason == null || reason.isEmpty() || "FINISH_REASON_UNSPECIFIED".equals(reason)) {
+      return null;
+    }
+    if (toolCalls) {
+      return "tool_calls";
+    }
+    switch (reason) {
+    case "STOP":
+      return "stop";
+    case "MAX_TOKENS":
+      return "length";
+    default:
+      // SAFETY, RECITATION, BLOCKLIST, PROHIBITED_CONTENT 等
+      return "content_filter";
+    }
+  }
+
+  @Override
+  public StreamTranslator stream(JSONObject request, String model) {
+    return new Stream(model, OpenAiFormat.includeUsage(request));
+  }
+
+  /**
+   * 每个事件是一个完整的 GenerateContentResponse, 只有增量文本; 函数调用在一个事件中完整返回
+   */
+  static class Stream extends StreamTranslator {
+
+    private int tools;
+
+    Stream(String model, boolean includeUsage) {
+      super(OpenAiFormat.newId(), model, includeUsage);
+    }
+
+    @Override
+    public void event(String type, String data, Consumer<String> out) {
+      JSONObject event = JSON.parseObject(data);
+      if (event == null) {
+        return;
+      }
+      if (event.containsKey("error")) {
+        out.accept(data);
+        return;
+      }
+      JSONArray candidates = event.getJSONArray("candidates");
+      JSONObject candidate = candidates != null && !candidates.isEmpty() ? candidates.getJSONObject(0) : null;
+      if (candidate != null) {
+        JSONObject content = candidate.getJSONObject("content");
+        JSONArray parts = content != null ? content.getJSONArray("parts") : null;
+        if (parts != null) {
+          for (int i = 0; i < parts.size(); i++) {
+            JSONObject part = parts.getJSONObject(i);
+            if (part.getBooleanValue("thought")) {
+              continue;
+            }
+            JSONObject call = part.getJSONObject("functionCall");
+            if (call != null) {
+              Object args = call.get("args");
+              toolCall(tools, toolId(call, tools), call.getString("name"),
+                  JSON.toJSONString(args != null ? args : new JSONObject()), out);
+              tools++;
+            } else {
+              content(part.getString("text"), out);
+            }
+          }
+        }
+      }
+      JSONObject usage = event.getJSONObject("usageMetadata");
+      if (usage != null) {
+        this.usage = true;
+        promptTokens = usage.getLongValue("promptTokenCount");
+        completionTokens = completionTokens(usage);
+      }
+      if (candidate != null) {
+        finishReason(GeminiTranslator.finishReason(candidate.getString("finishReason"), tools > 0), out);
+      }
+    }
+  }
+}
@@ -0,0 +1,153 @@
+package nexus.io.llm.proxy.translate;
+
+import java.util.UUID;
+
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONArray;
+import com.alibaba.fastjson2.JSONObject;
+
+/**
+ * 读取 OpenAI 请求和构建 OpenAI 响应的公共方法
+ */
+final class OpenAiFormat {
+
+  private OpenAiFormat() {
+  }
+
+  static String newId() {
+    return "chatcmpl-" + UUID.randomUUID().toString().replace("-", "");
+  }
+
+  /**
+   * content 为字符串或 parts 数组, 只取文本
+   */
+  static String text(Object content) {
+    if (content == null) {
+      return null;
+    }
+    if (content instanceof String) {
+      return (String) content;
+    }
+    if (content instanceof JSONArray) {
+      StringBuilder sb = new StringBuilder();
+      for (Object item : (JSONArray) content) {
+        if (item instanceof JSONObject && "text".equals(((JSONObject) item).getString("type"))) {
+          sb.append(((JSONObject) item).getString("text"));
+        }
+      }
+      return sb.toString();
+    }
+    return content.toString();
+  }
+
+  static String imageUrl(JSONObject part) {
+    Object value = part.get("image_url");
+    if (value instanceof JSONObject) {
+      return ((JSONObject) value).getString("url");
+    }
+    return value != null ? value.toString() : null;
+  }
+
+  /**
+   * data:image/png;base64,xxx
+   *
+   * @return [mimeType, base64], 不是 base64 的 data URL 时返回 null
+   */
+  static String[] dataUrl(String url) {
+    if (url == null || !url.startsWith("data:")) {
+      return null;
+    }
+    int comma = url.indexOf(',');
+    int base64 = url.indexOf(";base64");
+    if (comma < 0 || base64 < 0 || base64 > comma) {
+      return null;
+    }
+    return new String[] { url.substring(5, base64), url.substring(comma + 1) };
+  }
+
+  static Integer maxTokens(JSONObject request) {
+    Integer value = request.getInteger("max_completion_tokens");
+    return value != null ? value : request.getInteger("max_tokens");
+  }
+
+  /**
+   * stop 为字符串或数组
+   */
+  static JSONArray stop(JSONObject request) {
+    Object stop = request.get("stop");
+    if (stop == null) {
+      return null;
+    }
+    if (stop instanceof JSONArray) {
+      return (JSONArray) stop;
+    }
+    JSONArray array = new JSONArray();
+    array.add(stop.toString());
+    return array;
+  }
+
+  static boolean includeUsage(JSONObject request) {
+    JSONObject options = request.getJSONObject("stream_options");
+    return options != null && options.getBooleanValue("include_usage");
+  }
+
+  /**
+   * 工具调用的参数是 JSON 字符串, 上游需要对象
+   */
+  static Object arguments(String arguments) {
+    if (arguments == null || arguments.trim().isEmpty()) {
+      return new JSONObject();
+    }
+    try {
+      return JSON.parseObject(arguments);
+    } catch (Exception e) {
+      return new JSONObject();
+    }
+  }
+
+  static JSONObject toolCall(String id, String name, Object arguments) {
+    JSONObject function = new JSONObject();
+    function.put("name", name);
+    function.put("arguments", arguments instanceof String ? arguments : JSON.toJSONString(arguments));
+    JSONObject call = new JSONObject();
+    call.put("id", id);
+    call.put("type", "function");
+    call.put("function", function);
+    return call;
+  }
+
+  static JSONObject completion(String id, String model, String content, JSONArray toolCalls, String finishReason,
+      JSONObject usage) {
+    JSONObject message = new JSONObject();
+    message.put("role", "assistant");
+    message.put("content", content);
+    if (toolCalls != null && !toolCalls.isEmpty()) {
+      message.put("tool_calls", toolCalls);
+    }
+    JSONObject choice = new JSONObject();
+    choice.put("index", 0);
+    choice.put("message", message);
+    choice.put("finish_reason", finishReason);
+    JSONArray choices = new JSONArray();
+    choices.add(choice);
+
+    JSONObject completion = new JSONObject();
+    completion.put("id", id != null ? id : newId());
+    completion.put("object", "chat.completion");
+    completion.put("created", System.currentTimeMillis() / 1000);
+    completion.put("model", model);
+    completion.put("choices", choices);
+    if (usage != null) {
+      completion.put("usage", usage);
+    }
+    return completion;
+  }
+
+  static JSONObject usage(long prompt, long completion) {
+    JSONObject usage = new JSONObject();
+    usage.put("prompt_tokens", prompt);
+    usage.put("completion_tokens", completion);
+    usage.put("total_tokens", prompt + completion);
+    return usage;
+  }
+}
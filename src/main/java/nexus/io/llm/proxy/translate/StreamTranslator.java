@@ -0,0 +1,112 @@
+package nexus.io.llm.proxy.translate;
+
+import java.util.function.Consumer;
+
+import com.alibaba.fastjson2.JSON;
+
+/**
+ * 把上游的一个流式事件翻译成 0 到多个 OpenAI chat.completion.chunk, 不缓存整个响应. 每个请求一个实例, 只在 SSE 回调线程中使用.
+ * <p>
+ * 每个 chunk 共用的 id, created, model 在创建时拼好, 每个事件只拼接 delta 部分
+ */
+public abstract class StreamTranslator {
+
+  public static final String DONE = "[DONE]";
+
+  private final String head;
+  private final String usageHead;
+  private final boolean includeUsage;
+  private boolean roleSent;
+  private boolean finishSent;
+  private boolean done;
+
+  protected long promptTokens;
+  protected long completionTokens;
+  protected boolean usage;
+
+  /**
+   * @param includeUsage 请求中 stream_options.include_usage 为 true 时, 结束前单独发送一个只有 usage 的 chunk
+   */
+  protected StreamTranslator(String id, String model, boolean includeUsage) {
+    String common = "{\"id\":" + JSON.toJSONString(id) + ",\"object\":\"chat.completion.chunk\",\"created\":"
+        + System.currentTimeMillis() / 1000 + ",\"model\":" + JSON.toJSONString(model) + ",\"choices\":";
+    this.head = common + "[{\"index\":0,\"delta\":";
+    this.usageHead = common + "[],\"usage\":";
+    this.includeUsage = includeUsage;
+  }
+
+  /**
+   * @param type SSE 的 event 字段, 可能为 null
+   */
+  public abstract void event(String type, String data, Consumer<String> out);
+
+  /**
+   * 上游结束时调用, 可以重复调用
+   */
+  public void finish(Consumer<String> out) {
+    if (done) {
+      return;
+    }
+    done = true;
+    if (includeUsage && usage) {
+      out.accept(usageHead + "{\"prompt_tokens\":" + promptTokens + ",\"completion_tokens\":" + completionTokens
+          + ",\"total_tokens\":" + (promptTokens + completionTokens) + "}}");
+    }
+    out.accept(DONE);
+  }
+
+  protected void content(String text, Consumer<String> out) {
+    if (text == null || text.isEmpty()) {
+      return;
+    }
+    StringBuilder sb = new StringBuilder(head.length() + text.length() + 64).append(head);
+    sb.append('{');
+    role(sb);
+    sb.append("\"content\":").append(JSON.toJSONString(text)).append("},\"finish_reason\":null}]}");
+    out.accept(sb.toString());
+  }
+
+  /**
+   * 工具调用开始时带 id 和 name, 之后只追加 arguments
+   */
+  protected void toolCall(int index, String id, String name, String arguments, Consumer<String> out) {
+    StringBuilder sb = new StringBuilder(head.length() + 128).append(head);
+    sb.append('{');
+    role(sb);
+    sb.append("\"tool_calls\":[{\"index\":").append(index);
+    if (id != null) {
+      sb.append(",\"id\":").append(JSON.toJSONString(id)).append(",\"type\":\"function\"");
+    }
+    sb.append(",\"function\":{");
+    if (name != null) {
+      sb.append("\"name\":").append(JSON.toJSONString(name)).append(',');
+    }
+    sb.append("\"arguments\":").append(JSON.toJSONString(arguments != null ? arguments : ""));
+    sb.append("}}]},\"finish_reason\":null}]}");
+    out.accept(sb.toString());
+  }
+
+  protected void finishReason(String reason, Consumer<String> out) {
+    if (finishSent || reason == null) {
+      return;
+    }
+    finishSent = true;
+    StringBuilder sb = new StringBuilder(head.length() + 48).append(head).append('{');
+    role(sb);
+    if (sb.charAt(sb.length() - 1) == ',') {
+      sb.setLength(sb.length() - 1);
+    }
+    sb.append("},\"finish_reason\":\"").append(reason).append("\"}]}");
+    out.accept(sb.toString());
+  }
+
+  /**
+   * 第一个 chunk 带 role
+   */
+  private void role(StringBuilder sb) {
+    if (!roleSent) {
+      roleSent = true;
+      sb.append("\"role\":\"assistant\",");
+    }
+  }
+}
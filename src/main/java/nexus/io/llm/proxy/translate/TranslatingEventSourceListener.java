@@ -0,0 +1,61 @@
+package nexus.io.llm.proxy.translate;
+
+import java.util.function.Consumer;
+
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Response;
+import okhttp3.sse.EventSource;
+import okhttp3.sse.EventSourceListener;
+
+/**
+ * 逐个事件翻译上游的流式响应, 翻译出的 chunk 交给 listener 发送给客户端. 上游结束时补发 [DONE]
+ */
+@Slf4j
+public class TranslatingEventSourceListener extends EventSourceListener {
+
+  private final StreamTranslator translator;
+  private final EventSourceListener listener;
+  private EventSource eventSource;
+  private final Consumer<String> out = this::emit;
+
+  public TranslatingEventSourceListener(StreamTranslator translator, EventSourceListener listener) {
+    this.translator = translator;
+    this.listener = listener;
+  }
+
+  @Override
+  public void onOpen(EventSource eventSource, Response response) {
+    this.eventSource = eventSource;
+    listener.onOpen(eventSource, response);
+  }
+
+  @Override
+  public void onEvent(EventSource eventSource, String id, String type, String data) {
+    if (data == null || data.isEmpty()) {
+      return;
+    }
+    this.eventSource = eventSource;
+    try {
+      translator.event(type, data, out);
+    } catch (RuntimeException e) {
+      // 无法解析的事件不中断整个流
+      log.warn("translate event {} failed:{}", type, e.getMessage());
+    }
+  }
+
+  private void emit(String chunk) {
+    listener.onEvent(eventSource, null, null, chunk);
+  }
+
+  @Override
+  public void onClosed(EventSource eventSource) {
+    this.eventSource = eventSource;
+    translator.finish(out);
+    listener.onClosed(eventSource);
+  }
+
+  @Override
+  public void onFailure(EventSource eventSource, Throwable t, Response response) {
+    listener.onFailure(eventSource, t, response);
+  }
+}
@@ -0,0 +1,179 @@
+package nexus.io.llm.proxy.usage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okhttp3.sse.EventSource;
+import okhttp3.sse.EventSourceListener;
+
+/**
+ * 一次请求的用量. 流式响应逐个事件扫描, 非流式响应在回调前 peek 响应体, 不影响之后的转发. 请求结束时计入 UsageRecorder
+ */
+@Slf4j
+public class UsageMeter {
+
+  private final UsageRecorder recorder;
+  private final String route;
+  private final String apiKey;
+  private String model;
+  private long inputTokens;
+  private long outputTokens;
+  private boolean found;
+  // 响应体无法解压, 没有读到用量
+  private boolean undecoded;
+  private boolean finished;
+  private int status;
+
+  UsageMeter(UsageRecorder recorder, String route, String apiKey, String model) {
+    this.recorder = recorder;
+    this.route = route;
+    this.apiKey = apiKey;
+    this.model = model;
+  }
+
+  /**
+   * 流式响应的一个事件
+   */
+  public void scan(CharSequence data) {
+    if (model == null) {
+      // gemini 的模型在路径中, 从响应读取
+      model = UsageScanner.model(data);
+    }
+    UsageScanner.scan(data, this);
+  }
+
+  /**
+   * 非流式响应体, 可能是上游压缩过的
+   */
+  public void scan(byte[] body, String contentEncoding) {
+    if (body == null) {
+      return;
+    }
+    if (contentEncoding != null) {
+      body = decode(body, contentEncoding);
+      if (body == null) {
+        undecoded = true;
+        return;
+      }
+    }
+    scan(new UsageScanner.AsciiView(body, 0, body.length));
+  }
+
+  void usage(long input, long output) {
+    found = true;
+    if (input > inputTokens) {
+      inputTokens = input;
+    }
+    if (output > outputTokens) {
+      outputTokens = output;
+    }
+  }
+
+  /**
+   * 上游的响应状态, 401 和 403 表示客户端的密钥被拒绝
+   */
+  public void status(int status) {
+    this.status = status;
+  }
+
+  public synchronized void finish() {
+    if (!finished) {
+      finished = true;
+      recorder.record(route, apiKey, model, status, found, undecoded, inputTokens, outputTokens);
+    }
+  }
+
+  /**
+   * 非流式请求: 先 peek 响应体统计用量
+   */
+  public Callback wrap(Callback callback) {
+    return new Callback() {
+      @Override
+      public void onResponse(Call call, Response response) throws IOException {
+        status(response.code());
+        try {
+          ResponseBody peek = response.peekBody(recorder.getPeekBytes());
+          scan(peek.bytes(), response.header("Content-Encoding"));
+        } catch (IOException e) {
+          log.warn("usage peek failed:{}", e.getMessage());
+        }
+        finish();
+        callback.onResponse(call, response);
+      }
+
+      @Override
+      public void onFailure(Call call, IOException e) {
+        finish();
+        callback.onFailure(call, e);
+      }
+    };
+  }
+
+  public EventSourceListener wrap(EventSourceListener listener) {
+    return new EventSourceListener() {
+      @Override
+      public void onOpen(EventSource eventSource, Response response) {
+        status(response.code());
+        listener.onOpen(eventSource, response);
+      }
+
+      @Override
+      public void onEvent(EventSource eventSource, String id, String type, String data) {
+        if (data != null) {
+          scan(data);
+        }
+        listener.onEvent(eventSource, id, type, data);
+      }
+
+      @Override
+      public void onClosed(EventSource eventSource) {
+        finish();
+        listener.onClosed(eventSource);
+      }
+
+      @Override
+      public void onFailure(EventSource eventSource, Throwable t, Response response) {
+        if (response != null) {
+          status(response.code());
+        }
+        finish();
+        listener.onFailure(eventSource, t, response);
+      }
+    };
+  }
+
+  /**
+   * 只处理 gzip 和 deflate, 其他编码跳过
+   */
+  private static byte[] decode(byte[] body, String contentEncoding) {
+    String encoding = contentEncoding.trim().toLowerCase();
+    if (encoding.isEmpty() || "identity".equals(encoding)) {
+      return body;
+    }
+    try (InputStream in = "gzip".equals(encoding) ? new GZIPInputStream(new ByteArrayInputStream(body))
+        : "deflate".equals(encoding) ? new InflaterInputStream(new ByteArrayInputStream(body)) : null) {
+      if (in == null) {
+        return null;
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream(body.length * 4);
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        out.write(buffer, 0, n);
+      }
+      return out.toByteArray();
+    } catch (IOException e) {
+      // peek 可能截断了压缩流
+      return null;
+    }
+  }
+}
@@ -0,0 +1,293 @@
+package nexus.io.llm.proxy.usage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.alibaba.fastjson2.JSON;
+
+import lombok.extern.slf4j.Slf4j;
+import nexus.io.llm.proxy.cluster.SharedCounter;
+import nexus.io.llm.proxy.cluster.SharedState;
+import nexus.io.llm.proxy.utils.KeyFingerprint;
+import nexus.io.tio.utils.environment.EnvUtils;
+
+/**
+ * 按 路由, 客户端密钥, 模型 汇总 token 用量, 定时把增量追加到用量日志, 每行一个 JSON.
+ *
+ * <pre>
+ * llm.proxy.usage.enabled=true
+ * llm.proxy.usage.log=logs/llm-usage.log
+ * llm.proxy.usage.flush.seconds=60
+ * llm.proxy.usage.peek.bytes=1048576
+ * llm.proxy.usage.max.entries=10000
+ * </pre>
+ *
+ * 日志中的密钥是 SHA-256 指纹的前 16 位, 不写明文, 内存中也只按指纹汇总. 没有返回用量的请求(如 OpenAI 流式请求没有设置
+ * stream_options.include_usage)只计请求数. 响应体的压缩方式无法解压(或 peek 截断了压缩流)时计入 undecoded.
+ * <p>
+ * 一个写出周期内没有请求的组合在写出后移除. 组合数达到 max.entries 时, 新的密钥计入同一路由的 other;
+ * 上游返回 401, 403 的请求计入同一路由的 rejected, 无效的密钥不会产生新的组合和集群计数器
+ * <p>
+ * 配置了 {@link SharedState} 时同时累加集群计数, 快照中的 cluster* 是所有节点的合计; 用量日志仍然只写本节点的增量
+ */
+@Slf4j
+public class UsageRecorder {
+
+  private static final String OTHER = "other";
+  private static final String REJECTED = "rejected";
+
+  private final File logFile;
+  private final long peekBytes;
+  private final int maxEntries;
+  private final Map<String, Totals> totals = new ConcurrentHashMap<>();
+  // 已移除的组合再写出一次, 移除时正在累加的增量不会丢失. 只在 flush 中读写
+  private List<Totals> retired = new ArrayList<>();
+  private final ScheduledExecutorService scheduler;
+  private final SharedState shared;
+
+  public static UsageRecorder fromEnv() {
+    return fromEnv(null);
+  }
+
+  public static UsageRecorder fromEnv(SharedState shared) {
+    if (!EnvUtils.getBoolean("llm.proxy.usage.enabled", false)) {
+      return null;
+    }
+    String path = EnvUtils.getStr("llm.proxy.usage.log", "logs/llm-usage.log");
+    long flushSeconds = EnvUtils.getLong("llm.proxy.usage.flush.seconds", 60L);
+    long peekBytes = EnvUtils.getLong("llm.proxy.usage.peek.bytes", 1024L * 1024);
+    int maxEntries = EnvUtils.getInt("llm.proxy.usage.max.entries", 10000);
+    UsageRecorder recorder = new UsageRecorder(new File(path), flushSeconds, peekBytes, maxEntries, shared);
+    log.info("llm proxy usage log enabled, file:{}, flush:{}s", path, flushSeconds);
+    return recorder;
+  }
+
+  public UsageRecorder(File logFile, long flushSeconds, long peekBytes) {
+    this(logFile, flushSeconds, peekBytes, 10000, null);
+  }
+
+  public UsageRecorder(File logFile, long flushSeconds, long peekBytes, int maxEntries, SharedState shared) {
+    this.logFile = logFile;
+    this.peekBytes = peekBytes;
+    this.maxEntries = maxEntries;
+    this.shared = shared;
+    File dir = logFile.getAbsoluteFile().getParentFile();
+    if (dir != null) {
+      dir.mkdirs();
+    }
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "llm-proxy-usage");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(this::flush, flushSeconds, flushSeconds, TimeUnit.SECONDS);
+    Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "llm-proxy-usage-flush"));
+  }
+
+  /**
+   * @param apiKey 客户端的密钥, 可以为 null
+   * @param model  请求中的模型, null 时从响应读取
+   */
+  public UsageMeter meter(String route, String apiKey, String model) {
+    return new UsageMeter(this, route, apiKey, model);
+  }
+
+  /**
+   * @param status 上游的响应状态, 没有响应时为 0
+   */
+  void record(String route, String apiKey, String model, int status, boolean found, boolean undecoded,
+      long inputTokens, long outputTokens) {
+    String fingerprint;
+    if (status == 401 || status == 403) {
+      fingerprint = REJECTED;
+      model = null;
+    } else {
+      fingerprint = KeyFingerprint.of(apiKey);
+    }
+    String key = key(route, fingerprint, model);
+    Totals t = totals.get(key);
+    if (t == null) {
+      if (totals.size() >= maxEntries) {
+        key = key(route, OTHER, null);
+        t = totals.computeIfAbsent(key, k -> newTotals(route, OTHER, null));
+      } else {
+        String m = model;
+        t = totals.computeIfAbsent(key, k -> newTotals(route, fingerprint, m));
+      }
+    }
+    if (undecoded) {
+      t.undecoded.increment();
+    }
+    if (found) {
+      t.reported.increment();
+      t.inputTokens.add(inputTokens);
+      t.outputTokens.add(outputTokens);
+    }
+    if (t.clusterRequests != null) {
+      t.clusterRequests.add(1);
+      if (found) {
+        t.clusterInput.add(inputTokens);
+        t.clusterOutput.add(outputTokens);
+      }
+    }
+    // 最后累加请求数, flush 按请求数判断是否有增量
+    t.requests.increment();
+  }
+
+  private static String key(String route, String fingerprint, String model) {
+    return route + '\n' + (fingerprint != null ? fingerprint : "") + '\n' + (model != null ? model : "");
+  }
+
+  private Totals newTotals(String route, String fingerprint, String model) {
+    Totals t = new Totals(route, fingerprint, model);
+    if (shared != null) {
+      // 各节点按相同的名称合并, 名称中只有密钥指纹
+      String name = "usage:" + route + '|' + (fingerprint != null ? fingerprint : "") + '|'
+          + (model != null ? model : "");
+      t.clusterRequests = shared.counter(name + ":requests", null);
+      t.clusterInput = shared.counter(name + ":input", null);
+      t.clusterOutput = shared.counter(name + ":output", null);
+    }
+    return t;
+  }
+
+  /**
+   * 追加上次写出之后的增量, 只在调度线程和关闭钩子中调用
+   */
+  public synchronized void flush() {
+    long now = System.currentTimeMillis();
+    StringBuilder lines = new StringBuilder();
+    for (Totals t : retired) {
+      Map<String, Object> delta = t.delta(now);
+      if (delta != null) {
+        lines.append(JSON.toJSONString(delta)).append('\n');
+      }
+      t.release();
+    }
+    retired = new ArrayList<>();
+    for (Iterator<Map.Entry<String, Totals>> it = totals.entrySet().iterator(); it.hasNext();) {
+      Map.Entry<String, Totals> entry = it.next();
+      Totals t = entry.getValue();
+      Map<String, Object> delta = t.delta(now);
+      if (delta != null) {
+        lines.append(JSON.toJSONString(delta)).append('\n');
+      } else if (totals.remove(entry.getKey(), t)) {
+        // 一个周期没有请求
+        retired.add(t);
+      }
+    }
+    if (lines.length() == 0) {
+      return;
+    }
+    try {
+      Files.write(logFile.toPath(), lines.toString().getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+          StandardOpenOption.APPEND);
+    } catch (IOException e) {
+      log.error("write usage log {} failed:{}", logFile, e.getMessage(), e);
+    }
+  }
+
+  public long getPeekBytes() {
+    return peekBytes;
+  }
+
+  public List<Map<String, Object>> snapshot() {
+    List<Map<String, Object>> list = new ArrayList<>();
+    for (Totals t : totals.values()) {
+      Map<String, Object> map = new LinkedHashMap<>();
+      map.put("route", t.route);
+      map.put("key", t.key);
+      map.put("model", t.model);
+      map.put("requests", t.requests.sum());
+      map.put("reported", t.reported.sum());
+      map.put("undecoded", t.undecoded.sum());
+      map.put("inputTokens", t.inputTokens.sum());
+      map.put("outputTokens", t.outputTokens.sum());
+      if (t.clusterRequests != null) {
+        map.put("clusterRequests", t.clusterRequests.sum());
+        map.put("clusterInputTokens", t.clusterInput.sum());
+        map.put("clusterOutputTokens", t.clusterOutput.sum());
+      }
+      list.add(map);
+    }
+    return list;
+  }
+
+  private static class Totals {
+    private final String route;
+    // 密钥指纹
+    private final String key;
+    private final String model;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder reported = new LongAdder();
+    private final LongAdder undecoded = new LongAdder();
+    private final LongAdder inputTokens = new LongAdder();
+    private final LongAdder outputTokens = new LongAdder();
+    // 配置了共享状态时不为 null, 发布前赋值
+    private SharedCounter clusterRequests;
+    private SharedCounter clusterInput;
+    private SharedCounter clusterOutput;
+    // 上次写出时的累计值, 只在 flush 中读写
+    private long flushedRequests;
+    private long flushedInput;
+    private long flushedOutput;
+    private long flushedUndecoded;
+    private long lastFlush = System.currentTimeMillis();
+
+    private Totals(String route, String key, String model) {
+      this.route = route;
+      this.key = key;
+      this.model = model;
+    }
+
+    /**
+     * 集群计数器停止同步, 同名的组合重新创建时会再次持有
+     */
+    private void release() {
+      if (clusterRequests != null) {
+        clusterRequests.release();
+        clusterInput.release();
+        clusterOutput.release();
+      }
+    }
+
+    private Map<String, Object> delta(long now) {
+      long requests = this.requests.sum();
+      if (requests == flushedRequests) {
+        return null;
+      }
+      long input = inputTokens.sum();
+      long output = outputTokens.sum();
+      long undecoded = this.undecoded.sum();
+      Map<String, Object> map = new LinkedHashMap<>();
+      map.put("from", lastFlush);
+      map.put("to", now);
+      map.put("route", route);
+      map.put("key", key);
+      map.put("model", model);
+      map.put("requests", requests - flushedRequests);
+      map.put("inputTokens", input - flushedInput);
+      map.put("outputTokens", output - flushedOutput);
+      map.put("undecoded", undecoded - flushedUndecoded);
+      flushedRequests = requests;
+      flushedInput = input;
+      flushedOutput = output;
+      flushedUndecoded = undecoded;
+      lastFlush = now;
+      return map;
+    }
+  }
+}
@@ -0,0 +1,222 @@
+package nexus.io.llm.proxy.usage;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 在响应片段中按字节查找 token 用量, 不解析 JSON. 支持
+ * <ul>
+ * <li>OpenAI, OpenRouter, Cerebras: "usage":{"prompt_tokens","completion_tokens"}</li>
+ * <li>Anthropic: message_start 和 message_delta 中的 "usage":{"input_tokens","output_tokens"}</li>
+ * <li>Gemini: "usageMetadata":{"promptTokenCount","candidatesTokenCount","thoughtsTokenCount"}</li>
+ * </ul>
+ * 流式响应中的用量是累计值, 所以每个字段取最大值. 字符串中的同名 key 带有转义引号, 不会被误认
+ */
+public class UsageScanner {
+
+  private static final String USAGE = "\"usage\"";
+  private static final String USAGE_METADATA = "\"usageMetadata\"";
+  private static final String MODEL = "\"model\"";
+  private static final String MODEL_VERSION = "\"modelVersion\"";
+
+  private static final String[] INPUT = { "\"prompt_tokens\"", "\"input_tokens\"", "\"promptTokenCount\"" };
+  private static final String[] OUTPUT = { "\"completion_tokens\"", "\"output_tokens\"", "\"candidatesTokenCount\"" };
+  private static final String THOUGHTS = "\"thoughtsTokenCount\"";
+
+  /**
+   * @return 找到 usage 对象时返回 true
+   */
+  public static boolean scan(CharSequence s, UsageMeter meter) {
+    int end = s.length();
+    int key = find(s, USAGE, 0, end);
+    if (key < 0) {
+      key = find(s, USAGE_METADATA, 0, end);
+      if (key < 0) {
+        return false;
+      }
+      key += USAGE_METADATA.length();
+    } else {
+      key += USAGE.length();
+    }
+    int start = value(s, key, end);
+    if (start < 0 || s.charAt(start) != '{') {
+      // "usage":null
+      return false;
+    }
+    int close = skipObject(s, start, end);
+    if (close < 0) {
+      return false;
+    }
+    long input = -1;
+    long output = -1;
+    for (int i = 0; i < INPUT.length && input < 0; i++) {
+      input = number(s, INPUT[i], start, close);
+    }
+    for (int i = 0; i < OUTPUT.length && output < 0; i++) {
+      output = number(s, OUTPUT[i], start, close);
+    }
+    long thoughts = number(s, THOUGHTS, start, close);
+    if (thoughts > 0) {
+      output = Math.max(output, 0) + thoughts;
+    }
+    meter.usage(input, output);
+    return true;
+  }
+
+  /**
+   * 读取响应中的模型名, 没有时返回 null
+   */
+  public static String model(CharSequence s) {
+    int end = s.length();
+    String needle = MODEL;
+    int key = find(s, needle, 0, end);
+    if (key < 0) {
+      needle = MODEL_VERSION;
+      key = find(s, needle, 0, end);
+      if (key < 0) {
+        return null;
+      }
+    }
+    int start = value(s, key + needle.length(), end);
+    if (start < 0 || s.charAt(start) != '"') {
+      return null;
+    }
+    for (int i = start + 1; i < end; i++) {
+      char c = s.charAt(i);
+      if (c == '\\') {
+        return null;
+      }
+      if (c == '"') {
+        return s.subSequence(start + 1, i).toString();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * 查找未被转义的 key, 返回开始引号的位置
+   */
+  private static int find(CharSequence s, String needle, int from, int end) {
+    int last = end - needle.length();
+    char first = needle.charAt(0);
+    outer: for (int i = from; i <= last; i++) {
+      if (s.charAt(i) != first || (i > 0 && s.charAt(i - 1) == '\\')) {
+        continue;
+      }
+      for (int j = 1; j < needle.length(); j++) {
+        if (s.charAt(i + j) != needle.charAt(j)) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+
+  /**
+   * i 指向 key 之后, 跳过冒号和空白, 返回值的开始位置
+   */
+  private static int value(CharSequence s, int i, int end) {
+    i = skipWhitespace(s, i, end);
+    if (i >= end || s.charAt(i) != ':') {
+      return -1;
+    }
+    i = skipWhitespace(s, i + 1, end);
+    return i < end ? i : -1;
+  }
+
+  private static int skipWhitespace(CharSequence s, int i, int end) {
+    while (i < end) {
+      char c = s.charAt(i);
+      if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+        break;
+      }
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * i 指向 '{', 返回对应 '}' 的位置, 未结束返回 -1
+   */
+  private static int skipObject(CharSequence s, int i, int end) {
+    int depth = 0;
+    boolean inString = false;
+    for (; i < end; i++) {
+      char c = s.charAt(i);
+      if (inString) {
+        if (c == '\\') {
+          i++;
+        } else if (c == '"') {
+          inString = false;
+        }
+      } else if (c == '"') {
+        inString = true;
+      } else if (c == '{') {
+        depth++;
+      } else if (c == '}' && --depth == 0) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * 在 [from, end) 中读取整数字段, 没有时返回 -1
+   */
+  private static long number(CharSequence s, String needle, int from, int end) {
+    int key = find(s, needle, from, end);
+    if (key < 0) {
+      return -1;
+    }
+    int i = value(s, key + needle.length(), end);
+    if (i < 0) {
+      return -1;
+    }
+    long value = 0;
+    int digits = 0;
+    for (; i < end; i++) {
+      char c = s.charAt(i);
+      if (c < '0' || c > '9') {
+        break;
+      }
+      value = value * 10 + (c - '0');
+      digits++;
+    }
+    return digits > 0 ? value : -1;
+  }
+
+  /**
+   * 把 ASCII 字节当作字符读取, 用于非流式响应体, 避免解码成字符串
+   */
+  static class AsciiView implements CharSequence {
+    private final byte[] bytes;
+    private final int offset;
+    private final int length;
+
+    AsciiView(byte[] bytes, int offset, int length) {
+      this.bytes = bytes;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    @Override
+    public int length() {
+      return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+      return (char) (bytes[offset + index] & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+      return new AsciiView(bytes, offset + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+      return new String(bytes, offset, length, StandardCharsets.UTF_8);
+    }
+  }
+}
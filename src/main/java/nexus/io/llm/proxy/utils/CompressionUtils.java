@@ -0,0 +1,160 @@
+package nexus.io.llm.proxy.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+import nexus.io.tio.http.common.HeaderName;
+import nexus.io.tio.http.common.HeaderValue;
+import nexus.io.tio.http.common.HttpResponse;
+import nexus.io.tio.utils.environment.EnvUtils;
+
+/**
+ * 按客户端的 Accept-Encoding 压缩响应.
+ * <ul>
+ * <li>上游已经压缩过的响应体原样返回. 上游收到的是客户端的 Accept-Encoding, 选择的编码客户端一定支持</li>
+ * <li>上游没有压缩, 并且大于 llm.proxy.compress.min.bytes 的文本响应由代理 gzip 压缩</li>
+ * <li>llm.proxy.compress.sse=true 时流式响应也使用 gzip, 每次写出后 SYNC_FLUSH, 客户端可以逐个事件解压</li>
+ * </ul>
+ * JDK 没有 Brotli 编码器, 代理只生成 gzip, 上游返回的 br 照常透传
+ */
+public class CompressionUtils {
+
+  public static final String GZIP = "gzip";
+
+  private static final boolean ENABLED = EnvUtils.getBoolean("llm.proxy.compress.enabled", true);
+  private static final int MIN_BYTES = EnvUtils.getInt("llm.proxy.compress.min.bytes", 1024);
+  private static final int LEVEL = EnvUtils.getInt("llm.proxy.compress.level", 6);
+  private static final boolean SSE = EnvUtils.getBoolean("llm.proxy.compress.sse", false);
+
+  /**
+   * 客户端接受 gzip 时返回 gzip, 否则返回 null
+   */
+  public static String negotiate(String acceptEncoding) {
+    if (!ENABLED || acceptEncoding == null) {
+      return null;
+    }
+    boolean wildcard = false;
+    for (String item : acceptEncoding.split(",")) {
+      String coding = item;
+      double q = 1;
+      int semicolon = item.indexOf(';');
+      if (semicolon >= 0) {
+        coding = item.substring(0, semicolon);
+        q = quality(item.substring(semicolon + 1));
+      }
+      coding = coding.trim().toLowerCase();
+      if (GZIP.equals(coding) || "x-gzip".equals(coding)) {
+        // 明确写了 gzip 时以它的 q 值为准
+        return q > 0 ? GZIP : null;
+      }
+      if ("*".equals(coding) && q > 0) {
+        wildcard = true;
+      }
+    }
+    return wildcard ? GZIP : null;
+  }
+
+  /**
+   * 只保留 gzip, deflate 和 identity, 统计用量时需要解压上游的响应体. 通配符换成 gzip, deflate, 都不保留时返回 identity
+   */
+  public static String decodable(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return null;
+    }
+    StringBuilder sb = new StringBuilder();
+    for (String item : acceptEncoding.split(",")) {
+      int semicolon = item.indexOf(';');
+      String coding = (semicolon >= 0 ? item.substring(0, semicolon) : item).trim().toLowerCase();
+      String kept;
+      if (GZIP.equals(coding) || "x-gzip".equals(coding) || "deflate".equals(coding) || "identity".equals(coding)) {
+        kept = item.trim();
+      } else if ("*".equals(coding) && (semicolon < 0 || quality(item.substring(semicolon + 1)) > 0)) {
+        kept = "gzip, deflate";
+      } else {
+        continue;
+      }
+      if (sb.length() > 0) {
+        sb.append(", ");
+      }
+      sb.append(kept);
+    }
+    return sb.length() > 0 ? sb.toString() : "identity";
+  }
+
+  /**
+   * 流式响应是否使用 gzip
+   */
+  public static boolean negotiateSse(String acceptEncoding) {
+    return SSE && negotiate(acceptEncoding) != null;
+  }
+
+  /**
+   * 设置响应体, 需要时压缩. 调用方已经设置了 Content-Type
+   *
+   * @param contentEncoding 上游的 Content-Encoding, 有值时原样返回
+   */
+  public static void setBody(HttpResponse httpResponse, byte[] body, String contentType, String contentEncoding,
+      String acceptEncoding) {
+    if (contentEncoding != null) {
+      httpResponse.addHeader(HeaderName.Content_Encoding, HeaderValue.from(contentEncoding));
+      httpResponse.setBody(body);
+    } else if (shouldCompress(body, contentType) && negotiate(acceptEncoding) != null) {
+      httpResponse.addHeader(HeaderName.Content_Encoding, HeaderValue.from(GZIP));
+      httpResponse.addHeader(HeaderName.Vary, HeaderValue.from("Accept-Encoding"));
+      httpResponse.setBody(gzip(body));
+    } else {
+      httpResponse.setBody(body);
+    }
+    // 已经是最终的字节, 不让 tio 再次压缩
+    httpResponse.setSkipGzipped(true);
+  }
+
+  public static boolean shouldCompress(byte[] body, String contentType) {
+    return ENABLED && body.length >= MIN_BYTES && isText(contentType);
+  }
+
+  private static boolean isText(String contentType) {
+    if (contentType == null) {
+      return false;
+    }
+    String type = contentType.toLowerCase();
+    return type.startsWith("text/") || type.contains("json") || type.contains("xml") || type.contains("javascript");
+  }
+
+  public static byte[] gzip(byte[] body) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, body.length / 4));
+    try (GZIPOutputStream gzip = newGzip(out, false)) {
+      gzip.write(body);
+    } catch (IOException e) {
+      // 内存流不会抛出
+      throw new IllegalStateException(e);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * 使用 llm.proxy.compress.level 的 gzip 流
+   */
+  public static GZIPOutputStream newGzip(ByteArrayOutputStream out, boolean syncFlush) throws IOException {
+    return new GZIPOutputStream(out, 8192, syncFlush) {
+      {
+        def.setLevel(LEVEL);
+      }
+    };
+  }
+
+  private static double quality(String params) {
+    for (String param : params.split(";")) {
+      param = param.trim();
+      if (param.startsWith("q=")) {
+        try {
+          return Double.parseDouble(param.substring(2).trim());
+        } catch (NumberFormatException e) {
+          return 0;
+        }
+      }
+    }
+    return 1;
+  }
+}
@@ -0,0 +1,28 @@
+package nexus.io.llm.proxy.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 密钥的 SHA-256 指纹的前 16 位十六进制, 用于日志, 配置和节点之间同步, 不暴露明文. Bearer 前缀不参与计算
+ */
+public class KeyFingerprint {
+
+  public static String of(String apiKey) {
+    if (apiKey == null) {
+      return null;
+    }
+    String value = apiKey.regionMatches(true, 0, "Bearer ", 0, 7) ? apiKey.substring(7).trim() : apiKey;
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder(16);
+      for (int i = 0; i < 8; i++) {
+        hex.append(Character.forDigit((digest[i] >> 4) & 0xf, 16)).append(Character.forDigit(digest[i] & 0xf, 16));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
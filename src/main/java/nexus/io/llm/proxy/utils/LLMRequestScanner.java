@@ -0,0 +1,184 @@
+package nexus.io.llm.proxy.utils;
+
+import java.nio.charset.StandardCharsets;
+
+import com.alibaba.fastjson2.JSON;
+
+import nexus.io.llm.proxy.mode.LLMRequestFields;
+
+/**
+ * 只扫描请求体的顶层 key, 读取 stream 和 model, 其余的值(messages, base64 图片等)按字节跳过, 不构建 JSON 树.
+ * 请求体不是合法 JSON 或被截断时, 返回已经读到的字段
+ */
+public class LLMRequestScanner {
+
+  private static final byte[] STREAM = "stream".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] MODEL = "model".getBytes(StandardCharsets.US_ASCII);
+
+  public static LLMRequestFields scan(byte[] body) {
+    return body == null ? new LLMRequestFields() : scan(body, body.length);
+  }
+
+  /**
+   * 只扫描前 limit 个字节
+   */
+  public static LLMRequestFields scan(byte[] body, int limit) {
+    LLMRequestFields fields = new LLMRequestFields();
+    int end = Math.min(body.length, limit);
+    int i = skipWhitespace(body, 0, end);
+    if (i >= end || body[i] != '{') {
+      return fields;
+    }
+    i++;
+    while (true) {
+      i = skipWhitespace(body, i, end);
+      if (i >= end || body[i] != '"') {
+        return fields;
+      }
+      int keyStart = i + 1;
+      i = skipString(body, i, end);
+      if (i < 0) {
+        return fields;
+      }
+      // i 指向结束引号之后
+      int keyEnd = i - 1;
+
+      i = skipWhitespace(body, i, end);
+      if (i >= end || body[i] != ':') {
+        return fields;
+      }
+      i = skipWhitespace(body, i + 1, end);
+      if (i >= end) {
+        return fields;
+      }
+
+      if (equals(body, keyStart, keyEnd, STREAM)) {
+        if (startsWith(body, i, end, "true")) {
+          fields.setStream(true);
+        } else if (startsWith(body, i, end, "false")) {
+          fields.setStream(false);
+        }
+      }
+      int valueStart = i;
+      i = skipValue(body, i, end);
+      if (i < 0) {
+        return fields;
+      }
+      if (body[valueStart] == '"' && equals(body, keyStart, keyEnd, MODEL)) {
+        fields.setModel(readString(body, valueStart + 1, i - 1));
+      }
+
+      i = skipWhitespace(body, i, end);
+      if (i >= end || body[i] != ',') {
+        return fields;
+      }
+      i++;
+    }
+  }
+
+  private static int skipWhitespace(byte[] b, int i, int end) {
+    while (i < end) {
+      byte c = b[i];
+      if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+        break;
+      }
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * i 指向开始引号, 返回结束引号之后的位置, 未结束返回 -1
+   */
+  private static int skipString(byte[] b, int i, int end) {
+    i++;
+    while (i < end) {
+      byte c = b[i];
+      if (c == '"') {
+        return i + 1;
+      }
+      if (c == '\\') {
+        i++;
+      }
+      i++;
+    }
+    return -1;
+  }
+
+  /**
+   * 跳过一个任意类型的值, 返回值之后的位置, 未结束返回 -1
+   */
+  private static int skipValue(byte[] b, int i, int end) {
+    byte first = b[i];
+    if (first == '"') {
+      return skipString(b, i, end);
+    }
+    if (first == '{' || first == '[') {
+      int depth = 0;
+      while (i < end) {
+        byte c = b[i];
+        if (c == '"') {
+          i = skipString(b, i, end);
+          if (i < 0) {
+            return -1;
+          }
+          continue;
+        }
+        if (c == '{' || c == '[') {
+          depth++;
+        } else if (c == '}' || c == ']') {
+          depth--;
+          if (depth == 0) {
+            return i + 1;
+          }
+        }
+        i++;
+      }
+      return -1;
+    }
+    // number, true, false, null
+    while (i < end) {
+      byte c = b[i];
+      if (c == ',' || c == '}' || c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+        return i;
+      }
+      i++;
+    }
+    return -1;
+  }
+
+  private static boolean equals(byte[] b, int start, int end, byte[] key) {
+    if (end - start != key.length) {
+      return false;
+    }
+    for (int j = 0; j < key.length; j++) {
+      if (b[start + j] != key[j]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean startsWith(byte[] b, int i, int end, String literal) {
+    int len = literal.length();
+    if (end - i < len) {
+      return false;
+    }
+    for (int j = 0; j < len; j++) {
+      if (b[i + j] != literal.charAt(j)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String readString(byte[] b, int start, int end) {
+    for (int j = start; j < end; j++) {
+      if (b[j] == '\\') {
+        // 很少见, 交给 JSON 解析处理转义
+        return (String) JSON.parse(new String(b, start - 1, end - start + 2, StandardCharsets.UTF_8));
+      }
+    }
+    return new String(b, start, end - start, StandardCharsets.UTF_8);
+  }
+}
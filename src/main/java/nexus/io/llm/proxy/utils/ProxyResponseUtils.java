@@ -0,0 +1,37 @@
+package nexus.io.llm.proxy.utils;
+
+import java.io.IOException;
+
+import nexus.io.llm.proxy.client.LLMProxyClient;
+import nexus.io.tio.http.common.HeaderName;
+import nexus.io.tio.http.common.HeaderValue;
+import nexus.io.tio.http.common.HttpResponse;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+public class ProxyResponseUtils {
+
+  private static final byte[] EMPTY = {};
+
+  /**
+   * 上游响应写回客户端: 状态码, Content-Type, Content-Encoding 和响应体字节. 上游没有压缩时按客户端的 Accept-Encoding
+   * 压缩, 见 CompressionUtils
+   *
+   * @return 上游的响应体字节
+   */
+  public static byte[] copy(Response response, HttpResponse httpResponse) throws IOException {
+    httpResponse.setStatus(response.code());
+    ResponseBody body = response.body();
+    byte[] bytes = body != null ? body.bytes() : EMPTY;
+
+    String contentType = response.header("Content-Type");
+    if (contentType == null) {
+      contentType = LLMProxyClient.DEFAULT_CONTENT_TYPE;
+    }
+    httpResponse.addHeader(HeaderName.Content_Type, HeaderValue.from(contentType));
+    // 转发给上游的就是客户端的 Accept-Encoding
+    String acceptEncoding = response.request().header("accept-encoding");
+    CompressionUtils.setBody(httpResponse, bytes, contentType, response.header("Content-Encoding"), acceptEncoding);
+    return bytes;
+  }
+}
@@ -0,0 +1,96 @@
+package nexus.io.llm.proxy.client;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Random;
+
+import nexus.io.llm.proxy.cache.ResponseCache;
+import nexus.io.llm.proxy.limit.BodyLimits;
+import nexus.io.llm.proxy.route.ProviderRoute;
+import nexus.io.llm.proxy.route.StreamMode;
+import nexus.io.llm.proxy.utils.LLMRequestScanner;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.Okio;
+
+/**
+ * 内联 base64 图片的大请求体, 对比处理一个请求时当前线程分配的字节数: 扫描字段, 计算缓存 key, 写给上游
+ *
+ * <pre>
+ * java -cp ... nexus.io.llm.proxy.client.LargeBodyAllocationTest 32   (请求体 MB)
+ * </pre>
+ */
+public class LargeBodyAllocationTest {
+
+  private static final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+      .getThreadMXBean();
+
+  public static void main(String[] args) throws Exception {
+    int mb = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+    byte[] body = body(mb * 1024 * 1024);
+    MediaType json = MediaType.parse("application/json");
+    ProviderRoute route = new ProviderRoute("openai", "/openai/v1", "https://api.openai.com/v1", new String[0],
+        new String[0], StreamMode.BODY);
+    BodyLimits limits = new BodyLimits(0, 1024 * 1024, 64 * 1024);
+
+    // 第一轮包含类加载和 JIT 的分配
+    for (int i = 0; i < 4; i++) {
+      run(body, json, route, limits);
+    }
+    System.exit(0);
+  }
+
+  private static void run(byte[] body, MediaType json, ProviderRoute route, BodyLimits limits) throws Exception {
+    long before = allocated();
+    LLMRequestScanner.scan(body);
+    long fullScan = allocated() - before;
+
+    before = allocated();
+    limits.scan(route, body);
+    long prefixScan = allocated() - before;
+
+    before = allocated();
+    ResponseCache.key("openai", "gpt-4o", "https://api.openai.com/v1/chat/completions", Collections.emptyMap(), body);
+    long cacheKey = allocated() - before;
+
+    before = allocated();
+    write(RequestBody.create(json, body));
+    long whole = allocated() - before;
+
+    before = allocated();
+    write(new ChunkedRequestBody(json, body));
+    long chunked = allocated() - before;
+
+    System.out.printf(
+        "body:%dMB fullScan:%s prefixScan:%s cacheKey:%s upstreamWrite whole:%s chunked:%s%n",
+        body.length >> 20, kb(fullScan), kb(prefixScan), kb(cacheKey), kb(whole), kb(chunked));
+  }
+
+  private static void write(RequestBody requestBody) throws Exception {
+    try (BufferedSink sink = Okio.buffer(Okio.blackhole())) {
+      requestBody.writeTo(sink);
+    }
+  }
+
+  /**
+   * stream 在请求体最前面, 和大部分 SDK 的字段顺序一致
+   */
+  private static byte[] body(int size) {
+    byte[] image = new byte[size * 3 / 4];
+    new Random(42).nextBytes(image);
+    String json = "{\"stream\":true,\"model\":\"gpt-4o\",\"messages\":[{\"role\":\"user\",\"content\":[{\"type\":\"image_url\","
+        + "\"image_url\":{\"url\":\"data:image/png;base64," + java.util.Base64.getEncoder().encodeToString(image)
+        + "\"}}]}]}";
+    return json.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static long allocated() {
+    return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static String kb(long bytes) {
+    return bytes / 1024 + "KB";
+  }
+}
@@ -0,0 +1,140 @@
+package nexus.io.llm.proxy.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+
+/**
+ * 本地模拟 N 个慢上游, 对比平台线程和虚拟线程下的线程数与 RSS
+ *
+ * <pre>
+ * java -cp ... nexus.io.llm.proxy.client.UpstreamLoadTest platform 10000 20000
+ * java -cp ... nexus.io.llm.proxy.client.UpstreamLoadTest virtual 10000 20000   (JDK 21+)
+ * </pre>
+ */
+public class UpstreamLoadTest {
+
+  public static void main(String[] args) throws Exception {
+    String mode = args.length > 0 ? args[0] : "platform";
+    int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+    long delayMs = args.length > 2 ? Long.parseLong(args[2]) : 20000;
+
+    HttpServer server = slowServer(delayMs, concurrency);
+    String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/v1/chat/completions";
+
+    ExecutorService executor = "virtual".equals(mode) ? ProxyExecutors.newVirtualThreadPerTaskExecutor() : null;
+    if ("virtual".equals(mode) && executor == null) {
+      throw new IllegalStateException("virtual threads require JDK 21+");
+    }
+    OkHttpClient client = LLMProxyClient.buildHttpClient(executor);
+    client.dispatcher().setMaxRequests(concurrency);
+    client.dispatcher().setMaxRequestsPerHost(concurrency);
+
+    int baseThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+    long baseRss = rssKb();
+
+    byte[] body = "{\"model\":\"mock\",\"stream\":false}".getBytes(StandardCharsets.UTF_8);
+    CountDownLatch latch = new CountDownLatch(concurrency);
+    AtomicInteger failed = new AtomicInteger();
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < concurrency; i++) {
+      client.newCall(LLMProxyClient.buildRequest(url, new HashMap<>(), body, null)).enqueue(new Callback() {
+        @Override
+        public void onResponse(Call call, Response response) {
+          response.close();
+          latch.countDown();
+        }
+
+        @Override
+        public void onFailure(Call call, IOException e) {
+          failed.incrementAndGet();
+          latch.countDown();
+        }
+      });
+    }
+
+    // 在所有请求都挂在上游时取样
+    int peakThreads = 0;
+    long peakRss = 0;
+    while (!latch.await(500, TimeUnit.MILLISECONDS)) {
+      peakThreads = Math.max(peakThreads, ManagementFactory.getThreadMXBean().getThreadCount());
+      peakRss = Math.max(peakRss, rssKb());
+    }
+    long elapsed = System.currentTimeMillis() - start;
+
+    System.out.printf("mode=%s java=%s concurrency=%d delay=%dms%n", mode, System.getProperty("java.version"),
+        concurrency, delayMs);
+    System.out.printf("threads: base=%d peak=%d%n", baseThreads, peakThreads);
+    System.out.printf("rss: base=%dMB peak=%dMB%n", baseRss / 1024, peakRss / 1024);
+    System.out.printf("elapsed=%dms failed=%d%n", elapsed, failed.get());
+
+    client.dispatcher().executorService().shutdown();
+    client.connectionPool().evictAll();
+    server.stop(0);
+    System.exit(0);
+  }
+
+  /**
+   * 响应在 delayMs 之后由定时线程写出, 服务端自身不为每个连接占用线程
+   */
+  private static HttpServer slowServer(long delayMs, int backlog) throws IOException {
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), backlog);
+    ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    server.setExecutor(Executors.newFixedThreadPool(4));
+    server.createContext("/", exchange -> {
+      drain(exchange);
+      timer.schedule(() -> reply(exchange), delayMs, TimeUnit.MILLISECONDS);
+    });
+    server.start();
+    return server;
+  }
+
+  private static void drain(HttpExchange exchange) throws IOException {
+    byte[] buffer = new byte[1024];
+    while (exchange.getRequestBody().read(buffer) != -1) {
+    }
+  }
+
+  private static void reply(HttpExchange exchange) {
+    byte[] bytes = "{\"choices\":[]}".getBytes(StandardCharsets.UTF_8);
+    try (OutputStream out = exchange.getResponseBody()) {
+      exchange.getResponseHeaders().add("Content-Type", "application/json");
+      exchange.sendResponseHeaders(200, bytes.length);
+      out.write(bytes);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private static long rssKb() {
+    try {
+      for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+        if (line.startsWith("VmRSS:")) {
+          return Long.parseLong(line.replaceAll("[^0-9]", ""));
+        }
+      }
+    } catch (IOException e) {
+      // 非 Linux
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,147 @@
+package nexus.io.llm.proxy.cluster;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+import nexus.io.llm.proxy.limit.RateLimiter;
+
+/**
+ * 在一个 JVM 中用本机的不同端口启动 N 个 gossip 节点, 测量计数器的收敛时间, 共享限流时集群的实际放行速率, 以及缓存条目的同步
+ *
+ * <pre>
+ * java -cp ... nexus.io.llm.proxy.cluster.GossipConvergenceTest 3 200 100   (节点数, 同步周期 ms, 每个密钥的 rps)
+ * </pre>
+ */
+public class GossipConvergenceTest {
+
+  private static final byte[] SECRET = "gossip-convergence-test".getBytes(StandardCharsets.UTF_8);
+
+  public static void main(String[] args) throws Exception {
+    int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+    long syncMillis = args.length > 1 ? Long.parseLong(args[1]) : 200;
+    double rps = args.length > 2 ? Double.parseDouble(args[2]) : 100;
+
+    List<GossipSharedState> states = start(nodes, syncMillis);
+    convergence(states, 20);
+    rateLimit(states, rps, 5000);
+    entries(states, syncMillis);
+    for (GossipSharedState state : states) {
+      System.out.println(state.snapshot());
+      state.close();
+    }
+    System.exit(0);
+  }
+
+  private static List<GossipSharedState> start(int nodes, long syncMillis) throws Exception {
+    InetAddress loopback = InetAddress.getLoopbackAddress();
+    List<InetSocketAddress> addresses = new ArrayList<>();
+    for (int i = 0; i < nodes; i++) {
+      try (DatagramSocket probe = new DatagramSocket(0, loopback)) {
+        addresses.add(new InetSocketAddress(loopback, probe.getLocalPort()));
+      }
+    }
+    List<GossipSharedState> states = new ArrayList<>();
+    for (int i = 0; i < nodes; i++) {
+      List<InetSocketAddress> peers = new ArrayList<>(addresses);
+      InetSocketAddress bind = peers.remove(i);
+      states.add(new GossipSharedState("node-" + i, bind, peers, SECRET, syncMillis, 5, 50, 600000, 32 * 1024,
+          64L * 1024 * 1024));
+    }
+    return states;
+  }
+
+  /**
+   * 每个节点各加 1000, 记录所有节点的合计都等于 N * 1000 的时间
+   */
+  private static void convergence(List<GossipSharedState> states, int rounds) throws Exception {
+    long[] elapsed = new long[rounds];
+    for (int r = 0; r < rounds; r++) {
+      List<SharedCounter> counters = new ArrayList<>();
+      for (GossipSharedState state : states) {
+        counters.add(state.counter("test:round:" + r, null));
+      }
+      long start = System.nanoTime();
+      for (SharedCounter counter : counters) {
+        for (int i = 0; i < 1000; i++) {
+          counter.add(1);
+        }
+      }
+      long expected = 1000L * states.size();
+      while (!converged(counters, expected)) {
+        Thread.sleep(1);
+      }
+      elapsed[r] = System.nanoTime() - start;
+      for (SharedCounter counter : counters) {
+        counter.release();
+      }
+    }
+    Arrays.sort(elapsed);
+    System.out.printf("converge nodes:%d rounds:%d p50:%.1fms max:%.1fms%n", states.size(), rounds,
+        elapsed[rounds / 2] / 1e6, elapsed[rounds - 1] / 1e6);
+  }
+
+  private static boolean converged(List<SharedCounter> counters, long expected) {
+    for (SharedCounter counter : counters) {
+      if (counter.sum() != expected) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * 每个节点一个线程持续请求同一个密钥, 对比集群放行数和单节点的限额
+   */
+  private static void rateLimit(List<GossipSharedState> states, double rps, long durationMillis) throws Exception {
+    LongAdder allowed = new LongAdder();
+    CountDownLatch done = new CountDownLatch(states.size());
+    long deadline = System.currentTimeMillis() + durationMillis;
+    for (GossipSharedState state : states) {
+      RateLimiter limiter = new RateLimiter(new RateLimiter.Limit(rps, 0), new RateLimiter.Limit(0, 0),
+          new RateLimiter.Limit(0, 0), 1, state);
+      Thread thread = new Thread(() -> {
+        try {
+          while (System.currentTimeMillis() < deadline) {
+            if (limiter.acquire("sk-cluster-test", null, null, 0) == null) {
+              allowed.increment();
+            }
+            Thread.sleep(0, 200000);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } finally {
+          done.countDown();
+        }
+      }, "rate-limit-" + state.snapshot().get("node"));
+      thread.start();
+    }
+    done.await();
+    double seconds = durationMillis / 1000.0;
+    // 每个节点初始有一秒的突发, 之后集群合计应接近 rps; 只限制本节点时每个节点都能达到 rps
+    System.out.printf("rate limit nodes:%d rps:%.0f allowed:%d, expected ~%.0f, local only ~%.0f%n", states.size(), rps,
+        allowed.sum(), rps * (seconds + states.size()), states.size() * rps * (seconds + 1));
+  }
+
+  private static void entries(List<GossipSharedState> states, long syncMillis) throws Exception {
+    byte[] value = "cached response".getBytes(StandardCharsets.UTF_8);
+    long start = System.nanoTime();
+    states.get(0).put("cache:test", value, System.currentTimeMillis() + 60000);
+    for (int i = 1; i < states.size(); i++) {
+      while (states.get(i).get("cache:test") == null) {
+        if (System.nanoTime() - start > syncMillis * 20 * 1000000L) {
+          System.out.println("entry not replicated to node-" + i);
+          return;
+        }
+        Thread.sleep(1);
+      }
+    }
+    System.out.printf("entry replicated to %d nodes in %.1fms%n", states.size() - 1, (System.nanoTime() - start) / 1e6);
+  }
+}
@@ -0,0 +1,115 @@
+package nexus.io.llm.proxy.handler;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Proxy;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import nexus.io.tio.websocket.client.WebSocket;
+
+/**
+ * 单个读取线程每秒能转发的客户端帧数(帧/秒/核). 下游是不做任何事的 WebSocket, 测的是代理自身每帧的开销:
+ * 日志采样, 入队, 写线程出队发送. legacyKeyLookup 是原来每帧拼接 channelKey 再查表的开销, 用于对比
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=nexus.io.llm.proxy.handler.GeminiLiveForwardBenchmark
+ * </pre>
+ *
+ * 加 -Dllm.proxy.live.coalesce.ms=20 测合并音频帧时的吞吐
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+public class GeminiLiveForwardBenchmark {
+
+  private static final String CLIENT = "127.0.0.1:53122";
+
+  private Downstream downstream;
+  private byte[] pcm;
+  private String audioJson;
+  private Object channel;
+  private Map<String, Downstream> legacyMap;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    // 20ms 16kHz 16bit 单声道
+    pcm = new byte[640];
+    new Random(42).nextBytes(pcm);
+    audioJson = "{\"realtimeInput\":{\"audio\":{\"mimeType\":\"audio/pcm;rate=16000\",\"data\":\""
+        + Base64.getEncoder().encodeToString(pcm) + "\"}}}";
+
+    downstream = new Downstream("ws://127.0.0.1/mock", null, null);
+    downstream.onOpen(null);
+    downstream.connected(noopWebSocket());
+
+    channel = new Object();
+    legacyMap = new ConcurrentHashMap<>();
+    legacyMap.put(CLIENT + "#" + System.identityHashCode(channel), downstream);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    downstream.close();
+  }
+
+  @Benchmark
+  public boolean forwardBytes() {
+    downstream.nextFrame();
+    return downstream.sendBytes(pcm);
+  }
+
+  @Benchmark
+  public boolean forwardText() {
+    downstream.nextFrame();
+    return downstream.sendText(audioJson);
+  }
+
+  @Benchmark
+  public Downstream legacyKeyLookup() {
+    return legacyMap.get(CLIENT + "#" + System.identityHashCode(channel));
+  }
+
+  /**
+   * 用动态代理实现, 不依赖 WebSocket 接口的具体方法
+   */
+  private static WebSocket noopWebSocket() {
+    return (WebSocket) Proxy.newProxyInstance(WebSocket.class.getClassLoader(), new Class<?>[] { WebSocket.class },
+        (proxy, method, args) -> {
+          Class<?> type = method.getReturnType();
+          if (type == boolean.class) {
+            return true;
+          }
+          // 其他基本类型返回默认值
+          return type.isPrimitive() && type != void.class ? Array.get(Array.newInstance(type, 1), 0) : null;
+        });
+  }
+
+  public static void main(String[] args) throws Exception {
+    Options options = new OptionsBuilder().include(GeminiLiveForwardBenchmark.class.getSimpleName()).build();
+    new Runner(options).run();
+  }
+}
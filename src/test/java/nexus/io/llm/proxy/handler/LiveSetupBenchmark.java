@@ -0,0 +1,175 @@
+package nexus.io.llm.proxy.handler;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import nexus.io.llm.proxy.mode.GoogleWsConnectParam;
+
+/**
+ * 本地模拟 Gemini Live 服务端, 对比每个会话新建连接和使用预热连接时, 从建立会话到上游收到 setup 消息的耗时.
+ * 模拟服务端在握手响应前等待 delayMs, 相当于 TLS 和网络往返的时间
+ *
+ * <pre>
+ * java -cp ... nexus.io.llm.proxy.handler.LiveSetupBenchmark 100 100   (会话数, 握手延迟 ms)
+ * </pre>
+ */
+public class LiveSetupBenchmark {
+
+  private static final Map<String, CompletableFuture<Long>> arrivals = new ConcurrentHashMap<>();
+
+  public static void main(String[] args) throws Exception {
+    int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+    long delayMs = args.length > 1 ? Long.parseLong(args[1]) : 100;
+
+    ServerSocket server = mockServer(delayMs);
+    String uri = "ws://127.0.0.1:" + server.getLocalPort() + "/ws/live";
+    GoogleWsConnectParam param = new GoogleWsConnectParam("mock-key", null, "live-setup-benchmark");
+
+    long[] direct = run("direct", sessions, uri, param, null);
+    DownstreamPool pool = new DownstreamPool(uri, 2, null, 60000, 60000, 64);
+    long[] pooled = run("pooled", sessions, uri, param, pool);
+    pool.close();
+
+    print("direct", direct);
+    print("pooled", pooled);
+    System.out.println("pool: " + pool.snapshot());
+    server.close();
+    System.exit(0);
+  }
+
+  private static long[] run(String mode, int sessions, String uri, GoogleWsConnectParam param, DownstreamPool pool)
+      throws Exception {
+    long[] elapsed = new long[sessions];
+    for (int i = 0; i < sessions; i++) {
+      String id = mode + "-" + i;
+      CompletableFuture<Long> arrival = new CompletableFuture<>();
+      arrivals.put(id, arrival);
+
+      long start = System.nanoTime();
+      Downstream ds = pool != null ? pool.take(param, null) : null;
+      if (ds == null) {
+        ds = new Downstream(uri, param, null);
+        if (pool != null) {
+          pool.watch(param, ds);
+        }
+        ds.connect();
+      }
+      ds.sendText("{\"setup\":{\"model\":\"" + id + "\"}}");
+      elapsed[i] = arrival.get(30, TimeUnit.SECONDS) - start;
+      ds.close();
+
+      // 留出补充预热连接的时间, 两种模式间隔相同
+      Thread.sleep(200);
+    }
+    return elapsed;
+  }
+
+  private static void print(String mode, long[] elapsed) {
+    long[] sorted = elapsed.clone();
+    Arrays.sort(sorted);
+    System.out.printf("%s sessions:%d p50:%.1fms p90:%.1fms p99:%.1fms max:%.1fms%n", mode, sorted.length,
+        sorted[sorted.length / 2] / 1e6, sorted[sorted.length * 9 / 10] / 1e6, sorted[sorted.length * 99 / 100] / 1e6,
+        sorted[sorted.length - 1] / 1e6);
+  }
+
+  /**
+   * 只实现握手和读取客户端帧, 记录每个会话第一条消息到达的时间
+   */
+  private static ServerSocket mockServer(long delayMs) throws IOException {
+    ServerSocket server = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+    Thread acceptor = new Thread(() -> {
+      while (!server.isClosed()) {
+        try {
+          Socket socket = server.accept();
+          Thread thread = new Thread(() -> serve(socket, delayMs), "mock-live");
+          thread.setDaemon(true);
+          thread.start();
+        } catch (IOException e) {
+          return;
+        }
+      }
+    }, "mock-live-acceptor");
+    acceptor.setDaemon(true);
+    acceptor.start();
+    return server;
+  }
+
+  private static void serve(Socket socket, long delayMs) {
+    try (Socket s = socket) {
+      s.setTcpNoDelay(true);
+      BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.ISO_8859_1));
+      String key = null;
+      String line;
+      while ((line = reader.readLine()) != null && !line.isEmpty()) {
+        if (line.toLowerCase().startsWith("sec-websocket-key:")) {
+          key = line.substring(line.indexOf(':') + 1).trim();
+        }
+      }
+      Thread.sleep(delayMs);
+      byte[] sha1 = MessageDigest.getInstance("SHA-1")
+          .digest((key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes(StandardCharsets.ISO_8859_1));
+      OutputStream out = s.getOutputStream();
+      out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+          + "Sec-WebSocket-Accept: " + Base64.getEncoder().encodeToString(sha1) + "\r\n\r\n")
+              .getBytes(StandardCharsets.ISO_8859_1));
+      out.flush();
+
+      // 握手请求没有 body, BufferedReader 不会多读客户端的帧
+      DataInputStream in = new DataInputStream(s.getInputStream());
+      while (true) {
+        int b0 = in.readUnsignedByte();
+        int b1 = in.readUnsignedByte();
+        long length = b1 & 0x7f;
+        if (length == 126) {
+          length = in.readUnsignedShort();
+        } else if (length == 127) {
+          length = in.readLong();
+        }
+        byte[] mask = new byte[4];
+        if ((b1 & 0x80) != 0) {
+          in.readFully(mask);
+        }
+        byte[] payload = new byte[(int) length];
+        in.readFully(payload);
+        for (int i = 0; i < payload.length; i++) {
+          payload[i] ^= mask[i & 3];
+        }
+        int opcode = b0 & 0x0f;
+        if (opcode == 8) {
+          return;
+        }
+        if (opcode == 1) {
+          long now = System.nanoTime();
+          String text = new String(payload, StandardCharsets.UTF_8);
+          int start = text.indexOf("\"model\":\"") + 9;
+          CompletableFuture<Long> arrival = arrivals.remove(text.substring(start, text.indexOf('"', start)));
+          if (arrival != null) {
+            arrival.complete(now);
+          }
+          // 和 Gemini 一样回复 setupComplete, 连接池收到后才开始预热
+          byte[] reply = "{\"setupComplete\":{}}".getBytes(StandardCharsets.UTF_8);
+          out.write(0x81);
+          out.write(reply.length);
+          out.write(reply);
+          out.flush();
+        }
+      }
+    } catch (Exception e) {
+      // 客户端关闭连接
+    }
+  }
+}
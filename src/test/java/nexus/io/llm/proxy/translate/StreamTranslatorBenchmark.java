@@ -0,0 +1,76 @@
+package nexus.io.llm.proxy.translate;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.alibaba.fastjson2.JSONObject;
+
+/**
+ * 单个上游事件翻译成 OpenAI chunk 的耗时, 每个事件大约对应一到几个 token. parseOnly 只解析事件, 作为对比
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=nexus.io.llm.proxy.translate.StreamTranslatorBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StreamTranslatorBenchmark {
+
+  private static final String ANTHROPIC_DELTA = "{\"type\":\"content_block_delta\",\"index\":0,"
+      + "\"delta\":{\"type\":\"text_delta\",\"text\":\" the quick brown fox\"}}";
+  private static final String GEMINI_CHUNK = "{\"candidates\":[{\"content\":{\"parts\":[{\"text\":\" the quick brown fox\"}],"
+      + "\"role\":\"model\"},\"index\":0}],\"usageMetadata\":{\"promptTokenCount\":12,\"candidatesTokenCount\":5,"
+      + "\"totalTokenCount\":17},\"modelVersion\":\"gemini-2.5-flash\",\"responseId\":\"abc123\"}";
+
+  private StreamTranslator anthropic;
+  private StreamTranslator gemini;
+  private Consumer<String> out;
+
+  @Setup(Level.Iteration)
+  public void setup(Blackhole blackhole) {
+    JSONObject request = new JSONObject();
+    anthropic = new AnthropicTranslator().stream(request, "claude-sonnet-4-5");
+    gemini = new GeminiTranslator(false).stream(request, "gemini-2.5-flash");
+    out = blackhole::consume;
+  }
+
+  @Benchmark
+  public void anthropicTextDelta() {
+    anthropic.event("content_block_delta", ANTHROPIC_DELTA, out);
+  }
+
+  @Benchmark
+  public void geminiTextChunk() {
+    gemini.event(null, GEMINI_CHUNK, out);
+  }
+
+  @Benchmark
+  public Object parseOnly() {
+    return JSONObject.parseObject(ANTHROPIC_DELTA);
+  }
+
+  public static void main(String[] args) throws Exception {
+    Options options = new OptionsBuilder().include(StreamTranslatorBenchmark.class.getSimpleName()).build();
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,99 @@
+package nexus.io.llm.proxy.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONObject;
+
+import nexus.io.llm.proxy.mode.LLMRequestFields;
+
+/**
+ * 对比 LLMRequestScanner 与原来 getBodyString + parseObject 读取 stream 字段的开销
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=nexus.io.llm.proxy.utils.LLMRequestScannerBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LLMRequestScannerBenchmark {
+
+  @Param({ "1", "100", "500" })
+  private int sizeKb;
+
+  private byte[] body;
+
+  @Setup
+  public void setup() {
+    body = buildBody(sizeKb * 1024);
+    LLMRequestFields fields = LLMRequestScanner.scan(body);
+    JSONObject jsonObject = JSON.parseObject(new String(body, StandardCharsets.UTF_8));
+    if (!fields.isStream() || !jsonObject.getBoolean("stream") || !jsonObject.getString("model").equals(fields.getModel())) {
+      throw new IllegalStateException("scanner result differs from parseObject");
+    }
+  }
+
+  @Benchmark
+  public Boolean parseObject() {
+    String bodyString = new String(body, StandardCharsets.UTF_8);
+    JSONObject openAiRequestVo = JSON.parseObject(bodyString);
+    return openAiRequestVo.getBoolean("stream");
+  }
+
+  @Benchmark
+  public Boolean scan() {
+    return LLMRequestScanner.scan(body).getStream();
+  }
+
+  /**
+   * 多轮对话 + base64 图片, stream 字段放在最后
+   */
+  static byte[] buildBody(int size) {
+    Random random = new Random(42);
+    byte[] image = new byte[size / 2];
+    random.nextBytes(image);
+    String base64 = Base64.getEncoder().encodeToString(image);
+
+    StringBuilder sb = new StringBuilder(size + 1024);
+    sb.append("{\"model\":\"gpt-4o-mini\",\"temperature\":0,\"messages\":[");
+    sb.append("{\"role\":\"user\",\"content\":[{\"type\":\"image_url\",\"image_url\":{\"url\":\"data:image/png;base64,");
+    sb.append(base64, 0, Math.min(base64.length(), size / 2));
+    sb.append("\"}}]}");
+    int turn = 0;
+    while (sb.length() < size) {
+      sb.append(",{\"role\":\"").append(turn % 2 == 0 ? "assistant" : "user").append("\",\"content\":\"");
+      sb.append("第").append(turn).append("轮 \\\"quoted\\\" text with {braces} and [brackets]\\n");
+      sb.append("\"}");
+      turn++;
+    }
+    sb.append("],\"stream\":true}");
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  public static void main(String[] args) throws Exception {
+    Options options = new OptionsBuilder().include(LLMRequestScannerBenchmark.class.getSimpleName()).build();
+    new Runner(options).run();
+  }
+}